@@ -0,0 +1,887 @@
+package com.armaggheddon.muzic;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link PlaybackEngine} that decodes the songs with {@link MediaExtractor} and {@link MediaCodec}
+ * and plays the PCM data with {@link AudioTrack}.
+ * A decode thread writes the PCM data in a {@link PcmRingBuffer} and an output thread moves it
+ * from the buffer to the AudioTrack. The decoding starts as soon as a song is prepared, so when
+ * play is asked the first samples are already available. When a song ends the decode thread
+ * continues with the song given in {@link CodecPlaybackEngine#prepareNext(Uri)} writing in the
+ * same buffer, so there is no gap between the two songs.
+ * The buffer is divided in {@link Segment}s, each one starting where a new song or a new audio
+ * format starts, this allows the output thread to know exactly when the next song is heard
+ */
+
+public class CodecPlaybackEngine implements PlaybackEngine {
+
+    private static final String TAG = "CodecPlaybackEngine";
+
+    /* About 1.5 seconds of 44.1kHz stereo audio */
+    private static final int RING_BUFFER_SIZE = 256 * 1024;
+
+    /* Size of the chunks moved from the ring buffer to the AudioTrack */
+    private static final int OUTPUT_CHUNK_SIZE = 4096;
+
+    /* Timeout used when waiting for the codec buffers, in microseconds */
+    private static final long CODEC_TIMEOUT_US = 10000;
+
+    /* Maximum time the decode thread waits for the next song to be prepared at the end of a song */
+    private static final long NEXT_SOURCE_WAIT_MS = 1000;
+
+    /* Maximum time to wait for an AudioTrack to play the data it holds */
+    private static final long DRAIN_TIMEOUT_MS = 2000;
+
+    /* Time after which a thread that does not stop is logged, the engine keeps waiting for it */
+    private static final long THREAD_JOIN_MS = 500;
+
+    /* 16 bit PCM */
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    /**
+     * A song opened with its extractor and codec ready to decode
+     */
+    private static final class Source {
+        final String path;
+        final long duration;
+        final MediaExtractor extractor;
+        final MediaCodec codec;
+        int sampleRate;
+        int channels;
+
+        Source(String path, long duration, MediaExtractor extractor, MediaCodec codec, int sampleRate, int channels){
+            this.path = path;
+            this.duration = duration;
+            this.extractor = extractor;
+            this.codec = codec;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+        }
+
+        void release(){
+            try {
+                codec.stop();
+            } catch (IllegalStateException e) {
+                /* The codec was never started or is already in the error state */
+            }
+            codec.release();
+            extractor.release();
+        }
+    }
+
+    /**
+     * A part of the ring buffer that holds audio of the same song and with the same format,
+     * starting at the absolute byte {@link Segment#startByte}
+     */
+    private static final class Segment {
+        final long startByte;
+        final String path;
+        final long startMs;
+        final int sampleRate;
+        final int channels;
+        final boolean newSong;
+        final boolean looped;
+
+        Segment(long startByte, String path, long startMs, int sampleRate, int channels, boolean newSong, boolean looped){
+            this.startByte = startByte;
+            this.path = path;
+            this.startMs = startMs;
+            this.sampleRate = sampleRate;
+            this.channels = channels;
+            this.newSong = newSong;
+            this.looped = looped;
+        }
+
+        int frameSize(){
+            return channels * BYTES_PER_SAMPLE;
+        }
+    }
+
+    private final Context mContext;
+    private volatile Callback mCallback;
+
+    private final PcmRingBuffer mRing = new PcmRingBuffer(RING_BUFFER_SIZE);
+
+    /*
+    The segments not yet completely heard, ordered by startByte. The first one is the one being
+    heard. Accessed by the engine, the decode thread and the output thread so guarded by itself
+     */
+    private final List<Segment> mSegments = new ArrayList<>();
+
+    /* The source being decoded, owned by the decode thread while the pipeline is running */
+    private volatile Source mDecoding;
+
+    /* The next song, prepared on mPrepareHandler and guarded by mNextLock */
+    private final Object mNextLock = new Object();
+    private Source mNextSource;
+    private String mNextPath;
+
+    private final HandlerThread mPrepareThread;
+    private final Handler mPrepareHandler;
+
+    /*
+    The AudioTrack is created by the output thread when the format of the audio changes, and
+    released by it when it ends. The other threads use it only while holding mTrackLock, so it is
+    never released under them
+    */
+    private final Object mTrackLock = new Object();
+    private volatile AudioTrack mTrack;
+
+    /* Absolute byte of the ring buffer played when the head position of mTrack was 0 */
+    private volatile long mTrackBaseByte;
+
+    private Thread mDecodeThread;
+    private Thread mOutputThread;
+    private volatile boolean mRunning = false;
+    private volatile boolean mPlaying = false;
+    private volatile float mVolume = DEFAULT_VOLUME;
+
+    /* Read by the decode thread at the end of every song */
+    private volatile boolean mLooping = false;
+
+    public CodecPlaybackEngine(Context context){
+        mContext = context;
+        mPrepareThread = new HandlerThread(TAG);
+        mPrepareThread.start();
+        mPrepareHandler = new Handler(mPrepareThread.getLooper());
+    }
+
+    @Override
+    public void setCallback(Callback callback){
+        mCallback = callback;
+    }
+
+    /**
+     * Loads the song given. If it is the song being heard nothing is done, if it is the song
+     * already being decoded after the current one or the one prepared as the next song it is
+     * reused, else it is opened. The decoding starts immediately.
+     * A song that already ended is not being heard even if it is still the last segment, so the
+     * same song at two consecutive positions of the queue is played again from the beginning
+     * @param uriPath
+     *          The Uri of the song to load
+     * @param duration
+     *          The duration in milliseconds of the song, 0 if not known
+     */
+    @Override
+    public synchronized void prepare(Uri uriPath, long duration){
+        String path = String.valueOf(uriPath);
+        if(mRunning && path.equals(getAudiblePath()))
+            return;
+
+        stopPipeline();
+
+        Source source = null;
+        if(mDecoding != null && mDecoding.path.equals(path)){
+
+            /* The song was already chained after the previous one, restart it from the beginning */
+            source = mDecoding;
+            seekSource(source, 0);
+        } else {
+            if(mDecoding != null)
+                mDecoding.release();
+            synchronized (mNextLock){
+                if(mNextSource != null && mNextSource.path.equals(path)){
+                    source = mNextSource;
+                    mNextSource = null;
+                    mNextPath = null;
+                }
+            }
+            if(source == null)
+                source = openSource(path, duration);
+        }
+        mDecoding = source;
+
+        if(source == null){
+            synchronized (mSegments){
+                mSegments.clear();
+            }
+            Callback callback = mCallback;
+            if(callback != null)
+                callback.onError(path);
+            return;
+        }
+
+        startPipeline(0);
+    }
+
+    @Override
+    public void prepareNext(Uri uriPath){
+        final String path = String.valueOf(uriPath);
+        synchronized (mNextLock){
+            if(path.equals(mNextPath))
+                return;
+            if(mNextSource != null){
+                mNextSource.release();
+                mNextSource = null;
+            }
+            mNextPath = path;
+        }
+
+        /* Opening the extractor and the codec reads from the storage, do it out of the session thread */
+        mPrepareHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Source source = openSource(path, 0);
+                synchronized (mNextLock){
+                    if(source != null && path.equals(mNextPath) && mNextSource == null){
+                        mNextSource = source;
+                        mNextLock.notifyAll();
+                    } else if(source != null){
+                        source.release();
+                    }
+                }
+            }
+        });
+    }
+
+    @Override
+    public synchronized void play(){
+        if(mDecoding == null)
+            return;
+        mPlaying = true;
+        synchronized (mTrackLock){
+            if(mTrack != null)
+                mTrack.play();
+        }
+    }
+
+    @Override
+    public synchronized void pause(){
+        mPlaying = false;
+        synchronized (mTrackLock){
+            if(mTrack != null)
+                mTrack.pause();
+        }
+    }
+
+    @Override
+    public synchronized void stop(){
+        mPlaying = false;
+        stopPipeline();
+        releaseTrack();
+        if(mDecoding != null){
+            mDecoding.release();
+            mDecoding = null;
+        }
+        synchronized (mSegments){
+            mSegments.clear();
+        }
+    }
+
+    @Override
+    public void release(){
+        stop();
+        synchronized (mNextLock){
+            if(mNextSource != null){
+                mNextSource.release();
+                mNextSource = null;
+            }
+            mNextPath = null;
+        }
+        mPrepareThread.quitSafely();
+    }
+
+    /**
+     * Seeks the song being heard. If the tail of the previous song is still being heard while the
+     * next one is decoded, the seek applies to the next song and the session is told about it
+     * @param ms
+     *          The milliseconds to seek to
+     */
+    @Override
+    public synchronized void seekTo(long ms){
+        if(mDecoding == null)
+            return;
+
+        boolean skippedTail = !mDecoding.path.equals(getAudiblePath());
+        stopPipeline();
+        long startMs = seekSource(mDecoding, ms);
+        startPipeline(startMs);
+
+        Callback callback = mCallback;
+        if(skippedTail && callback != null)
+            callback.onNextStarted();
+    }
+
+    @Override
+    public long getPosition(){
+        long playedByte;
+        synchronized (mTrackLock){
+            AudioTrack track = mTrack;
+            if(track == null){
+
+                /* The output thread is creating the track, nothing was heard yet from the first segment */
+                synchronized (mSegments){
+                    return mSegments.isEmpty() ? 0 : mSegments.get(0).startMs;
+                }
+            }
+            playedByte = getPlayedByte(track);
+        }
+        Segment segment = updateAudibleSegment(playedByte);
+        if(segment == null)
+            return 0;
+        long playedBytes = playedByte - segment.startByte;
+        return segment.startMs + (playedBytes / segment.frameSize()) * 1000 / segment.sampleRate;
+    }
+
+    @Override
+    public boolean isPlaying(){
+        return mPlaying && mRunning;
+    }
+
+    /**
+     * When looping the decode thread seeks the same decoder back to the beginning at the end of
+     * the song, so the song restarts without gaps and without opening it again
+     * @param looping
+     *          True to loop the song
+     */
+    @Override
+    public void setLooping(boolean looping){
+        mLooping = looping;
+    }
+
+    @Override
+    public void setVolume(float volume){
+        mVolume = volume;
+        synchronized (mTrackLock){
+            if(mTrack != null)
+                mTrack.setVolume(volume);
+        }
+    }
+
+    /**
+     * @return
+     *          The path of the song being heard, null if no song is loaded
+     */
+    private String getAudiblePath(){
+        synchronized (mSegments){
+            return mSegments.isEmpty() ? null : mSegments.get(0).path;
+        }
+    }
+
+    /**
+     * Called by the output thread on its own track, or by the others while holding mTrackLock
+     * @return
+     *          The absolute byte of the ring buffer being heard
+     */
+    private long getPlayedByte(AudioTrack track){
+
+        /* The head position is an unsigned 32 bit value */
+        long head = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        Segment segment;
+        synchronized (mSegments){
+            if(mSegments.isEmpty())
+                return mTrackBaseByte;
+            segment = mSegments.get(0);
+        }
+        return mTrackBaseByte + head * segment.frameSize();
+    }
+
+    /**
+     * Removes the segments that are no longer heard and tells the session when the first segment of
+     * the next song, or of a loop of the same song, starts being heard
+     * @param playedByte
+     *          The absolute byte of the ring buffer being heard
+     * @return
+     *          The segment being heard, null if there are none
+     */
+    private Segment updateAudibleSegment(long playedByte){
+        boolean nextStarted = false;
+        int loops = 0;
+        Segment current;
+        synchronized (mSegments){
+            while(mSegments.size() > 1 && mSegments.get(1).startByte <= playedByte){
+                mSegments.remove(0);
+                nextStarted |= mSegments.get(0).newSong;
+                if(mSegments.get(0).looped)
+                    loops++;
+            }
+            current = mSegments.isEmpty() ? null : mSegments.get(0);
+        }
+
+        Callback callback = mCallback;
+        if(callback == null)
+            return current;
+        for(int i = 0; i < loops; i++)
+            callback.onLooped();
+        if(nextStarted)
+            callback.onNextStarted();
+        return current;
+    }
+
+    /**
+     * Opens the extractor and the decoder for the song given
+     * @param path
+     *          The path of the song
+     * @param duration
+     *          The duration in milliseconds, 0 if not known
+     * @return
+     *          The source ready to be decoded, null if the song can not be opened
+     */
+    private Source openSource(String path, long duration){
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec codec = null;
+        try{
+            Uri uri = Uri.parse(path);
+            MappedFileDataSource source = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
+                    ? MappedFileDataSource.open(mContext, uri)
+                    : null;
+
+            /* Read from the mapped file when possible, else let the extractor open the Uri */
+            if(source != null)
+                extractor.setDataSource(source);
+            else
+                extractor.setDataSource(mContext, uri, null);
+
+            /* Select the first audio track in the file */
+            for(int i = 0; i < extractor.getTrackCount(); i++){
+                MediaFormat format = extractor.getTrackFormat(i);
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if(mime != null && mime.startsWith("audio/")){
+                    extractor.selectTrack(i);
+                    codec = MediaCodec.createDecoderByType(mime);
+                    codec.configure(format, null, null, 0);
+                    codec.start();
+                    return new Source(
+                            path,
+                            duration,
+                            extractor,
+                            codec,
+                            format.getInteger(MediaFormat.KEY_SAMPLE_RATE),
+                            format.getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                }
+            }
+            Log.e(TAG, "openSource: no audio track in " + path);
+        }catch (IOException | IllegalArgumentException | IllegalStateException e){
+            Log.e(TAG, "openSource: ", e);
+        }
+        if(codec != null)
+            codec.release();
+        extractor.release();
+        return null;
+    }
+
+    /**
+     * Moves the source to the given position, the pipeline must be stopped
+     * @return
+     *          The position actually reached in milliseconds, it is the sync sample before {@param ms}
+     */
+    private long seekSource(Source source, long ms){
+        source.extractor.seekTo(ms * 1000, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        source.codec.flush();
+        long sampleTime = source.extractor.getSampleTime();
+        return (sampleTime >= 0) ? sampleTime / 1000 : ms;
+    }
+
+    /**
+     * Empties the ring buffer and starts the decode and output threads for {@link CodecPlaybackEngine#mDecoding}
+     * @param startMs
+     *          The position in the song of the first decoded sample
+     */
+    private void startPipeline(long startMs){
+        mRing.clear();
+        Segment segment = new Segment(
+                mRing.getWrittenBytes(),
+                mDecoding.path,
+                startMs,
+                mDecoding.sampleRate,
+                mDecoding.channels,
+                true,
+                false);
+        synchronized (mSegments){
+            mSegments.clear();
+            mSegments.add(segment);
+        }
+
+        /* The old track holds audio of the previous position */
+        releaseTrack();
+
+        mRunning = true;
+        final Source first = mDecoding;
+        mDecodeThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+                decodeLoop(first);
+            }
+        }, TAG + "Decode");
+        mOutputThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+                outputLoop();
+            }
+        }, TAG + "Output");
+        mDecodeThread.start();
+        mOutputThread.start();
+    }
+
+    /**
+     * Stops the decode and output threads and waits for them to end, also when the pipeline
+     * already ended by itself. The output thread releases its AudioTrack before ending, the
+     * sources are released by the callers only after this returns, so none of them is released
+     * while a thread is still using it
+     */
+    private void stopPipeline(){
+        if(mDecodeThread == null)
+            return;
+        mRunning = false;
+
+        /* Wake up the threads waiting on the ring buffer */
+        mRing.close();
+
+        /* A write on a paused and full AudioTrack blocks, flushing it wakes the output thread up */
+        synchronized (mTrackLock){
+            if(mTrack != null){
+                mTrack.pause();
+                mTrack.flush();
+            }
+        }
+        mDecodeThread.interrupt();
+        mOutputThread.interrupt();
+        join(mDecodeThread);
+        join(mOutputThread);
+        mDecodeThread = null;
+        mOutputThread = null;
+    }
+
+    /**
+     * Waits for the thread to end, even if the calling thread is interrupted. The codec waits for
+     * its buffers at most {@value CodecPlaybackEngine#CODEC_TIMEOUT_US} microseconds, so the
+     * threads end shortly after being stopped
+     */
+    private static void join(Thread thread){
+        boolean interrupted = false;
+        while(thread.isAlive()){
+            try {
+                thread.join(THREAD_JOIN_MS);
+                if(thread.isAlive())
+                    Log.w(TAG, "join: still waiting for " + thread.getName());
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Decodes the songs writing the PCM data in the ring buffer. When a song ends continues with
+     * the next song, if any, adding a new segment that starts where the previous song ended
+     * @param first
+     *          The first song to decode
+     */
+    private void decodeLoop(Source first){
+        Source source = first;
+        try{
+            while(mRunning){
+                if(!decode(source))
+                    return;
+
+                /* Restart the same song, the new segment makes the position start again from 0 */
+                if(mLooping){
+                    seekSource(source, 0);
+                    synchronized (mSegments){
+                        mSegments.add(new Segment(
+                                mRing.getWrittenBytes(),
+                                source.path,
+                                0,
+                                source.sampleRate,
+                                source.channels,
+                                false,
+                                true));
+                    }
+                    continue;
+                }
+
+                /* The song is complete, wait a bit for the next song if it is still being prepared */
+                Source next;
+                synchronized (mNextLock){
+                    long deadline = System.currentTimeMillis() + NEXT_SOURCE_WAIT_MS;
+                    while(mNextSource == null && mNextPath != null && System.currentTimeMillis() < deadline)
+                        mNextLock.wait(NEXT_SOURCE_WAIT_MS);
+                    next = mNextSource;
+                    mNextSource = null;
+                    mNextPath = null;
+                }
+                if(next == null)
+                    break;
+
+                synchronized (mSegments){
+                    mSegments.add(new Segment(
+                            mRing.getWrittenBytes(),
+                            next.path,
+                            0,
+                            next.sampleRate,
+                            next.channels,
+                            true,
+                            false));
+                }
+
+                /* The previous song is completely in the buffer, its decoder is no longer needed */
+                source.release();
+                mDecoding = next;
+                source = next;
+            }
+            mRing.setEndOfStream();
+        }catch (InterruptedException e){
+            /* The pipeline is being stopped */
+        }catch (IllegalStateException e){
+            Log.e(TAG, "decodeLoop: ", e);
+            mRing.setEndOfStream();
+        }
+    }
+
+    /**
+     * Decodes a song until its end
+     * @return
+     *          True if the end of the song was reached, false if the pipeline was stopped
+     */
+    private boolean decode(Source source) throws InterruptedException {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        byte[] chunk = new byte[0];
+        boolean inputDone = false;
+
+        while(mRunning){
+            if(!inputDone){
+                int inIndex = source.codec.dequeueInputBuffer(CODEC_TIMEOUT_US);
+                if(inIndex >= 0){
+                    ByteBuffer input = source.codec.getInputBuffer(inIndex);
+                    int size = (input != null) ? source.extractor.readSampleData(input, 0) : -1;
+                    if(size < 0){
+                        source.codec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                        inputDone = true;
+                    }else {
+                        source.codec.queueInputBuffer(inIndex, 0, size, source.extractor.getSampleTime(), 0);
+                        source.extractor.advance();
+                    }
+                }
+            }
+
+            int outIndex = source.codec.dequeueOutputBuffer(info, CODEC_TIMEOUT_US);
+            if(outIndex >= 0){
+                int size = info.size;
+                if(size > 0){
+                    ByteBuffer output = source.codec.getOutputBuffer(outIndex);
+                    if(chunk.length < size)
+                        chunk = new byte[size];
+                    if(output != null){
+                        output.position(info.offset);
+                        output.limit(info.offset + size);
+                        output.get(chunk, 0, size);
+                    }
+                }
+
+                /* Give the buffer back before waiting for space in the ring buffer */
+                source.codec.releaseOutputBuffer(outIndex, false);
+                if(size > 0 && !mRing.write(chunk, 0, size))
+                    return false;
+                if((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                    return true;
+            }else if(outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED){
+                onOutputFormatChanged(source, source.codec.getOutputFormat());
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The decoder can output a format different from the one declared by the file, for example
+     * for HE-AAC. Starts a new segment from the current byte so the output thread uses a matching
+     * AudioTrack from there on
+     */
+    private void onOutputFormatChanged(Source source, MediaFormat format){
+        int sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+        int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+        if(sampleRate == source.sampleRate && channels == source.channels)
+            return;
+        source.sampleRate = sampleRate;
+        source.channels = channels;
+
+        long startByte = mRing.getWrittenBytes();
+        synchronized (mSegments){
+            Segment last = mSegments.get(mSegments.size() - 1);
+
+            /* Nothing was written with the old format, just replace it */
+            if(last.startByte == startByte){
+                mSegments.set(mSegments.size() - 1, new Segment(
+                        startByte, last.path, last.startMs, sampleRate, channels, last.newSong, last.looped));
+            }else {
+                long elapsedMs = ((startByte - last.startByte) / last.frameSize()) * 1000 / last.sampleRate;
+                mSegments.add(new Segment(
+                        startByte, source.path, last.startMs + elapsedMs, sampleRate, channels, false, false));
+            }
+        }
+    }
+
+    /**
+     * Moves the data from the ring buffer to the AudioTrack. Never reads across the start of a
+     * segment, so when the format changes the AudioTrack can be replaced exactly there.
+     * The AudioTrack is released when the loop ends
+     */
+    private void outputLoop(){
+        byte[] chunk = new byte[OUTPUT_CHUNK_SIZE];
+        try{
+            while(mRunning){
+                long readByte = mRing.getReadBytes();
+                Segment writing = null;
+                long limit = Long.MAX_VALUE;
+                synchronized (mSegments){
+                    for(Segment segment : mSegments){
+                        if(segment.startByte <= readByte)
+                            writing = segment;
+                        else {
+                            limit = segment.startByte;
+                            break;
+                        }
+                    }
+                }
+                if(writing == null)
+                    return;
+
+                AudioTrack track = mTrack;
+                if(track == null || !matches(track, writing)){
+                    track = replaceTrack(track, writing, readByte);
+                    if(track == null)
+                        return;
+                }
+
+                int length = (int) Math.min(chunk.length, limit - readByte);
+                int read = mRing.read(chunk, 0, length);
+                if(read < 0){
+                    drainAndComplete(track);
+                    return;
+                }
+                track.write(chunk, 0, read);
+                updateAudibleSegment(getPlayedByte(track));
+            }
+        }catch (InterruptedException e){
+            /* The pipeline is being stopped */
+        }finally {
+            releaseTrack();
+        }
+    }
+
+    /**
+     * @return
+     *          True if the AudioTrack can play the data of the segment
+     */
+    private boolean matches(AudioTrack track, Segment segment){
+        return track.getSampleRate() == segment.sampleRate && track.getChannelCount() == segment.channels;
+    }
+
+    /**
+     * Lets the old AudioTrack play what it holds and replaces it with one matching the segment
+     * @param readByte
+     *          The absolute byte of the ring buffer that will be the first one written in the new track
+     * @return
+     *          The new AudioTrack, null if the format is not supported
+     */
+    private AudioTrack replaceTrack(AudioTrack old, Segment segment, long readByte){
+        if(old != null){
+            drain(old);
+            releaseTrack();
+        }
+
+        int channelMask;
+        if(segment.channels == 1)
+            channelMask = AudioFormat.CHANNEL_OUT_MONO;
+        else if(segment.channels == 2)
+            channelMask = AudioFormat.CHANNEL_OUT_STEREO;
+        else {
+            Log.e(TAG, "replaceTrack: unsupported channel count " + segment.channels);
+            Callback callback = mCallback;
+            if(callback != null)
+                callback.onError(segment.path);
+            return null;
+        }
+
+        int minSize = AudioTrack.getMinBufferSize(segment.sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack(
+                new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+                        .build(),
+                new AudioFormat.Builder()
+                        .setSampleRate(segment.sampleRate)
+                        .setChannelMask(channelMask)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build(),
+                Math.max(minSize, OUTPUT_CHUNK_SIZE) * 2,
+                AudioTrack.MODE_STREAM,
+                AudioManager.AUDIO_SESSION_ID_GENERATE);
+        synchronized (mTrackLock){
+            track.setVolume(mVolume);
+            mTrackBaseByte = readByte;
+            mTrack = track;
+            if(mPlaying)
+                track.play();
+        }
+        return track;
+    }
+
+    /**
+     * Stops the AudioTrack letting it play the data already written and waits for it to finish
+     */
+    private void drain(AudioTrack track) {
+        long end = mRing.getReadBytes();
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+        track.stop();
+        try {
+            while (mRunning && getPlayedByte(track) < end && System.currentTimeMillis() < deadline)
+                Thread.sleep(5);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * All the songs were played, waits for the AudioTrack to play the last samples and tells the
+     * session that the song is complete. The pipeline is no longer running after this
+     */
+    private void drainAndComplete(AudioTrack track) throws InterruptedException {
+        long end = mRing.getReadBytes();
+        while(mRunning && getPlayedByte(track) < end){
+            updateAudibleSegment(getPlayedByte(track));
+            Thread.sleep(10);
+        }
+        if(!mRunning)
+            return;
+        mPlaying = false;
+        mRunning = false;
+        Callback callback = mCallback;
+        if(callback != null)
+            callback.onCompletion();
+    }
+
+    /**
+     * Releases the AudioTrack, if any. Called by the output thread, or by the engine when the
+     * output thread is not running
+     */
+    private void releaseTrack(){
+        synchronized (mTrackLock){
+            if(mTrack != null){
+                mTrack.release();
+                mTrack = null;
+            }
+        }
+    }
+}
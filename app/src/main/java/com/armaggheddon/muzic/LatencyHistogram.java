@@ -0,0 +1,135 @@
+package com.armaggheddon.muzic;
+
+import java.util.Arrays;
+
+/**
+ * Histogram of latencies in microseconds with a fixed memory footprint, the buckets follow the
+ * log-linear layout of HdrHistogram: every power of two is divided in
+ * {@value LatencyHistogram#HALF_SUB_BUCKET_COUNT} buckets of the same width, so every value is
+ * recorded with a relative error of about 3%.
+ * Values from 0 to {@value LatencyHistogram#MAX_VALUE} microseconds (about 12 days) are supported,
+ * bigger values are recorded as the maximum.
+ * The methods are synchronized since the values are recorded on the session thread and read by
+ * dumpsys or by the settings
+ */
+
+public class LatencyHistogram {
+
+    /* Each power of two is split in 2^(SUB_BUCKET_BITS - 1) buckets */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT / 2;
+
+    /* The highest value that can be recorded, in microseconds */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+
+    private final long[] mCounts;
+    private long mTotalCount = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    public LatencyHistogram(){
+        mCounts = new long[getIndex(MAX_VALUE) + 1];
+    }
+
+    /**
+     * Records a latency
+     * @param value
+     *          The latency in microseconds, negative values are recorded as 0
+     */
+    public synchronized void recordValue(long value){
+        value = Math.max(0, Math.min(value, MAX_VALUE));
+        mCounts[getIndex(value)]++;
+        mTotalCount++;
+        mMin = Math.min(mMin, value);
+        mMax = Math.max(mMax, value);
+    }
+
+    /**
+     * Get the value below which the given percentage of the recorded values falls
+     * @param percentile
+     *          The percentile between 0 and 100, for example 99 for p99
+     * @return
+     *          The highest value equivalent to the bucket holding the percentile, in microseconds,
+     *          0 if no value was recorded
+     */
+    public synchronized long getValueAtPercentile(double percentile){
+        if(mTotalCount == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(Math.min(percentile, 100) / 100 * mTotalCount));
+        long count = 0;
+        for(int i = 0; i < mCounts.length; i++){
+            count += mCounts[i];
+            if(count >= target)
+                return Math.min(getHighestValue(i), mMax);
+        }
+        return mMax;
+    }
+
+    /**
+     * @return
+     *          The number of values recorded
+     */
+    public synchronized long getTotalCount(){
+        return mTotalCount;
+    }
+
+    /**
+     * @return
+     *          The lowest value recorded in microseconds, 0 if no value was recorded
+     */
+    public synchronized long getMin(){
+        return (mTotalCount == 0) ? 0 : mMin;
+    }
+
+    /**
+     * @return
+     *          The highest value recorded in microseconds
+     */
+    public synchronized long getMax(){
+        return mMax;
+    }
+
+    /**
+     * Removes all the values recorded
+     */
+    public synchronized void reset(){
+        Arrays.fill(mCounts, 0);
+        mTotalCount = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    /**
+     * Values below {@value LatencyHistogram#SUB_BUCKET_COUNT} have a bucket each, above it each
+     * power of two 2^m has {@value LatencyHistogram#HALF_SUB_BUCKET_COUNT} buckets whose index is
+     * given by the most significant {@value LatencyHistogram#SUB_BUCKET_BITS} bits of the value
+     */
+    private static int getIndex(long value){
+        if(value < SUB_BUCKET_COUNT)
+            return (int) value;
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+        return SUB_BUCKET_COUNT
+                + (magnitude - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT
+                + (int) (value >> shift) - HALF_SUB_BUCKET_COUNT;
+    }
+
+    /**
+     * The inverse of {@link LatencyHistogram#getIndex(long)}
+     * @return
+     *          The highest value that is recorded in the bucket at the given index
+     */
+    private static long getHighestValue(int index){
+        if(index < SUB_BUCKET_COUNT)
+            return index;
+
+        int offset = index - SUB_BUCKET_COUNT;
+        int magnitude = SUB_BUCKET_BITS + offset / HALF_SUB_BUCKET_COUNT;
+        long subBucket = HALF_SUB_BUCKET_COUNT + offset % HALF_SUB_BUCKET_COUNT;
+        int shift = magnitude - (SUB_BUCKET_BITS - 1);
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
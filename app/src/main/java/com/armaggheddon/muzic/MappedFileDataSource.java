@@ -0,0 +1,134 @@
+package com.armaggheddon.muzic;
+
+import android.content.Context;
+import android.media.MediaDataSource;
+import android.net.Uri;
+import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * {@link MediaDataSource} that reads a song from a memory-mapped file, so the player reads the
+ * data directly from the page cache instead of going through the content provider on every read.
+ * Songs smaller than {@link MappedFileDataSource#SMALL_FILE_SIZE} are read once in a buffer since
+ * mapping them costs more than copying them.
+ * The file descriptor is closed as soon as the file is mapped, the mapping stays valid until it
+ * is garbage collected
+ */
+
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class MappedFileDataSource extends MediaDataSource {
+
+    private static final String TAG = "MappedFileDataSource";
+
+    /* Files up to this size, in bytes, are copied in memory instead of being mapped */
+    static final long SMALL_FILE_SIZE = 1024 * 1024;
+
+    /* Read only view of the whole file, guarded by this since readAt moves its position */
+    private ByteBuffer mData;
+    private final long mSize;
+
+    private MappedFileDataSource(ByteBuffer data){
+        mData = data;
+        mSize = data.capacity();
+    }
+
+    /**
+     * Opens the song given as a memory-mapped file
+     * @param context
+     *          The context used to resolve the Uri
+     * @param uri
+     *          The content Uri of the song
+     * @return
+     *          The data source ready to be given to the player, null if the file can not be
+     *          accessed directly, in this case the Uri must be used
+     */
+    public static MappedFileDataSource open(Context context, Uri uri){
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r")){
+            if(descriptor == null)
+                return null;
+
+            try (FileInputStream stream = new FileInputStream(descriptor.getFileDescriptor());
+                 FileChannel channel = stream.getChannel()){
+                return open(channel);
+            }
+        }catch (IOException | SecurityException | IllegalArgumentException e){
+
+            /* The file is not accessible directly, for example on a volume without permission */
+            Log.w(TAG, "open: falling back to the Uri for " + uri, e);
+            return null;
+        }
+    }
+
+    /**
+     * Maps the file open in the channel given, or reads it in memory if it is small
+     * @param channel
+     *          The channel of the file, it can be closed once this returns
+     * @return
+     *          The data source, null if the file is empty or too big to be mapped
+     */
+    static MappedFileDataSource open(FileChannel channel) throws IOException {
+        long size = channel.size();
+
+        /* A ByteBuffer can not be bigger than Integer.MAX_VALUE */
+        if(size <= 0 || size > Integer.MAX_VALUE)
+            return null;
+
+        if(size <= SMALL_FILE_SIZE){
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while(buffer.hasRemaining())
+                if(channel.read(buffer, buffer.position()) < 0)
+                    return null;
+            buffer.flip();
+            return new MappedFileDataSource(buffer);
+        }
+        return new MappedFileDataSource(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+
+    /**
+     * Copies the requested bytes of the file in {@param buffer}
+     * @param position
+     *          The offset in the file of the first byte to read
+     * @param buffer
+     *          The array in which to copy the bytes
+     * @param offset
+     *          The first position to write in {@param buffer}
+     * @param size
+     *          The number of bytes requested
+     * @return
+     *          The number of bytes copied, -1 if {@param position} is at or after the end of the file
+     */
+    @Override
+    public synchronized int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+        if(mData == null)
+            throw new IOException("Data source closed");
+        if(position >= mSize)
+            return -1;
+
+        int count = (int) Math.min(size, mSize - position);
+        mData.position((int) position);
+        mData.get(buffer, offset, count);
+        return count;
+    }
+
+    @Override
+    public long getSize(){
+        return mSize;
+    }
+
+    /**
+     * Called by the player when it is released, drops the reference to the mapping so it can be
+     * unmapped
+     */
+    @Override
+    public synchronized void close(){
+        mData = null;
+    }
+}
@@ -6,7 +6,12 @@ import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.Matrix;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
@@ -24,7 +29,13 @@ import com.armaggheddon.muzic.ui.MainActivity;
 /**
  * Manages the correct set up of the notification and builds the
  * {@link MediaNotificationManager#createContentIntent()} pending intent that launches
- * {@link FullPlayerActivity}
+ * {@link FullPlayerActivity}.
+ * The builders, the actions and the pending intents are created once and only the text and the
+ * large icon change with the song. The large icon is scaled down to the size of the notification
+ * once per song, and the updates posted with
+ * {@link MediaNotificationManager#notify(MediaMetadataCompat, PlaybackStateCompat, MediaSessionCompat.Token)}
+ * are limited to one every {@value MediaNotificationManager#MIN_NOTIFY_INTERVAL_MS} milliseconds,
+ * the last one is always posted
  */
 
 public class MediaNotificationManager {
@@ -44,6 +55,12 @@ public class MediaNotificationManager {
     /* Can ba a random value and it is */
     public static final int REQUEST_CODE = 244;
 
+    /*
+    The system drops the updates of an app that posts more than a few per second, so the updates
+    closer than this are merged
+    */
+    private static final long MIN_NOTIFY_INTERVAL_MS = 250;
+
     private MusicService mService;
 
     /* Keep a final instance of the actions since are always the same, and are only swapped in/out */
@@ -55,6 +72,42 @@ public class MediaNotificationManager {
 
     private final NotificationCompat.Action mRewindAction;
 
+    /* Created once since creating a PendingIntent is a call to the system */
+    private final PendingIntent mContentIntent;
+    private final PendingIntent mStopIntent;
+
+    /*
+    One builder with the pause action, used while playing, and one with the play action. Built
+    on the first notification, when the token of the session is known. Guarded by this
+    */
+    private NotificationCompat.Builder mPlayingBuilder;
+    private NotificationCompat.Builder mPausedBuilder;
+    private MediaSessionCompat.Token mToken;
+
+    /* The album art of the last song and its scaled copy used as large icon. Guarded by this */
+    private Bitmap mArt;
+    private Bitmap mLargeIcon;
+    private final int mLargeIconWidth;
+    private final int mLargeIconHeight;
+
+    /* The notification waiting to be posted and the time of the last one posted. Guarded by this */
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Notification mPendingNotification;
+    private long mLastNotifyTime = 0;
+
+    private final Runnable mNotify = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MediaNotificationManager.this) {
+                if (mPendingNotification != null) {
+                    mNotificationManager.notify(NOTIFICATION_ID, mPendingNotification);
+                    mPendingNotification = null;
+                    mLastNotifyTime = SystemClock.elapsedRealtime();
+                }
+            }
+        }
+    };
+
     public MediaNotificationManager(MusicService service) {
         mService = service;
         mNotificationManager = (NotificationManager) mService.getSystemService(Context.NOTIFICATION_SERVICE);
@@ -91,6 +144,17 @@ public class MediaNotificationManager {
                         mService,
                         PlaybackStateCompat.ACTION_REWIND));
 
+        mContentIntent = createContentIntent();
+        mStopIntent = MediaButtonReceiver.buildMediaButtonPendingIntent(
+                mService,
+                PlaybackStateCompat.ACTION_STOP);
+
+        mLargeIconWidth = mService.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width);
+        mLargeIconHeight = mService.getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_height);
+
+        /* If the app is running on Android O or later create the Notification channel */
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)createChannel();
+
         /* Cancel all notifications already to handle the case where the service was killed and restarted by the system*/
         mNotificationManager.cancelAll();
     }
@@ -104,7 +168,9 @@ public class MediaNotificationManager {
 
     /**
      * Simplifies the process of building the notification calling
-     * {@link MediaNotificationManager#buildNotification(MediaDescriptionCompat, PlaybackStateCompat, MediaSessionCompat.Token)}
+     * {@link MediaNotificationManager#buildNotification(MediaDescriptionCompat, PlaybackStateCompat, MediaSessionCompat.Token)}.
+     * The notification returned is meant to be posted right away, for example with startForeground,
+     * so an update still waiting to be posted is dropped
      * @param metadata
      *          The metadata of the song being currently played
      * @param state
@@ -117,18 +183,51 @@ public class MediaNotificationManager {
      *          Returns a notification with the data representing the current {@param state} with
      *          the {@param metadata}
      */
-    public Notification getNotification(MediaMetadataCompat metadata,
+    public synchronized Notification getNotification(MediaMetadataCompat metadata,
                                         PlaybackStateCompat state,
                                         MediaSessionCompat.Token token){
-        MediaDescriptionCompat description = metadata.getDescription();
-        NotificationCompat.Builder builder = buildNotification(description, state, token);
-        return builder.build();
+        mHandler.removeCallbacks(mNotify);
+        mPendingNotification = null;
+        mLastNotifyTime = SystemClock.elapsedRealtime();
+        return buildNotification(metadata.getDescription(), state, token).build();
+    }
+
+    /**
+     * Updates the notification shown. If the last update was posted less than
+     * {@value MediaNotificationManager#MIN_NOTIFY_INTERVAL_MS} milliseconds ago it is delayed, and
+     * replaced by any update asked in the meantime
+     * @param metadata
+     *          The metadata of the song being currently played
+     * @param state
+     *          The current state of the playback
+     * @param token
+     *          The session token in {@link MusicService}
+     */
+    public synchronized void notify(MediaMetadataCompat metadata,
+                                    PlaybackStateCompat state,
+                                    MediaSessionCompat.Token token){
+        boolean scheduled = mPendingNotification != null;
+        mPendingNotification = buildNotification(metadata.getDescription(), state, token).build();
+        if(scheduled)
+            return;
+
+        long delay = mLastNotifyTime + MIN_NOTIFY_INTERVAL_MS - SystemClock.elapsedRealtime();
+        mHandler.postDelayed(mNotify, Math.max(0, delay));
+    }
+
+    /**
+     * Removes the notification and drops the update waiting to be posted, if any
+     */
+    public synchronized void cancel(){
+        mHandler.removeCallbacks(mNotify);
+        mPendingNotification = null;
+        mNotificationManager.cancel(NOTIFICATION_ID);
     }
 
     /**
      * Called by
      * {@link MediaNotificationManager#getNotification(MediaMetadataCompat, PlaybackStateCompat, MediaSessionCompat.Token)}.
-     * Handles the creation of the channel if necessary and creates the notification
+     * Picks the builder for the current state and updates the data of the song
      * @param description
      *          The description extracted from {@link MediaMetadataCompat}
      * @param state
@@ -138,23 +237,45 @@ public class MediaNotificationManager {
      * @param token
      *          The session token in {@link MusicService}
      * @return
-     *          Returns a notification with the data representing the current {@param state} with
+     *          Returns a builder with the data representing the current {@param state} with
      *          the {@param description}
      */
     private NotificationCompat.Builder buildNotification(MediaDescriptionCompat description,
                                                          PlaybackStateCompat state,
                                                          MediaSessionCompat.Token token){
 
-        /* If the app is running on Android O or later create the Notification channel */
-        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)createChannel();
+        /* The builders hold the token, so they are built again only if the session changes */
+        if(mPlayingBuilder == null || !token.equals(mToken)){
+            mToken = token;
+            mPlayingBuilder = createBuilder(mPauseAction, token);
+            mPausedBuilder = createBuilder(mPlayAction, token);
+        }
 
-        NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
+        /* Set the action based on the current playback state, mActionPause if the state is STATE_PLAYING */
+        NotificationCompat.Builder builder = (state.getState() == PlaybackStateCompat.STATE_PLAYING) ?
+                mPlayingBuilder :
+                mPausedBuilder;
 
         /* Sets in order: title, album name, artist, and the album cover */
         builder.setContentTitle(description.getTitle())
                 .setContentText(description.getDescription())
                 .setSubText(description.getSubtitle())
-                .setLargeIcon(description.getIconBitmap());
+                .setLargeIcon(getLargeIcon(description.getIconBitmap()));
+        return builder;
+    }
+
+    /**
+     * Creates a builder with everything that does not depend on the song
+     * @param playPauseAction
+     *          The action in the middle, play or pause
+     * @param token
+     *          The session token in {@link MusicService}
+     * @return
+     *          The builder to which only the data of the song has to be added
+     */
+    private NotificationCompat.Builder createBuilder(NotificationCompat.Action playPauseAction,
+                                                     MediaSessionCompat.Token token){
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(mService, CHANNEL_ID);
 
         /* Set the style to set the appearance of the notification based on the album art being played */
         builder.setStyle(
@@ -165,37 +286,75 @@ public class MediaNotificationManager {
                 /* For android L set the cancel button for the notification (notifications were not swipable) */
                 .setShowCancelButton(true)
                         /* When the cancel button is clicked call ACTION_STOP on the MusicService */
-                        .setCancelButtonIntent(
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_STOP)))
+                        .setCancelButtonIntent(mStopIntent))
                 /* Set the default notification background color */
                 .setColor(ContextCompat.getColor(mService, R.color.colorPrimary))
                 /* Set the small icon that is showed in the notification bar */
                 .setSmallIcon(R.drawable.ic_app_icon)
-                .setContentIntent(createContentIntent())
+                .setContentIntent(mContentIntent)
                 /* When the notification is swiped away */
-                .setDeleteIntent(
-                        MediaButtonReceiver.buildMediaButtonPendingIntent(
-                                mService,
-                                PlaybackStateCompat.ACTION_STOP))
+                .setDeleteIntent(mStopIntent)
                 /* Set visibility public to show the notification on the lock screen*/
                 .setVisibility(NotificationCompat.VISIBILITY_PUBLIC);
 
         /* Set the actions to set to the notification */
         builder.addAction(mSkipPreviousAction);
-
-        /* Set the action based on the current playback state, mActionPause if the state is STATE_PLAYING */
-        builder.addAction(
-                state.getState() == PlaybackStateCompat.STATE_PLAYING ?
-                        mPauseAction:
-                        mPlayAction
-        );
+        builder.addAction(playPauseAction);
         builder.addAction(mSkipNextAction);
         builder.addAction(mRewindAction);
         return builder;
     }
 
+    /**
+     * The display icon of the metadata is built at the size of the large icon, if a bigger one
+     * is given scale it once per song so the notification sent to the system is small
+     * @param art
+     *          The display icon of the song
+     * @return
+     *          The album art scaled to the size of the large icon
+     */
+    private Bitmap getLargeIcon(Bitmap art){
+        if(art != mArt){
+            mArt = art;
+            if(art == null || (art.getWidth() <= mLargeIconWidth && art.getHeight() <= mLargeIconHeight))
+                mLargeIcon = art;
+            else
+                mLargeIcon = centerCrop(art, mLargeIconWidth, mLargeIconHeight);
+        }
+        return mLargeIcon;
+    }
+
+    /**
+     * Scales the art keeping its aspect ratio until it covers the size given, and cuts the parts
+     * that fall outside it on the longer side, as the system does with the large icon. Covers that
+     * are not square are not stretched this way
+     * @param art
+     *          The album art to scale
+     * @param width
+     *          The width of the result
+     * @param height
+     *          The height of the result
+     * @return
+     *          The central part of the art, of the size given
+     */
+    private static Bitmap centerCrop(Bitmap art, int width, int height){
+        float scale = Math.max((float) width / art.getWidth(), (float) height / art.getHeight());
+
+        /* The part of the art that, once scaled, has the size of the result */
+        int cropWidth = Math.min(art.getWidth(), Math.round(width / scale));
+        int cropHeight = Math.min(art.getHeight(), Math.round(height / scale));
+
+        Matrix matrix = new Matrix();
+        matrix.setScale(scale, scale);
+        return Bitmap.createBitmap(art,
+                (art.getWidth() - cropWidth) / 2,
+                (art.getHeight() - cropHeight) / 2,
+                cropWidth,
+                cropHeight,
+                matrix,
+                true);
+    }
+
     /**
      * Build a pending intent that launches {@link FullPlayerActivity} when the notification is
      * clicked. It also builds a back stack with {@link MainActivity} since is the parent as described
@@ -1,75 +1,233 @@
 package com.armaggheddon.muzic;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.media.MediaPlayer;
 import android.net.Uri;
-import android.support.v4.media.session.MediaSessionCompat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.preference.PreferenceManager;
+
 import java.io.IOException;
 
 /**
- * Handles all the operation required to correctly play audio with {@link MediaPlayer}
+ * {@link PlaybackEngine} that handles all the operation required to correctly play audio with
+ * {@link MediaPlayer}.
+ * When the crossfade is enabled in the settings a second {@link MediaPlayer} is prepared with the
+ * next song in the queue and the two players overlap for the time set by the user
  */
 
-public class MusicPlayer {
+public class MusicPlayer implements PlaybackEngine {
 
     private static final String TAG = "MusicPlayer";
 
-    private MediaSessionCompat mSession;
     private MediaPlayer mPlayer;
 
     private Context context;
 
-    private static final float DEFAULT_VOLUME = 1.0f;
-    private static final float DUCKING_VOLUME = 0.7f;
+    /* Receives the completion and error events, set by MusicService */
+    private volatile Callback mCallback;
+
+    /* The maximum crossfade duration that can be set from the settings, in seconds */
+    public static final int MAX_CROSSFADE_SECONDS = 12;
+
+    /* Time between two volume updates while the players are fading, in milliseconds */
+    private static final long FADE_STEP_MS = 20;
 
-    /* Tells is the song being currently played is finished or not */
-    public static boolean is_end_of_song = false;
+    /* When the crossfade is closer than this value, in milliseconds, the trigger is armed on the exact time */
+    private static final long TRIGGER_FINE_WINDOW_MS = 500;
 
     /*
     The path to the song that is being played, it is compared to new paths to know if the new song
     is the same as the old one (the no changes are required) or if it is different update the
     song being played
      */
-    public static String currentSongPath;
+    private String currentSongPath;
+
+    /* The player prepared ahead of time with the next song in the queue and its path */
+    private MediaPlayer mNextPlayer;
+    private String mNextSongPath;
+
+    /* The player of the previous song that is fading out while mPlayer fades in */
+    private MediaPlayer mFadingPlayer;
+
+    /* Start time (uptime) and length of the crossfade in progress, both in milliseconds */
+    private long mFadeStart;
+    private long mFadeLength;
+
+    /* The duration in milliseconds of the song being played as given by the queue item */
+    private long mCurrentDuration;
+
+    /* The volume to apply when no fade is in progress, changes when the audio focus asks to duck */
+    private float mVolume = DEFAULT_VOLUME;
+
+    /* True if the song must restart when it ends, checked by the completion listener of mPlayer */
+    private boolean mLooping = false;
+
+    /*
+    The crossfade trigger and the volume ramps run on their own thread, so they are not delayed by
+    the work done on the main thread and the next song can be prepared without blocking it
+     */
+    private final HandlerThread mFadeThread;
+    private final Handler mFadeHandler;
+
+    private final SharedPreferences mPreferences;
 
     /* Completation listener called when MediaPlayer reaches the end of a song */
     private CompletationListener mCompletationListener = new CompletationListener();
     final class CompletationListener implements MediaPlayer.OnCompletionListener{
         @Override
         public void onCompletion(MediaPlayer mp) {
+
+            /*
+            A player that is not the current one has already been replaced by a crossfade. When
+            looping the song is restarted here instead of with MediaPlayer#setLooping, which does
+            not tell when it restarts
+            */
+            boolean looped;
+            synchronized (MusicPlayer.this) {
+                if(mp != mPlayer)
+                    return;
+                looped = mLooping;
+                if(looped){
+                    mp.seekTo(0);
+                    mp.start();
+                }
+            }
+
             /*
-            When the song being played ends, call skipToNext in MusicService that will do the
-            appropriate operations
+            When the song being played ends, tell MusicService that will do the appropriate
+            operations
              */
-            is_end_of_song = true;
-            mSession.getController().getTransportControls().skipToNext();
+            Callback callback = mCallback;
+            if(callback == null)
+                return;
+            if(looped)
+                callback.onLooped();
+            else
+                callback.onCompletion();
         }
     }
 
-    public MusicPlayer(Context context, MediaSessionCompat mediaSessionCompat){
+    /* Error listener called when MediaPlayer can not decode the song being played */
+    private final MediaPlayer.OnErrorListener mErrorListener = new MediaPlayer.OnErrorListener() {
+        @Override
+        public boolean onError(MediaPlayer mp, int what, int extra) {
+            Log.e(TAG, "onError: what " + what + " extra " + extra + " for " + currentSongPath);
+
+            /* Only report errors of the song being played, the others are replaced anyway */
+            Callback callback = mCallback;
+            if (mp == mPlayer && callback != null)
+                callback.onError(currentSongPath);
+
+            /* Return true so the completion listener is not called after the error */
+            return true;
+        }
+    };
+
+    /*
+    Checks how far the current song is from the point where the crossfade has to start. While far
+    from it the check is repeated at half the remaining time, to follow seeks and the drift
+    between the duration in the library and the real one, then it is armed on the exact time
+     */
+    private final Runnable mCrossfadeTrigger = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MusicPlayer.this) {
+                if (mPlayer == null || !mPlayer.isPlaying())
+                    return;
+
+                long crossfade = getCrossfadeMs();
+                long remaining = mCurrentDuration - mPlayer.getCurrentPosition();
+                long untilFade = remaining - crossfade;
+
+                if (untilFade > 0) {
+                    mFadeHandler.postDelayed(this,
+                            (untilFade > TRIGGER_FINE_WINDOW_MS) ? untilFade / 2 : untilFade);
+                    return;
+                }
+
+                /*
+                The next song is still being prepared, wait for it while the current one is playing.
+                If it could not be prepared mNextSongPath is cleared and the song ends as usual
+                */
+                if (mNextPlayer == null) {
+                    if (mNextSongPath != null && remaining > FADE_STEP_MS)
+                        mFadeHandler.postDelayed(this, FADE_STEP_MS);
+                    return;
+                }
+
+                /* Fade for the time left in the song if the trigger started late */
+                startCrossfade(Math.max(FADE_STEP_MS, Math.min(crossfade, remaining)));
+            }
+
+            /*
+            Update the queue position, the metadata and the notification. Called outside the lock
+            since the session calls back into the engine from its own thread
+            */
+            Callback callback = mCallback;
+            if (callback != null)
+                callback.onNextStarted();
+        }
+    };
+
+    /* Updates the volume of the two players using an equal power curve until the fade is complete */
+    private final Runnable mFadeStep = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (MusicPlayer.this) {
+                if (mFadingPlayer == null || mPlayer == null)
+                    return;
+
+                float progress = Math.min(1f,
+                        (SystemClock.uptimeMillis() - mFadeStart) / (float) mFadeLength);
+
+                /* An equal power curve keeps the loudness constant while the two songs overlap */
+                float fadeIn = (float) Math.sin(progress * Math.PI / 2) * mVolume;
+                float fadeOut = (float) Math.cos(progress * Math.PI / 2) * mVolume;
+                mPlayer.setVolume(fadeIn, fadeIn);
+                mFadingPlayer.setVolume(fadeOut, fadeOut);
+
+                if (progress >= 1f)
+                    finishCrossfade();
+                else
+                    mFadeHandler.postDelayed(this, FADE_STEP_MS);
+            }
+        }
+    };
+
+    public MusicPlayer(Context context){
         this.context = context;
-        mSession = mediaSessionCompat;
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        /* Audio priority since the volume ramps must be applied on time */
+        mFadeThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_AUDIO);
+        mFadeThread.start();
+        mFadeHandler = new Handler(mFadeThread.getLooper());
     }
 
-    /**
-     * Utility method that calls {@link MusicPlayer#play(String)} converting {@param uriPath} to
-     * String
-     * @param uriPath
-     *          The Uri of the song to play
-     */
-    public void play(Uri uriPath){
-        play(String.valueOf(uriPath));
+    @Override
+    public void setCallback(Callback callback){
+        mCallback = callback;
     }
 
     /**
-     * Handles the path given and does the correct operation to start the playback
-     * @param path
-     *          The path as a string of the file to play
+     * Handles the path given and prepares the correct player for the playback
+     * @param uriPath
+     *          The Uri of the song to play
+     * @param duration
+     *          The duration in milliseconds of the song, used to know when to start the crossfade.
+     *          If is 0 the duration given by {@link MediaPlayer} is used
      */
-    public void play(String path){
+    @Override
+    public synchronized void prepare(Uri uriPath, long duration){
+        String path = String.valueOf(uriPath);
 
         /* If is null it is the first time that is being called, then call prepareMPlayer(path) */
         if(mPlayer == null){
@@ -78,49 +236,244 @@ public class MusicPlayer {
 
         /* If the path given is different release the player and call prepareMPlayer(path) */
         else if (!path.equals(currentSongPath)){
+
+            /* The song that is fading out is no longer needed */
+            finishCrossfade();
             mPlayer.release();
-            prepareMPlayer(path);
+
+            /* If the song has already been prepared as the next one just swap the players */
+            if(path.equals(mNextSongPath) && mNextPlayer != null){
+                mPlayer = mNextPlayer;
+                mNextPlayer = null;
+                mNextSongPath = null;
+                currentSongPath = path;
+            }else {
+                releaseNextPlayer();
+                prepareMPlayer(path);
+            }
         }
 
-        /* If the player is not playing start the playback */
-        if(!mPlayer.isPlaying())
-            mPlayer.start();
+        /* The song could not be read, the error has already been reported */
+        if(mPlayer == null)
+            return;
 
-        /* Update the flag */
-        is_end_of_song = false;
+        mCurrentDuration = (duration > 0) ? duration : mPlayer.getDuration();
 
         /* Listen at when the song ends */
         mPlayer.setOnCompletionListener(mCompletationListener);
+        mPlayer.setOnErrorListener(mErrorListener);
+    }
+
+    /**
+     * Starts the playback of the song loaded with {@link MusicPlayer#prepare(Uri, long)}
+     */
+    @Override
+    public synchronized void play(){
+        if(mPlayer == null)
+            return;
+
+        /* If the player is not playing start the playback */
+        if(!mPlayer.isPlaying())
+            mPlayer.start();
+
+        /* Arm the crossfade for the song being played */
+        scheduleCrossfade();
     }
 
     /**
      * Prepares the MediaPlayer object {@link MusicPlayer#mPlayer} with the given path and sets the correct options
      * @param path
-     *          The String path {@link MusicPlayer#play(String)}
+     *          The String path {@link MusicPlayer#prepare(Uri, long)}
      */
     private void prepareMPlayer(String path){
+        mPlayer = buildPlayer(path);
+
+        /* Update the path */
+        currentSongPath = path;
+
+        /* Tell MusicService that the song can not be played */
+        if(mPlayer == null && mCallback != null)
+            mCallback.onError(path);
+    }
+
+    /**
+     * Creates a new {@link MediaPlayer} and prepares it with the given path
+     * @param path
+     *          The String path of the song
+     * @return
+     *          The prepared MediaPlayer, null if the song can not be read
+     */
+    private MediaPlayer buildPlayer(String path){
+        MediaPlayer player = new MediaPlayer();
         try{
-            mPlayer = new MediaPlayer();
-            mPlayer.setAudioStreamType(AudioManager.STREAM_MUSIC);
+            player.setAudioStreamType(AudioManager.STREAM_MUSIC);
             /*
             Initialize the MediaPlayer making two different calls to setDataSource() and prepare().
             On the methods that automatically call prepare() it is not guaranteed to be called and
             can cause issues in the output source
             (es. audio being played from device speakers instead of the cars speakers when connected with Android Auto)
              */
-            mPlayer.setDataSource(context, Uri.parse(path));
-            mPlayer.prepare();
-        }catch (IOException e){
+            setDataSource(player, path);
+            player.prepare();
+        }catch (IOException | IllegalStateException e){
             Log.e(TAG, "play: ", e);
+            player.release();
+            return null;
         }
-        /* Update the path */
-        currentSongPath = path;
+        return player;
+    }
+
+    /**
+     * Sets the song on the player reading it from a memory-mapped file when possible, the player
+     * then reads the data without going through the content provider. Falls back to the Uri on
+     * versions before {@value Build.VERSION_CODES#M} or when the file can not be accessed directly
+     * @param player
+     *          The player on which to set the data source
+     * @param path
+     *          The String path of the song
+     */
+    private void setDataSource(MediaPlayer player, String path) throws IOException {
+        Uri uri = Uri.parse(path);
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M){
+            MappedFileDataSource source = MappedFileDataSource.open(context, uri);
+            if(source != null){
+                player.setDataSource(source);
+                return;
+            }
+        }
+        player.setDataSource(context, uri);
+    }
+
+    /**
+     * Prepares in background the song that follows the one being played, so when the crossfade
+     * starts the next song is ready to be played. Does nothing if the crossfade is disabled
+     * @param uriPath
+     *          The Uri of the next song in the queue
+     */
+    @Override
+    public void prepareNext(Uri uriPath){
+        final String path = String.valueOf(uriPath);
+
+        synchronized (this) {
+            if (getCrossfadeMs() == 0 || path.equals(mNextSongPath))
+                return;
+
+            /* The next song changed, the previous one is no longer needed */
+            releaseNextPlayer();
+            mNextSongPath = path;
+        }
+
+        mFadeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+
+                /* Prepare outside the lock since it reads from the storage */
+                MediaPlayer player = buildPlayer(path);
+                synchronized (MusicPlayer.this) {
+
+                    /*
+                    Keep it only if it is still the song that is expected to play next. If it can
+                    not be read forget it, so the trigger stops waiting for it and the current song
+                    completes as usual, the session then reports the error when it tries to play it
+                    */
+                    if (player == null) {
+                        if (path.equals(mNextSongPath))
+                            mNextSongPath = null;
+                    } else if (path.equals(mNextSongPath) && mNextPlayer == null) {
+                        mNextPlayer = player;
+                        scheduleCrossfade();
+                    } else {
+                        player.release();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Releases the player prepared with the next song, if any
+     */
+    private void releaseNextPlayer(){
+        if(mNextPlayer != null){
+            mNextPlayer.release();
+            mNextPlayer = null;
+        }
+        mNextSongPath = null;
+    }
+
+    /**
+     * Arms {@link MusicPlayer#mCrossfadeTrigger} for the song being played, only if the crossfade
+     * is enabled and the song is playing
+     */
+    private void scheduleCrossfade(){
+        mFadeHandler.removeCallbacks(mCrossfadeTrigger);
+        if(getCrossfadeMs() > 0 && !mLooping && mPlayer != null && mPlayer.isPlaying())
+            mFadeHandler.post(mCrossfadeTrigger);
+    }
+
+    /**
+     * Starts the next song while the current one is still playing and swaps the players, the caller
+     * then tells the session to move to the next item in the queue, after releasing the lock. When
+     * {@link MusicService} calls {@link MusicPlayer#prepare(Uri, long)} for the next song the path
+     * is already the current one, so the player is not prepared again
+     * @param fadeMs
+     *          The duration of the fade in milliseconds
+     */
+    private void startCrossfade(long fadeMs){
+
+        /* The song fading out must not skip the queue again when it ends */
+        mPlayer.setOnCompletionListener(null);
+        mFadingPlayer = mPlayer;
+
+        mPlayer = mNextPlayer;
+        currentSongPath = mNextSongPath;
+        mNextPlayer = null;
+        mNextSongPath = null;
+
+        mPlayer.setVolume(0f, 0f);
+        mPlayer.start();
+        mPlayer.setOnCompletionListener(mCompletationListener);
+        mPlayer.setOnErrorListener(mErrorListener);
+
+        mFadeStart = SystemClock.uptimeMillis();
+        mFadeLength = fadeMs;
+        mFadeHandler.post(mFadeStep);
+    }
+
+    /**
+     * Ends the crossfade in progress, if any, releasing the player of the previous song and
+     * restoring the volume of the current one
+     */
+    private void finishCrossfade(){
+        mFadeHandler.removeCallbacks(mFadeStep);
+        if(mFadingPlayer != null){
+            mFadingPlayer.release();
+            mFadingPlayer = null;
+        }
+        if(mPlayer != null)
+            mPlayer.setVolume(mVolume, mVolume);
+    }
+
+    /**
+     * Reads the crossfade duration set by the user in
+     * {@link com.armaggheddon.muzic.ui.SettingsActivity}
+     * @return
+     *          The crossfade duration in milliseconds, 0 if the crossfade is disabled
+     */
+    private long getCrossfadeMs(){
+        int seconds = mPreferences.getInt(context.getString(R.string.crossfade_key_shared_prefs), 0);
+        return Math.max(0, Math.min(seconds, MAX_CROSSFADE_SECONDS)) * 1000L;
     }
 
     /**
      * Pause the playback if {@link MusicPlayer#mPlayer} is not null
      */
-    public void pause(){
+    @Override
+    public synchronized void pause(){
+        mFadeHandler.removeCallbacks(mCrossfadeTrigger);
+
+        /* Pausing during a crossfade keeps only the new song */
+        finishCrossfade();
         if(mPlayer != null)
             mPlayer.pause();
     }
@@ -129,7 +482,11 @@ public class MusicPlayer {
      * Stop the playback and release the resources used by {@link MediaPlayer} to play audio
      * @see "https://developer.android.com/guide/topics/media/mediaplayer#releaseplayer"
      */
-    public void stop(){
+    @Override
+    public synchronized void stop(){
+        mFadeHandler.removeCallbacks(mCrossfadeTrigger);
+        finishCrossfade();
+        releaseNextPlayer();
         if(mPlayer != null) {
             mPlayer.stop();
             mPlayer.release();
@@ -137,14 +494,29 @@ public class MusicPlayer {
         }
     }
 
+    /**
+     * Stops the playback and the thread used for the crossfade, the instance can not be used
+     * anymore after this call
+     */
+    @Override
+    public void release(){
+        stop();
+        mFadeThread.quitSafely();
+    }
+
     /**
      * Seeks to {@param ms} in milliseconds in the song being played
      * @param ms
      *          The milliseconds to seek to
      */
-    public void seekTo(long ms){
-        if(mPlayer != null)
+    @Override
+    public synchronized void seekTo(long ms){
+        if(mPlayer != null) {
             mPlayer.seekTo(((int) ms));
+
+            /* The time left changed so the crossfade must be armed again */
+            scheduleCrossfade();
+        }
     }
 
     /**
@@ -152,22 +524,41 @@ public class MusicPlayer {
      * @return
      *          The current position in milliseconds in the song, 0 if {@link MusicPlayer#mPlayer} is null
      */
-    public long getPosition(){
+    @Override
+    public synchronized long getPosition(){
         return (mPlayer != null) ? mPlayer.getCurrentPosition() : 0;
     }
 
+    @Override
+    public synchronized boolean isPlaying(){
+        return mPlayer != null && mPlayer.isPlaying();
+    }
+
 
     /**
-     * Set the volume to {@value DEFAULT_VOLUME} for both left and right volumes
+     * Loops the song, when it completes the same player is started again from the beginning
+     * without being prepared again. The crossfade is disabled while looping
+     * @param looping
+     *          True to loop the song
      */
-    public void setDefaultVolume(){
-        mPlayer.setVolume(DEFAULT_VOLUME, DEFAULT_VOLUME);
+    @Override
+    public synchronized void setLooping(boolean looping){
+        mLooping = looping;
+        scheduleCrossfade();
     }
 
     /**
-     * Set the volume to {@value DUCKING_VOLUME} for both left and right volumes
+     * Set the volume for both left and right volumes
+     * @param volume
+     *          The volume to set, {@value PlaybackEngine#DEFAULT_VOLUME} or
+     *          {@value PlaybackEngine#DUCKING_VOLUME}
      */
-    public void setDuckingVolume(){
-        mPlayer.setVolume(DUCKING_VOLUME, DUCKING_VOLUME);
+    @Override
+    public synchronized void setVolume(float volume){
+        mVolume = volume;
+
+        /* During a crossfade the volume is applied by the next fade step */
+        if(mPlayer != null && mFadingPlayer == null)
+            mPlayer.setVolume(volume, volume);
     }
 }
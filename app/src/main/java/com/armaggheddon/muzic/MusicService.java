@@ -12,10 +12,16 @@ import android.media.AudioAttributes;
 import android.media.AudioFocusRequest;
 import android.media.AudioManager;
 import android.net.Uri;
+import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Process;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaBrowserCompat.MediaItem;
 import android.support.v4.media.MediaDescriptionCompat;
@@ -27,9 +33,12 @@ import android.text.TextUtils;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 import androidx.media.MediaBrowserServiceCompat;
+import androidx.preference.PreferenceManager;
 
 import com.armaggheddon.muzic.library.MusicLibrary;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
@@ -90,9 +99,66 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     private static final String TAG = "MusicService";
 
+    /* How long onDestroy waits for the session thread to stop the playback and save the queue */
+    private static final long SESSION_STOP_TIMEOUT_MS = 2000;
+
     private static final String CUSTOM_ACTION_REPLAY = "replay";
 
-    private static final String CUSTOM_ACTION_RANDOM_SONG_IN_QUEUE = "random";
+    public static final String CUSTOM_ACTION_RANDOM_SONG_IN_QUEUE = "random";
+
+    /*
+    Edits of the queue not covered by the queue commands of MediaControllerCompat. Play next takes
+    the song in EXTRA_MEDIA_ID, move takes EXTRA_QUEUE_ID, EXTRA_QUEUE_POSITION as the position
+    known by the client and EXTRA_QUEUE_TARGET_POSITION
+    */
+    public static final String CUSTOM_ACTION_PLAY_NEXT = "play_next";
+    public static final String CUSTOM_ACTION_MOVE_QUEUE_ITEM = "move_queue_item";
+
+    /*
+    Edits of the playlists of the user. Save queue creates a playlist named EXTRA_PLAYLIST_NAME with
+    the songs of the queue. The others take the playlist in EXTRA_PLAYLIST_ID: add inserts the song
+    in EXTRA_MEDIA_ID at EXTRA_PLAYLIST_POSITION, or at the end without it, move takes
+    EXTRA_PLAYLIST_POSITION and EXTRA_PLAYLIST_TARGET_POSITION and remove EXTRA_PLAYLIST_POSITION
+    */
+    public static final String CUSTOM_ACTION_SAVE_QUEUE = "save_queue";
+    public static final String CUSTOM_ACTION_ADD_TO_PLAYLIST = "add_to_playlist";
+    public static final String CUSTOM_ACTION_MOVE_PLAYLIST_ITEM = "move_playlist_item";
+    public static final String CUSTOM_ACTION_REMOVE_PLAYLIST_ITEM = "remove_playlist_item";
+    public static final String CUSTOM_ACTION_DELETE_PLAYLIST = "delete_playlist";
+
+    /*
+    Session events sent after every edit of the queue, so the controllers can apply the edit to
+    their copy of the queue instead of reloading it. The whole queue is published later by
+    SessionPublisher. Inserted has EXTRA_QUEUE_POSITION and EXTRA_QUEUE_ITEM, removed has
+    EXTRA_QUEUE_ID and EXTRA_QUEUE_POSITION, moved has EXTRA_QUEUE_ID, EXTRA_QUEUE_POSITION and
+    EXTRA_QUEUE_TARGET_POSITION
+    */
+    public static final String EVENT_QUEUE_ITEM_INSERTED = "queue_item_inserted";
+    public static final String EVENT_QUEUE_ITEM_REMOVED = "queue_item_removed";
+    public static final String EVENT_QUEUE_ITEM_MOVED = "queue_item_moved";
+
+    public static final String EXTRA_MEDIA_ID = "media_id";
+
+    /*
+    Extra of playFromMediaId for a song id: the parent in which the song was picked, SONGS or the
+    id of an album or of an artist. The queue is built with the songs of the parent, the whole
+    library when it is missing
+    */
+    public static final String EXTRA_PARENT_ID = "parent_id";
+    public static final String EXTRA_QUEUE_ID = "queue_id";
+    public static final String EXTRA_QUEUE_POSITION = "queue_position";
+    public static final String EXTRA_QUEUE_TARGET_POSITION = "queue_target_position";
+    public static final String EXTRA_QUEUE_ITEM = "queue_item";
+    public static final String EXTRA_PLAYLIST_NAME = "playlist_name";
+    public static final String EXTRA_PLAYLIST_ID = "playlist_id";
+    public static final String EXTRA_PLAYLIST_POSITION = "playlist_position";
+    public static final String EXTRA_PLAYLIST_TARGET_POSITION = "playlist_target_position";
+
+    /*
+    Action of the intent used by the activities of the app to bind to the service in process and
+    get a LocalBinder, any other intent gets the binder of MediaBrowserServiceCompat
+    */
+    public static final String ACTION_LOCAL_BIND = "com.armaggheddon.muzic.LOCAL_BIND";
 
     private MediaSessionCompat mSession;
 
@@ -104,11 +170,34 @@ public class MusicService extends MediaBrowserServiceCompat {
 
     private MediaNotificationManager mMediaNotificationManager;
     private MusicLibrary mMusicLibrary;
-    private MusicPlayer mMusicPlayer;
+    private PlaybackEngine mPlaybackEngine;
+    private ReadAhead mReadAhead;
+    private QueueStore mQueueStore;
+    private PlayLog mPlayLog;
     private PackageValidator mPackageValidator;
 
-    /* True if the client connected to the session is Android Auto */
-    public static boolean IS_CAR_CONNECTED;
+    /*
+    The session callbacks run on this thread instead of the main one, so transport controls and
+    media buttons are handled even while the UI is busy, and the state is confined to it
+     */
+    private HandlerThread mSessionThread;
+    private Handler mSessionHandler;
+    private MediaSessionCallback mSessionCallback;
+
+    /* Answers the clients that asked for their children before the songs were loaded */
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /* True once releaseSession() ran, onTaskRemoved and onDestroy both call it. Main thread only */
+    private boolean mSessionReleased = false;
+
+    /* Moves the session along the queue for the skips and the events of the engine */
+    private QueueNavigator mNavigator;
+    private final SessionState mSessionState = new SessionState();
+
+    /* Merges the state, metadata and queue updates published to the controllers */
+    private SessionPublisher mPublisher;
+
+    private final LocalBinder mLocalBinder = new LocalBinder();
 
     /* If true tells the session that the user has not granted the permission to read external storage */
     private boolean PERMISSION_NOT_GRANTED = false;
@@ -149,7 +238,9 @@ public class MusicService extends MediaBrowserServiceCompat {
                                 PlaybackStateCompat.ACTION_SEEK_TO |
                                 PlaybackStateCompat.ACTION_PLAY_FROM_MEDIA_ID |
                                 PlaybackStateCompat.ACTION_PLAY_FROM_SEARCH |
-                                PlaybackStateCompat.ACTION_REWIND
+                                PlaybackStateCompat.ACTION_REWIND |
+                                PlaybackStateCompat.ACTION_SET_SHUFFLE_MODE |
+                                PlaybackStateCompat.ACTION_SET_REPEAT_MODE
                 )
                 .setState(PlaybackStateCompat.STATE_PAUSED,
                         PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN,
@@ -179,7 +270,12 @@ public class MusicService extends MediaBrowserServiceCompat {
          */
         mSession.setFlags(MediaSessionCompat.FLAG_HANDLES_QUEUE_COMMANDS);
         mSession.setPlaybackState(mStateBuilder.build());
-        mSession.setCallback(new MediaSessionCallback());
+        mSessionThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mSessionThread.start();
+        mSessionHandler = new Handler(mSessionThread.getLooper());
+        mPublisher = new SessionPublisher(mSession, mSessionHandler);
+        mSessionCallback = new MediaSessionCallback();
+        mSession.setCallback(mSessionCallback, mSessionHandler);
         setSessionToken(mSession.getSessionToken());
 
         /* Check for the permission */
@@ -200,15 +296,80 @@ public class MusicService extends MediaBrowserServiceCompat {
         and do not load the library because will cause the application to crash.
         By calling setErrorState is possible to display a message to the user about the error
         */
+        mPlayLog = new PlayLog(this);
         if (PERMISSION_NOT_GRANTED)
             setErrorState();
         else
-            mMusicLibrary = new MusicLibrary(this);
+            mMusicLibrary = new MusicLibrary(this, mPlayLog);
 
-        mMusicPlayer = new MusicPlayer(this, mSession);
+        mPlaybackEngine = buildPlaybackEngine();
+        mNavigator = new QueueNavigator(mSessionState, mPlaybackEngine, mSessionCallback);
+        mReadAhead = new ReadAhead(this);
+        mQueueStore = new QueueStore(this, mSessionState, mSessionHandler);
         mPackageValidator = new PackageValidator(this);
     }
 
+    /**
+     * Builds the {@link PlaybackEngine} chosen in the settings, {@link CodecPlaybackEngine} for
+     * gapless and low latency playback or {@link MusicPlayer} that also supports the crossfade.
+     * The events of the engine are posted to the session thread, whatever thread the engine uses,
+     * since they change the state of the session, and handled there by the {@link QueueNavigator}
+     * @return
+     *          The engine ready to be used
+     */
+    private PlaybackEngine buildPlaybackEngine() {
+        PlaybackEngine engine;
+        if (PreferenceManager.getDefaultSharedPreferences(this)
+                .getBoolean(getString(R.string.codec_engine_key_shared_prefs), false))
+            engine = new CodecPlaybackEngine(this);
+        else
+            engine = new MusicPlayer(this);
+
+        engine.setCallback(new PlaybackEngine.Callback() {
+            @Override
+            public void onCompletion() {
+                mSessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNavigator.onCompletion();
+                    }
+                });
+            }
+
+            @Override
+            public void onNextStarted() {
+                mSessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNavigator.onNextStarted();
+                    }
+                });
+            }
+
+            @Override
+            public void onLooped() {
+                mSessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNavigator.onLooped();
+                    }
+                });
+            }
+
+            @Override
+            public void onError(final String path) {
+                Log.e(TAG, "onError: unable to play " + path);
+                mSessionHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mNavigator.onError(path);
+                    }
+                });
+            }
+        });
+        return engine;
+    }
+
     /**
      * Check if the {@value Manifest.permission#READ_EXTERNAL_STORAGE} is granted or not,
      * if is not granted updates the value of the flag
@@ -231,7 +392,7 @@ public class MusicService extends MediaBrowserServiceCompat {
                 1.0f
         ).setErrorMessage(PlaybackStateCompat.ERROR_CODE_APP_ERROR,
                 getString(R.string.permission_not_available_auto_error_message));
-        mSession.setPlaybackState(mStateBuilder.build());
+        mPublisher.setPlaybackState(mStateBuilder.build());
     }
 
 
@@ -243,11 +404,19 @@ public class MusicService extends MediaBrowserServiceCompat {
     public void onTaskRemoved(Intent rootIntent) {
         super.onTaskRemoved(rootIntent);
         stopSelf();
-        mMusicPlayer.stop();
-        stopNotification();
-        mSession.getController().getTransportControls().stop();
-        mSession.release();
-        unregisterMNoisyReceiver();
+        releaseSession();
+    }
+
+    /**
+     * Prints the playback startup latency, the session publishes and the read-ahead hits when
+     * "adb shell dumpsys activity service MusicService" is run
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        PlaybackLatency.dump(writer);
+        mPublisher.dump(writer);
+        mReadAhead.dump(writer);
     }
 
     /**
@@ -256,10 +425,47 @@ public class MusicService extends MediaBrowserServiceCompat {
      */
     @Override
     public void onDestroy() {
+        releaseSession();
+    }
 
-        mMusicPlayer.stop();
+    /**
+     * Stops the playback and saves the queue on the session thread, then releases everything.
+     * The stop is run directly instead of through the transport controls, which would deliver it
+     * after the release. The session thread is quit and joined before anything is released, so
+     * the queue is saved while the engine still has the position and no callback left in the
+     * thread finds a released object
+     */
+    private void releaseSession() {
+        if (mSessionReleased)
+            return;
+        mSessionReleased = true;
+
+        mSessionHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mPublisher.getPlaybackState().getState() != PlaybackStateCompat.STATE_STOPPED)
+                    mSessionCallback.onStop();
+            }
+        });
+        mSessionThread.quitSafely();
+        try {
+            mSessionThread.join(SESSION_STOP_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (mSessionThread.isAlive())
+            Log.w(TAG, "releaseSession: the session thread did not stop in " + SESSION_STOP_TIMEOUT_MS + "ms");
+
+        /* The save asked by onStop is waited for by the store */
+        mQueueStore.release();
+        mPlaybackEngine.release();
+        mReadAhead.release();
+        mPlayLog.release();
+        mPackageValidator.release();
+        if (mMusicLibrary != null)
+            mMusicLibrary.release();
         stopNotification();
-        mSession.getController().getTransportControls().stop();
+        mPublisher.release();
         mSession.release();
         unregisterMNoisyReceiver();
     }
@@ -284,11 +490,55 @@ public class MusicService extends MediaBrowserServiceCompat {
     private void stopNotification() {
         if (isServiceStarted) {
             isServiceStarted = false;
-            mMediaNotificationManager.getNotificationManager().cancel(MediaNotificationManager.NOTIFICATION_ID);
+            mMediaNotificationManager.cancel();
             stopForeground(true);
         }
     }
 
+    /**
+     * Gives direct access to the lists already built by the service to the UI of the app, which
+     * runs in the same process. Going through the MediaBrowser every item would be parceled and
+     * unparceled, for the songs of a large library that is thousands of items each time the tab
+     * is shown, while here the lists are shared as they are. The lists can not be modified and
+     * can be read from any thread
+     */
+    public final class LocalBinder extends Binder {
+
+        /**
+         * @param parentId
+         *          The id of the parent, as the ones used with
+         *          {@link MediaBrowserCompat#subscribe(String, MediaBrowserCompat.SubscriptionCallback)}
+         * @return
+         *          The children of the parent, the same sent to a phone client by
+         *          {@link MusicService#onLoadChildren}. Null if the library is not loaded, in that
+         *          case the client has to subscribe through the MediaBrowser
+         */
+        public List<MediaItem> getChildren(String parentId){
+            if (mMusicLibrary == null || !mMusicLibrary.isLoaded())
+                return null;
+            return mMusicLibrary.getChildren(parentId, false);
+        }
+
+        /**
+         * @return
+         *          The queue as published to the controllers, null if none was published yet
+         */
+        public List<MediaSessionCompat.QueueItem> getQueue(){
+            return mPublisher.getPublishedQueue();
+        }
+    }
+
+    /**
+     * Returns the {@link LocalBinder} to the activities of the app binding with
+     * {@value MusicService#ACTION_LOCAL_BIND}, the other clients keep using the MediaBrowser
+     */
+    @Override
+    public IBinder onBind(Intent intent) {
+        if (ACTION_LOCAL_BIND.equals(intent.getAction()))
+            return mLocalBinder;
+        return super.onBind(intent);
+    }
+
     /**
      * Called when a client asks to connect, returns a browsable root only if the client is allowed.
      * The allowed clients are described in {@link R.xml#allawed_media_browser_callers}
@@ -318,12 +568,9 @@ public class MusicService extends MediaBrowserServiceCompat {
             }
 
             /*
-            Now the client is in the white list
-            True if the client is Android Auto
-            False if client is not Android Auto
+            Now the client is in the white list. Whether it is Android Auto is checked on every
+            call from the caller, since the app's own UI can be connected at the same time
              */
-            IS_CAR_CONNECTED = mPackageValidator.isValidCarPackage(clientPackageName);
-
             String CONTENT_STYLE_SUPPORTED =
                     "android.media.browse.CONTENT_STYLE_SUPPORTED";
             String CONTENT_STYLE_BROWSABLE_HINT =
@@ -344,69 +591,76 @@ public class MusicService extends MediaBrowserServiceCompat {
      * {@value MediaBrowserCompat.MediaItem#FLAG_BROWSABLE}
      *
      * @param parentMediaId The id of the item clicked, the same that was set by
-     *                      {@link MusicLibrary#getRootItems()}
+     *                      {@link MusicLibrary#getChildren(String, boolean)}
      * @param result        The list of MediaItems on which to publish the related items
      */
     @Override
     public void onLoadChildren(@NonNull final String parentMediaId,
                                @NonNull final Result<List<MediaItem>> result) {
 
-        final List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
-
         /* If the parentMediaId is EMPTY_ROOT the client is not allowed so return an empty list */
         if (parentMediaId.equals(MusicLibrary.EMPTY_ROOT)) {
             //Return an empty list since the caller is an untrusted client
-            result.sendResult(mediaItems);
+            result.sendResult(new ArrayList<MediaItem>());
         }
 
         /* Else the client was allowed to browse the content */
         else {
 
             /*
-            Calling detach() on result to load the data in another thread and send the data when is ready,
-            the current implementation does not use this behaviour because the item are already
-            loaded in the memory and building the item is a fast operation
-             */
-            switch (parentMediaId) {
-                case MusicLibrary.BROWSER_ROOT:
-                    mediaItems.addAll(mMusicLibrary.getRootItems());
-                    result.sendResult(mediaItems);
-                    break;
-                case MusicLibrary.ALBUMS:
-
-                    /* The item clicked is the "Albums" category showed in the main screen */
-                    mediaItems.addAll(mMusicLibrary.getItemsFromParentId(MusicLibrary.ALBUMS));
-                    result.sendResult(mediaItems);
-
-                    break;
-                case MusicLibrary.ARTISTS:
-
-                    /* The item clicked is the "Artists" category showed in the main screen */
-                    mediaItems.addAll(mMusicLibrary.getItemsFromParentId(MusicLibrary.ARTISTS));
-                    result.sendResult(mediaItems);
-                    break;
-                case MusicLibrary.SONGS:
+            The items for Android Auto differ from the ones for the phone, so check which client
+            is asking instead of relying on the last client connected.
+            The lists are built once by the library and then cached until the songs change, so
+            they are sent without detaching the result, unless the songs are still being loaded
+            */
+            final boolean carClient = mPackageValidator.isValidCarPackage(getCurrentBrowserInfo().getPackageName());
+            if (!mMusicLibrary.isLoaded()) {
+                result.detach();
+                mMusicLibrary.runWhenLoaded(new Runnable() {
+                    @Override
+                    public void run() {
+                        result.sendResult(mMusicLibrary.getChildren(parentMediaId, carClient));
+                    }
+                }, mMainHandler);
+                return;
+            }
+            result.sendResult(mMusicLibrary.getChildren(parentMediaId, carClient));
+        }
+    }
 
-                    /* The item clicked is the "Songs" category showed in the main screen */
-                    mediaItems.addAll(mMusicLibrary.getItemsFromParentId(MusicLibrary.SONGS));
-                    result.sendResult(mediaItems);
-                    break;
-                default:
+    /**
+     * Called instead of {@link MusicService#onLoadChildren(String, Result)} when the client asks
+     * for a page of the children. A page of a folder or of the recent songs is built on its own,
+     * the other lists are small enough to be paged by the base class from the whole list
+     *
+     * @param parentMediaId The id of the item clicked
+     * @param result        The list of MediaItems on which to publish the page
+     * @param options       The page asked, as {@link MediaBrowserCompat#EXTRA_PAGE} and
+     *                      {@link MediaBrowserCompat#EXTRA_PAGE_SIZE}
+     */
+    @Override
+    public void onLoadChildren(@NonNull final String parentMediaId,
+                               @NonNull final Result<List<MediaItem>> result,
+                               @NonNull final Bundle options) {
+        final int page = options.getInt(MediaBrowserCompat.EXTRA_PAGE, -1);
+        final int pageSize = options.getInt(MediaBrowserCompat.EXTRA_PAGE_SIZE, -1);
+        if (mMusicLibrary == null || !MusicLibrary.isPaged(parentMediaId) || page < 0 || pageSize < 1) {
+            super.onLoadChildren(parentMediaId, result, options);
+            return;
+        }
 
-                    /*
-                    The parentMediaId is none of the above, then build the data given the parentMediaId.
-                    The item clicked can be a specific album such as "Album A" or a specific artist
-                    so retrieve the songs in that album or from that artist
-                    */
-                    mediaItems.addAll(mMusicLibrary.getAlbumArtistItemsFromParentId(parentMediaId));
-                    result.sendResult(mediaItems);
-                    break;
-            }
-            /*
-            No need to return result, all the above methods publishes the update when the data is
-            ready
-            */
+        final boolean carClient = mPackageValidator.isValidCarPackage(getCurrentBrowserInfo().getPackageName());
+        if (!mMusicLibrary.isLoaded()) {
+            result.detach();
+            mMusicLibrary.runWhenLoaded(new Runnable() {
+                @Override
+                public void run() {
+                    result.sendResult(mMusicLibrary.getPage(parentMediaId, carClient, page, pageSize));
+                }
+            }, mMainHandler);
+            return;
         }
+        result.sendResult(mMusicLibrary.getPage(parentMediaId, carClient, page, pageSize));
     }
 
     /**
@@ -415,13 +669,13 @@ public class MusicService extends MediaBrowserServiceCompat {
      * stop, skip to next, skip to previous ... and the custom actions defined
      * in {@link MusicService#onCreate()}
      */
-    private final class MediaSessionCallback extends MediaSessionCompat.Callback {
+    private final class MediaSessionCallback extends MediaSessionCompat.Callback implements QueueNavigator.Host {
 
         /* Get the AudioManager to manage audio events */
         private AudioManager mAudioManager = (AudioManager) MusicService.this.getSystemService(Context.AUDIO_SERVICE);
 
-        /* Handler used to cancel the call to onStop() */
-        private Handler mHandler = new Handler();
+        /* Handler used to cancel the call to onStop(), it runs on the session thread */
+        private Handler mHandler = mSessionHandler;
         /* Is executed 30 seconds after AUDIOFOCUS_LOSS is received */
         private Runnable delayedStopRunnable = new Runnable() {
             @Override
@@ -432,12 +686,24 @@ public class MusicService extends MediaBrowserServiceCompat {
         //Audio focus change listener
         private AudioManager.OnAudioFocusChangeListener afChangeListener = new AudioManager.OnAudioFocusChangeListener() {
             @Override
-            public void onAudioFocusChange(int focusChange) {
+            public void onAudioFocusChange(final int focusChange) {
+
+                /* The focus changes are delivered on the main thread, move them to the session thread */
+                if (Looper.myLooper() != mSessionHandler.getLooper()) {
+                    mSessionHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            onAudioFocusChange(focusChange);
+                        }
+                    });
+                    return;
+                }
+
                 switch (focusChange) {
                     case AudioManager.AUDIOFOCUS_GAIN:
 
                         /* Set the volume back to the default value */
-                        mMusicPlayer.setDefaultVolume();
+                        mPlaybackEngine.setVolume(PlaybackEngine.DEFAULT_VOLUME);
 
                         /*
                         onPlay is not called here, otherwise the playback would start "automatically"
@@ -463,17 +729,41 @@ public class MusicService extends MediaBrowserServiceCompat {
                     case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
 
                         /* Lower the playback audio to allow ducking behaviour */
-                        mMusicPlayer.setDuckingVolume();
+                        mPlaybackEngine.setVolume(PlaybackEngine.DUCKING_VOLUME);
                         break;
                 }
             }
         };
 
-        /* A local copy of the current queue in use to the session */
-        private List<MediaSessionCompat.QueueItem> mQueue = new ArrayList<>();
+        /* The current queue in use to the session, owned by mSessionState */
+        private final QueueBuffer mQueue = mSessionState.getQueue();
 
-        /* The current item in the queue that is being played or selected */
-        private int mQueuePosition = 0;
+        /*
+        The position in the song to resume from after the queue is restored, applied when the
+        item with mResumeQueueId is played
+        */
+        private long mResumeQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+        private long mResumePosition = 0;
+
+        /*
+        The song whose start was recorded in the play log and has not ended yet, so a resume is
+        not a new play and the song is recorded as skipped when another one starts before its end
+        */
+        private long mPlayedQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+        private long mPlayedSongId = -1;
+        private long mPlayedDuration = 0;
+
+        /**
+         * Records in the play log that the song started last was played until its end, the next
+         * onPlay records a new play even if it is the same item, as with the repeat mode
+         */
+        @Override
+        public void onSongCompleted() {
+            if (mPlayedSongId != -1)
+                mPlayLog.append(PlayLog.EVENT_COMPLETE, mPlayedSongId, mPlayedDuration);
+            mPlayedQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+            mPlayedSongId = -1;
+        }
 
         /**
          * When the play button is clicked, it might be the notification play button, the one on the
@@ -485,8 +775,12 @@ public class MusicService extends MediaBrowserServiceCompat {
         @Override
         public void onPlay() {
 
-            /* If there is no queue or is empty call onPause to set the current playback state to paused */
-            if (mQueue == null || mQueue.size() == 0) {
+            /*
+            If there is no queue or is empty, for example when the play button of a Bluetooth device
+            restarts the service, restore the one saved. If there is none call onPause to set the
+            current playback state to paused
+            */
+            if ((mQueue == null || mQueue.size() == 0) && !restoreQueue()) {
                 onPause();
                 return;
             }
@@ -497,19 +791,72 @@ public class MusicService extends MediaBrowserServiceCompat {
                 /* Set the session as active */
                 mSession.setActive(true);
 
-                /* Start the playback */
-                mMusicPlayer.play(mQueue.get(mQueuePosition).getDescription().getMediaUri());
+                /*
+                Start the playback, the duration is used by the engine to know when to crossfade.
+                If the engine is already playing this song, for example after a crossfade, prepare
+                does nothing and the playback continues
+                */
+                MediaDescriptionCompat description = mQueue.get(mSessionState.getQueuePosition()).getDescription();
+                long duration = (description.getExtras() != null) ? description.getExtras().getLong(MusicLibrary.DURATION_ARGS_EXTRA) : 0;
+
+                /*
+                A new song starts, the previous one is skipped if it did not end. Its position is read
+                before the engine moves to the new song. Only a few bytes are written in memory, the
+                play log writes them to the file on its own thread
+                */
+                long queueId = mQueue.get(mSessionState.getQueuePosition()).getQueueId();
+                boolean newPlay = (queueId != mPlayedQueueId);
+                if (newPlay) {
+                    if (mPlayedSongId != -1)
+                        mPlayLog.append(PlayLog.EVENT_SKIP, mPlayedSongId, mPlaybackEngine.getPosition());
+                    mPlayedQueueId = queueId;
+                    mPlayedSongId = MusicLibrary.parseId(description.getMediaId(), MusicLibrary.SONG_);
+                    mPlayedDuration = duration;
+                }
+
+                long start = PlaybackLatency.begin(PlaybackLatency.STAGE_PREPARE);
+                mPlaybackEngine.prepare(description.getMediaUri(), duration);
+                PlaybackLatency.end(PlaybackLatency.STAGE_PREPARE, start);
+
+                /* Continue from where the restored queue was left */
+                if (mQueue.get(mSessionState.getQueuePosition()).getQueueId() == mResumeQueueId)
+                    mPlaybackEngine.seekTo(mResumePosition);
+                mResumeQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+
+                start = PlaybackLatency.begin(PlaybackLatency.STAGE_START);
+                mPlaybackEngine.play();
+                PlaybackLatency.end(PlaybackLatency.STAGE_START, start);
+                PlaybackLatency.markStarted();
+
+                /* Let the engine prepare the following song ahead of time for the crossfade or the gapless join */
+                int next = mSessionState.getNextQueuePosition();
+                if (next != ShuffleOrder.INDEX_UNSET)
+                    mPlaybackEngine.prepareNext(mQueue.get(next).getDescription().getMediaUri());
+
+                /* Count the read-ahead hit or miss for this song and plan the one for the next song */
+                mReadAhead.onSongStarted(description.getMediaUri());
+                scheduleReadAhead();
+
+                /* Record the start after the seek, from where the song actually starts */
+                if (newPlay && mPlayedSongId != -1) {
+                    mPlayLog.append(PlayLog.EVENT_START, mPlayedSongId, mPlaybackEngine.getPosition());
+                    notifyChildrenChanged(MusicLibrary.RECENTLY_PLAYED);
+                    notifyChildrenChanged(MusicLibrary.MOST_PLAYED);
+                }
+
+                /* The current song changed, save it with the queue */
+                mQueueStore.scheduleSave(mPlaybackEngine.getPosition());
 
                 /* Update the playback state */
                 setCorrectPlaybackState(
                         PlaybackStateCompat.STATE_PLAYING,
-                        mMusicPlayer.getPosition(),
-                        mQueuePosition);
+                        mPlaybackEngine.getPosition(),
+                        mSessionState.getQueuePosition());
 
                 /* Start building the notification */
                 Notification notification = mMediaNotificationManager.getNotification(
-                        mSession.getController().getMetadata(),
-                        mSession.getController().getPlaybackState(),
+                        mPublisher.getMetadata(),
+                        mPublisher.getPlaybackState(),
                         mSession.getSessionToken());
 
                 /* If the service is not started yet */
@@ -580,31 +927,33 @@ public class MusicService extends MediaBrowserServiceCompat {
          * When a queue item is clicked in the queue view of Android Auto or a specific item in the
          * queue is asked by the application, this method is called.
          *
-         * @param queueId The position in the queue of the item selected
+         * @param queueId The queue id of the item selected
          */
         @Override
         public void onSkipToQueueItem(long queueId) {
 
-            /* Check for the queue not being null or empty */
-            if (mQueue != null && mQueue.size() != 0) {
+            /* Start measuring the time until the playback starts */
+            PlaybackLatency.markRequest();
 
-                /* If the item asked is the current one, just restart the song */
-                if (mQueuePosition == queueId) {
-                    onSeekTo(0);
-                }
+            /* The item might have been removed in the meantime */
+            int position = mQueue.indexOfQueueId(queueId, -1);
+            if (position == -1)
+                return;
+
+            /* If the item asked is the current one, just restart the song */
+            if (mSessionState.getQueuePosition() == position) {
+                onSeekTo(0);
+            }
 
-                /* Else skip to the selected item if the position is not bigger than mQueue.size() */
-                else {
-                    if (queueId < mQueue.size()) {
+            /* Else skip to the selected item */
+            else {
 
-                        /* Set the current position in the queue */
-                        mQueuePosition = (int) queueId;
-                        setMetadataFromQueueItem(mQueue.get(mQueuePosition));
+                /* Set the current position in the queue */
+                mSessionState.setQueuePosition(position);
+                setMetadataFromQueueItem(mQueue.get(mSessionState.getQueuePosition()));
 
-                        /* Delegate the work to start the new song to onPlay() */
-                        onPlay();
-                    }
-                }
+                /* Delegate the work to start the new song to onPlay() */
+                onPlay();
             }
         }
 
@@ -622,12 +971,34 @@ public class MusicService extends MediaBrowserServiceCompat {
             not reflect the previous one
             */
             setCorrectPlaybackState(
-                    mSession.getController().getPlaybackState().getState(),
+                    mPublisher.getPlaybackState().getState(),
                     position,
-                    mQueuePosition);
+                    mSessionState.getQueuePosition());
 
             /* Update the player position */
-            mMusicPlayer.seekTo(position);
+            mPlaybackEngine.seekTo(position);
+            mQueueStore.scheduleSave(position);
+
+            /* The time left before the read-ahead changed */
+            if (mPublisher.getPlaybackState().getState() == PlaybackStateCompat.STATE_PLAYING)
+                scheduleReadAhead();
+        }
+
+        /**
+         * Schedules the read-ahead of the item that follows the current one in the queue, based on
+         * the position and the duration of the song being played. Cancels it if there is no next item
+         */
+        private void scheduleReadAhead() {
+            int next = mSessionState.getNextQueuePosition();
+            if (next == ShuffleOrder.INDEX_UNSET) {
+                mReadAhead.cancel();
+                return;
+            }
+            Bundle extras = mQueue.get(mSessionState.getQueuePosition()).getDescription().getExtras();
+            mReadAhead.schedule(
+                    mQueue.get(next).getDescription().getMediaUri(),
+                    mPlaybackEngine.getPosition(),
+                    (extras != null) ? extras.getLong(MusicLibrary.DURATION_ARGS_EXTRA) : 0);
         }
 
         /**
@@ -642,52 +1013,73 @@ public class MusicService extends MediaBrowserServiceCompat {
         @Override
         public void onPlayFromMediaId(String mediaId, Bundle extras) {
 
-            /* If the client connected is Android Auto */
-            if (IS_CAR_CONNECTED) {
+            /* Start measuring the time until the playback starts */
+            PlaybackLatency.markRequest();
 
-                /*
-                If the mediaId is MusicLibrary.SONGS the item asked is the song playlist, return a
-                playlist with all the songs.
-                For ALBUM_ the mediaId is built as "album_id" so if the mediaId contains "album_"
-                we return a queue with the songs in the album, the same for ARTIST_
-                */
-                if (mediaId.equals(MusicLibrary.SONGS)) {
-
-                    /* Initialize the queue for the SONGS and call onPlay to start the playback */
-                    initQueue(mMusicLibrary.getSongsQueue(), true);
-                    onPlay();
-                } else if (mediaId.contains(MusicLibrary.ALBUM_)) {
-                    initQueue(mMusicLibrary.getAlbumIdQueue(mediaId), true);
-                    onPlay();
-                } else if (mediaId.contains(MusicLibrary.ARTIST_)) {
-                    initQueue(mMusicLibrary.getArtistIdQueue(mediaId, null), true);
-                    onPlay();
-                }
-                /* ELse is a forbidden state for Android Auto clients */
-                //Log.d(TAG, "onPlayFromMediaId: no matches found for \"" + mediaId + "\"");
+            /*
+            If the mediaId is MusicLibrary.SONGS the client subscribed to the songs so initialize
+            the queue with the requested items, the same applies for the others.
+            For ALBUM_ the mediaId is built as "album_id" so if the mediaId contains "album_" we
+            return a queue with the songs in the album, the same for ARTIST_. The album of an
+            artist is checked first since "artistalbum_id_id" contains "album_", and a folder or a
+            filter before both since a path can contain anything.
+            A song is played right away, in the queue of the parent in which it was picked
+            */
+            if (mediaId.startsWith(MusicLibrary.SONG_)) {
+                playSongFromParent(mediaId, (extras != null) ? extras.getString(EXTRA_PARENT_ID) : null);
+                return;
+            } else if (mediaId.equals(MusicLibrary.SONGS)) {
+                initQueue(mMusicLibrary.getSongsQueue(), true);
+            } else if (MusicLibrary.isRecent(mediaId) || mediaId.startsWith(MusicLibrary.PLAYLIST_)
+                    || mediaId.startsWith(MusicLibrary.FOLDER_) || mediaId.startsWith(MusicLibrary.FILTER_)
+                    || mediaId.startsWith(MusicLibrary.ARTIST_ALBUM_)) {
+                initQueue(mMusicLibrary.getContextQueue(mediaId), true);
+            } else if (mediaId.contains(MusicLibrary.ALBUM_)) {
+                initQueue(mMusicLibrary.getAlbumIdQueue(mediaId), true);
+            } else if (mediaId.contains(MusicLibrary.ARTIST_)) {
+                initQueue(mMusicLibrary.getArtistIdQueue(mediaId, null), true);
             } else {
 
-                /*
-                If the mediaId is MusicLibrary.SONGS the client subscribed to the songs
-                so initialize the queue with the requested items, the same applies for the others.
-                The main difference from Android Auto clients is that the playback is not automatically
-                started this this behaviour allows the session to track what items are being browsed
-                and build the correct queue based on the item clicked
-                 */
-                if (mediaId.equals(MusicLibrary.SONGS)) {
-                    initQueue(mMusicLibrary.getSongsQueue(), true);
-                } else if (mediaId.contains(MusicLibrary.ALBUM_)) {
-                    initQueue(mMusicLibrary.getAlbumIdQueue(mediaId), true);
-                } else if (mediaId.contains(MusicLibrary.ARTIST_)) {
-                    initQueue(mMusicLibrary.getArtistIdQueue(mediaId, null), true);
-                }
-
                 /* Else is a forbidden state and should never happen */
                 //Log.d(TAG, "onPlayFromMediaId: no matches found for \"" + mediaId + "\"");
+                return;
             }
+
+            /*
+            Android Auto starts the playback of the queue right away. The app's own UI does not,
+            this allows the session to track what items are being browsed and build the correct
+            queue based on the item clicked. The caller is checked on every call since both can
+            be connected at the same time
+            */
+            if (mPackageValidator.isValidCarPackage(mSession.getCurrentControllerInfo().getPackageName()))
+                onPlay();
         }
 
 
+        /**
+         * Builds the queue of the songs of {@param parentId} and plays the song asked in it. The
+         * song is found with the indexes of {@link MusicLibrary}, so neither the library nor the
+         * queue are searched
+         *
+         * @param songId   The mediaId of the song as "song_id"
+         * @param parentId The parent in which the song was picked, as in {@link MusicService#EXTRA_PARENT_ID}
+         */
+        private void playSongFromParent(String songId, String parentId) {
+            int position = mMusicLibrary.getContextPosition(songId, parentId);
+
+            /* The song is not a child of the parent given, play it in the whole library */
+            if (position == -1) {
+                parentId = MusicLibrary.SONGS;
+                position = mMusicLibrary.getContextPosition(songId, parentId);
+                if (position == -1)
+                    return;
+            }
+
+            mSessionState.setQueuePosition(position);
+            initQueue(mMusicLibrary.getContextQueue(parentId), false);
+            onPlay();
+        }
+
         /**
          * The client asked to pause the playback, update the playback state and the notification
          */
@@ -695,26 +1087,26 @@ public class MusicService extends MediaBrowserServiceCompat {
         public void onPause() {
 
             /* If the current state is STATE_PLAYING */
-            if (mSession.getController().getPlaybackState().getState() == PlaybackStateCompat.STATE_PLAYING) {
+            if (mPublisher.getPlaybackState().getState() == PlaybackStateCompat.STATE_PLAYING) {
 
                 /* Update the current playback state */
                 setCorrectPlaybackState(
                         PlaybackStateCompat.STATE_PAUSED,
-                        mMusicPlayer.getPosition(),
-                        mQueuePosition);
+                        mPlaybackEngine.getPosition(),
+                        mSessionState.getQueuePosition());
 
-                /* Get a new notification with the play button instead of the pause */
-                Notification notification = mMediaNotificationManager.getNotification(
-                        mSession.getController().getMetadata(),
-                        mSession.getController().getPlaybackState(),
+                /* Update the notification with the play button instead of the pause */
+                mMediaNotificationManager.notify(
+                        mPublisher.getMetadata(),
+                        mPublisher.getPlaybackState(),
                         mSession.getSessionToken());
 
-                /* Update the notification */
-                mMediaNotificationManager.getNotificationManager()
-                        .notify(MediaNotificationManager.NOTIFICATION_ID, notification);
+                /* Pause the playback, the read-ahead is planned again on play */
+                mPlaybackEngine.pause();
+                mReadAhead.cancel();
 
-                /* Pause the playback */
-                mMusicPlayer.pause();
+                /* The process may be killed while paused, make sure the queue is on the storage */
+                mQueueStore.saveNow(mPlaybackEngine.getPosition());
 
                 /* Unregister the receiver for ACTION_AUDIO_BECOMING_NOISY*/
                 unregisterReceiver(mNoisyReceiver);
@@ -739,7 +1131,7 @@ public class MusicService extends MediaBrowserServiceCompat {
             /* Update the playback state as STOPPED */
             setCorrectPlaybackState(
                     PlaybackStateCompat.STATE_STOPPED,
-                    mMusicPlayer.getPosition(),
+                    mPlaybackEngine.getPosition(),
                     -1);
 
             /* Stop the MediaBrowserServiceCompat */
@@ -748,8 +1140,13 @@ public class MusicService extends MediaBrowserServiceCompat {
             /* Set the session as inactive */
             mSession.setActive(false);
 
+            /* Save where the playback stopped, unless the service is stopped before having a queue */
+            if (!mQueue.isEmpty())
+                mQueueStore.saveNow(mPlaybackEngine.getPosition());
+
             /* Release the MediaPlayer used to play audio */
-            mMusicPlayer.stop();
+            mPlaybackEngine.stop();
+            mReadAhead.cancel();
 
             /* Stop the notification service */
             stopForeground(false);
@@ -760,7 +1157,8 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         /**
          * Handles the "prepare" request to prepare the session.
-         * Creates a queue from {@link MusicLibrary#getSongsQueue()} with all the songs available
+         * Restores the queue saved by {@link QueueStore}, if there is none creates a queue from
+         * {@link MusicLibrary#getSongsQueue()} with all the songs available
          * ,set the current position in the queue to be a random position and set the
          * playback state as {@value PlaybackStateCompat#STATE_PAUSED} as described in the documentation
          *
@@ -770,13 +1168,16 @@ public class MusicService extends MediaBrowserServiceCompat {
         public void onPrepare() {
             super.onPrepare();
 
-            /* If the queue is null or empty initialize the queue with a queue from all the songs */
-            if (mQueue == null || mQueue.isEmpty()) {
+            /*
+            If the queue is null or empty restore the one saved, or initialize the queue with a
+            queue from all the songs
+            */
+            if ((mQueue == null || mQueue.isEmpty()) && !restoreQueue()) {
                 List<MediaSessionCompat.QueueItem> queueItems = mMusicLibrary.getSongsQueue();
                 Random random = new Random();
 
                 /* Set the current position randomly */
-                mQueuePosition = random.nextInt(queueItems.size());
+                mSessionState.setQueuePosition(random.nextInt(queueItems.size()));
 
                 /* Initialize the queue */
                 initQueue(queueItems, false);
@@ -785,59 +1186,96 @@ public class MusicService extends MediaBrowserServiceCompat {
             /* Else the queue is not empty so there is no need to build a default queue */
             setCorrectPlaybackState(
                     PlaybackStateCompat.STATE_PAUSED,
-                    0,
-                    mQueuePosition);
+                    (mResumeQueueId != MediaSessionCompat.QueueItem.UNKNOWN_ID) ? mResumePosition : 0,
+                    mSessionState.getQueuePosition());
 
             /* Set the session active */
             mSession.setActive(true);
         }
 
         /**
-         * The client asked the next item in the queue.
-         * This method is also called by {@link MusicPlayer} when the current song being played ends.
+         * Restores the queue saved by {@link QueueStore}. Only the songs of the saved queue are
+         * built, the songs no longer in the library are skipped
+         *
+         * @return True if a queue was restored
+         */
+        private boolean restoreQueue() {
+            if (mMusicLibrary == null)
+                return false;
+            QueueStore.Snapshot snapshot = mQueueStore.restore();
+            if (snapshot == null)
+                return false;
+
+            List<MediaSessionCompat.QueueItem> restored = mMusicLibrary.getSongsQueue(snapshot.songIds);
+            List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(restored.size());
+            int queuePosition = 0;
+            boolean currentFound = false;
+            for (int i = 0; i < restored.size(); i++) {
+                MediaSessionCompat.QueueItem queueItem = restored.get(i);
+                if (queueItem == null)
+                    continue;
+
+                /* Count the songs still available before the current one */
+                if (i < snapshot.queuePosition)
+                    queuePosition++;
+                else if (i == snapshot.queuePosition)
+                    currentFound = true;
+                queueItems.add(queueItem);
+            }
+            if (queueItems.isEmpty())
+                return false;
+
+            mSessionState.setQueuePosition(Math.min(queuePosition, queueItems.size() - 1));
+            initQueue(queueItems, false);
+
+            /* If the current song was deleted start the next one from the beginning */
+            mResumeQueueId = mQueue.get(mSessionState.getQueuePosition()).getQueueId();
+            mResumePosition = currentFound ? snapshot.playbackPosition : 0;
+            return true;
+        }
+
+        /**
+         * The client asked the next item in the queue. When the song being played ends the
+         * {@link QueueNavigator} moves to the next item in the same way
          */
         @Override
         public void onSkipToNext() {
 
+            /* Start measuring the time until the playback starts */
+            PlaybackLatency.markRequest();
+
             /*
             On Android API 27+ double clicking the play button (for example the button on headphones)
             calls this method, if a client connects to our service and perform this operation with
             a null queue the service would crash
              */
-            if (mQueue != null) {
-
-                /* If the current item is the last one in the queue */
-                if (mQueuePosition + 1 == mQueue.size()) {
+            if (mQueue != null && !mQueue.isEmpty())
+                mNavigator.skipToNext(false);
+        }
 
-                    /*
-                    The current item is already the last one in the queue, so is not possible to skip to
-                    the next one.
-                    If the end of the song is also reached, and the current PlaybackState is not STATE_STOPPED
-                    call onPause() to pause the playback and call stop() on mMusicPlayer to release the
-                    resources being held by the MediaPlayer
-                    */
-                    if (MusicPlayer.is_end_of_song &&
-                            (mSession.getController().getPlaybackState().getState() != PlaybackStateCompat.STATE_STOPPED)) {
-                        onPause();
-                        mMusicPlayer.stop();
-                    }
-                } else {
+        /**
+         * The {@link QueueNavigator} moved to another item of the queue, play it
+         */
+        @Override
+        public void onPlayQueuePosition() {
 
-                    /*
-                    Check if mQueuePosition + 2
-                    (+2 is to align the value to mQueue.size() that starts from 1 and adding the next item)
-                    is a valid position, if it is update the queue position
-                    */
-                    if (mQueuePosition + 2 <= mQueue.size()) {
-                        mQueuePosition++;
+            /* Update the metadata to represent the current item being played */
+            setMetadataFromQueueItem(mQueue.get(mSessionState.getQueuePosition()));
 
-                        /* Update the metadata to represent the current item being played */
-                        setMetadataFromQueueItem(mQueue.get(mQueuePosition));
+            /* Delegate the play */
+            onPlay();
+        }
 
-                        /* Delegate the play */
-                        onPlay();
-                    }
-                }
+        /**
+         * The last song of the queue ended. If the current PlaybackState is not STATE_STOPPED call
+         * onPause() to pause the playback and call stop() on mPlaybackEngine to release the
+         * resources being held by the engine
+         */
+        @Override
+        public void onQueueEnded() {
+            if (mPublisher.getPlaybackState().getState() != PlaybackStateCompat.STATE_STOPPED) {
+                onPause();
+                mPlaybackEngine.stop();
             }
         }
 
@@ -850,19 +1288,25 @@ public class MusicService extends MediaBrowserServiceCompat {
         @Override
         public void onSkipToPrevious() {
 
+            /* Start measuring the time until the playback starts */
+            PlaybackLatency.markRequest();
+
+            /* The previous item in the queue, or in the shuffled order if the shuffle mode is enabled */
+            int previous = mSessionState.getPreviousQueuePosition();
+
             /* If is the first item in the queue */
-            if (mQueuePosition == 0) {
+            if (previous == ShuffleOrder.INDEX_UNSET) {
 
                 /* Rewind the current track to the begin */
-                setCorrectPlaybackState(PlaybackStateCompat.STATE_PLAYING, 0, mQueuePosition);
-                mMusicPlayer.seekTo(0);
+                setCorrectPlaybackState(PlaybackStateCompat.STATE_PLAYING, 0, mSessionState.getQueuePosition());
+                mPlaybackEngine.seekTo(0);
             } else {
 
                 /* Update the current queue item being played */
-                mQueuePosition--;
+                mSessionState.setQueuePosition(previous);
 
                 /* Update the metadata to represent the current item in the queue */
-                setMetadataFromQueueItem(mQueue.get(mQueuePosition));
+                setMetadataFromQueueItem(mQueue.get(mSessionState.getQueuePosition()));
 
                 onPlay();
             }
@@ -873,8 +1317,10 @@ public class MusicService extends MediaBrowserServiceCompat {
          *
          * @param action The string representing the action, the same used when setting the custom
          *               action in {@link MusicService#onCreate()}
-         * @param extras The Bundle holding extra data useful to better respond to the event, not used
-         *               in this implementation
+         * @param extras The Bundle holding extra data useful to better respond to the event, used by
+         *               {@value MusicService#CUSTOM_ACTION_PLAY_NEXT},
+         *               {@value MusicService#CUSTOM_ACTION_MOVE_QUEUE_ITEM} and the edits of the
+         *               playlists
          */
         @Override
         public void onCustomAction(String action, Bundle extras) {
@@ -887,29 +1333,284 @@ public class MusicService extends MediaBrowserServiceCompat {
                     break;
                 case CUSTOM_ACTION_RANDOM_SONG_IN_QUEUE:
 
-                    /* If the queue exists and has a number of items greater than 1 */
-                    if (mQueue != null && mQueue.size() > 1) {
+                    /*
+                    A single jump to a random item, the shuffle and the repeat modes do not change.
+                    No song is picked twice until all the others were
+                    */
+                    int randomPosition = mSessionState.getRandomQueuePosition(new Random());
+                    if (randomPosition != ShuffleOrder.INDEX_UNSET) {
+                        PlaybackLatency.markRequest();
+                        mSessionState.setQueuePosition(randomPosition);
+                        onPlayQueuePosition();
+                    }
+                    break;
+                case CUSTOM_ACTION_PLAY_NEXT:
+                    if (extras != null)
+                        insertQueueItem(
+                                extras.getString(EXTRA_MEDIA_ID),
+                                mQueue.isEmpty() ? 0 : mSessionState.getQueuePosition() + 1,
+                                true);
+                    break;
+                case CUSTOM_ACTION_MOVE_QUEUE_ITEM:
+                    if (extras != null)
+                        moveQueueItem(
+                                extras.getLong(EXTRA_QUEUE_ID, -1),
+                                extras.getInt(EXTRA_QUEUE_POSITION, -1),
+                                extras.getInt(EXTRA_QUEUE_TARGET_POSITION, -1));
+                    break;
+                case CUSTOM_ACTION_SAVE_QUEUE:
+                case CUSTOM_ACTION_ADD_TO_PLAYLIST:
+                case CUSTOM_ACTION_MOVE_PLAYLIST_ITEM:
+                case CUSTOM_ACTION_REMOVE_PLAYLIST_ITEM:
+                case CUSTOM_ACTION_DELETE_PLAYLIST:
+                    if (extras != null && mMusicLibrary != null)
+                        editPlaylist(action, extras);
+                    break;
+            }
+        }
 
-                        /*
-                        Get a random position to skip to in the queue, the bound value is
-                        exclusive so mQueue.size() is safe to use
-                        */
-                        Random random = new Random();
-                        int randomPosition = random.nextInt(mQueue.size());
+        /**
+         * Applies an edit of the playlists. The library writes it on its own thread, and the
+         * clients are told that the playlist changed once it is written
+         *
+         * @param action One of the custom actions of the playlists
+         * @param extras The arguments of the action, described with {@value MusicService#CUSTOM_ACTION_SAVE_QUEUE}
+         */
+        private void editPlaylist(String action, Bundle extras) {
+            final String playlistId = extras.getString(EXTRA_PLAYLIST_ID);
+
+            /* A playlist created or deleted also changes the number shown in the root */
+            final boolean rootChanged = action.equals(CUSTOM_ACTION_SAVE_QUEUE) || action.equals(CUSTOM_ACTION_DELETE_PLAYLIST);
+            Runnable onDone = new Runnable() {
+                @Override
+                public void run() {
+                    if (rootChanged)
+                        notifyChildrenChanged(MusicLibrary.BROWSER_ROOT);
+                    notifyChildrenChanged(MusicLibrary.PLAYLISTS);
+                    if (playlistId != null)
+                        notifyChildrenChanged(playlistId);
+                }
+            };
 
-                        /* Delegate the work to do to onSkipToQueueItem */
-                        onSkipToQueueItem(randomPosition);
-                    }
+            switch (action) {
+                case CUSTOM_ACTION_SAVE_QUEUE:
+                    String name = extras.getString(EXTRA_PLAYLIST_NAME);
+                    if (name == null || mQueue.isEmpty())
+                        return;
+
+                    /* Only the ids are copied from the queue, the rows are written on the library thread */
+                    long[] songIds = new long[mQueue.size()];
+                    for (int i = 0; i < songIds.length; i++)
+                        songIds[i] = MusicLibrary.parseId(mQueue.get(i).getDescription().getMediaId(), MusicLibrary.SONG_);
+                    mMusicLibrary.createPlaylist(name, songIds, onDone);
+                    break;
+                case CUSTOM_ACTION_ADD_TO_PLAYLIST:
+                    long songId = MusicLibrary.parseId(extras.getString(EXTRA_MEDIA_ID), MusicLibrary.SONG_);
+                    if (playlistId == null || songId == -1)
+                        return;
+                    mMusicLibrary.addToPlaylist(playlistId,
+                            extras.getInt(EXTRA_PLAYLIST_POSITION, Integer.MAX_VALUE), new long[]{songId}, onDone);
+                    break;
+                case CUSTOM_ACTION_MOVE_PLAYLIST_ITEM:
+                    if (playlistId != null)
+                        mMusicLibrary.movePlaylistSong(playlistId,
+                                extras.getInt(EXTRA_PLAYLIST_POSITION, -1),
+                                extras.getInt(EXTRA_PLAYLIST_TARGET_POSITION, -1),
+                                onDone);
+                    break;
+                case CUSTOM_ACTION_REMOVE_PLAYLIST_ITEM:
+                    if (playlistId != null)
+                        mMusicLibrary.removePlaylistSong(playlistId, extras.getInt(EXTRA_PLAYLIST_POSITION, -1), onDone);
+                    break;
+                case CUSTOM_ACTION_DELETE_PLAYLIST:
+                    if (playlistId != null)
+                        mMusicLibrary.deletePlaylist(playlistId, onDone);
+                    break;
+            }
+        }
+
+        /**
+         * Adds an item at the end of the queue
+         *
+         * @param description The description of the song, only its mediaId is used
+         */
+        @Override
+        public void onAddQueueItem(MediaDescriptionCompat description) {
+            onAddQueueItem(description, mQueue.size());
+        }
+
+        /**
+         * Adds an item to the queue at the given position
+         *
+         * @param description The description of the song, only its mediaId is used
+         * @param index       The position of the new item, clamped to the size of the queue
+         */
+        @Override
+        public void onAddQueueItem(MediaDescriptionCompat description, int index) {
+            insertQueueItem(description.getMediaId(), Math.max(0, Math.min(index, mQueue.size())), false);
+        }
+
+        /**
+         * Adds a song to the queue, the whole queue is not published again, the controllers get an
+         * {@value MusicService#EVENT_QUEUE_ITEM_INSERTED} event
+         *
+         * @param mediaId   The mediaId of the song as "song_<id>"
+         * @param position  The position of the new item in the queue
+         * @param playNext  True if the song has to be played after the current one even when the
+         *                  shuffle mode is enabled
+         */
+        private void insertQueueItem(String mediaId, int position, boolean playNext) {
+
+            /* The item is built by the library so it has all the extras needed to play it */
+            MediaSessionCompat.QueueItem item = mMusicLibrary.getSongQueueItem(mediaId);
+            if (item == null) {
+                Log.w(TAG, "insertQueueItem: unknown song " + mediaId);
+                return;
+            }
+
+            int current = mSessionState.getQueuePosition();
+            boolean wasEmpty = mQueue.isEmpty();
+            mQueue.add(position, item);
+
+            /* Keep the current item and the shuffled order pointing at the same songs */
+            if (!wasEmpty && position <= current)
+                mSessionState.setQueuePosition(current + 1);
+            ShuffleOrder shuffleOrder = mSessionState.getShuffleOrder();
+            if (shuffleOrder != null) {
+                if (playNext)
+                    shuffleOrder.insertNext(position, current);
+                else
+                    shuffleOrder.insert(position, 1, current);
             }
+
+            Bundle event = new Bundle();
+            event.putInt(EXTRA_QUEUE_POSITION, position);
+            event.putParcelable(EXTRA_QUEUE_ITEM, mQueue.get(position));
+            mPublisher.sendQueueEdit(EVENT_QUEUE_ITEM_INSERTED, event, mQueue);
+            mQueueStore.scheduleSave(mPlaybackEngine.getPosition());
+
+            if (wasEmpty)
+                setMetadataFromQueueItem(mQueue.get(mSessionState.getQueuePosition()));
+            onNextQueueItemChanged();
         }
 
-        /* When an item is is asked to be removed from the queue */
+        /**
+         * When an item is is asked to be removed from the queue. The item being played can not be
+         * removed
+         *
+         * @param description The description of the item, with the queue id in
+         *                    {@value MusicService#EXTRA_QUEUE_ID} and the position known by the
+         *                    client in {@value MusicLibrary#POSITION}
+         */
         @Override
         public void onRemoveQueueItem(MediaDescriptionCompat description) {
-            super.onRemoveQueueItem(description);
-            int position = description.getExtras().getInt(MusicLibrary.POSITION);
-            mQueue.remove(position);
-            mSession.setQueue(mQueue);
+            Bundle extras = description.getExtras();
+            if (extras == null)
+                return;
+            int position = mQueue.indexOfQueueId(extras.getLong(EXTRA_QUEUE_ID, -1), extras.getInt(MusicLibrary.POSITION, -1));
+            if (position == -1 || position == mSessionState.getQueuePosition())
+                return;
+
+            long queueId = mQueue.remove(position).getQueueId();
+
+            /* Keep the current item and the shuffled order pointing at the same songs */
+            if (position < mSessionState.getQueuePosition())
+                mSessionState.setQueuePosition(mSessionState.getQueuePosition() - 1);
+            if (mSessionState.getShuffleOrder() != null)
+                mSessionState.getShuffleOrder().remove(position);
+
+            Bundle event = new Bundle();
+            event.putLong(EXTRA_QUEUE_ID, queueId);
+            event.putInt(EXTRA_QUEUE_POSITION, position);
+            mPublisher.sendQueueEdit(EVENT_QUEUE_ITEM_REMOVED, event, mQueue);
+            mQueueStore.scheduleSave(mPlaybackEngine.getPosition());
+
+            onNextQueueItemChanged();
+        }
+
+        /**
+         * Moves an item of the queue, the controllers get an
+         * {@value MusicService#EVENT_QUEUE_ITEM_MOVED} event
+         *
+         * @param queueId The queue id of the item to move
+         * @param hint    The position of the item known by the client
+         * @param to      The new position of the item
+         */
+        private void moveQueueItem(long queueId, int hint, int to) {
+            int from = mQueue.indexOfQueueId(queueId, hint);
+            if (from == -1 || to < 0 || to >= mQueue.size() || from == to)
+                return;
+
+            mQueue.move(from, to);
+
+            /* Keep the current item and the shuffled order pointing at the same songs */
+            int current = mSessionState.getQueuePosition();
+            if (from == current)
+                mSessionState.setQueuePosition(to);
+            else if (from < current && to >= current)
+                mSessionState.setQueuePosition(current - 1);
+            else if (from > current && to <= current)
+                mSessionState.setQueuePosition(current + 1);
+            if (mSessionState.getShuffleOrder() != null)
+                mSessionState.getShuffleOrder().move(from, to);
+
+            Bundle event = new Bundle();
+            event.putLong(EXTRA_QUEUE_ID, queueId);
+            event.putInt(EXTRA_QUEUE_POSITION, from);
+            event.putInt(EXTRA_QUEUE_TARGET_POSITION, to);
+            mPublisher.sendQueueEdit(EVENT_QUEUE_ITEM_MOVED, event, mQueue);
+            mQueueStore.scheduleSave(mPlaybackEngine.getPosition());
+
+            onNextQueueItemChanged();
+        }
+
+        /**
+         * The item following the current one might have changed, the engine prepares it again and
+         * the read-ahead is planned again if the playback is running
+         */
+        private void onNextQueueItemChanged() {
+            if (mPublisher.getPlaybackState().getState() == PlaybackStateCompat.STATE_PLAYING) {
+                int next = mSessionState.getNextQueuePosition();
+                if (next != ShuffleOrder.INDEX_UNSET)
+                    mPlaybackEngine.prepareNext(mQueue.get(next).getDescription().getMediaUri());
+                scheduleReadAhead();
+            }
+        }
+
+        /**
+         * Enables or disables the shuffle mode. When enabled a new random order of the queue is
+         * built starting from the item being played
+         *
+         * @param shuffleMode One of the PlaybackStateCompat.SHUFFLE_MODE_ values
+         */
+        @Override
+        public void onSetShuffleMode(int shuffleMode) {
+            if (shuffleMode == PlaybackStateCompat.SHUFFLE_MODE_NONE)
+                mSessionState.setShuffleOrder(null);
+            else
+                mSessionState.setShuffleOrder(new ShuffleOrder(mQueue.size(), mSessionState.getQueuePosition(), new Random()));
+            mSession.setShuffleMode(shuffleMode);
+
+            /* The next song changed */
+            onNextQueueItemChanged();
+        }
+
+        /**
+         * Sets the repeat mode. With {@value PlaybackStateCompat#REPEAT_MODE_ONE} the engine loops
+         * the song being played by itself and every loop is recorded as a new play, a skip still
+         * moves to the next item. With {@value PlaybackStateCompat#REPEAT_MODE_ALL} the
+         * queue restarts from the first item after the last one
+         *
+         * @param repeatMode One of the PlaybackStateCompat.REPEAT_MODE_ values
+         */
+        @Override
+        public void onSetRepeatMode(int repeatMode) {
+            mSessionState.setRepeatMode(repeatMode);
+            mSession.setRepeatMode(repeatMode);
+            mPlaybackEngine.setLooping(repeatMode == PlaybackStateCompat.REPEAT_MODE_ONE);
+
+            /* With repeat all the last item now has a next one */
+            onNextQueueItemChanged();
         }
 
         @Override
@@ -929,6 +1630,9 @@ public class MusicService extends MediaBrowserServiceCompat {
         @Override
         public void onPlayFromSearch(final String query, final Bundle extras) {
 
+            /* Start measuring the time until the playback starts */
+            PlaybackLatency.markRequest();
+
             //Log.d(TAG, "onPlayFromSearch: user raw query " + query);
             //Log.d(TAG, "onPlayFromSearch: Assistant parsed query " + extras.get(MediaStore.EXTRA_MEDIA_FOCUS));
 
@@ -993,30 +1697,41 @@ public class MusicService extends MediaBrowserServiceCompat {
 
         /**
          * Sets the Queue for the session given a list of QueueItems and a flag
-         * indicating if the current mQueuePosition is to be set to 0 or not, it also manages setting
+         * indicating if the current queue position is to be set to 0 or not, it also manages setting
          * the metadata for the session with the method
          * {@link MusicService#MediaBrowserServiceCompat#setMetadataFromQueueItem(MediaSessionCompat.QueueItem)}
          *
          * @param queueItems             The list of the QueueItems to set
-         * @param default_queue_position True if mQueuePosition needs to be 0, false else
+         * @param default_queue_position True if the queue position needs to be 0, false else
          */
         private void initQueue(List<MediaSessionCompat.QueueItem> queueItems, boolean default_queue_position) {
 
+            /* An unknown or no longer existing parent has no songs, keep the current queue */
+            if (queueItems == null || queueItems.isEmpty())
+                return;
+
+            long start = PlaybackLatency.begin(PlaybackLatency.STAGE_QUEUE);
+
             /* Clear the previous queue */
             mQueue.clear();
 
             /* If we are asked to set the current position to 0 */
             if (default_queue_position)
-                mQueuePosition = 0;
+                mSessionState.setQueuePosition(0);
 
             /* Add all the queue items to the local queue */
             mQueue.addAll(queueItems);
 
+            /* A new queue needs a new shuffled order, starting from the current item */
+            if (mSessionState.getShuffleOrder() != null)
+                mSessionState.setShuffleOrder(new ShuffleOrder(mQueue.size(), mSessionState.getQueuePosition(), new Random()));
+
             /* Assign the queue to the session */
-            mSession.setQueue(mQueue);
+            mPublisher.setQueue(mQueue);
+            PlaybackLatency.end(PlaybackLatency.STAGE_QUEUE, start);
 
             /* Update the metadata */
-            setMetadataFromQueueItem(mQueue.get(mQueuePosition));
+            setMetadataFromQueueItem(mQueue.get(mSessionState.getQueuePosition()));
         }
 
         /**
@@ -1026,9 +1741,10 @@ public class MusicService extends MediaBrowserServiceCompat {
          *
          * @param playbackState The {@link PlaybackStateCompat} state to set
          * @param timeElapsed   The current position of the playback in milliseconds
-         * @param queueId       The queueId to set as the current active item. If is -1 it is not set
+         * @param queuePosition The position in the queue of the current active item, its queue id
+         *                      is set in the state. If is -1 it is not set
          */
-        private void setCorrectPlaybackState(int playbackState, long timeElapsed, long queueId) {
+        private void setCorrectPlaybackState(int playbackState, long timeElapsed, int queuePosition) {
 
             /* The playback speed is always 1.0 */
             mStateBuilder.setState(
@@ -1037,15 +1753,15 @@ public class MusicService extends MediaBrowserServiceCompat {
                     1.0f
             );
 
-            /* If queueId is a valid value */
-            if (queueId != -1) {
+            /* If queuePosition is a valid value */
+            if (queuePosition >= 0 && queuePosition < mQueue.size()) {
 
                 /* Set the current active item */
-                mStateBuilder.setActiveQueueItemId(queueId);
+                mStateBuilder.setActiveQueueItemId(mQueue.get(queuePosition).getQueueId());
             }
 
-            /* Set the state to the session */
-            mSession.setPlaybackState(mStateBuilder.build());
+            /* Set the state to the session, the publisher merges the states set in a short time */
+            mPublisher.setPlaybackState(mStateBuilder.build());
         }
 
 
@@ -1057,8 +1773,18 @@ public class MusicService extends MediaBrowserServiceCompat {
          * @param queueItem The from which extract the data
          */
         private void setMetadataFromQueueItem(MediaSessionCompat.QueueItem queueItem) {
+            long start = PlaybackLatency.begin(PlaybackLatency.STAGE_METADATA);
 
             MediaDescriptionCompat data = queueItem.getDescription();
+
+            /* Decoding the album art is the slowest part, measure it on its own */
+            String artUri = (data.getExtras() != null) ? data.getExtras().getString(MusicLibrary.ALBUM_ART_URI_ARGS_EXTRA) : null;
+            Uri albumArtUri = (artUri != null) ? Uri.parse(artUri) : null;
+            long artStart = PlaybackLatency.begin(PlaybackLatency.STAGE_ALBUM_ART);
+            Bitmap displayIcon = mMusicLibrary.loadDisplayIcon(albumArtUri,
+                    getResources().getDimensionPixelSize(android.R.dimen.notification_large_icon_width));
+            PlaybackLatency.end(PlaybackLatency.STAGE_ALBUM_ART, artStart);
+
             /*
             Gets the following data:
                 -Song title
@@ -1066,7 +1792,8 @@ public class MusicService extends MediaBrowserServiceCompat {
                 -Song artist (subtitle)
                 -Song duration
                 -Song Uri to play from
-                -Album art bitmap
+                -Album art uri, served by ArtProvider so the other apps can read it
+                -Display icon bitmap
 
             Checks for non-null values on the data to avoid unexpected behaviours
             */
@@ -1076,21 +1803,25 @@ public class MusicService extends MediaBrowserServiceCompat {
                     (data.getDescription() != null) ? data.getDescription().toString() : "",
                     (data.getExtras() != null) ? data.getExtras().getLong(MusicLibrary.DURATION_ARGS_EXTRA) : 0,
                     (data.getMediaUri() != null) ? data.getMediaUri().toString() : "",
-                    mMusicLibrary.loadAlbumArt(Uri.parse((data.getExtras() != null) ? data.getExtras().getString(MusicLibrary.ALBUM_ART_URI_ARGS_EXTRA) : null)));
+                    (albumArtUri != null) ? ArtProvider.mapUri(albumArtUri).toString() : null,
+                    displayIcon);
+            PlaybackLatency.end(PlaybackLatency.STAGE_METADATA, start);
         }
 
         /**
          * Builds a {@link MediaMetadataCompat} object with all the data necessary to display and
-         * consume by clients and assigns it to the session
+         * consume by clients and assigns it to the session. The metadata is copied to every
+         * controller, so only a small icon is put in it and the album art is given as an uri
          *
-         * @param title    The title of the song
-         * @param artist   The name of the artist
-         * @param album    The name of the album
-         * @param duration The duration in milliseconds of the song
-         * @param mediaUri The Uri of the song itself used to play the song by {@link MusicService#mMusicPlayer}
-         * @param albumArt The album art of the song
+         * @param title       The title of the song
+         * @param artist      The name of the artist
+         * @param album       The name of the album
+         * @param duration    The duration in milliseconds of the song
+         * @param mediaUri    The Uri of the song itself used to play the song by {@link MusicService#mPlaybackEngine}
+         * @param albumArtUri The Uri of the album art, the clients load from it the size they need
+         * @param displayIcon The small icon of the song, used by the notification and the small player
          */
-        private void setMetadata(String title, String artist, String album, long duration, String mediaUri, Bitmap albumArt) {
+        private void setMetadata(String title, String artist, String album, long duration, String mediaUri, String albumArtUri, Bitmap displayIcon) {
 
             /* Get a metadata builder and put all the data inside */
             MediaMetadataCompat.Builder metadataBuilder = new MediaMetadataCompat.Builder();
@@ -1099,10 +1830,11 @@ public class MusicService extends MediaBrowserServiceCompat {
                     .putText(MediaMetadataCompat.METADATA_KEY_ALBUM, album)
                     .putLong(MediaMetadataCompat.METADATA_KEY_DURATION, duration)
                     .putString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI, mediaUri)
-                    .putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, albumArt);
+                    .putString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI, albumArtUri)
+                    .putBitmap(MediaMetadataCompat.METADATA_KEY_DISPLAY_ICON, displayIcon);
 
             /* Update the session metadata */
-            mSession.setMetadata(metadataBuilder.build());
+            mPublisher.setMetadata(metadataBuilder.build());
         }
     }
 }
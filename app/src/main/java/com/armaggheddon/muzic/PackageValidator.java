@@ -15,16 +15,23 @@
  */
 package com.armaggheddon.muzic;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
+import android.content.pm.Signature;
 import android.content.res.XmlResourceParser;
 import android.os.Process;
 import android.util.Base64;
+import android.util.Log;
 
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
@@ -40,8 +47,15 @@ import java.util.Map;
  * its signature, this class will print to logcat (INFO level) a message with the proper base64
  * version of the caller certificate that has not been validated. You can copy from logcat and
  * paste into allowed_media_browser_callers.xml. Spaces and newlines are ignored.
+ *
+ * The certificates are compared by their SHA-256 digest. The digests of the allowed certificates
+ * and of the platform are computed once, and the verdict for each (uid, package) is cached until a
+ * package is installed, updated or removed, since Android Auto binds to the service many times
+ * during a drive.
  */
 public class PackageValidator {
+    private static final String TAG = "PackageValidator";
+
     /**
      * Map allowed callers' certificate keys to the expected caller information.
      *
@@ -49,9 +63,57 @@ public class PackageValidator {
     private final Map<String, ArrayList<CallerInfo>> mValidCertificates;
     private static final String AUTO_APP_PACKAGE_NAME = "com.google.android.projection.gearhead";
 
+    private final Context mContext;
+    private boolean mReceiverRegistered;
+
+    /**
+     * The SHA-256 digest of the platform certificate, null if it is not available.
+     */
+    private final String mPlatformDigest;
+
+    /**
+     * Verdicts keyed by "uid:package". Guarded by itself.
+     */
+    private final Map<String, Boolean> mVerdicts = new HashMap<>();
+
+    /**
+     * A package that changes might now have a different certificate, or its uid might be given to
+     * another package, so every verdict is dropped.
+     */
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            synchronized (mVerdicts) {
+                mVerdicts.clear();
+            }
+        }
+    };
+
     public PackageValidator(Context ctx) {
+        mContext = ctx;
         mValidCertificates = readValidCertificates(ctx.getResources().getXml(
                 R.xml.allawed_media_browser_callers));
+        mPlatformDigest = getCertificateDigest(getPackageInfo(ctx, "android"));
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addDataScheme("package");
+        ctx.registerReceiver(mPackageReceiver, filter);
+        mReceiverRegistered = true;
+    }
+
+    /**
+     * Stops listening for package changes, must be called when the service is destroyed.
+     * Calling it again has no effect.
+     */
+    public void release() {
+        if (mReceiverRegistered) {
+            mReceiverRegistered = false;
+            mContext.unregisterReceiver(mPackageReceiver);
+        }
     }
 
     public boolean isValidCarPackage(String packageName){
@@ -69,20 +131,32 @@ public class PackageValidator {
                     String name = parser.getAttributeValue(null, "name");
                     String packageName = parser.getAttributeValue(null, "package");
                     boolean isRelease = parser.getAttributeBooleanValue(null, "release", false);
-                    String certificate = parser.nextText().replaceAll("\\s|\\n", "");
+                    String text = parser.nextText();
+
+                    /* A certificate that is not valid base64 skips only its own entry */
+                    String certificate = null;
+                    try {
+                        certificate = sha256(Base64.decode(text.replaceAll("\\s|\\n", ""), Base64.DEFAULT));
+                    } catch (IllegalArgumentException e) {
+                        Log.w(TAG, "readValidCertificates: skipping the certificate of " + name
+                                + " (" + packageName + "), it is not valid base64", e);
+                    }
 
-                    CallerInfo info = new CallerInfo(name, packageName, isRelease);
+                    if (certificate != null) {
+                        CallerInfo info = new CallerInfo(name, packageName, isRelease);
 
-                    ArrayList<CallerInfo> infos = validCertificates.get(certificate);
-                    if (infos == null) {
-                        infos = new ArrayList<>();
-                        validCertificates.put(certificate, infos);
+                        ArrayList<CallerInfo> infos = validCertificates.get(certificate);
+                        if (infos == null) {
+                            infos = new ArrayList<>();
+                            validCertificates.put(certificate, infos);
+                        }
+                        infos.add(info);
                     }
-                    infos.add(info);
                 }
                 eventType = parser.next();
             }
         } catch (XmlPullParserException | IOException e) {
+            Log.e(TAG, "readValidCertificates: can not read the allowed callers, the ones read so far are used", e);
         }
         return validCertificates;
     }
@@ -97,19 +171,39 @@ public class PackageValidator {
             return true;
         }
 
-        if (isPlatformSigned(context, callingPackage)) {
-            return true;
+        String key = callingUid + ":" + callingPackage;
+        synchronized (mVerdicts) {
+            Boolean verdict = mVerdicts.get(key);
+            if (verdict != null) {
+                return verdict;
+            }
         }
 
+        boolean allowed = verifyCaller(context, callingPackage);
+        synchronized (mVerdicts) {
+            mVerdicts.put(key, allowed);
+        }
+        return allowed;
+    }
+
+    /**
+     * Checks the certificate of the caller, called only when there is no cached verdict.
+     */
+    private boolean verifyCaller(Context context, String callingPackage) {
         PackageInfo packageInfo = getPackageInfo(context, callingPackage);
-        if (packageInfo == null) {
+        if (packageInfo == null || packageInfo.signatures == null
+                || packageInfo.signatures.length == 0) {
             return false;
         }
+        String signature = getCertificateDigest(packageInfo);
+
+        if (signature.equals(mPlatformDigest)) {
+            return true;
+        }
+
         if (packageInfo.signatures.length != 1) {
             return false;
         }
-        String signature = Base64.encodeToString(
-                packageInfo.signatures[0].toByteArray(), Base64.NO_WRAP);
 
         // Test for known signatures:
         ArrayList<CallerInfo> validCallers = mValidCertificates.get(signature);
@@ -132,22 +226,33 @@ public class PackageValidator {
     }
 
     /**
-     * @return true if the installed package signature matches the platform signature.
+     * @return the SHA-256 digest of the first certificate of the package, null if it has none.
      */
-    private boolean isPlatformSigned(Context context, String pkgName) {
-        PackageInfo platformPackageInfo = getPackageInfo(context, "android");
-
-        // Should never happen.
-        if (platformPackageInfo == null || platformPackageInfo.signatures == null
-                || platformPackageInfo.signatures.length == 0) {
-            return false;
+    private static String getCertificateDigest(PackageInfo packageInfo) {
+        if (packageInfo == null || packageInfo.signatures == null
+                || packageInfo.signatures.length == 0) {
+            return null;
         }
+        Signature signature = packageInfo.signatures[0];
+        return sha256(signature.toByteArray());
+    }
 
-        PackageInfo clientPackageInfo = getPackageInfo(context, pkgName);
-
-        return (clientPackageInfo != null && clientPackageInfo.signatures != null
-                && clientPackageInfo.signatures.length > 0 &&
-                platformPackageInfo.signatures[0].equals(clientPackageInfo.signatures[0]));
+    /**
+     * @return the SHA-256 digest of the data as a hex string.
+     */
+    private static String sha256(byte[] data) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is available on every Android version.
+            throw new IllegalStateException(e);
+        }
     }
 
     /**
@@ -0,0 +1,154 @@
+package com.armaggheddon.muzic;
+
+/**
+ * Fixed size circular buffer of decoded PCM bytes shared between the decode thread, that writes
+ * in it, and the output thread of {@link CodecPlaybackEngine}, that reads from it.
+ * The writer blocks while the buffer is full and the reader blocks while the buffer is empty, so
+ * the decoder always stays ahead of the output by at most the size of the buffer.
+ * Every song written starts at a known absolute byte offset, this allows the reader to know
+ * exactly when the audio of the next song starts being played
+ */
+
+class PcmRingBuffer {
+
+    private final byte[] mBuffer;
+
+    /* Total bytes ever written and read, the positions in mBuffer are these values modulo the size */
+    private long mWritten = 0;
+    private long mRead = 0;
+
+    /* Set when the writer has no more data, the reader then gets -1 once the buffer is empty */
+    private boolean mEndOfStream = false;
+
+    /*
+    Changed when the buffer is cleared, wakes up any writer waiting for space. The buffer is closed
+    when the threads using it are stopped, until it is cleared again
+    */
+    private long mGeneration = 0;
+    private boolean mClosed = false;
+
+    /**
+     * Constructor of the class
+     * @param capacity
+     *          The size in bytes of the buffer
+     */
+    PcmRingBuffer(int capacity){
+        mBuffer = new byte[capacity];
+    }
+
+    /**
+     * Copies all the bytes given in the buffer, waiting for space to be available
+     * @param data
+     *          The array holding the bytes to write
+     * @param offset
+     *          The first byte to write
+     * @param length
+     *          The number of bytes to write
+     * @return
+     *          False if the buffer was cleared or closed while waiting, the remaining data must be
+     *          discarded
+     * @throws InterruptedException
+     *          If the writing thread is interrupted while waiting
+     */
+    synchronized boolean write(byte[] data, int offset, int length) throws InterruptedException {
+        long generation = mGeneration;
+        if (mClosed)
+            return false;
+        while (length > 0) {
+            while (mWritten - mRead == mBuffer.length) {
+                wait();
+                if (generation != mGeneration || mClosed)
+                    return false;
+            }
+
+            /* Copy up to the end of the array or up to the free space, whichever comes first */
+            int start = (int) (mWritten % mBuffer.length);
+            int free = (int) (mBuffer.length - (mWritten - mRead));
+            int count = Math.min(length, Math.min(free, mBuffer.length - start));
+            System.arraycopy(data, offset, mBuffer, start, count);
+
+            mWritten += count;
+            offset += count;
+            length -= count;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Copies up to {@param length} bytes from the buffer, waiting for data to be available
+     * @param data
+     *          The array in which to copy the bytes
+     * @param offset
+     *          The first position to write in {@param data}
+     * @param length
+     *          The maximum number of bytes to read
+     * @return
+     *          The number of bytes read, -1 if the end of the stream was reached or the buffer
+     *          closed, even if it still holds data
+     * @throws InterruptedException
+     *          If the reading thread is interrupted while waiting
+     */
+    synchronized int read(byte[] data, int offset, int length) throws InterruptedException {
+        while (mWritten == mRead || mClosed) {
+            if (mEndOfStream || mClosed)
+                return -1;
+            wait();
+        }
+
+        int start = (int) (mRead % mBuffer.length);
+        int available = (int) (mWritten - mRead);
+        int count = Math.min(length, Math.min(available, mBuffer.length - start));
+        System.arraycopy(mBuffer, start, data, offset, count);
+
+        mRead += count;
+        notifyAll();
+        return count;
+    }
+
+    /**
+     * @return
+     *          The total number of bytes written since the buffer was created, it is the absolute
+     *          offset at which the next write starts
+     */
+    synchronized long getWrittenBytes(){
+        return mWritten;
+    }
+
+    /**
+     * @return
+     *          The total number of bytes read since the buffer was created
+     */
+    synchronized long getReadBytes(){
+        return mRead;
+    }
+
+    /**
+     * Tells the reader that no more data will be written
+     */
+    synchronized void setEndOfStream(){
+        mEndOfStream = true;
+        notifyAll();
+    }
+
+    /**
+     * Discards all the data in the buffer and opens it again if it was closed, used when the
+     * threads are started again. Any writer waiting for space returns without writing
+     */
+    synchronized void clear(){
+        mRead = mWritten;
+        mEndOfStream = false;
+        mClosed = false;
+        mGeneration++;
+        notifyAll();
+    }
+
+    /**
+     * Closes the buffer waking up both the reader and the writer, the writer then gets false and
+     * the reader -1 until the buffer is cleared
+     */
+    synchronized void close(){
+        mClosed = true;
+        notifyAll();
+    }
+}
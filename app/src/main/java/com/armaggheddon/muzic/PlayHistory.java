@@ -0,0 +1,267 @@
+package com.armaggheddon.muzic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The counters of every song played, built from the events of {@link PlayLog}, and the format of
+ * its file: a header followed by records written as varints. A record is either an event, as its
+ * type, the id of the song, the time and the position, or the counters of a song written by the
+ * compaction instead of its events.
+ * It does not read or write files and is not thread safe, {@link PlayLog} guards it with its lock
+ */
+
+final class PlayHistory {
+
+    /* The counters of a song, written by the compaction instead of its events */
+    static final int RECORD_STATS = 4;
+
+    /*
+    "MPLG" followed by the version of the format. The version 1 only had the starts, as the id
+    of the song and the time, and is read as a list of EVENT_START
+    */
+    static final int MAGIC = 0x4d504c47;
+    static final int VERSION = 2;
+    static final int VERSION_STARTS = 1;
+
+    static final class Counters {
+        final long songId;
+        int plays = 0;
+        int completions = 0;
+        int skips = 0;
+        long listened = 0;
+        long lastPlayed = 0;
+
+        Counters(long songId){
+            this.songId = songId;
+        }
+    }
+
+    /* The least recent first, so a start moves the song to the end */
+    private static final Comparator<Counters> RECENT_COMPARATOR = new Comparator<Counters>() {
+        @Override
+        public int compare(Counters o1, Counters o2) {
+            int result = Long.compare(o1.lastPlayed, o2.lastPlayed);
+            return (result != 0) ? result : Long.compare(o1.songId, o2.songId);
+        }
+    };
+
+    /* The most played first, and the most recent first among the songs played the same times */
+    private static final Comparator<Counters> RANK_COMPARATOR = new Comparator<Counters>() {
+        @Override
+        public int compare(Counters o1, Counters o2) {
+            int result = Integer.compare(o2.plays, o1.plays);
+            return (result != 0) ? result : RECENT_COMPARATOR.compare(o2, o1);
+        }
+    };
+
+    /*
+    The counters of every song played and the two orders in which they are listed. A start only
+    moves its song within the lists, found with a binary search
+    */
+    private final Map<Long, Counters> mCounters = new HashMap<>();
+    private final List<Counters> mRecent = new ArrayList<>();
+    private final List<Counters> mRanking = new ArrayList<>();
+
+    /**
+     * Writes an event as it is appended to the file
+     * @param output
+     *          The buffer of the records not written yet
+     * @param event
+     *          One of {@value PlayLog#EVENT_START}, {@value PlayLog#EVENT_COMPLETE} and
+     *          {@value PlayLog#EVENT_SKIP}
+     * @param songId
+     *          The MediaStore id of the song
+     * @param time
+     *          The time of the event, in milliseconds since the epoch
+     * @param position
+     *          The position in the song in milliseconds, as described by the event
+     */
+    static void writeEvent(QueueStore.VarintOutput output, int event, long songId, long time, long position){
+        output.writeVarint(event);
+        output.writeVarint(songId);
+        output.writeVarint(time);
+        output.writeVarint(position);
+    }
+
+    /**
+     * @return
+     *          The number of different songs played
+     */
+    int size(){
+        return mCounters.size();
+    }
+
+    /**
+     * @param songId
+     *          The MediaStore id of the song
+     * @return
+     *          The counters of the song, null if it was never played
+     */
+    Counters get(long songId){
+        return mCounters.get(songId);
+    }
+
+    /**
+     * See {@link PlayLog#getRecent(int, int)}
+     */
+    long[] getRecent(int offset, int count){
+        long[] songIds = new long[Math.max(0, Math.min(count, mRecent.size() - Math.max(0, offset)))];
+        for(int i = 0; i < songIds.length; i++)
+            songIds[i] = mRecent.get(mRecent.size() - 1 - Math.max(0, offset) - i).songId;
+        return songIds;
+    }
+
+    /**
+     * See {@link PlayLog#getMostPlayed(int, int)}
+     */
+    long[] getMostPlayed(int offset, int count){
+        long[] songIds = new long[Math.max(0, Math.min(count, mRanking.size() - Math.max(0, offset)))];
+        for(int i = 0; i < songIds.length; i++)
+            songIds[i] = mRanking.get(Math.max(0, offset) + i).songId;
+        return songIds;
+    }
+
+    /**
+     * Updates the counters of a song with an event, read from the file or just happened
+     */
+    void apply(int event, long songId, long time, long position){
+        Counters counters = mCounters.get(songId);
+        boolean added = (counters == null);
+        if(added){
+            counters = new Counters(songId);
+            mCounters.put(songId, counters);
+        }else if(event == PlayLog.EVENT_START){
+            remove(mRecent, counters, RECENT_COMPARATOR);
+            remove(mRanking, counters, RANK_COMPARATOR);
+        }
+
+        switch (event){
+            case PlayLog.EVENT_START:
+                counters.plays++;
+                counters.lastPlayed = time;
+                break;
+            case PlayLog.EVENT_COMPLETE:
+                counters.completions++;
+                counters.listened += position;
+                break;
+            case PlayLog.EVENT_SKIP:
+                counters.skips++;
+                counters.listened += position;
+                break;
+        }
+
+        /* A song seen for the first time, or moved by a start */
+        if(added || event == PlayLog.EVENT_START){
+            insert(mRecent, counters, RECENT_COMPARATOR);
+            insert(mRanking, counters, RANK_COMPARATOR);
+        }
+    }
+
+    /**
+     * @return
+     *          The header followed by the counters of every song, the least recent first so
+     *          reading them back rebuilds the same order
+     */
+    byte[] encode(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(8 + mRecent.size() * 16);
+        output.writeInt(MAGIC);
+        output.writeVarint(VERSION);
+        for(Counters counters : mRecent){
+            output.writeVarint(RECORD_STATS);
+            output.writeVarint(counters.songId);
+            output.writeVarint(counters.lastPlayed);
+            output.writeVarint(counters.plays);
+            output.writeVarint(counters.completions);
+            output.writeVarint(counters.skips);
+            output.writeVarint(counters.listened);
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Applies the records of a file written by {@link PlayHistory#encode()} and the events
+     * appended after it. When the last record was not written completely or is not known, it
+     * and the records after it are ignored
+     * @param data
+     *          The content of the file
+     * @return
+     *          The number of records read, -1 if the file must be written again because it is
+     *          not valid, is of the old version or its end is not valid. The records read before
+     *          the error are applied anyway
+     */
+    int replay(byte[] data){
+        QueueStore.VarintInput input = new QueueStore.VarintInput(data, data.length);
+        long version = (input.readInt() == MAGIC) ? input.readVarint() : -1;
+        if((version != VERSION && version != VERSION_STARTS) || !input.isValid())
+            return -1;
+
+        int records = 0;
+        while(input.hasRemaining()){
+            if(version == VERSION_STARTS){
+                long songId = input.readVarint();
+                long time = input.readVarint();
+                if(!input.isValid())
+                    return -1;
+                apply(PlayLog.EVENT_START, songId, time, 0);
+                records++;
+                continue;
+            }
+
+            int type = (int) input.readVarint();
+            long songId = input.readVarint();
+            if(type == RECORD_STATS){
+                Counters counters = new Counters(songId);
+                counters.lastPlayed = input.readVarint();
+                counters.plays = (int) input.readVarint();
+                counters.completions = (int) input.readVarint();
+                counters.skips = (int) input.readVarint();
+                counters.listened = input.readVarint();
+                if(!input.isValid())
+                    return -1;
+                applyStats(counters);
+            }else if(type == PlayLog.EVENT_START || type == PlayLog.EVENT_COMPLETE
+                    || type == PlayLog.EVENT_SKIP){
+                long time = input.readVarint();
+                long position = input.readVarint();
+                if(!input.isValid())
+                    return -1;
+                apply(type, songId, time, position);
+            }else{
+                return -1;
+            }
+            records++;
+        }
+
+        /* The old format is written again in the new one */
+        return (version == VERSION_STARTS) ? -1 : records;
+    }
+
+    /**
+     * Sets the counters of a song from a record written by the compaction
+     */
+    private void applyStats(Counters stats){
+        Counters counters = mCounters.put(stats.songId, stats);
+        if(counters != null){
+            remove(mRecent, counters, RECENT_COMPARATOR);
+            remove(mRanking, counters, RANK_COMPARATOR);
+        }
+        insert(mRecent, stats, RECENT_COMPARATOR);
+        insert(mRanking, stats, RANK_COMPARATOR);
+    }
+
+    private static void insert(List<Counters> list, Counters counters, Comparator<Counters> comparator){
+        int index = Collections.binarySearch(list, counters, comparator);
+        list.add((index < 0) ? -index - 1 : index, counters);
+    }
+
+    private static void remove(List<Counters> list, Counters counters, Comparator<Counters> comparator){
+        int index = Collections.binarySearch(list, counters, comparator);
+        if(index >= 0)
+            list.remove(index);
+    }
+}
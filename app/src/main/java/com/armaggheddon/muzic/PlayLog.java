@@ -0,0 +1,266 @@
+package com.armaggheddon.muzic;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * The listening history, as an append-only log of the play events of the songs: when a song
+ * starts, when it completes and when it is skipped, with the time of the event and the position
+ * reached in the song.
+ * In memory the log is kept already compacted into the counters of every song by
+ * {@link PlayHistory}, so the songs played recently and the songs played the most are read from
+ * two sorted lists, in a time proportional to the page read and not to the songs in the library.
+ * The events are written behind: they are merged for {@value PlayLog#WRITE_DELAY_MS}
+ * milliseconds, or until {@value PlayLog#MAX_PENDING} are waiting, and appended to the file on a
+ * background thread as varints like in {@link QueueStore}, so recording an event only takes a
+ * few bytes written in memory. When the file has many more events than songs it is compacted
+ * into a record with the counters of every song, and replaced atomically by renaming a temporary
+ * file
+ */
+
+public class PlayLog {
+
+    private static final String TAG = "PlayLog";
+
+    /* The song started playing, the position is where it started from */
+    public static final int EVENT_START = 1;
+
+    /* The song played until its end, the position is its duration */
+    public static final int EVENT_COMPLETE = 2;
+
+    /* Another song was played before the end of the song, the position is where it was left */
+    public static final int EVENT_SKIP = 3;
+
+    private static final String FILE_NAME = "plays.log";
+    private static final String TEMP_FILE_NAME = "plays.log.tmp";
+
+    /* The events within this time are appended together */
+    private static final long WRITE_DELAY_MS = 10000;
+    private static final int MAX_PENDING = 32;
+
+    /* The log is compacted when it has more than this many records and more than two per song */
+    private static final int MIN_COMPACT_SIZE = 256;
+
+    /**
+     * The counters of a song returned by {@link PlayLog#getStats(long)}
+     */
+    public static final class Stats {
+        public final long songId;
+        public final int playCount;
+        public final int completionCount;
+        public final int skipCount;
+
+        /* The milliseconds of the song listened, summing where every play ended */
+        public final long listenedTime;
+
+        /* The time of the last start, in milliseconds since the epoch */
+        public final long lastPlayed;
+
+        private Stats(PlayHistory.Counters counters){
+            songId = counters.songId;
+            playCount = counters.plays;
+            completionCount = counters.completions;
+            skipCount = counters.skips;
+            listenedTime = counters.listened;
+            lastPlayed = counters.lastPlayed;
+        }
+    }
+
+    private final File mFile;
+    private final File mTempFile;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /* The counters of every song played, guarded by this */
+    private final PlayHistory mHistory = new PlayHistory();
+
+    /* The number of records in the file, including the ones not written yet, guarded by this */
+    private int mLogSize = 0;
+
+    /* The records not written yet, guarded by this */
+    private final QueueStore.VarintOutput mPending = new QueueStore.VarintOutput(256);
+    private int mPendingCount = 0;
+
+    /* True if the file must be written again, for example when its end was not valid */
+    private boolean mCompactNext = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Constructor of the class, reads the log saved. The file is kept small by the compaction so
+     * it is read on the calling thread
+     * @param context
+     *          The context used to find the directory of the files of the app
+     */
+    public PlayLog(Context context){
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mTempFile = new File(context.getFilesDir(), TEMP_FILE_NAME);
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        restore();
+    }
+
+    /**
+     * Records an event of a song, it is written to the file later
+     * @param event
+     *          One of {@value PlayLog#EVENT_START}, {@value PlayLog#EVENT_COMPLETE} and
+     *          {@value PlayLog#EVENT_SKIP}
+     * @param songId
+     *          The MediaStore id of the song
+     * @param position
+     *          The position in the song in milliseconds, as described by the event
+     */
+    public synchronized void append(int event, long songId, long position){
+        long time = System.currentTimeMillis();
+        position = Math.max(0, position);
+        mHistory.apply(event, songId, time, position);
+        PlayHistory.writeEvent(mPending, event, songId, time, position);
+        mPendingCount++;
+        mLogSize++;
+
+        mHandler.removeCallbacks(mFlush);
+        if(mPendingCount >= MAX_PENDING)
+            mHandler.post(mFlush);
+        else
+            mHandler.postDelayed(mFlush, WRITE_DELAY_MS);
+    }
+
+    /**
+     * @return
+     *          The number of different songs played
+     */
+    public synchronized int size(){
+        return mHistory.size();
+    }
+
+    /**
+     * Reads the songs played, the most recent first
+     * @param offset
+     *          The number of songs to skip
+     * @param count
+     *          The number of songs at most
+     * @return
+     *          The MediaStore ids of the songs
+     */
+    public synchronized long[] getRecent(int offset, int count){
+        return mHistory.getRecent(offset, count);
+    }
+
+    /**
+     * Reads the songs played, the most played first
+     * @param offset
+     *          The number of songs to skip
+     * @param count
+     *          The number of songs at most
+     * @return
+     *          The MediaStore ids of the songs
+     */
+    public synchronized long[] getMostPlayed(int offset, int count){
+        return mHistory.getMostPlayed(offset, count);
+    }
+
+    /**
+     * @param songId
+     *          The MediaStore id of the song
+     * @return
+     *          The counters of the song, null if it was never played
+     */
+    public synchronized Stats getStats(long songId){
+        PlayHistory.Counters counters = mHistory.get(songId);
+        return (counters != null) ? new Stats(counters) : null;
+    }
+
+    /**
+     * Writes the events waiting and stops the background thread after the write
+     */
+    public void release(){
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+        mThread.quitSafely();
+    }
+
+    /**
+     * Appends the events waiting to the file, or replaces it with the compacted log. Runs on the
+     * background thread, the log is encoded while holding the lock and written after
+     */
+    private void flush(){
+        byte[] data;
+        boolean replace;
+        synchronized (this){
+            replace = mCompactNext || !mFile.exists()
+                    || (mLogSize >= MIN_COMPACT_SIZE && mLogSize > 2 * mHistory.size());
+            if(replace){
+                data = mHistory.encode();
+                mLogSize = mHistory.size();
+            }else{
+                data = mPending.toByteArray();
+            }
+            mPending.reset();
+            mPendingCount = 0;
+            mCompactNext = false;
+        }
+        if(data.length == 0)
+            return;
+
+        if(!replace){
+            try (FileOutputStream output = new FileOutputStream(mFile, true)) {
+                output.write(data);
+            } catch (IOException e) {
+                Log.e(TAG, "flush: error while appending the events", e);
+            }
+            return;
+        }
+
+        try (FileOutputStream output = new FileOutputStream(mTempFile)) {
+            output.write(data);
+            output.getFD().sync();
+        } catch (IOException e) {
+            Log.e(TAG, "flush: error while writing the events", e);
+            return;
+        }
+        if(!mTempFile.renameTo(mFile))
+            Log.e(TAG, "flush: can not replace " + mFile);
+    }
+
+    private synchronized void restore(){
+        if(!mFile.exists())
+            return;
+
+        byte[] data = new byte[(int) mFile.length()];
+        try (FileInputStream input = new FileInputStream(mFile)) {
+            int read = 0;
+            while(read < data.length){
+                int count = input.read(data, read, data.length - read);
+                if(count < 0)
+                    break;
+                read += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "restore: error while reading the events", e);
+            return;
+        }
+
+        int records = mHistory.replay(data);
+        if(records < 0)
+            mCompactNext = true;
+        else
+            mLogSize = records;
+    }
+}
@@ -0,0 +1,134 @@
+package com.armaggheddon.muzic;
+
+import android.net.Uri;
+
+/**
+ * Describes the operations that {@link MusicService} needs to play audio, so the service does not
+ * depend on how the audio is decoded and played. The implementations available are
+ * {@link MusicPlayer}, built on {@link android.media.MediaPlayer}, and {@link CodecPlaybackEngine},
+ * built on {@link android.media.MediaCodec} and {@link android.media.AudioTrack}
+ */
+
+public interface PlaybackEngine {
+
+    /* Volume used during the normal playback and when the audio focus asks to duck */
+    float DEFAULT_VOLUME = 1.0f;
+    float DUCKING_VOLUME = 0.7f;
+
+    /**
+     * Receives the events of the engine, the methods can be called from any thread
+     */
+    interface Callback {
+
+        /**
+         * The song being played reached its end and no next song was started by the engine
+         */
+        void onCompletion();
+
+        /**
+         * The engine started by itself the song given in {@link PlaybackEngine#prepareNext(Uri)},
+         * for example at the end of a crossfade or of a gapless join. The session has to move to
+         * the next item in the queue without asking to prepare it again
+         */
+        void onNextStarted();
+
+        /**
+         * The song being played reached its end and restarted from the beginning, since looping
+         * is enabled with {@link PlaybackEngine#setLooping(boolean)}
+         */
+        void onLooped();
+
+        /**
+         * The song could not be read or decoded
+         * @param path
+         *          The path of the song that caused the error
+         */
+        void onError(String path);
+    }
+
+    /**
+     * Sets the callback that receives the events of the engine
+     * @param callback
+     *          The callback to use, replaces any previous one
+     */
+    void setCallback(Callback callback);
+
+    /**
+     * Loads the song given so it is ready to be played. If the song is already the current one
+     * nothing is done, so the playback continues from the current position. A song that already
+     * ended is played again from the beginning
+     * @param uriPath
+     *          The Uri of the song to load
+     * @param duration
+     *          The duration in milliseconds of the song, 0 if not known
+     */
+    void prepare(Uri uriPath, long duration);
+
+    /**
+     * Tells the engine what song follows the current one, the engine can prepare it ahead of
+     * time. Engines that do not join songs can ignore the call
+     * @param uriPath
+     *          The Uri of the next song in the queue
+     */
+    void prepareNext(Uri uriPath);
+
+    /**
+     * Starts or resumes the playback of the song loaded with {@link PlaybackEngine#prepare(Uri, long)}
+     */
+    void play();
+
+    /**
+     * Pauses the playback keeping the current position
+     */
+    void pause();
+
+    /**
+     * Stops the playback and releases the song loaded, a new call to
+     * {@link PlaybackEngine#prepare(Uri, long)} is required to play again
+     */
+    void stop();
+
+    /**
+     * Stops the playback and releases every resource of the engine, the instance can not be used
+     * anymore after this call
+     */
+    void release();
+
+    /**
+     * Seeks to {@param ms} in milliseconds in the song being played
+     * @param ms
+     *          The milliseconds to seek to
+     */
+    void seekTo(long ms);
+
+    /**
+     * Get the milliseconds elapsed from the start of the song
+     * @return
+     *          The current position in milliseconds, 0 if no song is loaded
+     */
+    long getPosition();
+
+    /**
+     * @return
+     *          True if a song is being played
+     */
+    boolean isPlaying();
+
+    /**
+     * Makes the song being played, and the ones loaded after it, restart from the beginning when
+     * they end instead of completing, without loading the song again. Every restart is reported
+     * with {@link Callback#onLooped()}. While looping the engine does not start the song given in
+     * {@link PlaybackEngine#prepareNext(Uri)}
+     * @param looping
+     *          True to loop the song, false to complete it as usual
+     */
+    void setLooping(boolean looping);
+
+    /**
+     * Sets the volume of the playback, for example {@value PlaybackEngine#DUCKING_VOLUME} when
+     * the audio focus asks to duck
+     * @param volume
+     *          The volume between 0 and 1
+     */
+    void setVolume(float volume);
+}
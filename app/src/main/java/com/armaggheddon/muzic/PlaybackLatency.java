@@ -0,0 +1,141 @@
+package com.armaggheddon.muzic;
+
+import android.os.Build;
+import android.os.Trace;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Measures how long it takes from a user action, like a click on a song or a skip, to the start
+ * of the playback. Each stage of the path is recorded in its own {@link LatencyHistogram} and is
+ * emitted as a {@link Trace} section, so it can be seen in a systrace/perfetto capture.
+ * The percentiles are printed by "adb shell dumpsys activity service MusicService" and shown in
+ * the debug section of {@link com.armaggheddon.muzic.ui.SettingsActivity}
+ */
+
+public final class PlaybackLatency {
+
+    /* The stages measured, in the order in which they happen */
+    public static final String STAGE_QUEUE = "queue";
+    public static final String STAGE_METADATA = "metadata";
+    public static final String STAGE_ALBUM_ART = "album_art";
+    public static final String STAGE_PREPARE = "prepare";
+    public static final String STAGE_START = "start";
+
+    /* From the user action to the start of the playback */
+    public static final String STAGE_TOTAL = "total";
+
+    private static final String TRACE_PREFIX = "muZic:";
+
+    /* Cookie of the async trace section of STAGE_TOTAL, only one startup is measured at a time */
+    private static final int TRACE_COOKIE = 0;
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private static final Map<String, LatencyHistogram> HISTOGRAMS;
+    static {
+        Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+        for(String stage : new String[]{STAGE_QUEUE, STAGE_METADATA, STAGE_ALBUM_ART, STAGE_PREPARE, STAGE_START, STAGE_TOTAL})
+            histograms.put(stage, new LatencyHistogram());
+        HISTOGRAMS = Collections.unmodifiableMap(histograms);
+    }
+
+    /* System.nanoTime() of the user action being measured, 0 if there is none */
+    private static long sRequestNanos = 0;
+
+    private PlaybackLatency(){}
+
+    /**
+     * Starts measuring a stage, must be followed by {@link PlaybackLatency#end(String, long)} on
+     * the same thread since trace sections are nested
+     * @param stage
+     *          One of the STAGE_ constants
+     * @return
+     *          The start time to give to {@link PlaybackLatency#end(String, long)}
+     */
+    public static long begin(String stage){
+        Trace.beginSection(TRACE_PREFIX + stage);
+        return System.nanoTime();
+    }
+
+    /**
+     * Ends the measure of a stage and records its duration
+     * @param stage
+     *          The same stage given to {@link PlaybackLatency#begin(String)}
+     * @param startNanos
+     *          The value returned by {@link PlaybackLatency#begin(String)}
+     */
+    public static void end(String stage, long startNanos){
+        long elapsed = System.nanoTime() - startNanos;
+        Trace.endSection();
+        HISTOGRAMS.get(stage).recordValue(elapsed / 1000);
+    }
+
+    /**
+     * Marks the user action that will start a new song, any previous action not completed is
+     * replaced since the user changed idea before the playback started
+     */
+    public static synchronized void markRequest(){
+        if(sRequestNanos != 0)
+            endAsyncTrace();
+        sRequestNanos = System.nanoTime();
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.beginAsyncSection(TRACE_PREFIX + STAGE_TOTAL, TRACE_COOKIE);
+    }
+
+    /**
+     * Marks the start of the playback, records the time elapsed from the last user action, if any
+     */
+    public static synchronized void markStarted(){
+        if(sRequestNanos == 0)
+            return;
+        HISTOGRAMS.get(STAGE_TOTAL).recordValue((System.nanoTime() - sRequestNanos) / 1000);
+        endAsyncTrace();
+        sRequestNanos = 0;
+    }
+
+    /**
+     * Prints the count and the percentiles, in milliseconds, of every stage
+     * @param writer
+     *          The writer in which to print
+     */
+    public static void dump(PrintWriter writer){
+        writer.println("Playback startup latency (ms)");
+        for(Map.Entry<String, LatencyHistogram> entry : HISTOGRAMS.entrySet()){
+            LatencyHistogram histogram = entry.getValue();
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "  %-10s n=%-5d", entry.getKey(), histogram.getTotalCount()));
+            for(double percentile : PERCENTILES)
+                line.append(String.format(Locale.US, " p%.0f=%.1f", percentile, histogram.getValueAtPercentile(percentile) / 1000.0));
+            line.append(String.format(Locale.US, " max=%.1f", histogram.getMax() / 1000.0));
+            writer.println(line);
+        }
+    }
+
+    /**
+     * @return
+     *          The same text printed by {@link PlaybackLatency#dump(PrintWriter)}
+     */
+    public static String getSummary(){
+        StringWriter text = new StringWriter();
+        dump(new PrintWriter(text, true));
+        return text.toString();
+    }
+
+    /**
+     * Removes all the values recorded
+     */
+    public static void reset(){
+        for(LatencyHistogram histogram : HISTOGRAMS.values())
+            histogram.reset();
+    }
+
+    private static void endAsyncTrace(){
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            Trace.endAsyncSection(TRACE_PREFIX + STAGE_TOTAL, TRACE_COOKIE);
+    }
+}
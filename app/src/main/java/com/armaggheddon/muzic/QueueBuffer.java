@@ -0,0 +1,174 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.session.MediaSessionCompat;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+
+/**
+ * The queue of the session kept in a gap buffer: the items are stored in an array with a free
+ * region, the gap, at the position of the last edit. Adding or removing an item moves the gap to
+ * its position first, so edits next to the previous one, like "play next" after the current item
+ * or the steps of a drag in the queue view, cost a constant time instead of shifting the whole
+ * queue, and moving an item costs as much as the distance it is moved.
+ * Every item added gets a new queue id from a counter that is never reset, so an id keeps pointing
+ * at the same item after other items are added, moved or removed and an id of an old queue never
+ * matches an item of the current one.
+ * Like the rest of {@link SessionState} it must be used only from the session thread
+ */
+
+class QueueBuffer extends AbstractList<MediaSessionCompat.QueueItem> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    /* The items are in [0, mGapStart) and [mGapEnd, mItems.length) */
+    private MediaSessionCompat.QueueItem[] mItems = new MediaSessionCompat.QueueItem[MIN_CAPACITY];
+    private int mGapStart = 0;
+    private int mGapEnd = MIN_CAPACITY;
+
+    /* The id given to the next item added */
+    private long mNextQueueId = 0;
+
+    @Override
+    public MediaSessionCompat.QueueItem get(int position){
+        checkPosition(position, size());
+        return mItems[toIndex(position)];
+    }
+
+    @Override
+    public int size(){
+        return mItems.length - (mGapEnd - mGapStart);
+    }
+
+    /**
+     * Adds an item, it is given a new queue id so the id of {@param item} is ignored
+     * @param position
+     *          The position of the new item, the items from this position on move forward by one
+     * @param item
+     *          The item to add
+     */
+    @Override
+    public void add(int position, MediaSessionCompat.QueueItem item){
+        checkPosition(position, size() + 1);
+        insert(position, new MediaSessionCompat.QueueItem(item.getDescription(), mNextQueueId++));
+    }
+
+    /**
+     * Replaces an item, the new one is given a new queue id
+     */
+    @Override
+    public MediaSessionCompat.QueueItem set(int position, MediaSessionCompat.QueueItem item){
+        checkPosition(position, size());
+        int index = toIndex(position);
+        MediaSessionCompat.QueueItem previous = mItems[index];
+        mItems[index] = new MediaSessionCompat.QueueItem(item.getDescription(), mNextQueueId++);
+        modCount++;
+        return previous;
+    }
+
+    @Override
+    public MediaSessionCompat.QueueItem remove(int position){
+        checkPosition(position, size());
+        moveGap(position);
+        MediaSessionCompat.QueueItem item = mItems[mGapEnd];
+        mItems[mGapEnd++] = null;
+        modCount++;
+        return item;
+    }
+
+    @Override
+    public void clear(){
+        mItems = new MediaSessionCompat.QueueItem[MIN_CAPACITY];
+        mGapStart = 0;
+        mGapEnd = MIN_CAPACITY;
+        modCount++;
+    }
+
+    /**
+     * Moves an item keeping its queue id, the items between the two positions shift by one
+     * @param from
+     *          The position of the item to move
+     * @param to
+     *          The position of the item after the move
+     */
+    public void move(int from, int to){
+        checkPosition(from, size());
+        checkPosition(to, size());
+        if(from != to)
+            insert(to, remove(from));
+    }
+
+    /**
+     * Finds the position of an item from its queue id. The position known by the client is checked
+     * first, so when the client is in sync with the session no search is needed
+     * @param queueId
+     *          The queue id of the item
+     * @param hint
+     *          The position where the item is expected to be, -1 if unknown
+     * @return
+     *          The position of the item, -1 if it is not in the queue
+     */
+    public int indexOfQueueId(long queueId, int hint){
+        int size = size();
+        if(hint >= 0 && hint < size && mItems[toIndex(hint)].getQueueId() == queueId)
+            return hint;
+
+        /* The gap is where the last edit was made, so start looking close to it */
+        for(int i = mGapStart - 1; i >= 0; i--)
+            if(mItems[i].getQueueId() == queueId)
+                return i;
+        for(int i = mGapEnd; i < mItems.length; i++)
+            if(mItems[i].getQueueId() == queueId)
+                return i - (mGapEnd - mGapStart);
+        return -1;
+    }
+
+    private void insert(int position, MediaSessionCompat.QueueItem item){
+        if(mGapStart == mGapEnd)
+            grow();
+        moveGap(position);
+        mItems[mGapStart++] = item;
+        modCount++;
+    }
+
+    /**
+     * Moves the gap so that it starts at {@param position}, only the items between the old and
+     * the new position of the gap are copied
+     */
+    private void moveGap(int position){
+        if(position < mGapStart){
+            int count = mGapStart - position;
+            System.arraycopy(mItems, position, mItems, mGapEnd - count, count);
+            Arrays.fill(mItems, position, Math.min(mGapStart, mGapEnd - count), null);
+            mGapStart = position;
+            mGapEnd -= count;
+        }else if(position > mGapStart){
+            int count = position - mGapStart;
+            System.arraycopy(mItems, mGapEnd, mItems, mGapStart, count);
+            Arrays.fill(mItems, Math.max(mGapEnd, mGapStart + count), mGapEnd + count, null);
+            mGapStart += count;
+            mGapEnd += count;
+        }
+    }
+
+    /**
+     * Doubles the size of the array, the gap keeps its position and gets all the new space
+     */
+    private void grow(){
+        MediaSessionCompat.QueueItem[] items = new MediaSessionCompat.QueueItem[mItems.length * 2];
+        int tail = mItems.length - mGapEnd;
+        System.arraycopy(mItems, 0, items, 0, mGapStart);
+        System.arraycopy(mItems, mGapEnd, items, items.length - tail, tail);
+        mGapEnd = items.length - tail;
+        mItems = items;
+    }
+
+    private int toIndex(int position){
+        return (position < mGapStart) ? position : position + (mGapEnd - mGapStart);
+    }
+
+    private static void checkPosition(int position, int size){
+        if(position < 0 || position >= size)
+            throw new IndexOutOfBoundsException("Position " + position + ", size " + size);
+    }
+}
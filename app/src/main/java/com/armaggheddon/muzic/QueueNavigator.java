@@ -0,0 +1,122 @@
+package com.armaggheddon.muzic;
+
+/**
+ * Moves the session along its queue when a song ends, when the {@link PlaybackEngine} starts the
+ * next song by itself or can not play a song, and when a controller skips to the next item.
+ * It only reads and changes the {@link SessionState}, what has to be done on the session, the play
+ * log and the notification is left to the {@link Host}, that is {@link MusicService}. This keeps
+ * the decisions taken at the end of a song out of the Android classes, so they can be run on the
+ * JVM with a fake engine.
+ * Like the SessionState it must be used only on the session thread, MusicService posts there the
+ * events of the engine before handing them to this class
+ */
+
+class QueueNavigator implements PlaybackEngine.Callback {
+
+    /**
+     * Applies to the session the moves decided by the {@link QueueNavigator}
+     */
+    interface Host {
+
+        /**
+         * The song started last was played until its end
+         */
+        void onSongCompleted();
+
+        /**
+         * The queue position changed and the item there has to be played. If the engine already
+         * started it by itself, asking to prepare it again does nothing
+         */
+        void onPlayQueuePosition();
+
+        /**
+         * The song being played ended by itself and there is no item after it, the playback stops
+         */
+        void onQueueEnded();
+    }
+
+    private final SessionState mSessionState;
+    private final PlaybackEngine mEngine;
+    private final Host mHost;
+
+    /**
+     * Constructor of the class
+     * @param sessionState
+     *          The state of the session, with the queue and the current position
+     * @param engine
+     *          The engine playing the songs of the queue
+     * @param host
+     *          Applies the moves to the session
+     */
+    QueueNavigator(SessionState sessionState, PlaybackEngine engine, Host host){
+        mSessionState = sessionState;
+        mEngine = engine;
+        mHost = host;
+    }
+
+    /**
+     * The song ended and the engine stopped, the next item is played if there is one
+     */
+    @Override
+    public void onCompletion(){
+        mHost.onSongCompleted();
+        skipToNext(true);
+    }
+
+    /**
+     * The engine is already playing the next song, for example at the end of a crossfade or of a
+     * gapless join, the session only has to follow it
+     */
+    @Override
+    public void onNextStarted(){
+        mHost.onSongCompleted();
+        skipToNext(false);
+    }
+
+    /**
+     * The engine restarted the song with the repeat one mode, the ended play is recorded and the
+     * same item is played again, so the play log counts every loop
+     */
+    @Override
+    public void onLooped(){
+        mHost.onSongCompleted();
+        mHost.onPlayQueuePosition();
+    }
+
+    /**
+     * The song could not be played, it is skipped without being recorded as played
+     * @param path
+     *          The path of the song that caused the error
+     */
+    @Override
+    public void onError(String path){
+        skipToNext(true);
+    }
+
+    /**
+     * Moves to the item that follows the current one, in the shuffled order if the shuffle mode
+     * is enabled. With the repeat one mode the song never ends by itself, the engine loops it, so
+     * this is only reached when a controller skips: the user wants another song and the queue is
+     * followed as with repeat all, see {@link SessionState#getNextQueuePosition()}
+     * @param endOfSong
+     *          True if the current song ended by itself, then after the last item of the queue
+     *          the playback stops. False if a controller asked to skip or the engine already
+     *          started the next song, then after the last item nothing is done
+     */
+    void skipToNext(boolean endOfSong){
+        int next = mSessionState.getNextQueuePosition();
+
+        /* The current item is the last one in the queue */
+        if(next == ShuffleOrder.INDEX_UNSET){
+            if(endOfSong)
+                mHost.onQueueEnded();
+            return;
+        }
+
+        /* A queue of one item with a repeat mode, the engine would keep the ended song */
+        if(next == mSessionState.getQueuePosition())
+            mEngine.seekTo(0);
+        mSessionState.setQueuePosition(next);
+        mHost.onPlayQueuePosition();
+    }
+}
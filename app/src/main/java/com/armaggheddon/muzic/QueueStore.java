@@ -0,0 +1,394 @@
+package com.armaggheddon.muzic;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.util.Log;
+
+import com.armaggheddon.muzic.library.MusicLibrary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Saves the queue, the position in the queue and the position in the song being played, so when
+ * the process is killed the playback can be resumed, for example from the play button of a
+ * Bluetooth device, without building a queue of the whole library.
+ * The queue is saved as the MediaStore ids of its songs, each one written as the zig-zag varint of
+ * the difference from the previous id, so a queue of consecutive songs takes about one byte per
+ * song. The file ends with a CRC32 of its content and is replaced atomically by renaming a
+ * temporary file.
+ * The saves are write-behind: changes are merged for {@value QueueStore#WRITE_DELAY_MS}
+ * milliseconds on the session thread, where the queue is read, and the file is written on a
+ * background thread. Only the save made when the playback pauses or stops waits for the data to
+ * reach the storage with fsync, of the file and then of the directory so the rename is durable too,
+ * the others are enough to survive the death of the process
+ */
+
+public class QueueStore {
+
+    private static final String TAG = "QueueStore";
+
+    private static final String FILE_NAME = "queue.bin";
+    private static final String TEMP_FILE_NAME = "queue.bin.tmp";
+
+    /* "MQUE" followed by the version of the format */
+    private static final int MAGIC = 0x4d515545;
+    private static final int VERSION = 1;
+
+    /* Changes of the queue or of the current song within this time are saved together */
+    private static final long WRITE_DELAY_MS = 3000;
+
+    /* How long release() waits for the last save to be written */
+    private static final long RELEASE_TIMEOUT_MS = 1000;
+
+    /**
+     * A queue read from the storage
+     */
+    public static final class Snapshot {
+        public final long[] songIds;
+        public final int queuePosition;
+        public final long playbackPosition;
+
+        private Snapshot(long[] songIds, int queuePosition, long playbackPosition){
+            this.songIds = songIds;
+            this.queuePosition = queuePosition;
+            this.playbackPosition = playbackPosition;
+        }
+    }
+
+    private final File mFile;
+    private final File mTempFile;
+
+    private final SessionState mSessionState;
+    private final Handler mSessionHandler;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /* The playback position of the save waiting on the session thread, confined to it */
+    private long mPendingPlaybackPosition = 0;
+
+    private final Runnable mSave = new Runnable() {
+        @Override
+        public void run() {
+            write(encode(), false);
+        }
+    };
+
+    /**
+     * Constructor of the class
+     * @param context
+     *          The context used to find the directory of the files of the app
+     * @param sessionState
+     *          The state of the session, from which the queue is read
+     * @param sessionHandler
+     *          The handler of the session thread
+     */
+    public QueueStore(Context context, SessionState sessionState, Handler sessionHandler){
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        mTempFile = new File(context.getFilesDir(), TEMP_FILE_NAME);
+        mSessionState = sessionState;
+        mSessionHandler = sessionHandler;
+
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Saves the queue after {@value QueueStore#WRITE_DELAY_MS} milliseconds, merging the changes
+     * made in the meantime. Must be called from the session thread
+     * @param playbackPosition
+     *          The position in milliseconds in the song being played
+     */
+    public void scheduleSave(long playbackPosition){
+        mPendingPlaybackPosition = playbackPosition;
+        mSessionHandler.removeCallbacks(mSave);
+        mSessionHandler.postDelayed(mSave, WRITE_DELAY_MS);
+    }
+
+    /**
+     * Saves the queue now and waits, on the background thread, for the data to reach the storage.
+     * Must be called from the session thread
+     * @param playbackPosition
+     *          The position in milliseconds in the song being played
+     */
+    public void saveNow(long playbackPosition){
+        mPendingPlaybackPosition = playbackPosition;
+        mSessionHandler.removeCallbacks(mSave);
+        write(encode(), true);
+    }
+
+    /**
+     * Reads the queue saved, the file is small so it is read on the calling thread
+     * @return
+     *          The queue saved, null if there is none or it is not valid
+     */
+    public Snapshot restore(){
+        if(!mFile.exists())
+            return null;
+
+        byte[] data = new byte[(int) mFile.length()];
+        try (FileInputStream input = new FileInputStream(mFile)) {
+            int read = 0;
+            while(read < data.length){
+                int count = input.read(data, read, data.length - read);
+                if(count < 0)
+                    return null;
+                read += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "restore: error while reading the queue", e);
+            return null;
+        }
+        return decode(data);
+    }
+
+    /**
+     * Writes the saves already asked and stops the background thread, waiting for it. Must be
+     * called after the session thread has ended, so no save can be asked anymore
+     */
+    public void release(){
+        mThread.quitSafely();
+        try {
+            mThread.join(RELEASE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Encodes the current queue, runs on the session thread since the queue is confined to it
+     */
+    private byte[] encode(){
+        return encode(mSessionState.getQueue(), mSessionState.getQueuePosition(), mPendingPlaybackPosition);
+    }
+
+    /**
+     * @param queue
+     *          The queue to save
+     * @param queuePosition
+     *          The position in the queue of the item being played
+     * @param playbackPosition
+     *          The position in milliseconds in the song being played
+     * @return
+     *          The content of the file
+     */
+    static byte[] encode(List<MediaSessionCompat.QueueItem> queue, int queuePosition, long playbackPosition){
+        VarintOutput output = new VarintOutput(16 + queue.size() * 2);
+        output.writeInt(MAGIC);
+        output.writeVarint(VERSION);
+        output.writeVarint(queuePosition);
+        output.writeVarint(Math.max(0, playbackPosition));
+        output.writeVarint(queue.size());
+
+        long previous = 0;
+        for(int i = 0; i < queue.size(); i++){
+            long songId = getSongId(queue.get(i).getDescription().getMediaId());
+            output.writeVarint(zigZag(songId - previous));
+            previous = songId;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(output.getBuffer(), 0, output.size());
+        output.writeInt((int) crc.getValue());
+        return output.toByteArray();
+    }
+
+    /**
+     * @param data
+     *          The content of the file
+     * @return
+     *          The queue saved, null if the data is truncated, corrupted or of another version
+     */
+    static Snapshot decode(byte[] data){
+        if(data.length < 8)
+            return null;
+
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length - 4);
+        VarintInput input = new VarintInput(data, data.length - 4);
+        if(readInt(data, data.length - 4) != (int) crc.getValue()
+                || input.readInt() != MAGIC
+                || input.readVarint() != VERSION)
+            return null;
+
+        int queuePosition = (int) input.readVarint();
+        long playbackPosition = input.readVarint();
+        int count = (int) input.readVarint();
+        if(count < 0 || count > data.length)
+            return null;
+
+        long[] songIds = new long[count];
+        long previous = 0;
+        for(int i = 0; i < count; i++){
+            previous += unZigZag(input.readVarint());
+            songIds[i] = previous;
+        }
+        return input.isValid() ? new Snapshot(songIds, queuePosition, playbackPosition) : null;
+    }
+
+    /**
+     * Writes the data on the background thread, the file is replaced only when the new one is
+     * complete
+     */
+    private void write(final byte[] data, final boolean sync){
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try (FileOutputStream output = new FileOutputStream(mTempFile)) {
+                    output.write(data);
+                    if(sync)
+                        output.getFD().sync();
+                } catch (IOException e) {
+                    Log.e(TAG, "write: error while saving the queue", e);
+                    return;
+                }
+                if(!mTempFile.renameTo(mFile)){
+                    Log.e(TAG, "write: can not replace " + mFile);
+                    return;
+                }
+                if(sync)
+                    syncDirectory(mFile.getParentFile());
+            }
+        });
+    }
+
+    /**
+     * The rename is an update of the directory, until the directory reaches the storage a power
+     * loss can bring back the previous file even if the new one was synced
+     */
+    private static void syncDirectory(File directory){
+        try {
+            FileDescriptor descriptor = Os.open(directory.getPath(), OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(descriptor);
+            } finally {
+                Os.close(descriptor);
+            }
+        } catch (ErrnoException e) {
+            Log.w(TAG, "syncDirectory: can not sync " + directory, e);
+        }
+    }
+
+    /**
+     * @param mediaId
+     *          The mediaId of a song as "song_<id>"
+     * @return
+     *          The MediaStore id of the song, 0 if the mediaId is not valid
+     */
+    private static long getSongId(String mediaId){
+        if(mediaId == null || !mediaId.startsWith(MusicLibrary.SONG_))
+            return 0;
+        try {
+            return Long.parseLong(mediaId.substring(MusicLibrary.SONG_.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static long zigZag(long value){
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value){
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static int readInt(byte[] data, int offset){
+        return ((data[offset] & 0xff) << 24) | ((data[offset + 1] & 0xff) << 16)
+                | ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * A ByteArrayOutputStream with unsigned LEB128 varints, also used by {@link PlayLog}
+     */
+    static final class VarintOutput extends ByteArrayOutputStream {
+
+        VarintOutput(int size){
+            super(size);
+        }
+
+        void writeVarint(long value){
+            while((value & ~0x7fL) != 0){
+                write((int) ((value & 0x7f) | 0x80));
+                value >>>= 7;
+            }
+            write((int) value);
+        }
+
+        void writeInt(int value){
+            write(value >>> 24);
+            write(value >>> 16);
+            write(value >>> 8);
+            write(value);
+        }
+
+        byte[] getBuffer(){
+            return buf;
+        }
+    }
+
+    /**
+     * Reads the values written by {@link VarintOutput}, reading past the end marks the input as
+     * not valid instead of throwing
+     */
+    static final class VarintInput {
+
+        private final byte[] mData;
+        private final int mEnd;
+        private int mOffset = 0;
+        private boolean mValid = true;
+
+        VarintInput(byte[] data, int end){
+            mData = data;
+            mEnd = end;
+        }
+
+        long readVarint(){
+            long value = 0;
+            for(int shift = 0; shift < 64; shift += 7){
+                if(mOffset >= mEnd){
+                    mValid = false;
+                    return 0;
+                }
+                byte b = mData[mOffset++];
+                value |= (long) (b & 0x7f) << shift;
+                if((b & 0x80) == 0)
+                    return value;
+            }
+            mValid = false;
+            return 0;
+        }
+
+        int readInt(){
+            if(mOffset + 4 > mEnd){
+                mValid = false;
+                return 0;
+            }
+            int value = QueueStore.readInt(mData, mOffset);
+            mOffset += 4;
+            return value;
+        }
+
+        boolean isValid(){
+            return mValid;
+        }
+
+        boolean hasRemaining(){
+            return mOffset < mEnd;
+        }
+    }
+}
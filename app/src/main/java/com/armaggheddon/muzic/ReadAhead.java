@@ -0,0 +1,230 @@
+package com.armaggheddon.muzic;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.preference.PreferenceManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+
+/**
+ * Reads the beginning of the next song in the queue while the current one is playing, so its data
+ * is already in the page cache when the engine opens it. This hides the latency of slow storage,
+ * like some SD cards, when the next song starts.
+ * The read starts when the current song reaches the percentage set by the user in the settings,
+ * it is sequential, throttled to leave bandwidth to the song being played and can be cancelled
+ * at any time. Every time a new song starts a hit is counted if its read-ahead was complete, a
+ * miss otherwise
+ */
+
+public class ReadAhead {
+
+    private static final String TAG = "ReadAhead";
+
+    /* The number of bytes read from the beginning of the next song */
+    private static final int HEAD_SIZE = 2 * 1024 * 1024;
+
+    /* Size of each read */
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /* Maximum read speed, in bytes per second, so the song being played is not slowed down */
+    private static final int MAX_BYTES_PER_SECOND = 8 * 1024 * 1024;
+
+    /* The maximum percentage that can be set from the settings */
+    public static final int MAX_READ_AHEAD_PERCENT = 95;
+
+    /* Used until the user changes the setting, must match the default value in the preferences */
+    private static final int DEFAULT_READ_AHEAD_PERCENT = 75;
+
+    private final Context mContext;
+    private final SharedPreferences mPreferences;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+
+    /* Incremented on every cancel, a read in progress stops when it changes */
+    private volatile int mGeneration = 0;
+
+    /* The song whose read-ahead was scheduled and the one whose read-ahead is complete, guarded by this */
+    private String mScheduledPath;
+    private String mCompletedPath;
+
+    /* The last song started, so a resume of the same song is not counted again */
+    private String mStartedPath;
+
+    private int mHits = 0;
+    private int mMisses = 0;
+
+    public ReadAhead(Context context){
+        mContext = context;
+        mPreferences = PreferenceManager.getDefaultSharedPreferences(context);
+
+        /* Background priority, the read must never compete with the playback */
+        mThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+    }
+
+    /**
+     * Schedules the read of the next song when the current one reaches the percentage set in the
+     * settings. Any read already scheduled or in progress is cancelled
+     * @param nextUri
+     *          The Uri of the next song in the queue
+     * @param position
+     *          The current position in milliseconds of the song being played
+     * @param duration
+     *          The duration in milliseconds of the song being played, if 0 nothing is scheduled
+     */
+    public void schedule(Uri nextUri, long position, long duration){
+        cancel();
+
+        int percent = getReadAheadPercent();
+        if(percent == 0 || duration <= 0)
+            return;
+
+        final String path = String.valueOf(nextUri);
+        synchronized (this){
+            if(path.equals(mCompletedPath))
+                return;
+            mScheduledPath = path;
+        }
+
+        final int generation = mGeneration;
+        long delay = Math.max(0, duration * percent / 100 - position);
+        mHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                readHead(path, generation);
+            }
+        }, delay);
+    }
+
+    /**
+     * Cancels the read scheduled or in progress, if any. What was already read stays in the page cache
+     */
+    public void cancel(){
+        mGeneration++;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Counts a hit or a miss for the song that is starting, only if a read-ahead was scheduled
+     * @param uri
+     *          The Uri of the song that started playing
+     */
+    public synchronized void onSongStarted(Uri uri){
+        String path = String.valueOf(uri);
+
+        /* The same song was resumed */
+        if(path.equals(mStartedPath))
+            return;
+        mStartedPath = path;
+
+        if(mScheduledPath == null)
+            return;
+
+        if(path.equals(mCompletedPath))
+            mHits++;
+        else
+            mMisses++;
+        mScheduledPath = null;
+        mCompletedPath = null;
+    }
+
+    /**
+     * @return
+     *          The number of songs started whose beginning was already read
+     */
+    public synchronized int getHits(){
+        return mHits;
+    }
+
+    /**
+     * @return
+     *          The number of songs started while their read-ahead was scheduled but not complete,
+     *          or was done for a different song
+     */
+    public synchronized int getMisses(){
+        return mMisses;
+    }
+
+    /**
+     * Prints the hits and the misses counted since the service started
+     * @param writer
+     *          The writer in which to print
+     */
+    public synchronized void dump(PrintWriter writer){
+        writer.println("Read-ahead of the next song");
+        writer.println("  hits " + mHits + ", misses " + mMisses);
+    }
+
+    /**
+     * Cancels any read and stops the background thread, the instance can not be used anymore
+     */
+    public void release(){
+        cancel();
+        mThread.quitSafely();
+    }
+
+    /**
+     * Sequentially reads the first {@value ReadAhead#HEAD_SIZE} bytes of the song, discarding
+     * them, at most at {@value ReadAhead#MAX_BYTES_PER_SECOND} bytes per second
+     * @param path
+     *          The path of the song to read
+     * @param generation
+     *          The value of {@link ReadAhead#mGeneration} when the read was scheduled
+     */
+    private void readHead(String path, int generation){
+        byte[] buffer = new byte[CHUNK_SIZE];
+        long chunkMs = CHUNK_SIZE * 1000L / MAX_BYTES_PER_SECOND;
+        int total = 0;
+
+        try (InputStream stream = mContext.getContentResolver().openInputStream(Uri.parse(path))){
+            if(stream == null)
+                return;
+
+            while(total < HEAD_SIZE){
+                if(generation != mGeneration)
+                    return;
+
+                long start = SystemClock.uptimeMillis();
+                int read = stream.read(buffer, 0, Math.min(CHUNK_SIZE, HEAD_SIZE - total));
+                if(read < 0)
+                    break;
+                total += read;
+
+                /* Throttle, if the storage is slower than the limit there is no wait */
+                long elapsed = SystemClock.uptimeMillis() - start;
+                if(elapsed < chunkMs)
+                    SystemClock.sleep(chunkMs - elapsed);
+            }
+        }catch (IOException | SecurityException e){
+            Log.w(TAG, "readHead: ", e);
+            return;
+        }
+
+        synchronized (this){
+            if(generation == mGeneration && path.equals(mScheduledPath))
+                mCompletedPath = path;
+        }
+    }
+
+    /**
+     * Reads the percentage of the current song after which the next one is read, set by the user in
+     * {@link com.armaggheddon.muzic.ui.SettingsActivity}
+     * @return
+     *          The percentage, 0 if the read-ahead is disabled
+     */
+    private int getReadAheadPercent(){
+        int percent = mPreferences.getInt(mContext.getString(R.string.read_ahead_key_shared_prefs), DEFAULT_READ_AHEAD_PERCENT);
+        return Math.max(0, Math.min(percent, MAX_READ_AHEAD_PERCENT));
+    }
+}
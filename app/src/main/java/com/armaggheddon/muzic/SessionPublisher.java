@@ -0,0 +1,378 @@
+package com.armaggheddon.muzic;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Parcel;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+import android.text.TextUtils;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Publishes the playback state, the metadata and the queue to the {@link MediaSessionCompat}.
+ * Every publish is a binder transaction to each controller (the UI of the app, Android Auto, the
+ * system notification) so the updates asked within {@value SessionPublisher#COALESCE_WINDOW_MS}
+ * milliseconds are merged and only the last value of each is published. The values are published
+ * together, queue and metadata before the state, so a controller never sees a state that refers
+ * to a song it does not know yet. Values equal to the ones already published are dropped.
+ * Since the publish is delayed, the session must read the current values from
+ * {@link SessionPublisher#getPlaybackState()} and {@link SessionPublisher#getMetadata()} instead
+ * of its controller
+ */
+
+public class SessionPublisher {
+
+    /* About a frame, the updates caused by a single user action fall in the same window */
+    private static final long COALESCE_WINDOW_MS = 16;
+
+    /*
+    After an edit of the queue the controllers of the app are told about the change with a session
+    event, the whole queue is published only when no edit happens for this time, so a sequence of
+    edits like a drag in the queue view publishes it once
+    */
+    private static final long QUEUE_EDIT_WINDOW_MS = 1000;
+
+    /*
+    Two playing states whose positions, brought to the same instant, differ less than this are the
+    same for a controller: it shows the position in seconds and the position read from the engine
+    lags the clock by a few milliseconds
+    */
+    static final long POSITION_TOLERANCE_MS = 100;
+
+    private final MediaSessionCompat mSession;
+    private final Handler mHandler;
+
+    /* The values waiting to be published, null if not changed. Guarded by this */
+    private PlaybackStateCompat mPendingState;
+    private MediaMetadataCompat mPendingMetadata;
+    private List<MediaSessionCompat.QueueItem> mPendingQueue;
+
+    /* True if the queue waiting was asked only by edits already sent as session events */
+    private boolean mPendingQueueFromEdits = false;
+    private boolean mFlushScheduled = false;
+    private boolean mReleased = false;
+
+    /*
+    The last values published. A state equal to the published one is dropped and this one is kept,
+    so the states dropped are always compared with what the controllers actually have
+    */
+    private PlaybackStateCompat mPublishedState;
+    private MediaMetadataCompat mPublishedMetadata;
+
+    /* The copy of the queue last published, it is never modified so it is shared with the UI */
+    private List<MediaSessionCompat.QueueItem> mPublishedQueue;
+
+    /* Counters of the updates asked and of the ones actually published, printed by dump() */
+    private int mStateRequests = 0;
+    private int mStatePublishes = 0;
+    private int mMetadataRequests = 0;
+    private int mMetadataPublishes = 0;
+    private int mQueueRequests = 0;
+    private int mQueuePublishes = 0;
+    private int mQueueEvents = 0;
+
+    /*
+    The full queues published at the end of a sequence of edits, for the controllers that do not
+    read the session events, and the items they carried
+    */
+    private int mQueueEditPublishes = 0;
+    private long mQueueEditItems = 0;
+
+    /* Bytes copied to each controller by the metadata published, see getPayloadSize() */
+    private int mLastMetadataBytes = 0;
+    private long mTotalMetadataBytes = 0;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private final Runnable mQueueFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (SessionPublisher.this) {
+
+                /* A flush already scheduled publishes the queue too */
+                if (!mFlushScheduled)
+                    flush();
+            }
+        }
+    };
+
+    /**
+     * Constructor of the class
+     * @param session
+     *          The session on which to publish
+     * @param handler
+     *          The handler of the thread on which the values are published
+     */
+    public SessionPublisher(MediaSessionCompat session, Handler handler){
+        mSession = session;
+        mHandler = handler;
+    }
+
+    /**
+     * Publishes the state within the coalescing window
+     * @param state
+     *          The new playback state
+     */
+    public synchronized void setPlaybackState(PlaybackStateCompat state){
+        mStateRequests++;
+        mPendingState = state;
+        scheduleFlush();
+    }
+
+    /**
+     * Publishes the metadata within the coalescing window
+     * @param metadata
+     *          The new metadata
+     */
+    public synchronized void setMetadata(MediaMetadataCompat metadata){
+        mMetadataRequests++;
+        mPendingMetadata = metadata;
+        scheduleFlush();
+    }
+
+    /**
+     * Publishes the queue within the coalescing window, a copy is taken when it is published so
+     * later changes of the list in the same window are included
+     * @param queue
+     *          The new queue
+     */
+    public synchronized void setQueue(List<MediaSessionCompat.QueueItem> queue){
+        mQueueRequests++;
+        mPendingQueue = queue;
+        mPendingQueueFromEdits = false;
+        scheduleFlush();
+    }
+
+    /**
+     * Tells the controllers about a single edit of the queue and publishes the whole queue after
+     * {@value SessionPublisher#QUEUE_EDIT_WINDOW_MS} milliseconds without edits, for the
+     * controllers like Android Auto that only read the queue. Those publishes are counted apart
+     * by {@link SessionPublisher#dump(PrintWriter)}, since they cost as much as any other full
+     * publish. Must be called from the thread of the handler, so the events are sent in the same
+     * order of the edits
+     * @param event
+     *          The name of the session event describing the edit
+     * @param extras
+     *          The data of the edit
+     * @param queue
+     *          The queue after the edit
+     */
+    public synchronized void sendQueueEdit(String event, Bundle extras, List<MediaSessionCompat.QueueItem> queue){
+        if(mReleased)
+            return;
+        mSession.sendSessionEvent(event, extras);
+        mQueueEvents++;
+
+        mQueueRequests++;
+
+        /* A queue set in the same window is published anyway, it is not caused by the edits */
+        if(mPendingQueue == null)
+            mPendingQueueFromEdits = true;
+        mPendingQueue = queue;
+        mHandler.removeCallbacks(mQueueFlush);
+        mHandler.postDelayed(mQueueFlush, QUEUE_EDIT_WINDOW_MS);
+    }
+
+    /**
+     * @return
+     *          The last playback state asked, even if it is not published yet
+     */
+    public synchronized PlaybackStateCompat getPlaybackState(){
+        if(mPendingState != null)
+            return mPendingState;
+        if(mPublishedState != null)
+            return mPublishedState;
+        return mSession.getController().getPlaybackState();
+    }
+
+    /**
+     * @return
+     *          The last metadata asked, even if it is not published yet
+     */
+    public synchronized MediaMetadataCompat getMetadata(){
+        if(mPendingMetadata != null)
+            return mPendingMetadata;
+        if(mPublishedMetadata != null)
+            return mPublishedMetadata;
+        return mSession.getController().getMetadata();
+    }
+
+    /**
+     * Can be called from any thread
+     * @return
+     *          The last queue published, the same one the controllers see. It can not be modified,
+     *          null if no queue was published yet
+     */
+    public synchronized List<MediaSessionCompat.QueueItem> getPublishedQueue(){
+        return mPublishedQueue;
+    }
+
+    /**
+     * Drops the values waiting, must be called before releasing the session since nothing can be
+     * published on a released session
+     */
+    public synchronized void release(){
+        mReleased = true;
+        mHandler.removeCallbacks(mFlush);
+        mHandler.removeCallbacks(mQueueFlush);
+    }
+
+    /**
+     * Prints how many updates were asked and how many were actually published
+     * @param writer
+     *          The writer in which to print
+     */
+    public synchronized void dump(PrintWriter writer){
+        writer.println("Session publishes (requested/published)");
+        writer.println("  state    " + mStateRequests + "/" + mStatePublishes);
+        writer.println("  metadata " + mMetadataRequests + "/" + mMetadataPublishes);
+        writer.println("  queue    " + mQueueRequests + "/" + mQueuePublishes);
+        writer.println("  queue edit events " + mQueueEvents);
+        writer.println("  full queues after edits " + mQueueEditPublishes + ", " + mQueueEditItems + " items");
+        writer.println("  metadata payload last " + mLastMetadataBytes + " bytes, average "
+                + ((mMetadataPublishes > 0) ? mTotalMetadataBytes / mMetadataPublishes : 0) + " bytes");
+    }
+
+    private void scheduleFlush(){
+        if(!mFlushScheduled && !mReleased){
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlush, COALESCE_WINDOW_MS);
+        }
+    }
+
+    /**
+     * Publishes queue, metadata and state, in this order, skipping the values equal to the ones
+     * already published
+     */
+    private synchronized void flush(){
+        mFlushScheduled = false;
+        if(mReleased)
+            return;
+
+        if(mPendingQueue != null){
+            mPublishedQueue = Collections.unmodifiableList(new ArrayList<>(mPendingQueue));
+            mSession.setQueue(mPublishedQueue);
+            mQueuePublishes++;
+            if(mPendingQueueFromEdits){
+                mQueueEditPublishes++;
+                mQueueEditItems += mPublishedQueue.size();
+            }
+            mPendingQueue = null;
+            mPendingQueueFromEdits = false;
+        }
+
+        if(mPendingMetadata != null){
+            if(!isSameMetadata(mPendingMetadata, mPublishedMetadata)){
+                mSession.setMetadata(mPendingMetadata);
+                mMetadataPublishes++;
+                mLastMetadataBytes = getPayloadSize(mPendingMetadata);
+                mTotalMetadataBytes += mLastMetadataBytes;
+            }
+            mPublishedMetadata = mPendingMetadata;
+            mPendingMetadata = null;
+        }
+
+        if(mPendingState != null){
+            if(!isSameState(mPendingState, mPublishedState)){
+                mSession.setPlaybackState(mPendingState);
+                mStatePublishes++;
+                mPublishedState = mPendingState;
+            }
+            mPendingState = null;
+        }
+    }
+
+    /**
+     * While playing the controllers compute the position from the time of the last update, so a
+     * state built again a moment later has a new position and a new update time but shows the same
+     * thing. The positions are brought to the later of the two update times and compared within
+     * {@value SessionPublisher#POSITION_TOLERANCE_MS} milliseconds
+     * @return
+     *          True if the two states would look the same to a controller
+     */
+    static boolean isSameState(PlaybackStateCompat a, PlaybackStateCompat b){
+        if(b == null)
+            return false;
+        return a.getState() == b.getState()
+                && a.getPlaybackSpeed() == b.getPlaybackSpeed()
+                && isSamePosition(a, b)
+                && a.getActiveQueueItemId() == b.getActiveQueueItemId()
+                && a.getActions() == b.getActions()
+                && a.getErrorCode() == b.getErrorCode()
+                && TextUtils.equals(a.getErrorMessage(), b.getErrorMessage())
+                && a.getCustomActions().size() == b.getCustomActions().size();
+    }
+
+    /**
+     * Must be called on states with the same state and speed
+     * @return
+     *          True if a controller would show the same position for the two states
+     */
+    private static boolean isSamePosition(PlaybackStateCompat a, PlaybackStateCompat b){
+        if(a.getState() != PlaybackStateCompat.STATE_PLAYING
+                || a.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN
+                || b.getPosition() == PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN)
+            return a.getPosition() == b.getPosition();
+
+        long time = Math.max(a.getLastPositionUpdateTime(), b.getLastPositionUpdateTime());
+        float speed = a.getPlaybackSpeed();
+        long positionA = a.getPosition() + (long) ((time - a.getLastPositionUpdateTime()) * speed);
+        long positionB = b.getPosition() + (long) ((time - b.getLastPositionUpdateTime()) * speed);
+        return Math.abs(positionA - positionB) < POSITION_TOLERANCE_MS;
+    }
+
+    /**
+     * The metadata is rebuilt from the same queue item many times, so the song is the same if the
+     * Uri, the texts and the album art Uri are the same, the display icon is built from the latter
+     * @return
+     *          True if the two metadata describe the same song
+     */
+    private static boolean isSameMetadata(MediaMetadataCompat a, MediaMetadataCompat b){
+        if(b == null)
+            return false;
+        return TextUtils.equals(a.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI), b.getString(MediaMetadataCompat.METADATA_KEY_MEDIA_URI))
+                && TextUtils.equals(a.getText(MediaMetadataCompat.METADATA_KEY_TITLE), b.getText(MediaMetadataCompat.METADATA_KEY_TITLE))
+                && TextUtils.equals(a.getText(MediaMetadataCompat.METADATA_KEY_ARTIST), b.getText(MediaMetadataCompat.METADATA_KEY_ARTIST))
+                && TextUtils.equals(a.getText(MediaMetadataCompat.METADATA_KEY_ALBUM), b.getText(MediaMetadataCompat.METADATA_KEY_ALBUM))
+                && a.getLong(MediaMetadataCompat.METADATA_KEY_DURATION) == b.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)
+                && TextUtils.equals(a.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI), b.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI));
+    }
+
+    /**
+     * Measures the metadata as sent to a controller: the parcel of the values that are not
+     * bitmaps plus the pixels of the bitmaps, which the binder moves in shared memory when they
+     * are large so they would not be counted by the parcel
+     * @return
+     *          The size of the metadata in bytes
+     */
+    private static int getPayloadSize(MediaMetadataCompat metadata){
+
+        /* getBundle returns a copy, so the bitmaps can be removed from it */
+        Bundle bundle = metadata.getBundle();
+        int size = 0;
+        for(String key : metadata.keySet()){
+            Object value = bundle.get(key);
+            if(value instanceof Bitmap){
+                size += ((Bitmap) value).getByteCount();
+                bundle.remove(key);
+            }
+        }
+
+        Parcel parcel = Parcel.obtain();
+        bundle.writeToParcel(parcel, 0);
+        size += parcel.dataSize();
+        parcel.recycle();
+        return size;
+    }
+}
@@ -0,0 +1,141 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import java.util.Random;
+
+/**
+ * Holds the state of the playback session of {@link MusicService}.
+ * The queue, the current position, the shuffled order and the repeat mode are confined to the
+ * session thread, the one on which the {@link MediaSessionCompat.Callback} runs, so they must be
+ * read and written only from there: events coming from other threads, like the ones of the
+ * {@link PlaybackEngine}, are posted to the session thread before touching them.
+ * The only value shared between threads is the car connected flag, written when a client connects
+ * to the browser service and read by the session
+ */
+
+public class SessionState {
+
+    /* Confined to the session thread, the items have stable queue ids */
+    private final QueueBuffer mQueue = new QueueBuffer();
+    private int mQueuePosition = 0;
+
+    /* The order of the queue when the shuffle mode is enabled, null when it is disabled */
+    private ShuffleOrder mShuffleOrder;
+
+    /* One of the PlaybackStateCompat.REPEAT_MODE_ values */
+    private int mRepeatMode = PlaybackStateCompat.REPEAT_MODE_NONE;
+
+    /*
+    The order from which the random item action picks, apart from the shuffle mode so the action
+    does not enable it. Built again when the queue size changes or all the items were picked
+    */
+    private ShuffleOrder mRandomOrder;
+
+    /**
+     * @return
+     *          The current queue of the session, it can be modified. Every item added gets a new
+     *          queue id, so the id of the items added is ignored
+     */
+    QueueBuffer getQueue(){
+        return mQueue;
+    }
+
+    /**
+     * @return
+     *          The position in the queue of the item being played or selected
+     */
+    int getQueuePosition(){
+        return mQueuePosition;
+    }
+
+    void setQueuePosition(int queuePosition){
+        mQueuePosition = queuePosition;
+    }
+
+    /**
+     * @return
+     *          The order in which the queue is played, null if the shuffle mode is disabled
+     */
+    ShuffleOrder getShuffleOrder(){
+        return mShuffleOrder;
+    }
+
+    void setShuffleOrder(ShuffleOrder shuffleOrder){
+        mShuffleOrder = shuffleOrder;
+    }
+
+    /**
+     * @return
+     *          The repeat mode of the session, one of the PlaybackStateCompat.REPEAT_MODE_ values
+     */
+    int getRepeatMode(){
+        return mRepeatMode;
+    }
+
+    void setRepeatMode(int repeatMode){
+        mRepeatMode = repeatMode;
+    }
+
+    /**
+     * @return
+     *          The queue position of the item that follows the current one, in the shuffled order
+     *          if the shuffle mode is enabled. After the last item the first one is returned if a
+     *          repeat mode is set, {@value ShuffleOrder#INDEX_UNSET} otherwise. Repeat one is
+     *          treated as repeat all on purpose, see below
+     */
+    int getNextQueuePosition(){
+        int next;
+        if(mShuffleOrder != null)
+            next = mShuffleOrder.getNext(mQueuePosition);
+        else
+            next = (mQueuePosition + 1 < mQueue.size()) ? mQueuePosition + 1 : ShuffleOrder.INDEX_UNSET;
+
+        /*
+        With repeat one the engine loops the song, so the next item is only asked when the user
+        skips, in that case behave as repeat all
+        */
+        if(next == ShuffleOrder.INDEX_UNSET && !mQueue.isEmpty()
+                && mRepeatMode != PlaybackStateCompat.REPEAT_MODE_NONE)
+            next = (mShuffleOrder != null) ? mShuffleOrder.getFirst() : 0;
+        return next;
+    }
+
+    /**
+     * @return
+     *          The queue position of the item that precedes the current one, in the shuffled
+     *          order if the shuffle mode is enabled, {@value ShuffleOrder#INDEX_UNSET} if there is none
+     */
+    int getPreviousQueuePosition(){
+        if(mShuffleOrder != null)
+            return mShuffleOrder.getPrevious(mQueuePosition);
+        return (mQueuePosition > 0) ? mQueuePosition - 1 : ShuffleOrder.INDEX_UNSET;
+    }
+
+    /**
+     * Picks a random item of the queue to jump to once, without enabling the shuffle mode. The
+     * items are picked from a {@link ShuffleOrder} of their own, so no item is picked twice until
+     * all the others were
+     * @param random
+     *          The source of randomness used when the order is built
+     * @return
+     *          The queue position of the item picked, never the current one,
+     *          {@value ShuffleOrder#INDEX_UNSET} if the queue has less than two items
+     */
+    int getRandomQueuePosition(Random random){
+        if(mQueue.size() < 2)
+            return ShuffleOrder.INDEX_UNSET;
+
+        int next = ShuffleOrder.INDEX_UNSET;
+        if(mRandomOrder != null && mRandomOrder.getSize() == mQueue.size())
+            next = mRandomOrder.getNext(mQueuePosition);
+
+        /* A new round starting from the current item */
+        if(next == ShuffleOrder.INDEX_UNSET){
+            mRandomOrder = new ShuffleOrder(mQueue.size(), mQueuePosition, random);
+            next = mRandomOrder.getNext(mQueuePosition);
+        }
+        return next;
+    }
+}
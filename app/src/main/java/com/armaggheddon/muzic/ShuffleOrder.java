@@ -0,0 +1,237 @@
+package com.armaggheddon.muzic;
+
+import java.util.Random;
+
+/**
+ * The order in which the items of the queue are played when the shuffle mode is enabled.
+ * It is a permutation of the queue positions built with the Fisher-Yates algorithm, with the item
+ * being played when the shuffle is enabled as the first one, so every item is played once before
+ * the order ends. The permutation and its inverse are kept in two int arrays, so the next and the
+ * previous items are found in constant time and building the order for a queue of tens of
+ * thousands of songs takes a few milliseconds.
+ * When the queue changes the order is updated instead of being rebuilt, so the items already
+ * played stay before the current one
+ */
+
+public class ShuffleOrder {
+
+    /* Returned when there is no next or previous item */
+    public static final int INDEX_UNSET = -1;
+
+    /* mOrder[i] is the queue position played at step i, mSteps is its inverse */
+    private int[] mOrder;
+    private int[] mSteps;
+    private int mSize;
+
+    private final Random mRandom;
+
+    /**
+     * Builds a new random order
+     * @param size
+     *          The number of items in the queue
+     * @param first
+     *          The queue position to play first, usually the one being played
+     * @param random
+     *          The source of randomness
+     */
+    public ShuffleOrder(int size, int first, Random random){
+        mRandom = random;
+        mSize = size;
+        mOrder = new int[Math.max(size, 1)];
+        mSteps = new int[mOrder.length];
+
+        for(int i = 0; i < size; i++)
+            mOrder[i] = i;
+
+        if(size > 0){
+            swap(mOrder, 0, Math.max(0, Math.min(first, size - 1)));
+
+            /* Fisher-Yates on all the items after the first one */
+            for(int i = size - 1; i > 1; i--)
+                swap(mOrder, i, 1 + mRandom.nextInt(i));
+        }
+        updateSteps();
+    }
+
+    /**
+     * @param queuePosition
+     *          The position in the queue of the item being played
+     * @return
+     *          The queue position of the item to play next, {@value ShuffleOrder#INDEX_UNSET} if
+     *          all the items were played
+     */
+    public int getNext(int queuePosition){
+        if(queuePosition < 0 || queuePosition >= mSize)
+            return INDEX_UNSET;
+        int step = mSteps[queuePosition] + 1;
+        return (step < mSize) ? mOrder[step] : INDEX_UNSET;
+    }
+
+    /**
+     * @param queuePosition
+     *          The position in the queue of the item being played
+     * @return
+     *          The queue position of the item played before, {@value ShuffleOrder#INDEX_UNSET} if
+     *          it is the first one
+     */
+    public int getPrevious(int queuePosition){
+        if(queuePosition < 0 || queuePosition >= mSize)
+            return INDEX_UNSET;
+        int step = mSteps[queuePosition] - 1;
+        return (step >= 0) ? mOrder[step] : INDEX_UNSET;
+    }
+
+    /**
+     * @return
+     *          The queue position of the first item of the order, {@value ShuffleOrder#INDEX_UNSET}
+     *          if the queue is empty
+     */
+    public int getFirst(){
+        return (mSize > 0) ? mOrder[0] : INDEX_UNSET;
+    }
+
+    /**
+     * @return
+     *          The number of items in the order
+     */
+    public int getSize(){
+        return mSize;
+    }
+
+    /**
+     * Removes an item from the queue, the items after it in the queue move back by one position.
+     * The order of the remaining items does not change
+     * @param queuePosition
+     *          The position in the queue of the item removed
+     */
+    public void remove(int queuePosition){
+        if(queuePosition < 0 || queuePosition >= mSize)
+            return;
+
+        int step = mSteps[queuePosition];
+        System.arraycopy(mOrder, step + 1, mOrder, step, mSize - step - 1);
+        mSize--;
+
+        for(int i = 0; i < mSize; i++)
+            if(mOrder[i] > queuePosition)
+                mOrder[i]--;
+        updateSteps();
+    }
+
+    /**
+     * Adds items to the queue, the items at {@param queuePosition} and after it move forward by
+     * {@param count} positions. The new items are placed at random steps after the one being
+     * played, so they are played before the order ends
+     * @param queuePosition
+     *          The position in the queue of the first item added
+     * @param count
+     *          The number of items added
+     * @param currentPosition
+     *          The position in the queue of the item being played, before the insertion
+     */
+    public void insert(int queuePosition, int count, int currentPosition){
+        if(count <= 0)
+            return;
+        ensureCapacity(mSize + count);
+
+        int currentStep = getStep(currentPosition);
+        shiftPositions(queuePosition, count);
+
+        /* A random step after the current one, the end of the order included */
+        for(int i = 0; i < count; i++)
+            insertAtStep(currentStep + 1 + mRandom.nextInt(mSize - currentStep), queuePosition + i);
+        updateSteps();
+    }
+
+    /**
+     * Adds an item to the queue to be played right after the one being played, the items at
+     * {@param queuePosition} and after it move forward by one position
+     * @param queuePosition
+     *          The position in the queue of the item added
+     * @param currentPosition
+     *          The position in the queue of the item being played, before the insertion
+     */
+    public void insertNext(int queuePosition, int currentPosition){
+        ensureCapacity(mSize + 1);
+
+        int currentStep = getStep(currentPosition);
+        shiftPositions(queuePosition, 1);
+        insertAtStep(currentStep + 1, queuePosition);
+        updateSteps();
+    }
+
+    /**
+     * Moves an item of the queue, the items between the two positions shift by one. The order in
+     * which the items are played does not change
+     * @param from
+     *          The position in the queue of the item moved
+     * @param to
+     *          The new position in the queue of the item
+     */
+    public void move(int from, int to){
+        if(from == to || from < 0 || to < 0 || from >= mSize || to >= mSize)
+            return;
+
+        for(int i = 0; i < mSize; i++){
+            int position = mOrder[i];
+            if(position == from)
+                mOrder[i] = to;
+            else if(from < to && position > from && position <= to)
+                mOrder[i] = position - 1;
+            else if(to < from && position >= to && position < from)
+                mOrder[i] = position + 1;
+        }
+        updateSteps();
+    }
+
+    /**
+     * @return
+     *          The step at which the item at {@param queuePosition} is played, -1 if it is not valid
+     */
+    private int getStep(int queuePosition){
+        return (queuePosition >= 0 && queuePosition < mSize) ? mSteps[queuePosition] : -1;
+    }
+
+    /**
+     * Moves forward by {@param count} the queue positions from {@param queuePosition} on
+     */
+    private void shiftPositions(int queuePosition, int count){
+        for(int i = 0; i < mSize; i++)
+            if(mOrder[i] >= queuePosition)
+                mOrder[i] += count;
+    }
+
+    private void insertAtStep(int step, int queuePosition){
+        System.arraycopy(mOrder, step, mOrder, step + 1, mSize - step);
+        mOrder[step] = queuePosition;
+        mSize++;
+    }
+
+    /**
+     * Rebuilds the inverse of {@link ShuffleOrder#mOrder}
+     */
+    private void updateSteps(){
+        for(int i = 0; i < mSize; i++)
+            mSteps[mOrder[i]] = i;
+    }
+
+    private void ensureCapacity(int capacity){
+        if(capacity > mOrder.length){
+            int length = Math.max(capacity, mOrder.length * 2);
+            int[] order = new int[length];
+            System.arraycopy(mOrder, 0, order, 0, mSize);
+            mOrder = order;
+
+            /* The steps are read by the insertions before being rebuilt, they must be kept too */
+            int[] steps = new int[length];
+            System.arraycopy(mSteps, 0, steps, 0, mSize);
+            mSteps = steps;
+        }
+    }
+
+    private static void swap(int[] array, int i, int j){
+        int value = array[i];
+        array[i] = array[j];
+        array[j] = value;
+    }
+}
@@ -0,0 +1,99 @@
+package com.armaggheddon.muzic.library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values of a property of the songs, like the genre, in alphabetical order, each one with
+ * the {@link PositionSet} of the songs that have it. Built once when the songs are loaded and
+ * never modified
+ */
+
+final class Facet {
+
+    private final String[] values;
+    private final PositionSet[] sets;
+
+    /* The index of every value, so a filter finds its value without knowing the order */
+    private final Map<String, Integer> indexes;
+
+    private Facet(String[] values, PositionSet[] sets) {
+        this.values = values;
+        this.sets = sets;
+        indexes = new HashMap<>(values.length * 2);
+        for (int i = 0; i < values.length; i++)
+            indexes.put(values[i], i);
+    }
+
+    /**
+     * Groups the songs by value
+     *
+     * @param valueByPosition The value of every song by its position, null for the songs that have
+     *                        no value
+     * @return The facet with a set for every value
+     */
+    static Facet build(String[] valueByPosition) {
+
+        /* The positions are visited in ascending order, so every group is already sorted */
+        Map<String, int[]> groups = new HashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        for (int position = 0; position < valueByPosition.length; position++) {
+            String value = valueByPosition[position];
+            if (value == null)
+                continue;
+            int[] group = groups.get(value);
+            int count = (group != null) ? counts.get(value) : 0;
+            if (group == null || count == group.length) {
+                group = (group == null) ? new int[4] : Arrays.copyOf(group, group.length * 2);
+                groups.put(value, group);
+            }
+            group[count] = position;
+            counts.put(value, count + 1);
+        }
+
+        List<String> values = new ArrayList<>(groups.keySet());
+        Collections.sort(values, String.CASE_INSENSITIVE_ORDER);
+        PositionSet[] sets = new PositionSet[values.size()];
+        for (int i = 0; i < sets.length; i++) {
+            String value = values.get(i);
+            sets[i] = PositionSet.of(groups.get(value), counts.get(value), valueByPosition.length);
+        }
+        return new Facet(values.toArray(new String[0]), sets);
+    }
+
+    /**
+     * @return The number of values
+     */
+    int size() {
+        return values.length;
+    }
+
+    /**
+     * @param index The index of the value, from 0 to {@link Facet#size()} excluded
+     * @return The value
+     */
+    String getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * @param value A value of the songs, compared exactly
+     * @return The index of the value, -1 if no song has it
+     */
+    int indexOf(String value) {
+        Integer index = indexes.get(value);
+        return (index != null) ? index : -1;
+    }
+
+    /**
+     * @param index The index of the value, from 0 to {@link Facet#size()} excluded
+     * @return The songs that have the value
+     */
+    PositionSet getSet(int index) {
+        return sets[index];
+    }
+}
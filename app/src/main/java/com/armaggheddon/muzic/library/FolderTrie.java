@@ -0,0 +1,349 @@
+package com.armaggheddon.muzic.library;
+
+import android.net.Uri;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the songs by the directory in which they are stored, as a compressed path trie: a chain
+ * of directories with a single subdirectory and no songs is a single node, so the depth of the
+ * trie is the number of directories in which the path branches or has songs.
+ * Every node keeps the number of songs in it and below it, so a folder is shown with its count
+ * without visiting its subtree. A folder is found from its path in a time proportional to its
+ * depth, and songs are added and removed one at a time when a file changes, splitting and
+ * merging the nodes as needed.
+ * All the methods are synchronized since the trie is updated on the thread that observes the
+ * storage and read by the clients of the browser service
+ */
+
+final class FolderTrie {
+
+    /**
+     * A subfolder returned by {@link FolderTrie#getChildren(String, int, int)}
+     */
+    static final class Folder {
+        final String path;
+        final String name;
+        final int count;
+        final Uri albumArtUri;
+
+        private Folder(String path, String name, int count, Uri albumArtUri) {
+            this.path = path;
+            this.name = name;
+            this.count = count;
+            this.albumArtUri = albumArtUri;
+        }
+    }
+
+    /**
+     * A window of the children of a folder, the subfolders come before the songs
+     */
+    static final class Listing {
+        final List<Folder> folders = new ArrayList<>();
+        final List<SongItem> songs = new ArrayList<>();
+    }
+
+    private static final class Node {
+
+        /* One or more directories, the ones merged in this node */
+        String[] segments;
+        Node parent;
+
+        /* The full path, it does not change when the node is split or merged */
+        final String path;
+
+        /* Keyed by the first directory of the child */
+        final Map<String, Node> children = new HashMap<>();
+        final List<SongItem> songs = new ArrayList<>();
+
+        /* The songs in this node and in all the nodes below it */
+        int count = 0;
+
+        /* Sorted lazily when the node is listed, null or false after a change */
+        List<Node> sortedChildren;
+        boolean songsSorted = true;
+
+        Node(String[] segments, String path) {
+            this.segments = segments;
+            this.path = path;
+        }
+    }
+
+    private static final Comparator<Node> NODE_COMPARATOR = new Comparator<Node>() {
+        @Override
+        public int compare(Node o1, Node o2) {
+            return o1.path.compareToIgnoreCase(o2.path);
+        }
+    };
+
+    private static final Comparator<SongItem> SONG_COMPARATOR = new Comparator<SongItem>() {
+        @Override
+        public int compare(SongItem o1, SongItem o2) {
+            return o1.getTitle().compareToIgnoreCase(o2.getTitle());
+        }
+    };
+
+    private final Node root = new Node(new String[0], "");
+
+    /* The node of every song, so a song is removed without searching it */
+    private final Map<Long, Node> songNodes = new HashMap<>();
+
+    /**
+     * Adds a song, or moves it if it was already in the trie
+     *
+     * @param songItem The song
+     * @param path     The directory of the song, as directories separated by "/"
+     */
+    synchronized void put(SongItem songItem, String path) {
+        remove(songItem.getId());
+
+        String[] segments = split(path);
+        Node node = root;
+        int i = 0;
+        while (i < segments.length) {
+            Node child = node.children.get(segments[i]);
+
+            /* No directory in common, the rest of the path is a new node */
+            if (child == null) {
+                String[] rest = Arrays.copyOfRange(segments, i, segments.length);
+                child = new Node(rest, join(node.path, rest));
+                child.parent = node;
+                node.children.put(rest[0], child);
+                node.sortedChildren = null;
+                node = child;
+                break;
+            }
+
+            int matched = 1;
+            while (matched < child.segments.length && i + matched < segments.length
+                    && child.segments[matched].equals(segments[i + matched]))
+                matched++;
+
+            /* The path leaves the node in the middle, split it where they differ */
+            if (matched < child.segments.length)
+                child = splitNode(child, matched);
+            node = child;
+            i += matched;
+        }
+
+        node.songs.add(songItem);
+        node.songsSorted = false;
+        songNodes.put(songItem.getId(), node);
+        for (Node n = node; n != null; n = n.parent)
+            n.count++;
+    }
+
+    /**
+     * Removes a song, the folders left without songs are removed and the ones left with a single
+     * subfolder are merged with it
+     *
+     * @param songId The MediaStore id of the song
+     * @return True if the song was in the trie
+     */
+    synchronized boolean remove(long songId) {
+        Node node = songNodes.remove(songId);
+        if (node == null)
+            return false;
+
+        for (int i = 0; i < node.songs.size(); i++) {
+            if (node.songs.get(i).getId() == songId) {
+                node.songs.remove(i);
+                break;
+            }
+        }
+        for (Node n = node; n != null; n = n.parent)
+            n.count--;
+
+        while (node != root && node.count == 0) {
+            node.parent.children.remove(node.segments[0]);
+            node.parent.sortedChildren = null;
+            node = node.parent;
+        }
+        if (node != root && node.songs.isEmpty() && node.children.size() == 1)
+            mergeNode(node);
+        return true;
+    }
+
+    /**
+     * Lists a window of the children of a folder, the subfolders followed by the songs
+     *
+     * @param path   The path of the folder
+     * @param offset The index of the first child
+     * @param count  The number of children at most
+     * @return The children, null if there is no folder with the path
+     */
+    synchronized Listing getChildren(String path, int offset, int count) {
+        Node node = find(path);
+        if (node == null)
+            return null;
+
+        Listing listing = new Listing();
+        List<Node> children = getSortedChildren(node);
+        int end = (int) Math.min((long) offset + count, (long) children.size() + node.songs.size());
+        for (int i = Math.max(0, offset); i < end; i++) {
+            if (i < children.size()) {
+                Node child = children.get(i);
+                listing.folders.add(new Folder(child.path, join("", child.segments), child.count,
+                        getAlbumArtUri(child)));
+            } else {
+                listing.songs.add(getSortedSongs(node).get(i - children.size()));
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * @param path The path of the folder
+     * @return The number of subfolders and songs of the folder, 0 if there is no such folder
+     */
+    synchronized int getChildrenCount(String path) {
+        Node node = find(path);
+        return (node != null) ? node.children.size() + node.songs.size() : 0;
+    }
+
+    /**
+     * @param path The path of the folder
+     * @return A copy of the songs in the folder, not in its subfolders, in the order in which
+     * they are listed. Empty if there is no folder with the path
+     */
+    synchronized List<SongItem> getSongs(String path) {
+        Node node = find(path);
+        if (node == null)
+            return new ArrayList<>();
+        return new ArrayList<>(getSortedSongs(node));
+    }
+
+    /**
+     * @param path   The path of the folder
+     * @param songId The MediaStore id of the song
+     * @return The position of the song in {@link FolderTrie#getSongs(String)}, -1 if the song is
+     * not in the folder
+     */
+    synchronized int indexOf(String path, long songId) {
+        Node node = songNodes.get(songId);
+        if (node == null || node != find(path))
+            return -1;
+        List<SongItem> songs = getSortedSongs(node);
+        for (int i = 0; i < songs.size(); i++) {
+            if (songs.get(i).getId() == songId)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Finds a folder walking down from the root, one node for every step
+     */
+    private Node find(String path) {
+        String[] segments = split(path);
+        Node node = (segments.length == 0) ? getTop() : root;
+        int i = 0;
+        while (i < segments.length) {
+            Node child = node.children.get(segments[i]);
+            if (child == null || i + child.segments.length > segments.length)
+                return null;
+            for (int j = 1; j < child.segments.length; j++) {
+                if (!child.segments[j].equals(segments[i + j]))
+                    return null;
+            }
+            node = child;
+            i += child.segments.length;
+        }
+        return node;
+    }
+
+    private Node getTop() {
+        if (root.songs.isEmpty() && root.children.size() == 1)
+            return root.children.values().iterator().next();
+        return root;
+    }
+
+    /**
+     * Splits a node in two, the first one with the first {@param matched} directories
+     *
+     * @return The new node, parent of {@param node}
+     */
+    private Node splitNode(Node node, int matched) {
+        String[] head = Arrays.copyOfRange(node.segments, 0, matched);
+        Node middle = new Node(head, join(node.parent.path, head));
+        middle.parent = node.parent;
+        middle.count = node.count;
+        node.parent.children.put(head[0], middle);
+        node.parent.sortedChildren = null;
+
+        node.segments = Arrays.copyOfRange(node.segments, matched, node.segments.length);
+        node.parent = middle;
+        middle.children.put(node.segments[0], node);
+        return middle;
+    }
+
+    /**
+     * Merges a node with no songs into its only child
+     */
+    private void mergeNode(Node node) {
+        Node child = node.children.values().iterator().next();
+        String[] segments = new String[node.segments.length + child.segments.length];
+        System.arraycopy(node.segments, 0, segments, 0, node.segments.length);
+        System.arraycopy(child.segments, 0, segments, node.segments.length, child.segments.length);
+        child.segments = segments;
+        child.parent = node.parent;
+        node.parent.children.put(segments[0], child);
+        node.parent.sortedChildren = null;
+    }
+
+    private static List<Node> getSortedChildren(Node node) {
+        if (node.sortedChildren == null) {
+            List<Node> children = new ArrayList<>(node.children.values());
+            Collections.sort(children, NODE_COMPARATOR);
+            node.sortedChildren = children;
+        }
+        return node.sortedChildren;
+    }
+
+    private static List<SongItem> getSortedSongs(Node node) {
+        if (!node.songsSorted) {
+            Collections.sort(node.songs, SONG_COMPARATOR);
+            node.songsSorted = true;
+        }
+        return node.songs;
+    }
+
+    /**
+     * @return The album art of the first song found going down the first subfolders
+     */
+    private static Uri getAlbumArtUri(Node node) {
+        while (node.songs.isEmpty() && !node.children.isEmpty())
+            node = getSortedChildren(node).get(0);
+        return node.songs.isEmpty() ? null : getSortedSongs(node).get(0).getAlbumArtUri();
+    }
+
+    /**
+     * @return The directories of the path, without the empty ones
+     */
+    private static String[] split(String path) {
+        if (path == null)
+            return new String[0];
+        List<String> segments = new ArrayList<>();
+        for (String segment : path.split("/")) {
+            if (!segment.isEmpty())
+                segments.add(segment);
+        }
+        return segments.toArray(new String[0]);
+    }
+
+    private static String join(String parentPath, String[] segments) {
+        StringBuilder builder = new StringBuilder(parentPath);
+        for (String segment : segments) {
+            if (builder.length() > 0)
+                builder.append('/');
+            builder.append(segment);
+        }
+        return builder.toString();
+    }
+}
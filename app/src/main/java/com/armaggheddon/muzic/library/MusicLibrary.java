@@ -1,36 +1,61 @@
 package com.armaggheddon.muzic.library;
 
-import android.annotation.SuppressLint;
+import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
-import android.graphics.Rect;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.storage.StorageManager;
+import android.os.storage.StorageVolume;
 import android.provider.MediaStore;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.util.Log;
+import android.webkit.MimeTypeMap;
 
 import androidx.core.content.ContextCompat;
 
 import com.armaggheddon.muzic.ArtProvider;
 import com.armaggheddon.muzic.MusicService;
+import com.armaggheddon.muzic.PlayLog;
 import com.armaggheddon.muzic.R;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Holds all the information about the music data in the device storage, it handles the retrieving
@@ -61,7 +86,8 @@ public class MusicLibrary {
     public static final int FLAG_PLAYLIST = MediaBrowserCompat.MediaItem.FLAG_BROWSABLE | MediaBrowserCompat.MediaItem.FLAG_PLAYABLE;
 
     /*
-    Main categories of the media library, it is navigated from the BROWSER_ROOT ->(ALBUMS & ARTIST & SONGS)
+    Main categories of the media library, it is navigated from the BROWSER_ROOT ->(ALBUMS & ARTIST & SONGS & FOLDERS
+    & GENRES & DECADES & FORMATS & RECENTLY_ADDED & RECENTLY_PLAYED & MOST_PLAYED & PLAYLISTS)
     The EMPTY_ROOT is used for clients that are not allowed to connect to MusicService and are not
     in the white list
      */
@@ -70,6 +96,14 @@ public class MusicLibrary {
     public static final String ALBUMS = "Albums";
     public static final String ARTISTS = "Artists";
     public static final String SONGS = "Songs";
+    public static final String FOLDERS = "Folders";
+    public static final String GENRES = "Genres";
+    public static final String DECADES = "Decades";
+    public static final String FORMATS = "Formats";
+    public static final String RECENTLY_ADDED = "Recently added";
+    public static final String RECENTLY_PLAYED = "Recently played";
+    public static final String MOST_PLAYED = "Most played";
+    public static final String PLAYLISTS = "Playlists";
 
     /*
     Represents the first part of the id of the items, the full id is obtained merging song_ with the
@@ -79,295 +113,1883 @@ public class MusicLibrary {
     public static final String ALBUM_ = "album_";
     public static final String ARTIST_ = "artist_";
 
+    /*
+    The albums of an artist are browsed as "artistalbum_" + artist id + "_" + album id, they have
+    only the songs of the artist in the album
+    */
+    public static final String ARTIST_ALBUM_ = "artistalbum_";
+
+    /* A folder is browsed as "folder_" + its path, the directories are separated by "/" */
+    public static final String FOLDER_ = "folder_";
+
+    /*
+    A filter is browsed as "filter_" + one or more terms separated by "+", a term is the letter of
+    a facet followed by one of its values encoded with Uri.encode, es "filter_gRock+d1990s" for the
+    rock songs of the nineties. The id names the value itself, so it keeps its meaning when the
+    library is loaded again and the values change order
+    */
+    public static final String FILTER_ = "filter_";
+    public static final String FILTER_SEPARATOR = "+";
+
+    /* A playlist of the user is browsed as "playlist_" + its id in PlaylistStore */
+    public static final String PLAYLIST_ = "playlist_";
+    public static final char FACET_GENRE = 'g';
+    public static final char FACET_DECADE = 'd';
+    public static final char FACET_FORMAT = 'f';
+
     /* Extra arguments that are used to set more information about an item */
     public static final String DURATION_ARGS_EXTRA = "duration";
     public static final String ALBUM_ART_URI_ARGS_EXTRA = "album_art_uri";
 
-    /* URI string to the images used for the main categories */
-    private static final String IC_ALBUM = "android.resource://com.alebr.muzic/drawable/ic_album";
-    private static final String IC_ARTIST = "android.resource://com.alebr.muzic/drawable/ic_artist";
-    private static final String IC_SONG = "android.resource://com.alebr.muzic/drawable/ic_audiotrack";
+    /* The counters of the songs listed by RECENTLY_PLAYED and MOST_PLAYED, see PlayLog.Stats */
+    public static final String PLAY_COUNT_ARGS_EXTRA = "play_count";
+    public static final String SKIP_COUNT_ARGS_EXTRA = "skip_count";
+    public static final String LAST_PLAYED_ARGS_EXTRA = "last_played";
+
+    /* Names of the drawables used for the main categories, see getIconUri(String) */
+    private static final String IC_ALBUM = "ic_album";
+    private static final String IC_ARTIST = "ic_artist";
+    private static final String IC_SONG = "ic_audiotrack";
+    private static final String IC_FOLDER = "ic_folder";
+    private static final String IC_PLAYLIST = "ic_baseline_queue_music";
+
+    /*
+    The number of children lists kept, enough for the main categories of both kinds of client and
+    the albums and artists opened recently
+    */
+    private static final int MAX_CACHED_CHILDREN = 64;
+
+    /* The volume with all the songs before Q, the volumes are queried one by one from Q */
+    private static final String VOLUME_EXTERNAL = "external";
+
+    /* The volumes queried at the same time when the songs are loaded */
+    private static final int MAX_LOADER_THREADS = 4;
+
+    /* The songs listed by the recent categories when the client does not ask for a page */
+    private static final int MAX_RECENT_SONGS = 100;
+
+    /* The columns read for every song and the songs read, see initLibrary */
+    private static final String[] PROJECTION = buildProjection();
+    private static final String SELECTION = MediaStore.Audio.Media.IS_MUSIC + "=1";
+
+    /* Album art path to build the path to the album art */
+    private static final String ALBUM_ART_URI = "content://media/external/audio/albumart";
+
+    /*
+    The songs, the albums, the artists and their indexes, replaced as a whole every time the songs
+    are loaded. Every call reads it once, so it never mixes the songs of two loads
+    */
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    /* Counted down once the songs are loaded the first time, see getSnapshot() */
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    /*
+    The songs by the date they were added, it follows the changes of the storage like the folders,
+    and the songs played
+    */
+    private final RecentlyAdded recentlyAdded = new RecentlyAdded();
+    private final PlayLog playLog;
+
+    /*
+    The songs by directory. Unlike the other categories it follows the changes of the storage,
+    song by song, after the songs are loaded
+    */
+    private final FolderTrie folders = new FolderTrie();
+
+    /*
+    The songs read from every volume by name, so a volume mounted or removed is read or dropped
+    alone. Used only on the observer thread, like the genres read before R
+    */
+    private final Map<String, VolumeScan> volumes = new HashMap<>();
+    private Map<Long, String> genres = new HashMap<>();
+
+    /* The playlists of the user, written on the observer thread */
+    private final PlaylistStore playlists;
+
+    /* The context used to retrieve a ContentProvider */
+    private final Context context;
+
+    /*
+    The thread on which the changes of the storage are read and applied to the folders, and the
+    playlists are written
+    */
+    private final HandlerThread observerThread;
+    private final Handler observerHandler;
+    private final ContentObserver songsObserver;
+    private final BroadcastReceiver volumesReceiver;
+
+    /*
+    Incremented every time the songs are loaded, after the snapshot is replaced, the children
+    lists built for an older generation are no longer valid
+    */
+    private volatile int generation = 0;
+
+    /*
+    The children lists already built, keyed by client kind and parentId, with the generation
+    for which they were built. Guarded by itself
+    */
+    private final Map<String, List<MediaBrowserCompat.MediaItem>> childrenCache =
+            new LinkedHashMap<String, List<MediaBrowserCompat.MediaItem>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<MediaBrowserCompat.MediaItem>> eldest) {
+                    return size() > MAX_CACHED_CHILDREN;
+                }
+            };
+    private int childrenCacheGeneration = -1;
+
+    /* The default bitmap used if the media has no album art */
+    private Bitmap defaultBitmap;
+
+    /* The default bitmap scaled by loadDisplayIcon */
+    private Bitmap defaultIcon;
+
+    /**
+     * Constructor of the class, it starts loading the songs on the observer thread, see
+     * {@link MusicLibrary#isLoaded()}, and loads the {@link MusicLibrary#defaultBitmap}
+     *
+     * @param context      The context used to retrieve the data from the memory because
+     *                     we need a contentResolver
+     * @param playLog      The songs played, listed by {@value MusicLibrary#RECENTLY_PLAYED} and
+     *                     {@value MusicLibrary#MOST_PLAYED}
+     */
+    public MusicLibrary(Context context, PlayLog playLog) {
+        this.context = context;
+        this.playLog = playLog;
+        initDefaultBitmap(ContextCompat.getDrawable(context, R.drawable.ic_default_album_art_with_bg));
+
+        observerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        observerThread.start();
+        observerHandler = new Handler(observerThread.getLooper());
+        songsObserver = new ContentObserver(observerHandler) {
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                if (uri != null)
+                    updateSong(uri);
+            }
+        };
+
+        /*
+        The songs are read on the observer thread, so the service is created without waiting for
+        the storage. Everything posted to the observer thread after this runs once they are loaded
+        */
+        observerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    initLibrary();
+                } finally {
+                    loaded.countDown();
+                }
+            }
+        });
+
+        /* A volume mounted or removed, as an sd card, changes only the songs in that volume */
+        volumesReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                String action = intent.getAction();
+                updateVolume(getVolumeName(intent),
+                        Intent.ACTION_MEDIA_MOUNTED.equals(action) || Intent.ACTION_MEDIA_SCANNER_FINISHED.equals(action));
+            }
+        };
+        IntentFilter volumesFilter = new IntentFilter();
+        volumesFilter.addAction(Intent.ACTION_MEDIA_MOUNTED);
+        volumesFilter.addAction(Intent.ACTION_MEDIA_UNMOUNTED);
+        volumesFilter.addAction(Intent.ACTION_MEDIA_EJECT);
+        volumesFilter.addAction(Intent.ACTION_MEDIA_REMOVED);
+        volumesFilter.addAction(Intent.ACTION_MEDIA_BAD_REMOVAL);
+        volumesFilter.addAction(Intent.ACTION_MEDIA_SCANNER_FINISHED);
+        volumesFilter.addDataScheme("file");
+        context.registerReceiver(volumesReceiver, volumesFilter, null, observerHandler);
+
+        /* The first time the database is opened the playlists of the MediaStore are copied in it */
+        playlists = new PlaylistStore(context);
+        observerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (playlists.open() && playlists.importMediaStore(MusicLibrary.this.context.getContentResolver()) > 0)
+                    generation++;
+            }
+        });
+    }
+
+    /**
+     * Stops following the changes of the storage, called when the service is destroyed
+     */
+    public void release() {
+        context.unregisterReceiver(volumesReceiver);
+
+        /* The observer is registered on the observer thread once the songs are loaded */
+        observerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                context.getContentResolver().unregisterContentObserver(songsObserver);
+                playlists.close();
+            }
+        });
+        observerThread.quitSafely();
+    }
+
+    /**
+     * @return True once the songs are loaded the first time. Before that the calls that read the
+     * songs wait for them, so the main thread should check this first
+     */
+    public boolean isLoaded() {
+        return loaded.getCount() == 0;
+    }
+
+    /**
+     * Runs a task once the songs are loaded the first time, used to answer a client that asked
+     * for its children before
+     *
+     * @param task    The task
+     * @param handler The handler of the thread on which the task runs
+     */
+    public void runWhenLoaded(final Runnable task, final Handler handler) {
+        if (isLoaded()) {
+            handler.post(task);
+            return;
+        }
+
+        /* The songs are loaded by the first task of the observer thread, this one runs after it */
+        observerHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                handler.post(task);
+            }
+        });
+    }
+
+    /**
+     * @return The songs of the last load, waiting for the first load if it is not done yet. Every
+     * public method reads it once, so the lists and the indexes it uses are of the same load
+     */
+    private Snapshot getSnapshot() {
+        try {
+            loaded.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Retrieves the information used for the playback from the storage using a ContentResolver.
+     * Builds the projection array for the elements to retrieve and a selection string to restrict
+     * the search only on the elements that are flagged as music.
+     * Every external volume is queried on its own worker, see
+     * {@link MusicLibrary#scanVolumes(Collection)}, and the library is built from all of them.
+     * Runs on the observer thread, then the changes of every volume read are followed
+     * <p>
+     * Retrieves the data for all the songs in the device storage
+     * -ID : unique identifier of the song
+     * -TITLE : the title of the song
+     * -ALBUM : the album name of the song
+     * -ARTIST : the artist name of the song
+     * -ARTIST_ID : unique identifier of the artist
+     * -ALBUM_ID : unique identifier of the album
+     * -TRACK : the position of the song in the album
+     * -DURATION : the length in milliseconds of the song
+     * -YEAR, MIME_TYPE and GENRE from R : the values of the facets of the song
+     * -DATE_ADDED : the time in seconds at which the song was added to the storage
+     * -VOLUME_NAME and RELATIVE_PATH, or DATA before Q : the directory of the song
+     * <p>
+     * The column {@value android.provider.MediaStore.Audio.Media#DURATION}
+     * was added back in API level 1, the columns so exists before Q, as shown
+     * in the link below despite on what the warning it shows
+     *
+     * @see "https://github.com/AndroidSDKSources/android-sdk-sources-for-api-level-1/blob/c77731af5068b85a350e768757d229cae00f8098/android/provider/MediaStore.java#L292"
+     */
+    private void initLibrary() {
+        volumes.putAll(scanVolumes(getVolumeNames()));
+
+        /* The folders and the songs recently added follow the storage, they are filled once here */
+        List<SongItem> songItems = new ArrayList<>();
+        Map<Long, Long> datesAdded = new HashMap<>();
+        for (VolumeScan scan : volumes.values()) {
+            for (int i = 0; i < scan.songs.size(); i++) {
+                SongItem songItem = scan.songs.get(i);
+                folders.put(songItem, scan.folders.get(i));
+                songItems.add(songItem);
+                datesAdded.put(songItem.getId(), scan.datesAdded.get(i));
+            }
+        }
+        recentlyAdded.reset(songItems, datesAdded);
+        buildLibrary();
+        observeVolumes();
+    }
+
+    /**
+     * Follows the changes of the songs of the volumes read. The changes of a song are notified on
+     * the uri of its own volume, so the observer is registered on every volume and registered
+     * again when a volume is mounted or removed. Runs on the observer thread
+     */
+    private void observeVolumes() {
+        ContentResolver contentResolver = context.getContentResolver();
+        contentResolver.unregisterContentObserver(songsObserver);
+        for (String volumeName : volumes.keySet()) {
+            contentResolver.registerContentObserver(
+                    MediaStore.Audio.Media.getContentUri(volumeName), true, songsObserver);
+        }
+    }
+
+    /**
+     * @return The columns described in {@link MusicLibrary#initLibrary()}. RELATIVE_PATH is
+     * relative to its volume, so the volume is the first directory of a folder
+     */
+    @SuppressWarnings("deprecation")
+    private static String[] buildProjection() {
+        List<String> projection = new ArrayList<>(Arrays.asList(
+                MediaStore.Audio.Media._ID,
+                MediaStore.Audio.Media.TITLE,
+                MediaStore.Audio.Media.ALBUM,
+                MediaStore.Audio.Media.ARTIST,
+                MediaStore.Audio.Media.ARTIST_ID,
+                MediaStore.Audio.Media.ALBUM_ID,
+                MediaStore.Audio.Media.TRACK,
+                MediaStore.Audio.Media.DURATION,
+                MediaStore.Audio.Media.YEAR,
+                MediaStore.Audio.Media.MIME_TYPE,
+                MediaStore.Audio.Media.DATE_ADDED));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            projection.add(MediaStore.Audio.Media.VOLUME_NAME);
+            projection.add(MediaStore.Audio.Media.RELATIVE_PATH);
+        } else {
+            projection.add(MediaStore.Audio.Media.DATA);
+        }
+
+        /* Before R the genres are read from their own table, see loadGenres */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R)
+            projection.add(MediaStore.Audio.Media.GENRE);
+        return projection.toArray(new String[0]);
+    }
+
+    /**
+     * The indexes of the columns of {@link MusicLibrary#PROJECTION} in a cursor, read once and
+     * used for every row
+     */
+    private static final class SongColumns {
+
+        private final int idCol;
+        private final int titleCol;
+        private final int artistIdCol;
+        private final int artistCol;
+        private final int albumCol;
+        private final int albumIdCol;
+        private final int trackCol;
+        private final int durationCol;
+        private final int volumeCol;
+        private final int relativePathCol;
+        private final int dataCol;
+        private final int yearCol;
+        private final int mimeTypeCol;
+        private final int genreCol;
+        private final int dateAddedCol;
+
+        @SuppressWarnings("deprecation")
+        private SongColumns(Cursor cursor) {
+            idCol = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
+            titleCol = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            artistIdCol = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST_ID);
+            artistCol = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            albumCol = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
+            albumIdCol = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            trackCol = cursor.getColumnIndex(MediaStore.Audio.Media.TRACK);
+            durationCol = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            volumeCol = cursor.getColumnIndex(MediaStore.Audio.Media.VOLUME_NAME);
+            relativePathCol = cursor.getColumnIndex(MediaStore.Audio.Media.RELATIVE_PATH);
+            dataCol = cursor.getColumnIndex(MediaStore.Audio.Media.DATA);
+            yearCol = cursor.getColumnIndex(MediaStore.Audio.Media.YEAR);
+            mimeTypeCol = cursor.getColumnIndex(MediaStore.Audio.Media.MIME_TYPE);
+            genreCol = cursor.getColumnIndex(MediaStore.Audio.Media.GENRE);
+            dateAddedCol = cursor.getColumnIndex(MediaStore.Audio.Media.DATE_ADDED);
+        }
+
+        /**
+         * @return The song of the current row of the cursor
+         */
+        private SongItem readSong(Cursor cursor) {
+            long id = cursor.getLong(idCol);
+            long albumId = cursor.getLong(albumIdCol);
+
+            /* Build the songUri (the song itself to play) and the albumArtUri (the image of the album) */
+            Uri songUri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
+            Uri albumArtUri = ContentUris.withAppendedId(Uri.parse(ALBUM_ART_URI), albumId);
+
+            return new SongItem(
+                    id,
+                    cursor.getString(titleCol),
+                    cursor.getString(artistCol),
+                    cursor.getLong(artistIdCol),
+                    cursor.getString(albumCol),
+                    albumId,
+                    cursor.getInt(trackCol),
+                    cursor.getLong(durationCol),
+                    songUri,
+                    albumArtUri);
+        }
+
+        /**
+         * @return The values of the facets of the song of the current row, the genre, the decade
+         * and the format, each one null if it is not known. When the cursor has no genre column
+         * the genre is taken later from {@link MusicLibrary#loadGenres(ContentResolver)}
+         */
+        private String[] readFacets(Cursor cursor) {
+            int year = cursor.getInt(yearCol);
+            String decade = (year > 0) ? (year / 10 * 10) + "s" : null;
+            return new String[]{
+                    (genreCol != -1) ? cleanGenre(cursor.getString(genreCol)) : null,
+                    decade,
+                    getFormat(cursor.getString(mimeTypeCol))};
+        }
+
+        /**
+         * @return The directory of the song of the current row, as directories separated by "/"
+         */
+        private String readFolder(Cursor cursor) {
+            if (dataCol != -1) {
+                String data = cursor.getString(dataCol);
+                int end = (data != null) ? data.lastIndexOf('/') : -1;
+                return (end > 0) ? data.substring(0, end) : "";
+            }
+            String relativePath = cursor.getString(relativePathCol);
+            return cursor.getString(volumeCol) + "/" + ((relativePath != null) ? relativePath : "");
+        }
+    }
+
+    /**
+     * Reads again a song that changed in the storage and moves it in the folders and in the songs
+     * recently added, or removes it if it is no longer there. The other categories keep the songs
+     * loaded at start
+     *
+     * @param uri The uri of the change, only the changes of a single song are applied
+     */
+    private void updateSong(Uri uri) {
+        long songId;
+        try {
+            songId = ContentUris.parseId(uri);
+        } catch (NumberFormatException | UnsupportedOperationException e) {
+            return;
+        }
+        if (songId < 0)
+            return;
+
+        /* The song is read from the volume of the change, before Q there is a single volume */
+        String volumeName = VOLUME_EXTERNAL;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            try {
+                volumeName = MediaStore.getVolumeName(uri);
+            } catch (IllegalArgumentException e) {
+                return;
+            }
+        }
+
+        try (Cursor cursor = context.getContentResolver().query(
+                MediaStore.Audio.Media.getContentUri(volumeName),
+                PROJECTION,
+                MediaStore.Audio.Media._ID + "=? AND " + SELECTION,
+                new String[]{String.valueOf(songId)},
+                null)) {
+            if (cursor == null)
+                return;
+            if (cursor.moveToFirst()) {
+                SongColumns columns = new SongColumns(cursor);
+                SongItem songItem = columns.readSong(cursor);
+                folders.put(songItem, columns.readFolder(cursor));
+                recentlyAdded.put(songItem, cursor.getLong(columns.dateAddedCol));
+            } else {
+                boolean removed = folders.remove(songId);
+                removed |= recentlyAdded.remove(songId);
+                if (!removed)
+                    return;
+            }
+        }
+
+        /* The songs changed, the children lists built before must be built again */
+        generation++;
+    }
+
+    /**
+     * The songs of a volume of the external storage read by
+     * {@link MusicLibrary#scanVolume(ContentResolver, String)}, kept so the library is built again
+     * without querying the volume when another volume is mounted or removed
+     */
+    private static final class VolumeScan {
+        final List<SongItem> songs = new ArrayList<>();
+        final List<String> folders = new ArrayList<>();
+        final List<String[]> facets = new ArrayList<>();
+        final List<Long> datesAdded = new ArrayList<>();
+    }
+
+    /**
+     * The songs, the albums, the artists and all the indexes built from them by a load of the
+     * volumes. Never modified once built, a load builds a new one that is published as a whole,
+     * so a reader that reads {@link MusicLibrary#snapshot} once sees the songs and the indexes
+     * of the same load
+     */
+    private static final class Snapshot {
+
+        /* Published until the songs are loaded the first time */
+        static final Snapshot EMPTY = new Snapshot(new ArrayList<SongItem>(),
+                new ArrayList<AlbumItem>(), new ArrayList<ArtistItem>(), new HashMap<Long, String[]>());
+
+        /* All the songs, the albums and the artists, sorted alphabetically */
+        final List<SongItem> songs;
+        final List<AlbumItem> albums;
+        final List<ArtistItem> artists;
+
+        /*
+        Indexes built once the songs are sorted, so every level of the library is built and played
+        in a time proportional to its children without looking at the other songs:
+            -songPositions: the position in "songs" of every song id
+            -albumSongs: the positions of the songs of every album in track order
+            -artistSongs: the positions of the songs of every artist, grouped by album with the
+             albums in alphabetical order, and in track order within an album
+            -artistAlbumStarts: for every artist the index in its artistSongs where each album
+             starts, followed by the length of artistSongs
+            -albumIndexes, artistIndexes: for every position in "songs" the index of the song in
+             albumSongs and artistSongs, so a song is found in the queue of its parent at once
+        */
+        final Map<Long, Integer> songPositions;
+        final Map<Long, int[]> albumSongs;
+        final Map<Long, int[]> artistSongs;
+        final Map<Long, int[]> artistAlbumStarts;
+        final int[] albumIndexes;
+        final int[] artistIndexes;
+
+        /*
+        The QueueItem of every position in "songs", built the first time the song is put in a
+        queue and shared by all the queues after, so a long queue is made of items already built
+        */
+        final MediaSessionCompat.QueueItem[] queueItems;
+
+        /*
+        The genre, decade and format of the songs, with a PositionSet of the songs for every value
+        so the filters are intersections of sets instead of scans of "songs"
+        */
+        final Facet genreFacet;
+        final Facet decadeFacet;
+        final Facet formatFacet;
+
+        /**
+         * Builds the indexes of the songs. The positions are sorted once by album and track, then
+         * split by album and by artist so every group keeps that order
+         *
+         * @param songs       The songs sorted
+         * @param albums      The albums sorted
+         * @param artists     The artists sorted
+         * @param facetValues The values read by SongColumns#readFacets for every song id
+         */
+        Snapshot(final List<SongItem> songs, List<AlbumItem> albums, List<ArtistItem> artists,
+                 Map<Long, String[]> facetValues) {
+            this.songs = songs;
+            this.albums = albums;
+            this.artists = artists;
+
+            Map<Long, Integer> positions = new HashMap<>(songs.size() * 2);
+            Integer[] order = new Integer[songs.size()];
+            for (int i = 0; i < songs.size(); i++) {
+                positions.put(songs.get(i).getId(), i);
+                order[i] = i;
+            }
+
+            /* Albums by name, the songs of an album by track and then by title like the songs list */
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    SongItem s1 = songs.get(o1);
+                    SongItem s2 = songs.get(o2);
+                    int result = compareNames(s1.getAlbum(), s2.getAlbum());
+                    if (result == 0)
+                        result = Long.compare(s1.getAlbumId(), s2.getAlbumId());
+                    if (result == 0)
+                        result = Integer.compare(s1.getTrack(), s2.getTrack());
+                    return (result != 0) ? result : Integer.compare(o1, o2);
+                }
+            });
+
+            albumIndexes = new int[songs.size()];
+            artistIndexes = new int[songs.size()];
+            albumSongs = groupPositions(songs, order, true, albumIndexes);
+            artistSongs = groupPositions(songs, order, false, artistIndexes);
+
+            /* The albums of an artist are contiguous in its songs, find where each one starts */
+            artistAlbumStarts = new HashMap<>(artistSongs.size() * 2);
+            for (Map.Entry<Long, int[]> entry : artistSongs.entrySet()) {
+                int[] slice = entry.getValue();
+                int[] starts = new int[slice.length + 1];
+                int count = 0;
+                for (int i = 0; i < slice.length; i++) {
+                    if (i == 0 || songs.get(slice[i]).getAlbumId() != songs.get(slice[i - 1]).getAlbumId())
+                        starts[count++] = i;
+                }
+                starts[count++] = slice.length;
+                artistAlbumStarts.put(entry.getKey(), Arrays.copyOf(starts, count));
+            }
+
+            songPositions = positions;
+            queueItems = new MediaSessionCompat.QueueItem[songs.size()];
+
+            /* The facets of the songs, by their position in the sorted songs */
+            String[][] valuesByPosition = new String[3][songs.size()];
+            for (int i = 0; i < songs.size(); i++) {
+                String[] values = facetValues.get(songs.get(i).getId());
+                if (values == null)
+                    continue;
+                for (int facet = 0; facet < valuesByPosition.length; facet++)
+                    valuesByPosition[facet][i] = values[facet];
+            }
+            genreFacet = Facet.build(valuesByPosition[0]);
+            decadeFacet = Facet.build(valuesByPosition[1]);
+            formatFacet = Facet.build(valuesByPosition[2]);
+        }
+
+        /**
+         * Finds the songs of an album of an artist in the songs of the artist, looking only at the
+         * albums of the artist
+         *
+         * @param artistId The id of the artist
+         * @param albumId  The id of the album
+         * @return The start and the end, excluded, of the album in the songs of the artist, null
+         * if the artist has no songs in the album
+         */
+        int[] getArtistAlbumRange(long artistId, long albumId) {
+            int[] slice = artistSongs.get(artistId);
+            int[] starts = artistAlbumStarts.get(artistId);
+            if (slice == null || starts == null)
+                return null;
+            for (int i = 0; i < starts.length - 1; i++) {
+                if (songs.get(slice[starts[i]]).getAlbumId() == albumId)
+                    return new int[]{starts[i], starts[i + 1]};
+            }
+            return null;
+        }
+
+        /**
+         * @param parentId {@value MusicLibrary#SONGS} for the whole library, or the id of an
+         *                 album, of an artist or of the album of an artist
+         * @return The positions in {@link Snapshot#songs} of the songs of the parent in the
+         * order in which they are played, null for the whole library or if the parent is unknown
+         */
+        int[] getSlice(String parentId) {
+            if (parentId.startsWith(ALBUM_))
+                return albumSongs.get(parseId(parentId, ALBUM_));
+            if (parentId.startsWith(ARTIST_))
+                return artistSongs.get(parseId(parentId, ARTIST_));
+
+            long[] ids = parseArtistAlbumId(parentId);
+            int[] range = (ids != null) ? getArtistAlbumRange(ids[0], ids[1]) : null;
+            if (range == null)
+                return null;
+            return Arrays.copyOfRange(artistSongs.get(ids[0]), range[0], range[1]);
+        }
+
+        /**
+         * @param letter One of the FACET_ letters
+         * @return The facet, null if the letter is not known
+         */
+        Facet getFacet(char letter) {
+            switch (letter) {
+                case FACET_GENRE:
+                    return genreFacet;
+                case FACET_DECADE:
+                    return decadeFacet;
+                case FACET_FORMAT:
+                    return formatFacet;
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Intersects the sets of the terms of a filter
+         *
+         * @param filterId The id of the filter as described in {@link MusicLibrary#FILTER_}
+         * @return The songs that match all the terms, null if the filter is not valid or one of
+         * its values no longer exists
+         */
+        PositionSet getFilterSet(String filterId) {
+            String[] terms = filterId.substring(FILTER_.length()).split("\\" + FILTER_SEPARATOR);
+            PositionSet[] sets = new PositionSet[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                Facet facet = (terms[i].length() > 1) ? getFacet(terms[i].charAt(0)) : null;
+                if (facet == null)
+                    return null;
+
+                /* The value is no longer in the library, es the last song of a genre was deleted */
+                int index = facet.indexOf(Uri.decode(terms[i].substring(1)));
+                if (index < 0)
+                    return null;
+                sets[i] = facet.getSet(index);
+            }
+            return PositionSet.and(sets);
+        }
+
+        /**
+         * Returns the QueueItem of a song, built once. The items are never modified, the queue of
+         * the session wraps their description in new items with a queue id
+         *
+         * @param position The position of the song in {@link Snapshot#songs}
+         * @return The QueueItem
+         */
+        MediaSessionCompat.QueueItem getQueueItem(int position) {
+            MediaSessionCompat.QueueItem queueItem = queueItems[position];
+            if (queueItem == null) {
+                queueItem = buildSongQueueItem(songs.get(position));
+                queueItems[position] = queueItem;
+            }
+            return queueItem;
+        }
+
+        /**
+         * Builds the QueueItems of a slice of {@link Snapshot#songs} leaving out one song
+         *
+         * @param slice The positions of the songs, can be null
+         * @param skip  The position of the song to leave out, null to keep all of them
+         * @return The QueueItems in the same order of the slice
+         */
+        List<MediaSessionCompat.QueueItem> buildQueue(int[] slice, Integer skip) {
+            if (slice == null)
+                return new ArrayList<>();
+            List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(slice.length);
+            for (int position : slice) {
+                if (skip == null || position != skip)
+                    queueItems.add(getQueueItem(position));
+            }
+            return queueItems;
+        }
+
+        /**
+         * @return The QueueItems of all the songs
+         */
+        List<MediaSessionCompat.QueueItem> buildSongsQueue() {
+
+            /* The session assigns a stable queue id when the items are added to its queue */
+            List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(songs.size());
+            for (int position = 0; position < songs.size(); position++)
+                queueItems.add(getQueueItem(position));
+            return queueItems;
+        }
+    }
+
+    /**
+     * @return The names of the external volumes mounted, a single volume with all the songs
+     * before Q
+     */
+    private Set<String> getVolumeNames() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q)
+            return MediaStore.getExternalVolumeNames(context);
+        return Collections.singleton(VOLUME_EXTERNAL);
+    }
+
+    /**
+     * Queries the volumes in parallel, each one on its own worker, so the songs are read in the
+     * time of the largest volume instead of the sum of all of them. Before R the genres are read
+     * at the same time on another worker
+     *
+     * @param volumeNames The volumes to read
+     * @return The songs of every volume read, the volumes that can not be read are left out
+     */
+    private Map<String, VolumeScan> scanVolumes(Collection<String> volumeNames) {
+        Map<String, VolumeScan> scans = new HashMap<>();
+        if (volumeNames.isEmpty())
+            return scans;
+
+        final ContentResolver contentResolver = context.getContentResolver();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(volumeNames.size() + 1, MAX_LOADER_THREADS));
+        try {
+            Future<Map<Long, String>> genresResult = null;
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+                genresResult = executor.submit(new Callable<Map<Long, String>>() {
+                    @Override
+                    public Map<Long, String> call() {
+                        return loadGenres(contentResolver);
+                    }
+                });
+            }
+
+            Map<String, Future<VolumeScan>> results = new HashMap<>();
+            for (final String volumeName : volumeNames) {
+                results.put(volumeName, executor.submit(new Callable<VolumeScan>() {
+                    @Override
+                    public VolumeScan call() {
+                        return scanVolume(contentResolver, volumeName);
+                    }
+                }));
+            }
+
+            for (Map.Entry<String, Future<VolumeScan>> entry : results.entrySet()) {
+                try {
+                    VolumeScan scan = entry.getValue().get();
+                    if (scan != null)
+                        scans.put(entry.getKey(), scan);
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "scanVolumes: error while loading the volume " + entry.getKey(), e);
+                }
+            }
+            if (genresResult != null) {
+                try {
+                    genres = genresResult.get();
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "scanVolumes: error while loading the genres", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdown();
+        }
+        return scans;
+    }
+
+    /**
+     * Reads the songs of a volume, described in {@link MusicLibrary#initLibrary()}
+     *
+     * @param contentResolver The resolver used to query the volume
+     * @param volumeName      The name of the volume
+     * @return The songs of the volume, null if it can not be queried
+     */
+    private static VolumeScan scanVolume(ContentResolver contentResolver, String volumeName) {
+        try (Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Media.getContentUri(volumeName),
+                PROJECTION,
+                SELECTION,
+                null,
+                null)) {
+            if (cursor == null)
+                return null;
+
+            /* Cache the column ids since they are always the same and used in every iteration */
+            SongColumns columns = new SongColumns(cursor);
+            VolumeScan scan = new VolumeScan();
+            while (cursor.moveToNext()) {
+                scan.songs.add(columns.readSong(cursor));
+                scan.folders.add(columns.readFolder(cursor));
+                scan.facets.add(columns.readFacets(cursor));
+                scan.datesAdded.add(cursor.getLong(columns.dateAddedCol));
+            }
+            return scan;
+        }
+    }
+
+    /**
+     * Builds the songs, the albums, the artists and all their indexes from the volumes read. They
+     * are built aside in a new {@link Snapshot}, published with a single write right before the
+     * generation changes, so the clients keep browsing the previous songs while a volume is loaded
+     */
+    private void buildLibrary() {
+        List<SongItem> songs = new ArrayList<>();
+        Map<Long, AlbumItem> albums = new LinkedHashMap<>();
+        Map<Long, ArtistItem> artists = new LinkedHashMap<>();
+
+        /* The facets of the songs by id, indexed by position once the songs are sorted */
+        Map<Long, String[]> facetValues = new HashMap<>();
+
+        for (VolumeScan scan : volumes.values()) {
+            for (int i = 0; i < scan.songs.size(); i++) {
+                SongItem songItem = scan.songs.get(i);
+
+                /* A song is in a single volume, the same id read twice is the same song */
+                if (facetValues.containsKey(songItem.getId()))
+                    continue;
+
+                String[] values = scan.facets.get(i);
+                if (values[0] == null && genres.containsKey(songItem.getId()))
+                    values = new String[]{cleanGenre(genres.get(songItem.getId())), values[1], values[2]};
+                facetValues.put(songItem.getId(), values);
+                songs.add(songItem);
+
+                /*
+                The first song of an artist or of an album adds it, with the album art of the song.
+                ArtistItem and AlbumItem also generate the IdString used to understand what it is
+                being asked from the MusicService
+                */
+                if (!artists.containsKey(songItem.getArtistId())) {
+                    artists.put(songItem.getArtistId(), new ArtistItem(
+                            songItem.getArtistId(),
+                            songItem.getArtist(),
+                            songItem.getAlbumArtUri()));
+                }
+                if (!albums.containsKey(songItem.getAlbumId())) {
+                    albums.put(songItem.getAlbumId(), new AlbumItem(
+                            songItem.getAlbumId(),
+                            songItem.getAlbum(),
+                            songItem.getAlbumArtUri()));
+                }
+            }
+        }
+
+        /* Sort the songs, albums and artists alphabetically using a comparator */
+        List<AlbumItem> albumItems = new ArrayList<>(albums.values());
+        List<ArtistItem> artistItems = new ArrayList<>(artists.values());
+        Collections.sort(songs, new Comparator<SongItem>() {
+            @Override
+            public int compare(SongItem o1, SongItem o2) {
+                return o1.getTitle().compareToIgnoreCase(o2.getTitle());
+            }
+        });
+        Collections.sort(albumItems, new Comparator<AlbumItem>() {
+            @Override
+            public int compare(AlbumItem o1, AlbumItem o2) {
+                return o1.getName().compareToIgnoreCase(o2.getName());
+            }
+        });
+        Collections.sort(artistItems, new Comparator<ArtistItem>() {
+            @Override
+            public int compare(ArtistItem o1, ArtistItem o2) {
+                return o1.getName().compareToIgnoreCase(o2.getName());
+            }
+        });
+
+        /* Index the sorted songs by id, album and artist, then publish them */
+        snapshot = new Snapshot(songs, albumItems, artistItems, facetValues);
+
+        /* The songs changed, the children lists built before must be built again */
+        generation++;
+    }
+
+    /**
+     * Follows a volume mounted or removed. The songs of a removed volume are dropped and a mounted
+     * volume is read, the other volumes are not queried again. Runs on the observer thread
+     *
+     * @param volumeName The volume of the event, null if it is not known, then the volumes read
+     *                   are compared with the ones mounted
+     * @param mounted    True if the volume was mounted or scanned, false if it was removed
+     */
+    private void updateVolume(String volumeName, boolean mounted) {
+        Set<String> removed = new HashSet<>();
+        Set<String> added = new HashSet<>();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q) {
+
+            /* A single volume with all the songs, read it again */
+            removed.add(VOLUME_EXTERNAL);
+            added.add(VOLUME_EXTERNAL);
+        } else if (volumeName != null) {
+            removed.add(volumeName);
+            if (mounted)
+                added.add(volumeName);
+        } else {
+            Set<String> mountedNames = getVolumeNames();
+            for (String name : volumes.keySet()) {
+                if (!mountedNames.contains(name))
+                    removed.add(name);
+            }
+            for (String name : mountedNames) {
+                if (!volumes.containsKey(name))
+                    added.add(name);
+            }
+        }
+
+        boolean changed = false;
+        for (String name : removed) {
+            VolumeScan scan = volumes.remove(name);
+            if (scan == null)
+                continue;
+            for (SongItem songItem : scan.songs) {
+                folders.remove(songItem.getId());
+                recentlyAdded.remove(songItem.getId());
+            }
+            changed = true;
+        }
+        for (Map.Entry<String, VolumeScan> entry : scanVolumes(added).entrySet()) {
+            VolumeScan scan = entry.getValue();
+            volumes.put(entry.getKey(), scan);
+            for (int i = 0; i < scan.songs.size(); i++) {
+                folders.put(scan.songs.get(i), scan.folders.get(i));
+                recentlyAdded.put(scan.songs.get(i), scan.datesAdded.get(i));
+            }
+            changed = true;
+        }
+        if (changed) {
+            buildLibrary();
+            observeVolumes();
+        }
+    }
+
+    /**
+     * @param intent A broadcast of the storage, its data is the path of the volume
+     * @return The MediaStore name of the volume, null if it is not known
+     */
+    private String getVolumeName(Intent intent) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || intent.getData() == null || intent.getData().getPath() == null)
+            return null;
+        StorageManager storageManager = context.getSystemService(StorageManager.class);
+        StorageVolume volume = (storageManager != null)
+                ? storageManager.getStorageVolume(new File(intent.getData().getPath())) : null;
+        if (volume == null)
+            return null;
+        if (volume.isPrimary())
+            return MediaStore.VOLUME_EXTERNAL_PRIMARY;
+        return (volume.getUuid() != null) ? volume.getUuid().toLowerCase(Locale.US) : null;
+    }
+
+    private static int compareNames(String a, String b) {
+        if (a == null || b == null)
+            return (a == null) ? ((b == null) ? 0 : -1) : 1;
+        return a.compareToIgnoreCase(b);
+    }
+
+    /**
+     * Reads the genre of every song from the genres table, used before R where the songs have no
+     * genre column. A song in more than one genre keeps the last one read
+     *
+     * @param contentResolver The resolver used to query the tables
+     * @return The name of the genre by song id
+     */
+    private static Map<Long, String> loadGenres(ContentResolver contentResolver) {
+        Map<Long, String> genres = new HashMap<>();
+        try (Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME},
+                null,
+                null,
+                null)) {
+            if (cursor == null)
+                return genres;
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                try (Cursor members = contentResolver.query(
+                        MediaStore.Audio.Genres.Members.getContentUri("external", cursor.getLong(0)),
+                        new String[]{MediaStore.Audio.Genres.Members.AUDIO_ID},
+                        null,
+                        null,
+                        null)) {
+                    if (members == null)
+                        continue;
+                    while (members.moveToNext())
+                        genres.put(members.getLong(0), name);
+                }
+            }
+        }
+        return genres;
+    }
+
+    /**
+     * @param genre The genre of a song as read from the storage
+     * @return The genre without the spaces around it, null if it is empty
+     */
+    private static String cleanGenre(String genre) {
+        return (genre != null && !genre.trim().isEmpty()) ? genre.trim() : null;
+    }
+
+    /**
+     * @param mimeType The mime type of a song, es "audio/mpeg"
+     * @return The name of the format, the extension of the mime type in upper case (es "MP3"),
+     * null if the mime type is not known
+     */
+    private static String getFormat(String mimeType) {
+        if (mimeType == null)
+            return null;
+        String extension = MimeTypeMap.getSingleton().getExtensionFromMimeType(mimeType);
+        if (extension == null)
+            extension = mimeType.substring(mimeType.indexOf('/') + 1);
+        return extension.isEmpty() ? null : extension.toUpperCase(Locale.US);
+    }
+
+    /**
+     * Groups the positions of the songs by album or by artist
+     *
+     * @param songs   The songs indexed
+     * @param order   The positions of all the songs, in the order to keep within a group
+     * @param byAlbum True to group by album id, false to group by artist id
+     * @param indexes Filled with the index of every song in its group, by position
+     * @return For every id the positions of its songs in the order of {@param order}
+     */
+    private static Map<Long, int[]> groupPositions(List<SongItem> songs, Integer[] order, boolean byAlbum, int[] indexes) {
+
+        /* Count the songs of every id first, so every group is allocated once with its size */
+        Map<Long, int[]> counts = new HashMap<>();
+        for (SongItem songItem : songs) {
+            long id = byAlbum ? songItem.getAlbumId() : songItem.getArtistId();
+            int[] count = counts.get(id);
+            if (count == null)
+                counts.put(id, new int[]{1});
+            else
+                count[0]++;
+        }
+
+        Map<Long, int[]> groups = new HashMap<>(counts.size() * 2);
+        for (Map.Entry<Long, int[]> entry : counts.entrySet()) {
+            groups.put(entry.getKey(), new int[entry.getValue()[0]]);
+
+            /* The count is reused as the next free index of the group */
+            entry.getValue()[0] = 0;
+        }
+        for (int position : order) {
+            long id = byAlbum ? songs.get(position).getAlbumId() : songs.get(position).getArtistId();
+            int index = counts.get(id)[0]++;
+            groups.get(id)[index] = position;
+            indexes[position] = index;
+        }
+        return groups;
+    }
+
+    /**
+     * Reads the numeric id of a media id as "prefix" + id, for example "song_12"
+     *
+     * @param mediaId The media id
+     * @param prefix  One of {@value MusicLibrary#SONG_}, {@value MusicLibrary#ALBUM_} and
+     *                {@value MusicLibrary#ARTIST_}
+     * @return The id, -1 if the media id does not start with {@param prefix} or is not valid
+     */
+    public static long parseId(String mediaId, String prefix) {
+        if (mediaId == null || !mediaId.startsWith(prefix))
+            return -1;
+        try {
+            return Long.parseLong(mediaId.substring(prefix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the id of the album of an artist, "artistalbum_" + artist id + "_" + album id
+     *
+     * @param mediaId The media id
+     * @return The artist id and the album id, null if the media id is not valid
+     */
+    private static long[] parseArtistAlbumId(String mediaId) {
+        if (mediaId == null || !mediaId.startsWith(ARTIST_ALBUM_))
+            return null;
+        int separator = mediaId.indexOf('_', ARTIST_ALBUM_.length());
+        if (separator == -1)
+            return null;
+        try {
+            return new long[]{
+                    Long.parseLong(mediaId.substring(ARTIST_ALBUM_.length(), separator)),
+                    Long.parseLong(mediaId.substring(separator + 1))};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds a song in the queue of a parent with the indexes, so no queue is searched
+     *
+     * @param songId   The mediaId of the song as <song_id> (es "song_1")
+     * @param parentId The parent of the queue, as in {@link MusicLibrary#getContextQueue(String)}
+     * @return The position of the song in the queue of the parent, -1 if it is not there
+     */
+    public int getContextPosition(String songId, String parentId) {
+        String folderPath = (parentId != null) ? getFolderPath(parentId) : null;
+        if (folderPath != null)
+            return folders.indexOf(folderPath, parseId(songId, SONG_));
+        Snapshot snapshot = getSnapshot();
+        if (isRecent(parentId)) {
+            List<SongItem> recentSongs = getRecentSongs(snapshot, parentId, 0, MAX_RECENT_SONGS);
+            for (int i = 0; i < recentSongs.size(); i++) {
+                if (recentSongs.get(i).getId() == parseId(songId, SONG_))
+                    return i;
+            }
+            return -1;
+        }
+
+        Integer position = snapshot.songPositions.get(parseId(songId, SONG_));
+        if (position == null)
+            return -1;
+        if (parentId == null || parentId.equals(SONGS))
+            return position;
+        if (parentId.startsWith(PLAYLIST_)) {
+            int[] slice = getPlaylistSlice(snapshot, parentId);
+            for (int i = 0; i < slice.length; i++) {
+                if (slice[i] == position)
+                    return i;
+            }
+            return -1;
+        }
+        if (parentId.startsWith(FILTER_)) {
+            PositionSet set = snapshot.getFilterSet(parentId);
+            return (set != null) ? set.indexOf(position) : -1;
+        }
+
+        SongItem songItem = snapshot.songs.get(position);
+        if (parentId.startsWith(ALBUM_))
+            return (parseId(parentId, ALBUM_) == songItem.getAlbumId()) ? snapshot.albumIndexes[position] : -1;
+        if (parentId.startsWith(ARTIST_))
+            return (parseId(parentId, ARTIST_) == songItem.getArtistId()) ? snapshot.artistIndexes[position] : -1;
+
+        long[] ids = parseArtistAlbumId(parentId);
+        if (ids == null || ids[0] != songItem.getArtistId() || ids[1] != songItem.getAlbumId())
+            return -1;
+        int[] range = snapshot.getArtistAlbumRange(ids[0], ids[1]);
+        return (range != null) ? snapshot.artistIndexes[position] - range[0] : -1;
+    }
+
+    /**
+     * Creates the queue of a parent, the songs in which a song is played
+     *
+     * @param parentId {@value MusicLibrary#SONGS} or null for the whole library, or the id of an
+     *                 album, of an artist, of the album of an artist, of a folder, of a filter,
+     *                 of the recent songs or of a playlist
+     * @return The queue of the songs of the parent, empty if the parent is unknown
+     */
+    public List<MediaSessionCompat.QueueItem> getContextQueue(String parentId) {
+        Snapshot snapshot = getSnapshot();
+        if (parentId == null || parentId.equals(SONGS))
+            return snapshot.buildSongsQueue();
+
+        /* The songs of a folder, not of its subfolders */
+        String folderPath = getFolderPath(parentId);
+        if (folderPath != null) {
+            List<SongItem> folderSongs = folders.getSongs(folderPath);
+            List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(folderSongs.size());
+            for (SongItem songItem : folderSongs)
+                queueItems.add(buildSongQueueItem(songItem));
+            return queueItems;
+        }
+        if (parentId.startsWith(FILTER_)) {
+            PositionSet set = snapshot.getFilterSet(parentId);
+            return snapshot.buildQueue((set != null) ? set.toArray() : null, null);
+        }
+        if (parentId.startsWith(PLAYLIST_))
+            return snapshot.buildQueue(getPlaylistSlice(snapshot, parentId), null);
+        if (isRecent(parentId)) {
+            List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>();
+            for (SongItem songItem : getRecentSongs(snapshot, parentId, 0, MAX_RECENT_SONGS))
+                queueItems.add(buildSongQueueItem(songItem));
+            return queueItems;
+        }
+        return snapshot.buildQueue(snapshot.getSlice(parentId), null);
+    }
+
+    /**
+     * Returns a small bitmap of the album art, sent in the metadata as its display icon. The
+     * clients that need a bigger image load it themselves from the album art uri, so only this
+     * icon is copied to every controller. The image is read with the largest sample size that
+     * keeps it bigger than {@param size} and then scaled to {@param size}, so the full image is
+     * never decoded. It has no transparency so RGB_565 is used, half the bytes of ARGB_8888
+     *
+     * @param albumArtUri The uri that points to the album art image in the storage
+     * @param size        The width and the height of the icon in pixels
+     * @return The icon created from the URI given, the default album art if it can not be read
+     * @see "https://developer.android.com/guide/topics/media-apps/working-with-a-media-session#maintain-state"
+     */
+    public Bitmap loadDisplayIcon(Uri albumArtUri, int size) {
+        Bitmap bitmap = null;
+        if (albumArtUri != null) {
+            try {
+                ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(albumArtUri, "r");
+                if (pfd != null) {
+                    FileDescriptor fd = pfd.getFileDescriptor();
+
+                    /* Read only the size of the image first */
+                    BitmapFactory.Options options = new BitmapFactory.Options();
+                    options.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFileDescriptor(fd, null, options);
+
+                    /* Read 1 pixel every options.inSampleSize pixels, as long as the image stays bigger than size */
+                    options.inJustDecodeBounds = false;
+                    options.inSampleSize = 1;
+                    while (options.outWidth / (options.inSampleSize * 2) >= size
+                            && options.outHeight / (options.inSampleSize * 2) >= size)
+                        options.inSampleSize *= 2;
+                    options.inPreferredConfig = Bitmap.Config.RGB_565;
+                    bitmap = BitmapFactory.decodeFileDescriptor(fd, null, options);
+                    pfd.close();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (bitmap == null) {
+            if (defaultBitmap == null)
+                return null;
+
+            /* The default icon is the same for every song, scale it once */
+            if (defaultIcon == null || defaultIcon.getWidth() != size)
+                defaultIcon = Bitmap.createScaledBitmap(defaultBitmap, size, size, true);
+            return defaultIcon;
+        }
+
+        if (bitmap.getWidth() == size && bitmap.getHeight() == size)
+            return bitmap;
+        Bitmap icon = Bitmap.createScaledBitmap(bitmap, size, size, true);
+        bitmap.recycle();
+        return icon;
+    }
+
+    /**
+     * Loads in a background thread the default drawable for media that has no album art
+     */
+    private void initDefaultBitmap(final Drawable drawable) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = Bitmap.createBitmap(
+                        drawable.getIntrinsicWidth(),
+                        drawable.getIntrinsicHeight(),
+                        Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(bitmap);
+                drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
+                drawable.draw(canvas);
+                defaultBitmap = bitmap;
+            }
+        }).start();
+    }
 
-    /* Album art path to build the path to the album art */
-    private static final String ALBUM_ART_URI = "content://media/external/audio/albumart";
 
-    /* Holds all the songs on the device and all of the information related */
-    private List<SongItem> songs = new ArrayList<>();
+    /**
+     * @return The generation of the library, it changes every time the songs are loaded
+     */
+    public int getGeneration() {
+        return generation;
+    }
 
-    /* Holds the data about the albums on the device */
-    private List<AlbumItem> albums = new ArrayList<>();
+    /**
+     * Returns the children of a browsable item. The lists are built once per library generation
+     * and kind of client, so browsing the same items again is only a lookup. The phone and the car
+     * lists are kept apart since the car ones have the icons mapped to {@link ArtProvider}
+     *
+     * @param parentId  The id of the item opened, one of {@value MusicLibrary#BROWSER_ROOT},
+     *                  {@value MusicLibrary#ALBUMS}, {@value MusicLibrary#ARTISTS},
+     *                  {@value MusicLibrary#SONGS}, {@value MusicLibrary#FOLDERS}, one of the
+     *                  facets or the id of an album, an artist, an album of an artist, a folder
+     *                  or a filter
+     * @param carClient True if the client browsing is Android Auto
+     * @return The children of {@param parentId}, the list can not be modified
+     */
+    public List<MediaBrowserCompat.MediaItem> getChildren(String parentId, boolean carClient) {
 
-    /* Holds just the albumID value (long). This allows for to perform a fast check on the data */
-    private List<Long> albumIds = new ArrayList<>();
+        /*
+        The recent songs change with every play and the playlists with every edit, they are built
+        every time from their index and from the database
+        */
+        /*
+        The generation is read before the snapshot, so a list is never cached for a generation
+        newer than the songs it was built from
+        */
+        int generation = this.generation;
+        Snapshot snapshot = getSnapshot();
+        if (isRecent(parentId))
+            return Collections.unmodifiableList(getRecentItems(snapshot, parentId, 0, MAX_RECENT_SONGS));
+        if (parentId.equals(PLAYLISTS) || parentId.startsWith(PLAYLIST_))
+            return Collections.unmodifiableList(getPlaylistItems(snapshot, parentId, carClient, 0, Integer.MAX_VALUE));
+
+        String key = (carClient ? "car/" : "phone/") + parentId;
+        synchronized (childrenCache) {
+            if (childrenCacheGeneration != generation) {
+                childrenCache.clear();
+                childrenCacheGeneration = generation;
+            }
+            List<MediaBrowserCompat.MediaItem> children = childrenCache.get(key);
+            if (children != null)
+                return children;
+        }
 
-    /* Holds the data about the artist */
-    private List<ArtistItem> artists = new ArrayList<>();
+        List<MediaBrowserCompat.MediaItem> children;
+        switch (parentId) {
+            case BROWSER_ROOT:
+                children = getRootItems(snapshot, carClient);
+                break;
+            case ALBUMS:
+            case ARTISTS:
+            case SONGS:
+                children = getItemsFromParentId(snapshot, parentId, carClient);
+                break;
+            case FOLDERS:
+                children = getFolderItems(parentId, carClient, 0, Integer.MAX_VALUE);
+                break;
+            case GENRES:
+            case DECADES:
+            case FORMATS:
+                children = getFacetItems(snapshot, parentId, carClient);
+                break;
+            default:
+                /* A specific album, artist, album of an artist, folder or filter */
+                if (parentId.startsWith(FOLDER_))
+                    children = getFolderItems(parentId, carClient, 0, Integer.MAX_VALUE);
+                else if (parentId.startsWith(FILTER_))
+                    children = getFilterItems(snapshot, parentId);
+                else
+                    children = getAlbumArtistItemsFromParentId(snapshot, parentId, carClient);
+                break;
+        }
+        children = Collections.unmodifiableList(children);
 
-    /* Holds just the artistID value (long). This list allows to perform a fast check on the data */
-    private List<Long> artistIds = new ArrayList<>();
+        synchronized (childrenCache) {
+            if (childrenCacheGeneration == generation)
+                childrenCache.put(key, children);
+        }
+        return children;
+    }
 
-    /* The context used to retrieve a ContentProvider */
-    private final Context context;
+    /**
+     * @param parentId The id of an item
+     * @return True if {@link MusicLibrary#getPage(String, boolean, int, int)} builds the pages of
+     * the item on their own
+     */
+    public static boolean isPaged(String parentId) {
+        return parentId.equals(FOLDERS) || parentId.startsWith(FOLDER_) || isRecent(parentId)
+                || parentId.startsWith(PLAYLIST_);
+    }
 
-    /* The default bitmap used if the media has no album art */
-    private Bitmap defaultBitmap;
+    /**
+     * @param parentId The id of an item, can be null
+     * @return True if the item is one of the categories read from the recent songs indexes,
+     * {@value MusicLibrary#RECENTLY_ADDED}, {@value MusicLibrary#RECENTLY_PLAYED} or
+     * {@value MusicLibrary#MOST_PLAYED}
+     */
+    public static boolean isRecent(String parentId) {
+        return RECENTLY_ADDED.equals(parentId) || RECENTLY_PLAYED.equals(parentId)
+                || MOST_PLAYED.equals(parentId);
+    }
 
     /**
-     * Constructor of the class, it initialize the media library on a different thread and loads the
-     * {@link MusicLibrary#defaultBitmap}
+     * Returns a page of the children of a folder, of the recent songs or of a playlist, built
+     * without the rest of the children so a folder with thousands of files is sent a page at a
+     * time. The pages are not cached
      *
-     * @param context The context used to retrieve the data from the memory because
-     *                we need a contentResolver
+     * @param parentId  An id for which {@link MusicLibrary#isPaged(String)} is true
+     * @param carClient True if the client browsing is Android Auto
+     * @param page      The index of the page, from 0
+     * @param pageSize  The number of children in a page
+     * @return The children in the page, empty if the page is after the last child
      */
-    public MusicLibrary(Context context) {
-        this.context = context;
-        initLibrary();
-        initDefaultBitmap(ContextCompat.getDrawable(context, R.drawable.ic_default_album_art_with_bg));
+    public List<MediaBrowserCompat.MediaItem> getPage(String parentId, boolean carClient, int page, int pageSize) {
+        long offset = (long) page * pageSize;
+        if (offset > Integer.MAX_VALUE)
+            return Collections.emptyList();
+        if (isRecent(parentId))
+            return Collections.unmodifiableList(getRecentItems(getSnapshot(), parentId, (int) offset, pageSize));
+        if (parentId.startsWith(PLAYLIST_))
+            return Collections.unmodifiableList(getPlaylistItems(getSnapshot(), parentId, carClient, (int) offset, pageSize));
+        return Collections.unmodifiableList(getFolderItems(parentId, carClient, (int) offset, pageSize));
     }
 
     /**
-     * Retrieves the information used for the playback from the storage using a ContentResolver.
-     * Builds the projection array for the elements to retrieve and a selection string to restrict
-     * the search only on the elements that are flagged as music.
-     * Creates a new thread to load the data. The thread will publish the results as they are available
-     * <p>
-     * Retrieves the data for all the songs in the device storage
-     * -ID : unique identifier of the song
-     * -TITLE : the title of the song
-     * -ALBUM : the album name of the song
-     * -ARTIST : the artist name of the song
-     * -ARTIST_ID : unique identifier of the artist
-     * -ALBUM_ID : unique identifier of the album
-     * -DURATION : the length in milliseconds of the song
-     * <p>
-     * The column {@value android.provider.MediaStore.Audio.Media#DURATION}
-     * was added back in API level 1, the columns so exists before Q, as shown
-     * in the link below despite on what the warning it shows
+     * Creates the playlists as PLAYLIST items, or a window of the songs of a playlist as PLAYABLE
+     * items. The songs no longer in the library are left out
      *
-     * @see "https://github.com/AndroidSDKSources/android-sdk-sources-for-api-level-1/blob/c77731af5068b85a350e768757d229cae00f8098/android/provider/MediaStore.java#L292"
+     * @param snapshot  The songs to which the ids of the playlists are resolved
+     * @param parentId  {@value MusicLibrary#PLAYLISTS} or the id of a playlist
+     * @param carClient True if the client browsing is Android Auto
+     * @param offset    The index of the first child
+     * @param count     The number of children at most
+     * @return The items, empty if the playlist does not exist
      */
-    private void initLibrary() {
-        String[] projection = new String[]{
-                MediaStore.Audio.Media._ID,
-                MediaStore.Audio.Media.TITLE,
-                MediaStore.Audio.Media.ALBUM,
-                MediaStore.Audio.Media.ARTIST,
-                MediaStore.Audio.Media.ARTIST_ID,
-                MediaStore.Audio.Media.ALBUM_ID,
-                MediaStore.Audio.Media.DURATION
-        };
-
-        String selection = MediaStore.Audio.Media.IS_MUSIC + "=1";
-
-        MediaLibraryLoader mediaLibraryLoader = new MediaLibraryLoader(context.getContentResolver(), projection, selection);
-
-        /* Start the thread */
-        mediaLibraryLoader.run();
-    }
-
-    /**
-     * Loads the data asked from {@link MusicLibrary#initLibrary()} in background without blocking
-     * the UI thread
-     */
-    private final class MediaLibraryLoader implements Runnable {
-
-        private final ContentResolver contentResolver;
-        private final String[] projection;
-        private final String selection;
-
-        private MediaLibraryLoader(ContentResolver contentResolver, String[] projection, String selection) {
-            this.contentResolver = contentResolver;
-            this.projection = projection;
-            this.selection = selection;
-        }
-
-        @Override
-        public void run() {
-            try (Cursor cursor = contentResolver.query(
-                    MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
-                    projection,
-                    selection,
-                    null,
-                    null)) {
-
-                /* Cache the column ids since they are always the same and used in every iteration */
-                int idCol = cursor.getColumnIndex(MediaStore.Audio.Media._ID);
-                int titleCol = cursor.getColumnIndex(MediaStore.Audio.Media.TITLE);
-                int artistIdCol = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST_ID);
-                int artistCol = cursor.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-                int albumCol = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM);
-                int albumIdCol = cursor.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-                int durationCol = cursor.getColumnIndex(MediaStore.Audio.Media.DURATION);
-
-
-                /* While a row is available */
-                while (cursor.moveToNext()) {
-                    long id = cursor.getLong(idCol);
-                    String title = cursor.getString(titleCol);
-                    String album = cursor.getString(albumCol);
-                    String artist = cursor.getString(artistCol);
-                    long artistId = cursor.getLong(artistIdCol);
-                    long albumId = cursor.getLong(albumIdCol);
-                    long duration = cursor.getLong(durationCol);
-
-                    /* Build the songUri (the song itself to play) and the albumArtUri (the image of the album) */
-                    Uri songUri = ContentUris.withAppendedId(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI, id);
-                    Uri albumArtUri = ContentUris.withAppendedId(Uri.parse(ALBUM_ART_URI), albumId);
-
-                    /*
-                    If artistIds dont have this artistId add the artist data to a list of
-                    ArtistItems that contains the artistId (unique) and the artist name.
-                    The class (ArtistItem) also generates an IdString that is used to understand
-                    what it is being asked from the MusicService (later in the class) and avoid
-                    issued that could happen if we use as Uid just the Id or the title.
-                     */
-                    if (!artistIds.contains(artistId)) {
-                        artists.add(
-                                new ArtistItem(
-                                        artistId,
-                                        artist,
-                                        albumArtUri));
-
-                        /* Add this artist id so we can know what items we already added */
-                        artistIds.add(artistId);
-                    }
-                    if (!albumIds.contains(albumId)) {
-                        albums.add(new AlbumItem(
-                                albumId,
-                                album,
-                                albumArtUri));
-                        albumIds.add(albumId);
-                    }
+    private List<MediaBrowserCompat.MediaItem> getPlaylistItems(Snapshot snapshot, String parentId, boolean carClient, int offset, int count) {
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        if (parentId.equals(PLAYLISTS)) {
+            List<PlaylistStore.Playlist> playlistList = playlists.getPlaylists();
+            int end = (int) Math.min((long) offset + count, playlistList.size());
+            for (int i = Math.max(0, offset); i < end; i++) {
+                PlaylistStore.Playlist playlist = playlistList.get(i);
+                long[] first = playlists.getSongIds(playlist.id, 0, 1);
+                Integer position = (first.length > 0) ? snapshot.songPositions.get(first[0]) : null;
+                mediaItems.add(generateBrowsableOrPlaylistItem(
+                        PLAYLIST_ + playlist.id,
+                        playlist.name,
+                        String.valueOf(playlist.count),
+                        (position != null) ? snapshot.songs.get(position).getAlbumArtUri() : getIconUri(IC_PLAYLIST),
+                        FLAG_PLAYLIST,
+                        carClient));
+            }
+            return mediaItems;
+        }
 
-                    /*
-                    Add to the songs list a SongItem that holds all the useful
-                    information about the song
-                     */
-                    songs.add(
-                            new SongItem(
-                                    id,
-                                    title,
-                                    artist,
-                                    artistId,
-                                    album,
-                                    albumId,
-                                    duration,
-                                    songUri,
-                                    albumArtUri
-                            ));
-                }
+        long playlistId = parseId(parentId, PLAYLIST_);
+        for (long songId : playlists.getSongIds(playlistId, offset, count)) {
+            Integer position = snapshot.songPositions.get(songId);
+            if (position == null)
+                continue;
+            SongItem songItem = snapshot.songs.get(position);
+            mediaItems.add(generatePlayableItem(
+                    songItem.getIdString(),
+                    songItem.getTitle(),
+                    songItem.getArtist(),
+                    songItem.getAlbum(),
+                    songItem.getAlbumArtUri(),
+                    songItem.getSongUri()));
+        }
+        return mediaItems;
+    }
 
-                /* Sort the songs, albums and artists alphabetically using a comparator */
-                Collections.sort(songs, new Comparator<SongItem>() {
-                    @Override
-                    public int compare(SongItem o1, SongItem o2) {
-                        return o1.getTitle().compareToIgnoreCase(o2.getTitle());
-                    }
-                });
-                Collections.sort(albums, new Comparator<AlbumItem>() {
-                    @Override
-                    public int compare(AlbumItem o1, AlbumItem o2) {
-                        return o1.getName().compareToIgnoreCase(o2.getName());
-                    }
-                });
-                Collections.sort(artists, new Comparator<ArtistItem>() {
-                    @Override
-                    public int compare(ArtistItem o1, ArtistItem o2) {
-                        return o1.getName().compareToIgnoreCase(o2.getName());
-                    }
-                });
+    /**
+     * Reads the songs of a playlist as positions in {@link Snapshot#songs}, so its queue is
+     * made of the QueueItems already built. The songs no longer in the library are left out
+     *
+     * @param snapshot The songs to which the ids of the playlist are resolved
+     * @param parentId The id of the playlist
+     * @return The positions in the order of the playlist
+     */
+    private int[] getPlaylistSlice(Snapshot snapshot, String parentId) {
+        long[] songIds = playlists.getSongIds(parseId(parentId, PLAYLIST_), 0, Integer.MAX_VALUE);
+        int[] slice = new int[songIds.length];
+        int size = 0;
+        for (long songId : songIds) {
+            Integer position = snapshot.songPositions.get(songId);
+            if (position != null)
+                slice[size++] = position;
+        }
+        return (size == slice.length) ? slice : Arrays.copyOf(slice, size);
+    }
 
+    /**
+     * Creates a playlist, for example from the current queue
+     *
+     * @param name    The name of the playlist
+     * @param songIds The MediaStore ids of the songs in their order
+     * @param onDone  Run on the observer thread once the playlist is written, can be null
+     */
+    public void createPlaylist(final String name, final long[] songIds, Runnable onDone) {
+        editPlaylists(new Runnable() {
+            @Override
+            public void run() {
+                if (playlists.create(name, songIds) != -1)
+                    generation++;
+            }
+        }, onDone);
+    }
 
-            } catch (NullPointerException e) {
-                Log.e(TAG, "run: error while loading the data ", e);
+    /**
+     * @param playlistId The id of the playlist as "playlist_" + id
+     * @param onDone     Run on the observer thread once the playlist is deleted, can be null
+     */
+    public void deletePlaylist(String playlistId, Runnable onDone) {
+        final long id = parseId(playlistId, PLAYLIST_);
+        editPlaylists(new Runnable() {
+            @Override
+            public void run() {
+                if (playlists.delete(id))
+                    generation++;
             }
-        }
+        }, onDone);
     }
 
     /**
-     * Returns a bitmap representation of the Uri given as parameter. The image is also resized to
-     * be 320x320 to match Android Auto default size
+     * Inserts songs in a playlist, only the rows of the new songs are written
      *
-     * @param albumArtUri The uri that points to the album art image in the storage
-     * @return The bitmap created from the URI given, null if an IOException occurs
-     * @see "https://developer.android.com/guide/topics/media-apps/working-with-a-media-session#maintain-state"
+     * @param playlistId The id of the playlist as "playlist_" + id
+     * @param index      The index of the first song inserted, past the end to append them
+     * @param songIds    The MediaStore ids of the songs
+     * @param onDone     Run on the observer thread once the songs are written, can be null
      */
-    public Bitmap loadAlbumArt(Uri albumArtUri) {
-        //If albumArtUri is null return the default album icon
-        if (albumArtUri == null)
-            return defaultBitmap;
+    public void addToPlaylist(String playlistId, final int index, final long[] songIds, Runnable onDone) {
+        final long id = parseId(playlistId, PLAYLIST_);
+        editPlaylists(new Runnable() {
+            @Override
+            public void run() {
+                playlists.insert(id, index, songIds);
+            }
+        }, onDone);
+    }
 
-        Bitmap bitmap = null;
-        try {
-            ParcelFileDescriptor pfd = context.getContentResolver().openFileDescriptor(albumArtUri, "r");
-            if (pfd != null) {
-                FileDescriptor fd = pfd.getFileDescriptor();
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                //Reduce the sampling size to reduce memory consumption
-                //read 1 pixel every options.inSampleSize pixel/pixels
-                options.inSampleSize = 1;
-                //Scale it down to be 320x320 since it will be anyway scaled down to that resolution
-                bitmap = BitmapFactory.decodeFileDescriptor(fd, new Rect(0, 0, 320, 320), options);
-                pfd.close();
+    /**
+     * Moves a song of a playlist, only the row of the song is written
+     *
+     * @param playlistId The id of the playlist as "playlist_" + id
+     * @param from       The index of the song
+     * @param to         The index of the song after the move
+     * @param onDone     Run on the observer thread once the song is moved, can be null
+     */
+    public void movePlaylistSong(String playlistId, final int from, final int to, Runnable onDone) {
+        final long id = parseId(playlistId, PLAYLIST_);
+        editPlaylists(new Runnable() {
+            @Override
+            public void run() {
+                playlists.move(id, from, to);
             }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        }, onDone);
+    }
 
-        return (bitmap != null) ? bitmap : defaultBitmap;
+    /**
+     * @param playlistId The id of the playlist as "playlist_" + id
+     * @param index      The index of the song to remove
+     * @param onDone     Run on the observer thread once the song is removed, can be null
+     */
+    public void removePlaylistSong(String playlistId, final int index, Runnable onDone) {
+        final long id = parseId(playlistId, PLAYLIST_);
+        editPlaylists(new Runnable() {
+            @Override
+            public void run() {
+                playlists.remove(id, index);
+            }
+        }, onDone);
     }
 
     /**
-     * Loads in a background thread the default drawable for media that has no album art
+     * Writes the playlists on the observer thread, so the caller, usually the session thread,
+     * never waits for the database
      */
-    private void initDefaultBitmap(final Drawable drawable) {
-        new Thread(new Runnable() {
+    private void editPlaylists(final Runnable edit, final Runnable onDone) {
+        observerHandler.post(new Runnable() {
             @Override
             public void run() {
-                Bitmap bitmap = Bitmap.createBitmap(
-                        drawable.getIntrinsicWidth(),
-                        drawable.getIntrinsicHeight(),
-                        Bitmap.Config.ARGB_8888);
-                Canvas canvas = new Canvas(bitmap);
-                drawable.setBounds(0, 0, canvas.getWidth(), canvas.getHeight());
-                drawable.draw(canvas);
-                defaultBitmap = bitmap;
+                edit.run();
+                if (onDone != null)
+                    onDone.run();
             }
-        }).start();
+        });
+    }
+
+    /**
+     * Reads a window of the recent songs from their index, without looking at the other songs
+     *
+     * @param snapshot The songs to which the ids of the play log are resolved
+     * @param parentId An id for which {@link MusicLibrary#isRecent(String)} is true
+     * @param offset   The number of songs to skip, from the first
+     * @param count    The number of songs at most
+     * @return The songs, the most recent or the most played first. The songs played that are no
+     * longer in the library are left out
+     */
+    private List<SongItem> getRecentSongs(Snapshot snapshot, String parentId, int offset, int count) {
+        if (parentId.equals(RECENTLY_ADDED))
+            return recentlyAdded.getNewest(offset, count);
+
+        List<SongItem> songItems = new ArrayList<>();
+        long[] songIds = parentId.equals(MOST_PLAYED)
+                ? playLog.getMostPlayed(offset, count)
+                : playLog.getRecent(offset, count);
+        for (long songId : songIds) {
+            Integer position = snapshot.songPositions.get(songId);
+            if (position != null)
+                songItems.add(snapshot.songs.get(position));
+        }
+        return songItems;
+    }
+
+    /**
+     * Creates the PLAYABLE items of a window of the recent songs, the songs read from the play log
+     * have their counters in the extras
+     *
+     * @see MusicLibrary#getRecentSongs(Snapshot, String, int, int)
+     */
+    private List<MediaBrowserCompat.MediaItem> getRecentItems(Snapshot snapshot, String parentId, int offset, int count) {
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        for (SongItem songItem : getRecentSongs(snapshot, parentId, offset, count)) {
+            Bundle extras = null;
+            PlayLog.Stats stats = parentId.equals(RECENTLY_ADDED) ? null : playLog.getStats(songItem.getId());
+            if (stats != null) {
+                extras = new Bundle();
+                extras.putInt(PLAY_COUNT_ARGS_EXTRA, stats.playCount);
+                extras.putInt(SKIP_COUNT_ARGS_EXTRA, stats.skipCount);
+                extras.putLong(LAST_PLAYED_ARGS_EXTRA, stats.lastPlayed);
+            }
+            mediaItems.add(generatePlayableItem(
+                    songItem.getIdString(),
+                    songItem.getTitle(),
+                    songItem.getArtist(),
+                    songItem.getAlbum(),
+                    songItem.getAlbumArtUri(),
+                    songItem.getSongUri(),
+                    extras));
+        }
+        return mediaItems;
+    }
+
+    /**
+     * @param parentId The id of an item
+     * @return The path of the folder, "" for the top of the folders, null if the item is not a
+     * folder
+     */
+    private static String getFolderPath(String parentId) {
+        if (parentId.equals(FOLDERS))
+            return "";
+        return parentId.startsWith(FOLDER_) ? parentId.substring(FOLDER_.length()) : null;
+    }
+
+    /**
+     * Creates the items of a window of the children of a folder, the subfolders as BROWSABLE
+     * items followed by the songs as PLAYABLE items
+     *
+     * @param parentId  {@value MusicLibrary#FOLDERS} or the id of a folder
+     * @param carClient True if the client browsing is Android Auto
+     * @param offset    The index of the first child
+     * @param count     The number of children at most
+     * @return The items, empty if the folder does not exist
+     */
+    private List<MediaBrowserCompat.MediaItem> getFolderItems(String parentId, boolean carClient, int offset, int count) {
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        FolderTrie.Listing listing = folders.getChildren(getFolderPath(parentId), offset, count);
+        if (listing == null)
+            return mediaItems;
+
+        for (FolderTrie.Folder folder : listing.folders) {
+            mediaItems.add(generateBrowsableOrPlaylistItem(
+                    FOLDER_ + folder.path,
+                    folder.name,
+                    String.valueOf(folder.count),
+                    (folder.albumArtUri != null) ? folder.albumArtUri : getIconUri(IC_FOLDER),
+                    FLAG_BROWSABLE,
+                    carClient));
+        }
+        for (SongItem songItem : listing.songs) {
+            mediaItems.add(generatePlayableItem(
+                    songItem.getIdString(),
+                    songItem.getTitle(),
+                    songItem.getArtist(),
+                    songItem.getAlbum(),
+                    songItem.getAlbumArtUri(),
+                    songItem.getSongUri()));
+        }
+        return mediaItems;
+    }
+
+    /**
+     * Creates the values of a facet as PLAYLIST items, with the number of songs that have the
+     * value and the album art of the first of them
+     *
+     * @param snapshot  The songs of the facet
+     * @param parentId  {@value MusicLibrary#GENRES}, {@value MusicLibrary#DECADES} or
+     *                  {@value MusicLibrary#FORMATS}
+     * @param carClient True if the client browsing is Android Auto
+     * @return The items, each one with the id of the filter of its value
+     */
+    private List<MediaBrowserCompat.MediaItem> getFacetItems(Snapshot snapshot, String parentId, boolean carClient) {
+        char letter = parentId.equals(GENRES) ? FACET_GENRE
+                : parentId.equals(DECADES) ? FACET_DECADE : FACET_FORMAT;
+        Facet facet = snapshot.getFacet(letter);
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>(facet.size());
+        for (int i = 0; i < facet.size(); i++) {
+            PositionSet set = facet.getSet(i);
+            mediaItems.add(generateBrowsableOrPlaylistItem(
+                    FILTER_ + letter + Uri.encode(facet.getValue(i)),
+                    facet.getValue(i),
+                    String.valueOf(set.size()),
+                    snapshot.songs.get(set.first()).getAlbumArtUri(),
+                    FLAG_PLAYLIST,
+                    carClient));
+        }
+        return mediaItems;
+    }
+
+    /**
+     * Creates the songs of a filter as PLAYABLE items, in the order of the songs list
+     *
+     * @param snapshot The songs of the filter
+     * @param parentId The id of the filter as described in {@link MusicLibrary#FILTER_}
+     * @return The items, empty if the filter is not valid
+     */
+    private List<MediaBrowserCompat.MediaItem> getFilterItems(Snapshot snapshot, String parentId) {
+        List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
+        PositionSet set = snapshot.getFilterSet(parentId);
+        if (set == null)
+            return mediaItems;
+
+        for (int position : set.toArray()) {
+            SongItem songItem = snapshot.songs.get(position);
+            mediaItems.add(generatePlayableItem(
+                    songItem.getIdString(),
+                    songItem.getTitle(),
+                    songItem.getArtist(),
+                    songItem.getAlbum(),
+                    songItem.getAlbumArtUri(),
+                    songItem.getSongUri()));
+        }
+        return mediaItems;
     }
 
+    /**
+     * Builds the Uri of a drawable of the app from the package name, so it points to this app
+     * whatever its applicationId is
+     *
+     * @param drawableName The name of the drawable, one of the IC_ constants
+     * @return The android.resource Uri of the drawable
+     */
+    private Uri getIconUri(String drawableName) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_ANDROID_RESOURCE)
+                .authority(context.getPackageName())
+                .appendPath("drawable")
+                .appendPath(drawableName)
+                .build();
+    }
 
     /**
      * Creates the root elements using
-     * {@link MusicLibrary#generateBrowsableOrPlaylistItem(String, String, String, Uri, int)}
+     * {@link MusicLibrary#generateBrowsableOrPlaylistItem(String, String, String, Uri, int, boolean)}
      *
+     * @param snapshot  The songs counted by the categories
+     * @param carClient True if the client browsing is Android Auto
      * @return A list of mediaItems that holds the information of all the categories
      */
-    public List<MediaBrowserCompat.MediaItem> getRootItems() {
+    private List<MediaBrowserCompat.MediaItem> getRootItems(Snapshot snapshot, boolean carClient) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
         /*
-        Create the main categories for the media: Albums, Artists, Songs.
-        Create the categories ALUBUMS and ARTISTS as BROWSABLE and SONGS as a PLAYLIST
+        Create the main categories for the media: Albums, Artists, Songs, Folders, the facets, the
+        recent songs and the playlists. Create the categories ALUBUMS, ARTISTS, FOLDERS, the facets
+        and PLAYLISTS as BROWSABLE and SONGS and the recent songs as a PLAYLIST
         */
         mediaItems.add(generateBrowsableOrPlaylistItem(
                 ALBUMS,
                 ALBUMS,
-                String.valueOf(albums.size()),
-                Uri.parse(IC_ALBUM),
-                FLAG_BROWSABLE));
+                String.valueOf(snapshot.albums.size()),
+                getIconUri(IC_ALBUM),
+                FLAG_BROWSABLE,
+                carClient));
         mediaItems.add(generateBrowsableOrPlaylistItem(
                 ARTISTS,
                 ARTISTS,
-                String.valueOf(artists.size()),
-                Uri.parse(IC_ARTIST),
-                FLAG_BROWSABLE));
+                String.valueOf(snapshot.artists.size()),
+                getIconUri(IC_ARTIST),
+                FLAG_BROWSABLE,
+                carClient));
         mediaItems.add(generateBrowsableOrPlaylistItem(
                 SONGS,
                 SONGS,
-                String.valueOf(songs.size()),
-                Uri.parse(IC_SONG),
-                FLAG_PLAYLIST));
+                String.valueOf(snapshot.songs.size()),
+                getIconUri(IC_SONG),
+                FLAG_PLAYLIST,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                FOLDERS,
+                FOLDERS,
+                String.valueOf(folders.getChildrenCount("")),
+                getIconUri(IC_FOLDER),
+                FLAG_BROWSABLE,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                GENRES,
+                GENRES,
+                String.valueOf(snapshot.genreFacet.size()),
+                getIconUri(IC_SONG),
+                FLAG_BROWSABLE,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                DECADES,
+                DECADES,
+                String.valueOf(snapshot.decadeFacet.size()),
+                getIconUri(IC_SONG),
+                FLAG_BROWSABLE,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                FORMATS,
+                FORMATS,
+                String.valueOf(snapshot.formatFacet.size()),
+                getIconUri(IC_SONG),
+                FLAG_BROWSABLE,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                RECENTLY_ADDED,
+                RECENTLY_ADDED,
+                String.valueOf(Math.min(recentlyAdded.size(), MAX_RECENT_SONGS)),
+                getIconUri(IC_SONG),
+                FLAG_PLAYLIST,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                RECENTLY_PLAYED,
+                RECENTLY_PLAYED,
+                String.valueOf(Math.min(playLog.size(), MAX_RECENT_SONGS)),
+                getIconUri(IC_SONG),
+                FLAG_PLAYLIST,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                MOST_PLAYED,
+                MOST_PLAYED,
+                String.valueOf(Math.min(playLog.size(), MAX_RECENT_SONGS)),
+                getIconUri(IC_SONG),
+                FLAG_PLAYLIST,
+                carClient));
+        mediaItems.add(generateBrowsableOrPlaylistItem(
+                PLAYLISTS,
+                PLAYLISTS,
+                String.valueOf(playlists.getPlaylists().size()),
+                getIconUri(IC_PLAYLIST),
+                FLAG_BROWSABLE,
+                carClient));
         return mediaItems;
     }
 
@@ -379,42 +2001,46 @@ public class MusicLibrary {
      * For default clients returns the {@value MusicLibrary#SONGS} MediaItems
      * (with the image Uri for the artist) and the flag set to {@value MusicLibrary#FLAG_PLAYABLE}
      *
-     * @param parentId The parent ID clicked to get in this category which can be ALBUMS or ARTISTS
-     *                 or SONGS
+     * @param snapshot  The songs, the albums and the artists listed
+     * @param parentId  The parent ID clicked to get in this category which can be ALBUMS or ARTISTS
+     *                  or SONGS
+     * @param carClient True if the client browsing is Android Auto
      * @return The mediaItems as {@value MusicLibrary#FLAG_PLAYABLE}, {@link MusicLibrary#FLAG_PLAYLIST}
      * or an empty list if the parentId does not exist or is unknown
      */
-    public List<MediaBrowserCompat.MediaItem> getItemsFromParentId(String parentId) {
+    private List<MediaBrowserCompat.MediaItem> getItemsFromParentId(Snapshot snapshot, String parentId, boolean carClient) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
         switch (parentId) {
             case ALBUMS:
 
                 /* Create the children for ALBUMS, for every album in "albums" create the item as a PLAYLIST */
-                for (AlbumItem album : albums) {
+                for (AlbumItem album : snapshot.albums) {
                     mediaItems.add(generateBrowsableOrPlaylistItem(
                             album.getIdString(),
                             album.getName(),
                             "",
                             album.getAlbumArt(),
-                            FLAG_PLAYLIST));
+                            FLAG_PLAYLIST,
+                            carClient));
                 }
                 break;
             case ARTISTS:
 
                 /* Create the children for ARTISTS, for every artist in "artists" create the item as a PLAYLIST */
-                for (ArtistItem artist : artists) {
+                for (ArtistItem artist : snapshot.artists) {
                     mediaItems.add(generateBrowsableOrPlaylistItem(
                             artist.getIdString(),
                             artist.getName(),
                             "",
                             artist.getAlbumArt(),
-                            FLAG_PLAYLIST));
+                            FLAG_PLAYLIST,
+                            carClient));
                 }
                 break;
             case SONGS:
 
                 /* Called when a client subscribes to SONGS, it does not happen with Android Auto as client */
-                for (SongItem song : songs) {
+                for (SongItem song : snapshot.songs) {
                     mediaItems.add(generatePlayableItem(
                             song.getIdString(),
                             song.getTitle(),
@@ -432,50 +2058,56 @@ public class MusicLibrary {
     }
 
     /**
-     * Called when a specific album or artist is asked, build a playlist from {@param parentId}
+     * Called when a specific album, artist or album of an artist is asked. An artist has its
+     * albums as children, an album has its songs in track order. Only the children are visited,
+     * with the indexes described in {@link Snapshot#songPositions}
      *
-     * @param parentId The parentId as a String, it is the unique identifier of the item
+     * @param snapshot  The songs and their indexes
+     * @param parentId  The parentId as a String, it is the unique identifier of the item
+     * @param carClient True if the client browsing is Android Auto
      * @return A list of MediaItems with the children of {@param parentId}
      */
-    public List<MediaBrowserCompat.MediaItem> getAlbumArtistItemsFromParentId(String parentId) {
+    private List<MediaBrowserCompat.MediaItem> getAlbumArtistItemsFromParentId(Snapshot snapshot, String parentId, boolean carClient) {
         List<MediaBrowserCompat.MediaItem> mediaItems = new ArrayList<>();
 
-        /* The ids are in the form "album_id", "artist_id" */
-        if (parentId.contains(ALBUM_)) {
-
-            /* Get just the id value (just the number as string after "album_") */
-            String string_id = parentId.substring(ALBUM_.length());
-
-            /* The parent id is an album, we then send back the songs that share the same album */
-            for (SongItem songItem : songs) {
-                /* If the album ID (long) equals the ID at the end of the parentID "album_id" */
-                if (String.valueOf(songItem.getAlbumId()).equals(string_id)) {
-
-                    /* Generate the playable items */
-                    mediaItems.add(generatePlayableItem(
-                            songItem.getIdString(),
-                            songItem.getTitle(),
-                            songItem.getArtist(),
-                            songItem.getAlbum(),
-                            songItem.getAlbumArtUri(),
-                            songItem.getSongUri()));
-                }
-            }
-        } else if (parentId.contains(ARTIST_)) {
-            String string_id = parentId.substring(ARTIST_.length());
-            for (SongItem songItem : songs) {
-                if (String.valueOf(songItem.getArtistId()).equals(string_id)) {
-                    mediaItems.add(generatePlayableItem(
-                            songItem.getIdString(),
-                            songItem.getTitle(),
-                            songItem.getArtist(),
-                            songItem.getAlbum(),
-                            songItem.getAlbumArtUri(),
-                            songItem.getSongUri()));
-                }
+        /* The albums of an artist, each one shown with the first of its songs */
+        if (parentId.startsWith(ARTIST_)) {
+            long artistId = parseId(parentId, ARTIST_);
+            int[] slice = snapshot.artistSongs.get(artistId);
+            int[] starts = snapshot.artistAlbumStarts.get(artistId);
+            if (slice == null || starts == null)
+                return mediaItems;
+
+            for (int i = 0; i < starts.length - 1; i++) {
+                SongItem songItem = snapshot.songs.get(slice[starts[i]]);
+                mediaItems.add(generateBrowsableOrPlaylistItem(
+                        ARTIST_ALBUM_ + artistId + "_" + songItem.getAlbumId(),
+                        songItem.getAlbum(),
+                        String.valueOf(starts[i + 1] - starts[i]),
+                        songItem.getAlbumArtUri(),
+                        FLAG_PLAYLIST,
+                        carClient));
             }
+            return mediaItems;
         }
 
+        /* The ids are in the form "album_id" or "artistalbum_id_id", their songs are in the index */
+        int[] slice = snapshot.getSlice(parentId);
+        if (slice == null)
+            return mediaItems;
+
+        for (int position : slice) {
+            SongItem songItem = snapshot.songs.get(position);
+
+            /* Generate the playable items */
+            mediaItems.add(generatePlayableItem(
+                    songItem.getIdString(),
+                    songItem.getTitle(),
+                    songItem.getArtist(),
+                    songItem.getAlbum(),
+                    songItem.getAlbumArtUri(),
+                    songItem.getSongUri()));
+        }
         return mediaItems;
     }
 
@@ -492,6 +2124,16 @@ public class MusicLibrary {
      * {@value MusicLibrary#FLAG_PLAYLIST}
      */
     private MediaBrowserCompat.MediaItem generatePlayableItem(String id, String title, String artist, String album, Uri albumUri, Uri mediaUri) {
+        return generatePlayableItem(id, title, artist, album, albumUri, mediaUri, null);
+    }
+
+    /**
+     * Creates a MediaItem like {@link MusicLibrary#generatePlayableItem(String, String, String, String, Uri, Uri)}
+     * with more information about the song
+     *
+     * @param extras The extras of the description, can be null
+     */
+    private MediaBrowserCompat.MediaItem generatePlayableItem(String id, String title, String artist, String album, Uri albumUri, Uri mediaUri, Bundle extras) {
         MediaDescriptionCompat.Builder mediaDescriptionBuilder = new MediaDescriptionCompat.Builder();
 
         /*
@@ -510,7 +2152,9 @@ public class MusicLibrary {
                 /* Set the iconUri of the bitmap */
                 .setIconUri(albumUri)
                 /* Set the mediaUri of the song itself */
-                .setMediaUri(mediaUri);
+                .setMediaUri(mediaUri)
+                /* Set the extra information, if any */
+                .setExtras(extras);
         /*
         Return a new MediaItem with the flag PLAYABLE indicating that the item can be playable
         so MediaBrowserServiceCompat can start the player screen on Android Auto
@@ -524,35 +2168,61 @@ public class MusicLibrary {
      * @return A list of QueueItems that holds the information of all the songs
      */
     public List<MediaSessionCompat.QueueItem> getSongsQueue() {
+        return getSnapshot().buildSongsQueue();
+    }
 
-        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>();
-
-        /*
-        Assign a position to every QueueItem to know its position in the queue.
-        This position value is also used as the id of the queue item from the MediaSessionCompat
-        */
-        int queuePosition = 0;
-        for (SongItem songItem : songs) {
-
-            /* Add extra data as DURATION and ALBUM_URI */
-            Bundle extras = new Bundle();
-            extras.putLong(DURATION_ARGS_EXTRA, songItem.getDuration());
-            extras.putString(ALBUM_ART_URI_ARGS_EXTRA, songItem.getAlbumArtUri().toString());
-
-            queueItems.add(
-                    buildQueueItem(songItem.getIdString(),
-                            songItem.getSongUri(),
-                            songItem.getTitle(),
-                            songItem.getArtist(),
-                            songItem.getAlbum(),
-                            extras, queuePosition));
+    /**
+     * Creates the QueueItem of a single song, used to add it to the current queue
+     *
+     * @param songId The mediaId of the song as <song_id> (es "song_1")
+     * @return The QueueItem of the song, null if there is no song with the given id. The queue id
+     * is assigned by the queue of the session
+     */
+    public MediaSessionCompat.QueueItem getSongQueueItem(String songId) {
+        Snapshot snapshot = getSnapshot();
+        Integer position = snapshot.songPositions.get(parseId(songId, SONG_));
+        return (position != null) ? snapshot.getQueueItem(position) : null;
+    }
 
-            /* Increment the current item that is added */
-            queuePosition++;
+    /**
+     * Creates the QueueItems of the given songs, in the same order, used to restore a queue saved
+     * by {@link com.armaggheddon.muzic.QueueStore}. Only the songs asked are built, not the whole
+     * library
+     *
+     * @param songIds The MediaStore ids of the songs
+     * @return A list with the same size of {@param songIds}, with null for the songs that are no
+     * longer in the library. The queue ids are assigned by the queue of the session
+     */
+    public List<MediaSessionCompat.QueueItem> getSongsQueue(long[] songIds) {
+        Snapshot snapshot = getSnapshot();
+        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>(songIds.length);
+        for (long songId : songIds) {
+            Integer position = snapshot.songPositions.get(songId);
+            queueItems.add((position != null) ? snapshot.getQueueItem(position) : null);
         }
         return queueItems;
     }
 
+    /**
+     * Builds the QueueItem of a song with DURATION and ALBUM_URI as extras and no queue id
+     *
+     * @param songItem The song
+     * @return The QueueItem
+     */
+    private static MediaSessionCompat.QueueItem buildSongQueueItem(SongItem songItem) {
+        Bundle extras = new Bundle();
+        extras.putLong(DURATION_ARGS_EXTRA, songItem.getDuration());
+        extras.putString(ALBUM_ART_URI_ARGS_EXTRA, songItem.getAlbumArtUri().toString());
+
+        return buildQueueItem(songItem.getIdString(),
+                songItem.getSongUri(),
+                songItem.getTitle(),
+                songItem.getArtist(),
+                songItem.getAlbum(),
+                extras,
+                -1);
+    }
+
     /**
      * Helper method that builds a QueueItem
      *
@@ -566,7 +2236,7 @@ public class MusicLibrary {
      * @return a
      * The QueueItem
      */
-    private MediaSessionCompat.QueueItem buildQueueItem(String idString, Uri songUri, String title, String artist, String album, Bundle extras, int queuePosition) {
+    private static MediaSessionCompat.QueueItem buildQueueItem(String idString, Uri songUri, String title, String artist, String album, Bundle extras, int queuePosition) {
         return new MediaSessionCompat.QueueItem(
                 new MediaDescriptionCompat.Builder().setMediaId(idString)
                         .setMediaUri(songUri)
@@ -584,40 +2254,13 @@ public class MusicLibrary {
      * @param albumId The albumId string as <album_id> (es "album_1")
      * @return The list of QueueItems with all the songs in the albumId album
      */
-    /* Suppress because it is not a user visible string, no need to format to "DefaultLocale" */
-    @SuppressLint("DefaultLocale")
     public List<MediaSessionCompat.QueueItem> getAlbumIdQueue(String albumId) {
-        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>();
-        int queuePosition = 0;
-        for (SongItem songItem : songs) {
-            /*
-            Check if the song album matches the same albumId building the albumId string from the
-            songItem as "album_" + the albumId in the songItem
-             */
-            if (albumId.equals(String.format("%s%d", ALBUM_, songItem.getAlbumId()))) {
-                Bundle extras = new Bundle();
-
-                /* Add extra data as DURATION and ALBUM_URI */
-                extras.putLong(DURATION_ARGS_EXTRA, songItem.getDuration());
-                extras.putString(ALBUM_ART_URI_ARGS_EXTRA, songItem.getAlbumArtUri().toString());
-
-                queueItems.add(
-                        buildQueueItem(songItem.getIdString(),
-                                songItem.getSongUri(),
-                                songItem.getTitle(),
-                                songItem.getArtist(),
-                                songItem.getAlbum(),
-                                extras,
-                                queuePosition)
-                );
-                queuePosition++;
-            }
-        }
-        return queueItems;
+        Snapshot snapshot = getSnapshot();
+        return snapshot.buildQueue(snapshot.albumSongs.get(parseId(albumId, ALBUM_)), null);
     }
 
     /**
-     * Search in {@link MusicLibrary#albums} for {@link AlbumItem} name and builds a queue with the
+     * Search in {@link Snapshot#albums} for {@link AlbumItem} name and builds a queue with the
      * songs in the album
      *
      * @param query The query string parsed
@@ -625,26 +2268,20 @@ public class MusicLibrary {
      * does not exist
      */
     public List<MediaSessionCompat.QueueItem> getAlbumQueueFromQuery(String query) {
-        String albumId = null;
+        Snapshot snapshot = getSnapshot();
 
         /* Search in albums */
-        for (AlbumItem item : albums) {
+        for (AlbumItem item : snapshot.albums) {
 
-            /* If the title of an album matches the query */
-            if (query.equalsIgnoreCase(item.getName())) {
-
-                /* Get the IdString of the album and stop the loop */
-                albumId = item.getIdString();
-                break;
-            }
+            /* If the title of an album matches the query build the queue of its songs */
+            if (query.equalsIgnoreCase(item.getName()))
+                return snapshot.buildQueue(snapshot.albumSongs.get(item.getId()), null);
         }
-
-        /* Delegate to getAlbumIdQueue building the queue, return null if no songs are available */
-        return (albumId != null) ? getAlbumIdQueue(albumId) : null;
+        return null;
     }
 
     /**
-     * Search in {@link MusicLibrary#artists} for {@link ArtistItem} name and builds a queue with
+     * Search in {@link Snapshot#artists} for {@link ArtistItem} name and builds a queue with
      * the songs of the same artist
      *
      * @param query The query string parsed
@@ -652,29 +2289,20 @@ public class MusicLibrary {
      * artist does not exist
      */
     public List<MediaSessionCompat.QueueItem> getArtistQueueFromQuery(String query) {
-        String artistId = null;
+        Snapshot snapshot = getSnapshot();
 
         /* Search in the artists */
-        for (ArtistItem item : artists) {
-
-            /* If the name of the artist matches query */
-            if (query.equalsIgnoreCase(item.getName())) {
+        for (ArtistItem item : snapshot.artists) {
 
-                /* Get the IdString of the artist and stop the loop */
-                artistId = item.getIdString();
-                break;
-            }
+            /* If the name of the artist matches query build the queue of its songs */
+            if (query.equalsIgnoreCase(item.getName()))
+                return snapshot.buildQueue(snapshot.artistSongs.get(item.getId()), null);
         }
-
-        /*
-        Delegate to getArtistIdQueue building the queue, return null if no songs are available.
-        Set the flag of the method to false because there is no need to edit the queue
-        */
-        return (artistId != null) ? getArtistIdQueue(artistId, null) : null;
+        return null;
     }
 
     /**
-     * Search in {@link MusicLibrary#songs} for {@link SongItem} title and builds a queue with the
+     * Search in {@link Snapshot#songs} for {@link SongItem} title and builds a queue with the
      * song queried in the first position and the songs of the same artist in the following positions
      *
      * @param query t
@@ -682,13 +2310,13 @@ public class MusicLibrary {
      * @return The list of QueueItems with the song queried and the songs from the same artist,
      * null if the song does not exist
      */
-    @SuppressLint("DefaultLocale")
     public List<MediaSessionCompat.QueueItem> getSongsQueueFromQuery(String query) {
 
+        Snapshot snapshot = getSnapshot();
         SongItem songResult = null;
 
         /* Search in the songs */
-        for (SongItem songItem : songs) {
+        for (SongItem songItem : snapshot.songs) {
 
             /* If the title matches the query, check for prefix since the song can contain more "data" */
             if ((songItem.getTitle().toLowerCase()).startsWith(query.toLowerCase())) {
@@ -707,25 +2335,11 @@ public class MusicLibrary {
         */
         if (songResult != null) {
 
-            /* Get the queue for the artist setting the flag to skip the song we will add later */
+            /* Get the queue for the artist skipping the song we will add in the first position */
             List<MediaSessionCompat.QueueItem> resultQueue =
-                    getArtistIdQueue(String.format("%s%d", ARTIST_, songResult.getArtistId()), songResult.getIdString());
-
-            /* Build the QueueItem for songResult */
-            Bundle extras = new Bundle();
-            extras.putLong(DURATION_ARGS_EXTRA, songResult.getDuration());
-            extras.putString(ALBUM_ART_URI_ARGS_EXTRA, songResult.getAlbumArtUri().toString());
-
-            /* Add the songItem in the first position of the list*/
-            resultQueue.add(0,
-                    buildQueueItem(songResult.getIdString(),
-                            songResult.getSongUri(),
-                            songResult.getTitle(),
-                            songResult.getArtist(),
-                            songResult.getAlbum(),
-                            extras,
-                            0
-                    ));
+                    snapshot.buildQueue(snapshot.artistSongs.get(songResult.getArtistId()),
+                            snapshot.songPositions.get(songResult.getId()));
+            resultQueue.add(0, buildSongQueueItem(songResult));
 
             return resultQueue;
         }
@@ -735,61 +2349,17 @@ public class MusicLibrary {
     }
 
     /**
-     * Creates a List containing the queue items that matches a common artist, it also used to create
-     * a custom queue for a song query. If {@param songIdToSkip} is set to null the default behaviour
-     * is applied and a queue with all the songs of an artist is created.
-     * If is not null, set the initial position to be 1 because {@link MusicLibrary#getSongsQueueFromQuery(String)}
-     * will add the search result in the first position, it is also necessary to skip
-     * {@param songIdToSkip} to avoid setting the wrong position in the QueueItem and causing the queue
-     * to have wrong ids and presenting unexpected behaviours
+     * Creates a List containing the queue items that matches a common artist
      *
      * @param artistId     The artistId string as <artist_id> (es "artist_1")
-     * @param songIdToSkip A string representing the song item to skip when building the queue.
-     *                     If is null nothing is done. If is no null then the first item is assigned to
-     *                     position 1 and in the loop when the current songItem matches {@param songIdToSkip}
-     *                     is skipped and the current position not updated to avoid having duplicates
-     *                     when later {@link MusicLibrary#getSongsQueueFromQuery(String)} will add
-     *                     the query result to the first position
+     * @param songIdToSkip A string representing the song item to skip when building the queue,
+     *                     as <song_id> (es "song_1"). If is null nothing is skipped
      * @return The list of QueueItems with all the songs with artistId as artist
      */
-    /* Suppress because it is not a user visible string, no need to format to "DefaultLocale" */
-    @SuppressLint("DefaultLocale")
     public List<MediaSessionCompat.QueueItem> getArtistIdQueue(String artistId, String songIdToSkip) {
-        List<MediaSessionCompat.QueueItem> queueItems = new ArrayList<>();
-        int queuePosition = 0;
-
-        /* If not null start counting from 1 */
-        if (songIdToSkip != null)
-            queuePosition = 1;
-        for (SongItem songItem : songs) {
-
-            /* If the song item has the same stringId as the one asked to skip, continue */
-            if (songItem.getIdString().equalsIgnoreCase(songIdToSkip))
-                continue;
-            /*
-            Check if the song artist matches the same artistId building the artistId string from the
-            songItem as "artist_" + artistId in the songItem
-             */
-            if (artistId.equals(String.format("%s%d", ARTIST_, songItem.getArtistId()))) {
-                Bundle extras = new Bundle();
-
-                /* Add extra data as DURATION and ALBUM_URI */
-                extras.putLong(DURATION_ARGS_EXTRA, songItem.getDuration());
-                extras.putString(ALBUM_ART_URI_ARGS_EXTRA, songItem.getAlbumArtUri().toString());
-
-                queueItems.add(
-                        buildQueueItem(songItem.getIdString(),
-                                songItem.getSongUri(),
-                                songItem.getTitle(),
-                                songItem.getArtist(),
-                                songItem.getAlbum(),
-                                extras,
-                                queuePosition)
-                );
-                queuePosition++;
-            }
-        }
-        return queueItems;
+        Snapshot snapshot = getSnapshot();
+        Integer skip = (songIdToSkip != null) ? snapshot.songPositions.get(parseId(songIdToSkip, SONG_)) : null;
+        return snapshot.buildQueue(snapshot.artistSongs.get(parseId(artistId, ARTIST_)), skip);
     }
 
     /**
@@ -806,9 +2376,10 @@ public class MusicLibrary {
      *                 {@value MusicLibrary#ARTISTS} and {@value MusicLibrary#SONGS}
      * @param flag     The flags to use to build the MediaItem as shown in the top of the class it is
      *                 {@value MusicLibrary#FLAG_PLAYLIST} or {@value MusicLibrary#FLAG_BROWSABLE}
+     * @param carClient True if the item is for Android Auto
      * @return The MediaItem built from the data given
      */
-    private MediaBrowserCompat.MediaItem generateBrowsableOrPlaylistItem(String id, String title, String subtitle, Uri iconUri, int flag) {
+    private MediaBrowserCompat.MediaItem generateBrowsableOrPlaylistItem(String id, String title, String subtitle, Uri iconUri, int flag, boolean carClient) {
 
         if (flag != FLAG_PLAYLIST && flag != FLAG_BROWSABLE)
             return null;
@@ -823,7 +2394,7 @@ public class MusicLibrary {
         if (iconUri != null) {
 
             /* If is a car client give the iconUri formatted in order to be read from our content provider */
-            mediaDescriptionBuilder.setIconUri((MusicService.IS_CAR_CONNECTED)? ArtProvider.mapUri(iconUri) : iconUri);
+            mediaDescriptionBuilder.setIconUri((carClient)? ArtProvider.mapUri(iconUri) : iconUri);
         }
 
         return new MediaBrowserCompat.MediaItem(mediaDescriptionBuilder.build(), flag);
@@ -0,0 +1,450 @@
+package com.armaggheddon.muzic.library;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.MediaStore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The playlists of the user, kept in a local SQLite database.
+ * The order of the songs of a playlist is given by a key, not by a position: the songs are
+ * added with keys {@value PlaylistStore#GAP} apart, and a song inserted or moved between two
+ * others takes a key in the middle of their keys. So adding, moving or removing a song writes
+ * only its own row, whatever the length of the playlist. When two neighbours have no key left
+ * between them the keys of the playlist are spaced again, once every many edits in the same spot.
+ * The writes are done on the thread of the caller, they are meant for a background thread
+ */
+
+final class PlaylistStore extends SQLiteOpenHelper {
+
+    private static final String DATABASE_NAME = "playlists.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String PLAYLISTS = "playlists";
+    private static final String ENTRIES = "entries";
+
+    private static final String ID = "_id";
+    private static final String NAME = "name";
+    private static final String PLAYLIST_ID = "playlist_id";
+    private static final String SONG_ID = "song_id";
+    private static final String ORDER_KEY = "order_key";
+
+    /* The distance between the keys of two songs added one after the other */
+    private static final long GAP = 1L << 32;
+
+    private static final String ENTRIES_ORDER = ORDER_KEY + ", " + ID;
+
+    /**
+     * A playlist returned by {@link PlaylistStore#getPlaylists()}
+     */
+    static final class Playlist {
+        final long id;
+        final String name;
+        final int count;
+
+        private Playlist(long id, String name, int count) {
+            this.id = id;
+            this.name = name;
+            this.count = count;
+        }
+    }
+
+    /* True if the database was created when it was opened, so there is nothing of the user yet */
+    private boolean created = false;
+
+    /**
+     * @param context The context used to find the database
+     */
+    PlaylistStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.setForeignKeyConstraintsEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + PLAYLISTS + " ("
+                + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + NAME + " TEXT NOT NULL)");
+        db.execSQL("CREATE TABLE " + ENTRIES + " ("
+                + ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + PLAYLIST_ID + " INTEGER NOT NULL REFERENCES " + PLAYLISTS + "(" + ID + ") ON DELETE CASCADE, "
+                + SONG_ID + " INTEGER NOT NULL, "
+                + ORDER_KEY + " INTEGER NOT NULL)");
+
+        /* Every read and edit of the songs of a playlist walks this index */
+        db.execSQL("CREATE INDEX entries_order ON " + ENTRIES + " (" + PLAYLIST_ID + ", " + ORDER_KEY + ")");
+        created = true;
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Opens the database, creating it the first time
+     *
+     * @return True if the database was just created
+     */
+    synchronized boolean open() {
+        getWritableDatabase();
+        return created;
+    }
+
+    /**
+     * @return The playlists by name, each one with its number of songs
+     */
+    List<Playlist> getPlaylists() {
+        List<Playlist> playlists = new ArrayList<>();
+        try (Cursor cursor = getReadableDatabase().rawQuery(
+                "SELECT p." + ID + ", p." + NAME + ", COUNT(e." + ID + ") FROM " + PLAYLISTS + " p"
+                        + " LEFT JOIN " + ENTRIES + " e ON e." + PLAYLIST_ID + " = p." + ID
+                        + " GROUP BY p." + ID + " ORDER BY p." + NAME + " COLLATE NOCASE", null)) {
+            while (cursor.moveToNext())
+                playlists.add(new Playlist(cursor.getLong(0), cursor.getString(1), cursor.getInt(2)));
+        }
+        return playlists;
+    }
+
+    /**
+     * @param playlistId The id of the playlist
+     * @return The name of the playlist, null if there is no such playlist
+     */
+    String getName(long playlistId) {
+        try (Cursor cursor = getReadableDatabase().query(PLAYLISTS, new String[]{NAME},
+                ID + "=?", new String[]{String.valueOf(playlistId)}, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * Reads a window of the songs of a playlist, only the ids so the songs are taken from the
+     * library
+     *
+     * @param playlistId The id of the playlist
+     * @param offset     The index of the first song
+     * @param count      The number of songs at most
+     * @return The MediaStore ids of the songs in their order, empty if there is no such playlist
+     */
+    long[] getSongIds(long playlistId, int offset, int count) {
+        long[] songIds = new long[16];
+        int size = 0;
+        try (Cursor cursor = getReadableDatabase().query(ENTRIES, new String[]{SONG_ID},
+                PLAYLIST_ID + "=?", new String[]{String.valueOf(playlistId)}, null, null,
+                ENTRIES_ORDER, Math.max(0, offset) + "," + Math.max(0, count))) {
+            while (cursor.moveToNext()) {
+                if (size == songIds.length)
+                    songIds = Arrays.copyOf(songIds, size * 2);
+                songIds[size++] = cursor.getLong(0);
+            }
+        }
+        return Arrays.copyOf(songIds, size);
+    }
+
+    /**
+     * Creates a playlist with its songs in a single transaction
+     *
+     * @param name    The name of the playlist
+     * @param songIds The MediaStore ids of the songs in their order
+     * @return The id of the playlist, -1 if it was not created
+     */
+    long create(String name, long[] songIds) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long playlistId = insertPlaylist(db, name);
+            if (playlistId == -1)
+                return -1;
+            appendEntries(db, playlistId, songIds);
+            db.setTransactionSuccessful();
+            return playlistId;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param playlistId The id of the playlist, its songs are removed with it
+     * @return True if the playlist existed
+     */
+    boolean delete(long playlistId) {
+        return getWritableDatabase().delete(PLAYLISTS, ID + "=?",
+                new String[]{String.valueOf(playlistId)}) > 0;
+    }
+
+    /**
+     * Inserts songs in a playlist, the keys of the new songs are taken between the keys of the
+     * songs around them so no other row is written
+     *
+     * @param playlistId The id of the playlist
+     * @param index      The index of the first song inserted, the songs from this index move
+     *                   forward. An index past the end appends the songs
+     * @param songIds    The MediaStore ids of the songs
+     * @return True if the songs were inserted
+     */
+    boolean insert(long playlistId, int index, long[] songIds) {
+        if (songIds.length == 0)
+            return true;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            if (getName(playlistId) == null)
+                return false;
+
+            long[] bounds = getBounds(db, playlistId, index, songIds.length, -1);
+            if (bounds == null) {
+                respace(db, playlistId);
+                bounds = getBounds(db, playlistId, index, songIds.length, -1);
+            }
+            long step = (bounds[1] - bounds[0]) / (songIds.length + 1);
+            SQLiteStatement statement = compileInsert(db);
+            for (int i = 0; i < songIds.length; i++)
+                insertEntry(statement, playlistId, songIds[i], bounds[0] + step * (i + 1));
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Moves a song of a playlist, only the row of the song is written
+     *
+     * @param playlistId The id of the playlist
+     * @param from       The index of the song
+     * @param to         The index of the song after the move
+     * @return True if the song was moved
+     */
+    boolean move(long playlistId, int from, int to) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long entryId = getEntryId(db, playlistId, from);
+            if (entryId == -1 || to < 0)
+                return false;
+            if (from == to) {
+                db.setTransactionSuccessful();
+                return true;
+            }
+
+            long[] bounds = getBounds(db, playlistId, to, 1, entryId);
+            if (bounds == null) {
+                respace(db, playlistId);
+                bounds = getBounds(db, playlistId, to, 1, entryId);
+            }
+            ContentValues values = new ContentValues();
+            values.put(ORDER_KEY, bounds[0] + (bounds[1] - bounds[0]) / 2);
+            db.update(ENTRIES, values, ID + "=?", new String[]{String.valueOf(entryId)});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param playlistId The id of the playlist
+     * @param index      The index of the song to remove
+     * @return True if the song was removed
+     */
+    boolean remove(long playlistId, int index) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            long entryId = getEntryId(db, playlistId, index);
+            if (entryId == -1)
+                return false;
+            db.delete(ENTRIES, ID + "=?", new String[]{String.valueOf(entryId)});
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Copies the playlists of the MediaStore, all of them in a single transaction and with a
+     * statement compiled once for all the songs
+     *
+     * @param contentResolver The resolver used to read the MediaStore
+     * @return The number of playlists imported
+     */
+    @SuppressWarnings("deprecation")
+    int importMediaStore(ContentResolver contentResolver) {
+        List<Long> ids = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        try (Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.NAME},
+                null, null, null)) {
+            if (cursor == null)
+                return 0;
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+                names.add(cursor.getString(1));
+            }
+        } catch (SecurityException e) {
+            return 0;
+        }
+
+        /* The members are read before the transaction, so the database is not locked while reading */
+        List<long[]> members = new ArrayList<>(ids.size());
+        for (long id : ids)
+            members.add(readMembers(contentResolver, id));
+
+        int imported = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement statement = compileInsert(db);
+            for (int i = 0; i < ids.size(); i++) {
+                long playlistId = insertPlaylist(db, (names.get(i) != null) ? names.get(i) : "");
+                if (playlistId == -1)
+                    continue;
+                long[] songIds = members.get(i);
+                for (int j = 0; j < songIds.length; j++)
+                    insertEntry(statement, playlistId, songIds[j], GAP * (j + 1));
+                imported++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return imported;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static long[] readMembers(ContentResolver contentResolver, long playlistId) {
+        long[] songIds = new long[16];
+        int size = 0;
+        try (Cursor cursor = contentResolver.query(
+                MediaStore.Audio.Playlists.Members.getContentUri("external", playlistId),
+                new String[]{MediaStore.Audio.Playlists.Members.AUDIO_ID},
+                null, null, MediaStore.Audio.Playlists.Members.PLAY_ORDER)) {
+            if (cursor == null)
+                return new long[0];
+            while (cursor.moveToNext()) {
+                if (size == songIds.length)
+                    songIds = Arrays.copyOf(songIds, size * 2);
+                songIds[size++] = cursor.getLong(0);
+            }
+        }
+        return Arrays.copyOf(songIds, size);
+    }
+
+    private static long insertPlaylist(SQLiteDatabase db, String name) {
+        ContentValues values = new ContentValues();
+        values.put(NAME, name);
+        return db.insert(PLAYLISTS, null, values);
+    }
+
+    private static void appendEntries(SQLiteDatabase db, long playlistId, long[] songIds) {
+        SQLiteStatement statement = compileInsert(db);
+        for (int i = 0; i < songIds.length; i++)
+            insertEntry(statement, playlistId, songIds[i], GAP * (i + 1));
+    }
+
+    private static SQLiteStatement compileInsert(SQLiteDatabase db) {
+        return db.compileStatement("INSERT INTO " + ENTRIES
+                + " (" + PLAYLIST_ID + ", " + SONG_ID + ", " + ORDER_KEY + ") VALUES (?, ?, ?)");
+    }
+
+    private static void insertEntry(SQLiteStatement statement, long playlistId, long songId, long orderKey) {
+        statement.bindLong(1, playlistId);
+        statement.bindLong(2, songId);
+        statement.bindLong(3, orderKey);
+        statement.executeInsert();
+    }
+
+    /**
+     * @return The id of the row of the song at {@param index}, -1 if there is none
+     */
+    private static long getEntryId(SQLiteDatabase db, long playlistId, int index) {
+        if (index < 0)
+            return -1;
+        try (Cursor cursor = db.query(ENTRIES, new String[]{ID},
+                PLAYLIST_ID + "=?", new String[]{String.valueOf(playlistId)}, null, null,
+                ENTRIES_ORDER, index + ",1")) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : -1;
+        }
+    }
+
+    /**
+     * Finds the keys between which {@param count} songs are placed so the first one is at
+     * {@param index}, reading only the two songs around that place
+     *
+     * @param index   The index of the first song, past the end for the songs appended
+     * @param exclude The id of the row of a song moved, it is not counted, -1 for none
+     * @return The key before and the key after the place, both excluded, or null if there are
+     * not enough keys between them
+     */
+    private static long[] getBounds(SQLiteDatabase db, long playlistId, int index, int count, long exclude) {
+        String selection = PLAYLIST_ID + "=?" + ((exclude != -1) ? " AND " + ID + "!=" + exclude : "");
+        long lower = 0;
+        long upper = -1;
+        try (Cursor cursor = db.query(ENTRIES, new String[]{ORDER_KEY},
+                selection, new String[]{String.valueOf(playlistId)}, null, null,
+                ENTRIES_ORDER, Math.max(0, index - 1) + ",2")) {
+            if (index > 0 && cursor.moveToNext())
+                lower = cursor.getLong(0);
+            else if (index > 0)
+                lower = getLastKey(db, selection, playlistId);
+            if (cursor.moveToNext())
+                upper = cursor.getLong(0);
+        }
+
+        /* At the end of the playlist, the songs are spaced like when they are appended */
+        if (upper == -1)
+            upper = lower + GAP * (count + 1);
+        return (upper - lower > count) ? new long[]{lower, upper} : null;
+    }
+
+    /**
+     * @return The key of the last song, read from the end of the index, 0 if there are no songs
+     */
+    private static long getLastKey(SQLiteDatabase db, String selection, long playlistId) {
+        try (Cursor cursor = db.query(ENTRIES, new String[]{ORDER_KEY},
+                selection, new String[]{String.valueOf(playlistId)}, null, null,
+                ORDER_KEY + " DESC, " + ID + " DESC", "1")) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        }
+    }
+
+    /**
+     * Spaces again the keys of all the songs of a playlist, keeping their order
+     */
+    private static void respace(SQLiteDatabase db, long playlistId) {
+
+        /* The ids are read first, the keys are not updated while the index is walked */
+        long[] entryIds = new long[16];
+        int size = 0;
+        try (Cursor cursor = db.query(ENTRIES, new String[]{ID},
+                PLAYLIST_ID + "=?", new String[]{String.valueOf(playlistId)}, null, null,
+                ENTRIES_ORDER)) {
+            while (cursor.moveToNext()) {
+                if (size == entryIds.length)
+                    entryIds = Arrays.copyOf(entryIds, size * 2);
+                entryIds[size++] = cursor.getLong(0);
+            }
+        }
+
+        SQLiteStatement statement = db.compileStatement("UPDATE " + ENTRIES
+                + " SET " + ORDER_KEY + "=? WHERE " + ID + "=?");
+        for (int i = 0; i < size; i++) {
+            statement.bindLong(1, GAP * (i + 1));
+            statement.bindLong(2, entryIds[i]);
+            statement.executeUpdateDelete();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.armaggheddon.muzic.library;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An immutable set of positions in the songs of {@link MusicLibrary}, kept in the smaller of two
+ * forms: a sorted array of positions when the set is sparse, or a bitmap with a bit for every
+ * song when it is dense. A value that few songs have, like most genres, takes 4 bytes per song
+ * instead of a bit for every song of the library, while a value that many songs have, like the
+ * format of most of them, takes a bit per song.
+ * Two sets are intersected without looking at the songs: merging or searching the arrays,
+ * testing the bits of the positions of an array, or with an AND of the words of the bitmaps
+ */
+
+final class PositionSet {
+
+    /* An array is used when it takes less memory than the bitmap, 32 bits per position */
+    private static final int BITS_PER_POSITION = 32;
+
+    /* Below this ratio of sizes the small array is searched in the big one instead of merged */
+    private static final int SEARCH_RATIO = 16;
+
+    private final int[] positions;
+    private final long[] words;
+    private final int size;
+    private final int universe;
+
+    private PositionSet(int[] positions, long[] words, int size, int universe) {
+        this.positions = positions;
+        this.words = words;
+        this.size = size;
+        this.universe = universe;
+    }
+
+    /**
+     * @param positions The positions in ascending order, the array is kept so it must not be
+     *                  modified. Only the first {@param size} are read
+     * @param size      The number of positions
+     * @param universe  The number of songs, every position is lower than it
+     * @return The set in the form that takes less memory
+     */
+    static PositionSet of(int[] positions, int size, int universe) {
+        if ((long) size * BITS_PER_POSITION <= universe) {
+            int[] array = (positions.length == size) ? positions : Arrays.copyOf(positions, size);
+            return new PositionSet(array, null, size, universe);
+        }
+        long[] words = new long[(universe + 63) >>> 6];
+        for (int i = 0; i < size; i++)
+            words[positions[i] >>> 6] |= 1L << positions[i];
+        return new PositionSet(null, words, size, universe);
+    }
+
+    /**
+     * @return The number of positions in the set
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The lowest position of the set, -1 if it is empty
+     */
+    int first() {
+        if (size == 0)
+            return -1;
+        if (positions != null)
+            return positions[0];
+        int i = 0;
+        while (words[i] == 0)
+            i++;
+        return (i << 6) + Long.numberOfTrailingZeros(words[i]);
+    }
+
+    /**
+     * @return The positions of this set that are also in {@param other}
+     */
+    PositionSet and(PositionSet other) {
+        if (words != null && other.words != null)
+            return andWords(other);
+        if (positions != null && other.positions != null) {
+            return (size <= other.size) ? andPositions(this, other) : andPositions(other, this);
+        }
+
+        /* An array and a bitmap, keep the positions of the array whose bit is set */
+        PositionSet array = (positions != null) ? this : other;
+        PositionSet bitmap = (positions != null) ? other : this;
+        int[] result = new int[array.size];
+        int count = 0;
+        for (int i = 0; i < array.size; i++) {
+            if (bitmap.contains(array.positions[i]))
+                result[count++] = array.positions[i];
+        }
+        return of(result, count, universe);
+    }
+
+    /**
+     * Intersects the sets from the smallest one, so every intersection is not bigger than it, and
+     * stops as soon as the result is empty
+     *
+     * @param sets The sets to intersect, at least one. The array is sorted by size
+     * @return The positions that are in all the sets
+     */
+    static PositionSet and(PositionSet[] sets) {
+        Arrays.sort(sets, new Comparator<PositionSet>() {
+            @Override
+            public int compare(PositionSet o1, PositionSet o2) {
+                return Integer.compare(o1.size(), o2.size());
+            }
+        });
+        PositionSet result = sets[0];
+        for (int i = 1; i < sets.length && result.size() > 0; i++)
+            result = result.and(sets[i]);
+        return result;
+    }
+
+    /**
+     * @return True if the set has the position
+     */
+    boolean contains(int position) {
+        if (position < 0 || position >= universe)
+            return false;
+        if (words != null)
+            return (words[position >>> 6] & (1L << position)) != 0;
+        return Arrays.binarySearch(positions, 0, size, position) >= 0;
+    }
+
+    /**
+     * @return The number of positions of the set lower than {@param position}, that is its index
+     * in {@link PositionSet#toArray()}, -1 if the set does not have the position
+     */
+    int indexOf(int position) {
+        if (!contains(position))
+            return -1;
+        if (positions != null)
+            return Arrays.binarySearch(positions, 0, size, position);
+
+        int index = 0;
+        int word = position >>> 6;
+        for (int i = 0; i < word; i++)
+            index += Long.bitCount(words[i]);
+        return index + Long.bitCount(words[word] & ((1L << position) - 1));
+    }
+
+    /**
+     * @return The positions in ascending order
+     */
+    int[] toArray() {
+        if (positions != null)
+            return Arrays.copyOf(positions, size);
+
+        int[] array = new int[size];
+        int count = 0;
+        for (int i = 0; i < words.length; i++) {
+            long word = words[i];
+            while (word != 0) {
+                array[count++] = (i << 6) + Long.numberOfTrailingZeros(word);
+                word &= word - 1;
+            }
+        }
+        return array;
+    }
+
+    private PositionSet andWords(PositionSet other) {
+        long[] result = new long[words.length];
+        int count = 0;
+        for (int i = 0; i < result.length; i++) {
+            result[i] = words[i] & other.words[i];
+            count += Long.bitCount(result[i]);
+        }
+
+        /* The intersection can be sparse even when both sets are dense */
+        PositionSet set = new PositionSet(null, result, count, universe);
+        if ((long) count * BITS_PER_POSITION > universe)
+            return set;
+        return new PositionSet(set.toArray(), null, count, universe);
+    }
+
+    /**
+     * Intersects two arrays, {@param small} is not bigger than {@param big}
+     */
+    private static PositionSet andPositions(PositionSet small, PositionSet big) {
+        int[] result = new int[small.size];
+        int count = 0;
+        if ((long) small.size * SEARCH_RATIO < big.size) {
+            int from = 0;
+            for (int i = 0; i < small.size && from < big.size; i++) {
+                int index = Arrays.binarySearch(big.positions, from, big.size, small.positions[i]);
+                if (index >= 0) {
+                    result[count++] = small.positions[i];
+                    from = index + 1;
+                } else {
+                    from = -index - 1;
+                }
+            }
+        } else {
+            int i = 0;
+            int j = 0;
+            while (i < small.size && j < big.size) {
+                if (small.positions[i] < big.positions[j]) {
+                    i++;
+                } else if (small.positions[i] > big.positions[j]) {
+                    j++;
+                } else {
+                    result[count++] = small.positions[i];
+                    i++;
+                    j++;
+                }
+            }
+        }
+        return of(result, count, small.universe);
+    }
+}
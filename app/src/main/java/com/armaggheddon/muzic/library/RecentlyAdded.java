@@ -0,0 +1,112 @@
+package com.armaggheddon.muzic.library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The songs sorted by the time they were added to the storage, from
+ * {@value android.provider.MediaStore.Audio.Media#DATE_ADDED}. The songs are kept from the oldest
+ * to the newest, so a new song, the usual change, is appended at the end, and the newest songs
+ * are read backwards from the end in a time proportional to the number read.
+ * All the methods are synchronized since the index is updated on the thread that observes the
+ * storage and read by the clients of the browser service
+ */
+
+final class RecentlyAdded {
+
+    private static final class Entry {
+        final long dateAdded;
+        final long songId;
+        final SongItem songItem;
+
+        Entry(long dateAdded, long songId, SongItem songItem) {
+            this.dateAdded = dateAdded;
+            this.songId = songId;
+            this.songItem = songItem;
+        }
+    }
+
+    /* By date and then by id, so every song has a single place */
+    private static final Comparator<Entry> ENTRY_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            int result = Long.compare(o1.dateAdded, o2.dateAdded);
+            return (result != 0) ? result : Long.compare(o1.songId, o2.songId);
+        }
+    };
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    /* The date of every song, to find its entry when it is removed */
+    private final Map<Long, Long> dates = new HashMap<>();
+
+    /**
+     * Replaces all the songs, sorting them once
+     *
+     * @param songItems  The songs
+     * @param datesAdded The date added of every song by its id, in seconds
+     */
+    synchronized void reset(List<SongItem> songItems, Map<Long, Long> datesAdded) {
+        entries.clear();
+        dates.clear();
+        for (SongItem songItem : songItems) {
+            Long dateAdded = datesAdded.get(songItem.getId());
+            long date = (dateAdded != null) ? dateAdded : 0;
+            entries.add(new Entry(date, songItem.getId(), songItem));
+            dates.put(songItem.getId(), date);
+        }
+        Collections.sort(entries, ENTRY_COMPARATOR);
+    }
+
+    /**
+     * Adds a song, or moves it if it was already there
+     *
+     * @param songItem  The song
+     * @param dateAdded The date in which the song was added, in seconds
+     */
+    synchronized void put(SongItem songItem, long dateAdded) {
+        remove(songItem.getId());
+        Entry entry = new Entry(dateAdded, songItem.getId(), songItem);
+        int index = Collections.binarySearch(entries, entry, ENTRY_COMPARATOR);
+        entries.add((index < 0) ? -index - 1 : index, entry);
+        dates.put(songItem.getId(), dateAdded);
+    }
+
+    /**
+     * @param songId The MediaStore id of the song
+     * @return True if the song was there
+     */
+    synchronized boolean remove(long songId) {
+        Long dateAdded = dates.remove(songId);
+        if (dateAdded == null)
+            return false;
+
+        int index = Collections.binarySearch(entries, new Entry(dateAdded, songId, null), ENTRY_COMPARATOR);
+        if (index >= 0)
+            entries.remove(index);
+        return true;
+    }
+
+    /**
+     * @param offset The number of songs to skip, from the newest
+     * @param count  The number of songs at most
+     * @return The songs, the newest first
+     */
+    synchronized List<SongItem> getNewest(int offset, int count) {
+        List<SongItem> songItems = new ArrayList<>();
+        for (int i = entries.size() - 1 - Math.max(0, offset); i >= 0 && songItems.size() < count; i--)
+            songItems.add(entries.get(i).songItem);
+        return songItems;
+    }
+
+    /**
+     * @return The number of songs
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -16,6 +16,7 @@ public class SongItem {
     private long artistId;
     private String album;
     private long albumId;
+    private int track;
     private long duration;
     private Uri songUri;
     private Uri albumArtUri;
@@ -35,6 +36,10 @@ public class SongItem {
      *          The album name
      * @param albumId
      *          The album id of the album obtained from {@value android.provider.MediaStore.Audio.Media#ALBUM_ID}
+     * @param track
+     *          The position of the song in the album obtained from
+     *          {@value android.provider.MediaStore.Audio.Media#TRACK}, as disc number x 1000 + track
+     *          number, 0 if unknown
      * @param duration
      *          The duration in milliseconds of the song obtained from
      *          {@value android.provider.MediaStore.Audio.Media#DURATION}
@@ -46,14 +51,15 @@ public class SongItem {
 
     /* Suppress because it is not a user visible string, no need to format to "DefaultLocale" */
     @SuppressLint("DefaultLocale")
-    public SongItem(long id, String title, String artist, long artistId, String album, long albumId, long duration,
-                    Uri songUri, Uri albumArtUri){
+    public SongItem(long id, String title, String artist, long artistId, String album, long albumId, int track,
+                    long duration, Uri songUri, Uri albumArtUri){
         this.id = id;
         this.title = title;
         this.artist = artist;
         this.artistId = artistId;
         this.album = album;
         this.albumId = albumId;
+        this.track = track;
         this.duration = duration;
         this.songUri = songUri;
         this.albumArtUri = albumArtUri;
@@ -87,6 +93,10 @@ public class SongItem {
         return albumId;
     }
 
+    public int getTrack() {
+        return track;
+    }
+
     public long getDuration() {
         return duration;
     }
@@ -15,6 +15,7 @@ import com.armaggheddon.muzic.library.SongItem;
 class CustomListItem {
 
     private String id;
+    private long queueId = -1;
     private String title;
     private int imageRes;
     private Uri art;
@@ -34,6 +35,21 @@ class CustomListItem {
         this.art = art;
     }
 
+    /**
+     * Constructor of an item of the queue
+     * @param id
+     *          The id that represent the unique id build in {@link SongItem}
+     * @param queueId
+     *          The queue id of the item in the queue of the session, it does not change when
+     *          other items are added, moved or removed
+     * @param title
+     *          The title of the song
+     */
+    public CustomListItem(String id, long queueId, String title, Uri art) {
+        this(id, title, art);
+        this.queueId = queueId;
+    }
+
     /**
      * Allows to change, and therefore set the image resource
      * @param imageRes
@@ -48,6 +64,14 @@ class CustomListItem {
         return id;
     }
 
+    /**
+     * @return
+     *          The queue id of the item, -1 if the item is not in the queue
+     */
+    public long getQueueId() {
+        return queueId;
+    }
+
     public String getTitle() {
         return title;
     }
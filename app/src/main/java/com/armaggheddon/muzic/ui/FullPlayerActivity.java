@@ -4,12 +4,20 @@ import android.animation.ValueAnimator;
 import android.annotation.SuppressLint;
 import android.app.Activity;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.GradientDrawable;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.support.v4.media.MediaBrowserCompat;
 import android.support.v4.media.MediaDescriptionCompat;
 import android.support.v4.media.MediaMetadataCompat;
@@ -18,7 +26,6 @@ import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
 import android.util.Log;
 import android.view.View;
-import android.view.animation.LinearInterpolator;
 import android.widget.ImageView;
 import android.widget.SeekBar;
 import android.widget.TextView;
@@ -32,12 +39,11 @@ import androidx.palette.graphics.Palette;
 import com.armaggheddon.muzic.MusicService;
 import com.armaggheddon.muzic.R;
 import com.armaggheddon.muzic.library.MusicLibrary;
+import com.bumptech.glide.Glide;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
 import com.google.android.material.snackbar.Snackbar;
 
-import java.util.concurrent.TimeUnit;
-
 /**
  * Handles the {@link R.layout#activity_full_player} layout with the controls that allows to
  * send actions to {@link MusicService}
@@ -67,42 +73,74 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
     private FloatingActionButton playPauseButton;
 
     /*
-    Value animator used to animate the position update for the seek bar and for the
-    text views that represent the elapsed time and left time
+    The shortest time between two updates of the seek bar, about a frame, reached only when a
+    short song is shown on a wide seek bar
     */
-    private ValueAnimator mTimeAnimator;
+    private static final long MIN_PROGRESS_TICK_MS = 16;
+
+    /*
+    Updates the seek bar and the text views that represent the elapsed time and left time while
+    playing. The position is computed from the last playback state as position + elapsed time x
+    speed, so no update from the session or frame callback is needed: the ticker runs right after
+    every second of the song to update the texts, and in between only when the seek bar moves by
+    at least one pixel. It stops when the activity is not visible
+    */
+    private final Handler mProgressHandler = new Handler(Looper.getMainLooper());
+    private PlaybackStateCompat mProgressState;
+    private long mShownSecond = -1;
+    private final Runnable mProgressTicker = new Runnable() {
+        @Override
+        public void run() {
+            long position = getCurrentPosition(mProgressState);
+            showProgress(position);
+            mProgressHandler.postDelayed(this, getNextTickDelay(position, mProgressState.getPlaybackSpeed()));
+        }
+    };
 
-    /* Flag that allows mTimeAnimator to know if the seek bar is being updated by the user to avoid pushing updates */
+    /* Flag that allows mProgressTicker to know if the seek bar is being updated by the user to avoid pushing updates */
     private boolean isTracking = false;
     private SeekBar seekBar;
     private MotionLayout motionLayout;
     private MaterialToolbar mToolbar;
     private MediaBrowserCompat mBrowser;
 
+    /* Binding to MusicService in process, QueueFragment reads the queue from it */
+    private MusicService.LocalBinder mLocalBinder;
+    private boolean mLocalBound = false;
+    private final ServiceConnection mLocalConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLocalBinder = (MusicService.LocalBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLocalBinder = null;
+        }
+    };
+
     /* Used to animate from the previous color to the current color for the background */
     private int previousColor;
 
-    /* Listener to listen to new values being updated */
-    private AnimatorUpdateListener mAnimatorListener = new AnimatorUpdateListener();
-
     /**
      * Handles the item in the queue being clicked, updates the item being currently played, and
      * calls skipToQueueItem so {@link MusicService} can update the metadata
-     * @param positionInQueue
-     *          The position of the item clicked. Since the items are shown in the same order as
-     *          they are in the playback queue the position also represents the id of the queue
+     * @param queueId
+     *          The queue id of the item clicked
      */
     @Override
-    public void onQueueItemClicked(long positionInQueue) {
-        /* Update the current position in the queue and play */
-        MediaControllerCompat.getMediaController(FullPlayerActivity.this).getTransportControls().skipToQueueItem(positionInQueue);
+    public void onQueueItemClicked(long queueId) {
+        /* Update the current item in the queue and play */
+        MediaControllerCompat.getMediaController(FullPlayerActivity.this).getTransportControls().skipToQueueItem(queueId);
         MediaControllerCompat.getMediaController(FullPlayerActivity.this).getTransportControls().play();
     }
 
     @Override
-    public void onQueueItemRemoved(long positionInQueue, String title) {
+    public void onQueueItemRemoved(long queueId, int positionInQueue, String title) {
+        /* The queue id identifies the item, the position lets the service find it without searching */
         Bundle extra = new Bundle();
-        extra.putInt( MusicLibrary.POSITION, (int)positionInQueue);
+        extra.putLong( MusicService.EXTRA_QUEUE_ID, queueId);
+        extra.putInt( MusicLibrary.POSITION, positionInQueue);
         MediaControllerCompat.getMediaController(FullPlayerActivity.this).removeQueueItem(
                 new MediaDescriptionCompat.Builder().setTitle(title).setExtras(extra).build()
         );
@@ -110,6 +148,16 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
 
     }
 
+    @Override
+    public void onQueueItemMoved(long queueId, int from, int to) {
+        Bundle extra = new Bundle();
+        extra.putLong( MusicService.EXTRA_QUEUE_ID, queueId);
+        extra.putInt( MusicService.EXTRA_QUEUE_POSITION, from);
+        extra.putInt( MusicService.EXTRA_QUEUE_TARGET_POSITION, to);
+        MediaControllerCompat.getMediaController(FullPlayerActivity.this).getTransportControls()
+                .sendCustomAction(MusicService.CUSTOM_ACTION_MOVE_QUEUE_ITEM, extra);
+    }
+
     @Override
     public void onPlayingItemRemoved(String title) {
         Snackbar.make(findViewById(R.id.full_player_root), "Cant remove " + title + " while is playing", Snackbar.LENGTH_SHORT).show();
@@ -121,6 +169,11 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
         return mBrowser;
     }
 
+    @Override
+    public MusicService.LocalBinder getLocalBinder() {
+        return mLocalBinder;
+    }
+
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -136,12 +189,8 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
             @Override
             public void onClick(View v) {
 
-                /* Remove the listener to the Animator and delete it */
-                if(mTimeAnimator != null){
-                    mTimeAnimator.removeAllUpdateListeners();
-                    mTimeAnimator.cancel();
-                    mTimeAnimator = null;
-                }
+                /* Stop updating the progress */
+                stopProgress();
                 finish();
             }
         });
@@ -198,8 +247,6 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
      * Handles setting up all the views in an initial state that represents the current PlaybackState
      * and the sets the click listeners
      */
-    /* Suppress because it is a string built to represent time, no need to format for "DefaultLocale" */
-    @SuppressLint("DefaultLocale")
     private void buildTransportControls(){
 
         /* Calling setNavigationOnClickListener again replaces the previous listener in onCreate() */
@@ -207,11 +254,7 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
             @Override
             public void onClick(View v) {
 
-                if(mTimeAnimator != null){
-                    mTimeAnimator.removeAllUpdateListeners();
-                    mTimeAnimator.cancel();
-                    mTimeAnimator = null;
-                }
+                stopProgress();
                 if(MediaControllerCompat.getMediaController(FullPlayerActivity.this).getPlaybackState().getState() == PlaybackStateCompat.STATE_STOPPED){
 
                     /*
@@ -347,48 +390,24 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
         String title = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
         String artist = mediaMetadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST);
 
-        Bitmap albumArt = mediaMetadata.getBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART);
-
-        /* Set the background gradient */
-        setBackgroundAsync(albumArt);
+        /* Set the album art and the background gradient */
+        showAlbumArt(mediaMetadata);
 
         titleTextView.setText(title);
         artistTextView.setText(artist);
-        albumImage.setImageBitmap(albumArt);
-
-        /* Get the current position and the duration of the song both in milliseconds */
-        int currentProgress = (int) pbState.getPosition();
-        int maxProgress = (int) (mediaMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
-
-        /* Format the text as 00:00 as <minutes>:<seconds> */
-        elapsedTimeTextView.setText(String.format("%02d:%02d",
-                (int) TimeUnit.MILLISECONDS.toMinutes(currentProgress),
-                (int) TimeUnit.MILLISECONDS.toSeconds(currentProgress) % 60));
-
-        /* Get the left */
-        int leftTime = maxProgress - currentProgress;
 
-        leftTimeTextView.setText(String.format("%02d:%02d",
-                (int) TimeUnit.MILLISECONDS.toMinutes(leftTime),
-                (int) TimeUnit.MILLISECONDS.toSeconds(leftTime) % 60));
-
-        /* Set the maximum progress to the seek bar as DURATION */
-        seekBar.setMax(maxProgress);
-        seekBar.setProgress(currentProgress);
+        /* Set the maximum progress to the seek bar as DURATION, in milliseconds */
+        seekBar.setMax((int) (mediaMetadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION)));
 
         /*
-        If the state is playing set the pause icon on play_pause_button and start the animator
-        for elapsedTimeTextView, leftTimeTextView and seekBar
+        Show the current position and, if the state is playing, start the ticker for
+        elapsedTimeTextView, leftTimeTextView and seekBar
         */
+        startProgress(pbState);
+
+        /* If the state is playing set the pause icon on play_pause_button */
         if(pbState.getState() == PlaybackStateCompat.STATE_PLAYING){
             playPauseButton.setImageResource(R.drawable.ic_pause);
-
-            /* Animate from current position to the maximum position in (max-current) milliseconds */
-            mTimeAnimator = ValueAnimator.ofInt( currentProgress, seekBar.getMax())
-                    .setDuration(seekBar.getMax() - currentProgress);
-            mTimeAnimator.setInterpolator( new LinearInterpolator());
-            mTimeAnimator.addUpdateListener(mAnimatorListener);
-            mTimeAnimator.start();
         }
 
         /* Else the current state is PAUSED so set the play_pause_button the play icon */
@@ -400,6 +419,33 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
         mediaController.registerCallback(controllerCallback);
     }
 
+    /**
+     * Shows the album art of the song. The metadata only has a small icon, it is shown and used
+     * for the background colors while the full size art is loaded by Glide from the album art
+     * uri, so it is decoded once at the size of the view and then kept in the Glide cache
+     * @param metadata
+     *              The metadata of the song
+     */
+    private void showAlbumArt(MediaMetadataCompat metadata){
+
+        Bitmap icon = metadata.getDescription().getIconBitmap();
+        String artUri = metadata.getString(MediaMetadataCompat.METADATA_KEY_ALBUM_ART_URI);
+
+        /* The palette is computed on a small copy of the image anyway, so the icon is enough */
+        if(icon != null)
+            setBackgroundAsync(icon);
+
+        if(artUri == null){
+            albumImage.setImageBitmap(icon);
+            return;
+        }
+        Glide.with(albumImage)
+                .load(Uri.parse(artUri))
+                .placeholder((icon != null) ? new BitmapDrawable(getResources(), icon) : null)
+                .error(R.drawable.ic_default_album_art_with_bg)
+                .into(albumImage);
+    }
+
     /**
      * Sets the background to the view building a {@link GradientDrawable} from the colors in the
      * {@param image} given
@@ -475,51 +521,93 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
 
 
     /**
-     * The listener for updates on the value to animate
+     * Shows the position of the playback in {@param state} and, if it is playing, starts the
+     * ticker that keeps the views updated
+     * @param state
+     *          The playback state from which the position is computed
      */
-    class AnimatorUpdateListener implements ValueAnimator.AnimatorUpdateListener{
-        /* Suppress because it is a string built to represent time, no need to format for "DefaultLocale" */
-        @SuppressLint("DefaultLocale")
-        @Override
-        public void onAnimationUpdate(ValueAnimator animation) {
-
-            /*
-            If the user is interacting cancel any update on the seek bar because changing the
-            position would cause the seek bar to return back to where it was canceling any user
-            position updates
-            */
-            if(isTracking){
-                mTimeAnimator.cancel();
-                return;
-            }
-            int newValue = (Integer) animation.getAnimatedValue();
-            /*
-            Since we need to update the views that represents the time elapsed and time left it is
-            useless to update for every milliseconds because the lowest time unit used in the
-            views is seconds. To avoid overloading the UI Thread that has to redraw the views every
-            time are updated, we just update the values in a smaller window of 200 milliseconds.
-            This choice causes a small delay on the update on the time values but is better for
-            performance
-             */
-            if(newValue%1000 >= 800) {
-
-                /* Build the time values to display on the views as 00:00 -> <minutes>:<seconds> */
-                int elapsedSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(newValue) % 60;
-                int elapsedMinutes = (int) TimeUnit.MILLISECONDS.toMinutes(newValue);
-                int leftTime = seekBar.getMax() - newValue;
-                int leftSeconds = (int) TimeUnit.MILLISECONDS.toSeconds(leftTime) % 60;
-                int leftMinutes = (int) TimeUnit.MILLISECONDS.toMinutes(leftTime);
-
-                /* Update the time that has elapsed from the start current song */
-                elapsedTimeTextView.setText(String.format("%02d:%02d", elapsedMinutes, elapsedSeconds));
-
-                /* Update the time tha is left to the end of the current song */
-                leftTimeTextView.setText(String.format("%02d:%02d", leftMinutes, leftSeconds));
-            }
+    private void startProgress(PlaybackStateCompat state){
+        stopProgress();
+        mProgressState = state;
+        mShownSecond = -1;
+        if(state.getState() == PlaybackStateCompat.STATE_PLAYING)
+            mProgressTicker.run();
+        else
+            showProgress(getCurrentPosition(state));
+    }
 
-            /* Update the current progress of the seek bar */
-            seekBar.setProgress(newValue);
+    /**
+     * Stops the updates of the position
+     */
+    private void stopProgress(){
+        mProgressHandler.removeCallbacks(mProgressTicker);
+    }
+
+    /**
+     * @param state
+     *          The last playback state received
+     * @return
+     *          The position in milliseconds the song has reached now
+     */
+    private long getCurrentPosition(PlaybackStateCompat state){
+        long position = state.getPosition();
+        if(state.getState() == PlaybackStateCompat.STATE_PLAYING){
+            long elapsed = SystemClock.elapsedRealtime() - state.getLastPositionUpdateTime();
+            position += (long) (elapsed * state.getPlaybackSpeed());
         }
+        return Math.max(0, Math.min(position, seekBar.getMax()));
+    }
+
+    /**
+     * @param position
+     *          The position shown in milliseconds
+     * @param speed
+     *          The playback speed
+     * @return
+     *          The time until the next second of the song or until the seek bar moves by one
+     *          pixel, whichever comes first
+     */
+    private long getNextTickDelay(long position, float speed){
+        long delay = 1000 - position % 1000;
+
+        int width = seekBar.getWidth() - seekBar.getPaddingLeft() - seekBar.getPaddingRight();
+        if(width > 0 && seekBar.getMax() >= width)
+            delay = Math.min(delay, seekBar.getMax() / width);
+
+        /* The position moves faster or slower than the clock when the speed is not 1 */
+        if(speed > 0)
+            delay = (long) (delay / speed);
+        return Math.max(MIN_PROGRESS_TICK_MS, delay + 1);
+    }
+
+    /**
+     * Updates the seek bar, and the time views only when the second shown changes
+     * @param position
+     *          The position of the song in milliseconds
+     */
+    /* Suppress because it is a string built to represent time, no need to format for "DefaultLocale" */
+    @SuppressLint("DefaultLocale")
+    private void showProgress(long position){
+
+        /*
+        If the user is interacting skip any update on the seek bar because changing the
+        position would cause the seek bar to return back to where it was canceling any user
+        position updates
+        */
+        if(isTracking)
+            return;
+
+        seekBar.setProgress((int) position);
+
+        long second = position / 1000;
+        if(second == mShownSecond)
+            return;
+        mShownSecond = second;
+
+        /* Build the time values to display on the views as 00:00 -> <minutes>:<seconds> */
+        long leftSecond = Math.max(0, seekBar.getMax() / 1000 - second);
+        elapsedTimeTextView.setText(String.format("%02d:%02d", second / 60, second % 60));
+        leftTimeTextView.setText(String.format("%02d:%02d", leftSecond / 60, leftSecond % 60));
     }
 
     /**
@@ -530,26 +618,12 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
         public void onPlaybackStateChanged(PlaybackStateCompat state) {
             super.onPlaybackStateChanged(state);
 
-            /* A new state is available, so cancel any updates on the views */
-            if(mTimeAnimator != null){
-                mTimeAnimator.cancel();
-                mTimeAnimator = null;
-            }
+            /* A new state is available, update the views from it and restart the ticker if playing */
+            startProgress(state);
 
-            /* Get the current position in the song */
-            int currentPosition = (int) state.getPosition();
-
-            /* Update the views with the new value and start the animator */
-            seekBar.setProgress(currentPosition);
-
-            /* If the state is PLAYING change the icon on playPauseButton and start the value animator */
+            /* If the state is PLAYING change the icon on playPauseButton */
             if(state.getState() == PlaybackStateCompat.STATE_PLAYING){
                 playPauseButton.setImageResource(R.drawable.ic_pause);
-                mTimeAnimator = ValueAnimator.ofInt( currentPosition, seekBar.getMax())
-                        .setDuration(seekBar.getMax()-currentPosition);
-                mTimeAnimator.setInterpolator( new LinearInterpolator());
-                mTimeAnimator.addUpdateListener( mAnimatorListener);
-                mTimeAnimator.start();
             }
 
             /* Else just change the current icon on playPauseButton */
@@ -564,7 +638,6 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
             super.onMetadataChanged(metadata);
 
             /* Metadata changed, which means that the song changed and the data about it */
-            MediaDescriptionCompat description = metadata.getDescription();
 
             /* Update the maximum value of the seek bar to be the duration of the new song */
             seekBar.setMax((int) metadata.getLong(MediaMetadataCompat.METADATA_KEY_DURATION));
@@ -573,14 +646,11 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
             String title = metadata.getString(MediaMetadataCompat.METADATA_KEY_TITLE);
             String artist = metadata.getString(MediaMetadataCompat.METADATA_KEY_ARTIST);
 
-            Bitmap albumArt = description.getIconBitmap();
-
-            /* Update the background color */
-            setBackgroundAsync(albumArt);
+            /* Update the album art and the background color */
+            showAlbumArt(metadata);
 
             titleTextView.setText(title);
             artistTextView.setText(artist);
-            albumImage.setImageBitmap(albumArt);
         }
     };
 
@@ -589,6 +659,17 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
     protected void onStart() {
         super.onStart();
 
+        /*
+        Bind in process before connecting the browser, so the binder is usually ready when
+        QueueFragment loads the queue
+        */
+        if(!mLocalBound){
+            mLocalBound = bindService(
+                    new Intent(MusicService.ACTION_LOCAL_BIND).setClass(this, MusicService.class),
+                    mLocalConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+
         /* On start check if we are connected, iif not connect again */
         if(!mBrowser.isConnected()){
             mBrowser.connect();
@@ -606,12 +687,13 @@ public class FullPlayerActivity extends AppCompatActivity implements QueueFragme
 
         /* Disconnect from the browser */
         mBrowser.disconnect();
-
-        /* Remove the listener to the updates of the value */
-        if(mTimeAnimator != null){
-            mTimeAnimator.cancel();
-            mTimeAnimator.removeAllUpdateListeners();
-            mTimeAnimator = null;
+        if(mLocalBound){
+            unbindService(mLocalConnection);
+            mLocalBound = false;
+            mLocalBinder = null;
         }
+
+        /* The activity is not visible, stop updating the progress */
+        stopProgress();
     }
 }
\ No newline at end of file
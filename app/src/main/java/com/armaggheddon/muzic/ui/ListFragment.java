@@ -15,6 +15,7 @@ import androidx.recyclerview.widget.DividerItemDecoration;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.armaggheddon.muzic.MusicService;
 import com.armaggheddon.muzic.R;
 import com.armaggheddon.muzic.library.AlbumItem;
 import com.armaggheddon.muzic.library.ArtistItem;
@@ -69,16 +70,14 @@ public class ListFragment extends Fragment{
         /**
          * Used when a playable item is clicked in the RecyclerView,
          * a song
+         * @param mediaId
+         *          The mediaId of the song clicked as "song_id"
          * @param parentId
          *          The parentId string representing the parent of the items being currently
          *          displayed. For example for an Album A that has Song1 and Song2 the parentId
-         *          is "Album A"
-         * @param positionInQueue
-         *          The position in the queue to skip to play the item clicked.
-         *          Since the items showed are mapped 1:1 to the queue being created this value
-         *          can be used to select the item clicked in the queue
+         *          is the id of Album A, the queue is built with its songs
          */
-        void onPlayableItemClicked(String parentId, long positionInQueue);
+        void onPlayableItemClicked(String mediaId, String parentId);
 
         /**
          * Allows to get the title of the item clicked
@@ -141,11 +140,11 @@ public class ListFragment extends Fragment{
             public void onItemClick(int position) {
 
                     String mediaId = recyclerViewAdapter.getItem(position).getId();
-                    /* If the mediaId of the item has "song_" than is a playable item */
-                    if (mediaId.contains(MusicLibrary.SONG_)) {
-                        mFragmentListener.onPlayableItemClicked(subscribeTo, position);
+                    /* If the mediaId of the item starts with "song_" than is a playable item */
+                    if (mediaId.startsWith(MusicLibrary.SONG_)) {
+                        mFragmentListener.onPlayableItemClicked(mediaId, subscribeTo);
                     }
-                    /* Else the item has "album_" or "artist_" so is a browsable item */
+                    /* Else the item is an album, an artist or a folder so is a browsable item */
                     else {
                         mFragmentListener.onBrowsableItemClicked(mediaId);
                         mFragmentListener.setToolbarTitle(recyclerViewAdapter.getItem(position).getTitle());
@@ -197,12 +196,39 @@ public class ListFragment extends Fragment{
     }
 
     /**
-     * Subscribes to "subscribeTo" and sets the callback for the items loaded
+     * Loads the children of "subscribeTo". When the activity is bound to MusicService in process
+     * the list is read from it directly, otherwise it subscribes to "subscribeTo" and sets the
+     * callback for the items loaded
      */
     public void onConnected(){
 
+        MusicService.LocalBinder localBinder = mFragmentListener.getLocalBinder();
+        List<MediaBrowserCompat.MediaItem> children =
+                (localBinder != null) ? localBinder.getChildren(subscribeTo) : null;
+
+        if(children != null)
+            showChildren(children);
+        else
             mFragmentListener.getMediaBrowser().subscribe(subscribeTo, mSubscriptionCallback);
+    }
+
+    /**
+     * Adds an item to the adapter for every item in {@param children}
+     */
+    private void showChildren(List<MediaBrowserCompat.MediaItem> children){
 
+        /* For every item in children create a new CustomList instance*/
+        for (MediaBrowserCompat.MediaItem item : children) {
+
+            Uri image = item.getDescription().getIconUri();
+            recyclerViewAdapter.add(new CustomListItem(
+                    item.getMediaId(),
+                    item.getDescription().getTitle().toString(),
+                    image));
+        }
+
+        /* When all the data is loaded notify the adapter about the changes */
+        recyclerViewAdapter.notifyDataSetChanged();
     }
 
 
@@ -211,18 +237,7 @@ public class ListFragment extends Fragment{
         public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
             super.onChildrenLoaded(parentId, children);
 
-            /* For every item in children create a new CustomList instance*/
-            for (MediaBrowserCompat.MediaItem item : children) {
-
-                Uri image = item.getDescription().getIconUri();
-                recyclerViewAdapter.add(new CustomListItem(
-                        item.getMediaId(),
-                        item.getDescription().getTitle().toString(),
-                        image));
-            }
-
-            /* When all the data is loaded notify the adapter about the changes */
-            recyclerViewAdapter.notifyDataSetChanged();
+            showChildren(children);
 
             /* We can now unsubscribe to receive future updates since we just need to load the data once */
             mFragmentListener.getMediaBrowser().unsubscribe(subscribeTo, mSubscriptionCallback);
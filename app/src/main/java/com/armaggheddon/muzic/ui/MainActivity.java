@@ -3,13 +3,16 @@ package com.armaggheddon.muzic.ui;
 import android.Manifest;
 import android.app.Activity;
 import android.content.ComponentName;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.provider.Settings;
 import android.support.v4.media.MediaBrowserCompat;
@@ -72,6 +75,24 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
 
     private MediaBrowserCompat mMediaBrowser;
 
+    /*
+    Binding to MusicService in process, the fragments read the library from it without parceling
+    the items. Null until the service is bound
+    */
+    private MusicService.LocalBinder mLocalBinder;
+    private boolean mLocalBound = false;
+    private final ServiceConnection mLocalConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mLocalBinder = (MusicService.LocalBinder) service;
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            mLocalBinder = null;
+        }
+    };
+
     /* Ui widgets */
     private MaterialToolbar mToolbar;
     private TextView title_text;
@@ -89,15 +110,16 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
 
     /* Callback methods to notify the session and the activity of what is being clicked in the fragment */
     @Override
-    public void onPlayableItemClicked(String parentId, long positionInQueue) {
+    public void onPlayableItemClicked(String mediaId, String parentId) {
 
         /*
-        Called when a playable item is clicked in a fragment. Call playFromMediaId to create a
-        queue of related items, skip to the selected item and start the playback
+        Called when a playable item is clicked in a fragment. Call playFromMediaId with the song
+        and the parent in which it was clicked, the session creates a queue of related items and
+        starts the playback from the song
         */
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().playFromMediaId(parentId, null);
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().skipToQueueItem(positionInQueue);
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().play();
+        Bundle extras = new Bundle();
+        extras.putString(MusicService.EXTRA_PARENT_ID, parentId);
+        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().playFromMediaId(mediaId, extras);
     }
 
     @Override
@@ -142,10 +164,12 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
     }
 
     @Override
-    public void onSongSearchItemClicked(String mediaId, long position) {
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().playFromMediaId(MusicLibrary.SONGS, null);
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().skipToQueueItem(position);
-        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().play();
+    public void onSongSearchItemClicked(String mediaId, String parentId) {
+
+        /* The song is played in the queue of the songs shown, the whole library or a filter */
+        Bundle extras = new Bundle();
+        extras.putString(MusicService.EXTRA_PARENT_ID, parentId);
+        MediaControllerCompat.getMediaController(MainActivity.this).getTransportControls().playFromMediaId(mediaId, extras);
     }
 
     @Override
@@ -173,6 +197,27 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
         return mMediaBrowser;
     }
 
+    @Override
+    public MusicService.LocalBinder getLocalBinder() {
+        return mLocalBinder;
+    }
+
+    /**
+     * Binds to MusicService in process and connects the MediaBrowser. The local binding is asked
+     * first so it is usually ready when the fragments receive onConnected, if it is not they load
+     * the items through the MediaBrowser
+     */
+    private void connectToService() {
+        if (!mLocalBound) {
+            mLocalBound = bindService(
+                    new Intent(MusicService.ACTION_LOCAL_BIND).setClass(this, MusicService.class),
+                    mLocalConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+        if (!mMediaBrowser.isConnected())
+            mMediaBrowser.connect();
+    }
+
     @Override
     public void setToolbarTitle(String title) {
 
@@ -582,7 +627,7 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
 
                 /* We have the permission to read to external storage */
                 //Log.d(TAG, "onRequestPermissionsResult: permission granted");
-                mMediaBrowser.connect();
+                connectToService();
             } else {
                 /* The user denied the permission */
                 //Log.d(TAG, "onRequestPermissionsResult: permission denied");
@@ -671,8 +716,7 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
             The application has the permission to read external storage so we can connect to the
             MusicService if not already connected
             */
-            if (!mMediaBrowser.isConnected())
-                mMediaBrowser.connect();
+            connectToService();
         }
     }
 
@@ -726,6 +770,11 @@ public class MainActivity extends AppCompatActivity implements MediaBrowserProvi
 
         /* Disconnect from the MusicService */
         mMediaBrowser.disconnect();
+        if (mLocalBound) {
+            unbindService(mLocalConnection);
+            mLocalBound = false;
+            mLocalBinder = null;
+        }
     }
 
     @Override
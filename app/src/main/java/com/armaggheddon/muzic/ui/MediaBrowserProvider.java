@@ -2,10 +2,19 @@ package com.armaggheddon.muzic.ui;
 
 import android.support.v4.media.MediaBrowserCompat;
 
+import com.armaggheddon.muzic.MusicService;
+
 /**
  * Gives a public interface to send a {@link MediaBrowserCompat} instance between fragments
  * hosted by {@link MainActivity} and {@link FullPlayerActivity}
  */
 interface MediaBrowserProvider {
     MediaBrowserCompat getMediaBrowser();
+
+    /**
+     * @return
+     *          The binder of {@link MusicService} used to read the library and the queue without
+     *          going through the MediaBrowser, null if the activity is not bound yet
+     */
+    MusicService.LocalBinder getLocalBinder();
 }
@@ -22,13 +22,13 @@ import androidx.recyclerview.widget.ItemTouchHelper;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.armaggheddon.muzic.MusicService;
 import com.armaggheddon.muzic.R;
 import com.armaggheddon.muzic.library.MusicLibrary;
 import com.google.android.material.button.MaterialButton;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Random;
 
 /**
  * Fragment implementation that displays a RecyclerView using {@link RecyclerViewAdapter} and using
@@ -52,8 +52,14 @@ public class QueueFragment extends Fragment{
     /* The layout to show if no queue items are available, es empty queue*/
     private ConstraintLayout noQueueLayout;
 
-    /* Allows to know which was the previously changed item in the RecyclerView to update the items */
-    private int previousItem = 0;
+    /* The queue id of the item being played, it allows to find the item to update in the RecyclerView */
+    private long mActiveQueueId = MediaSessionCompat.QueueItem.UNKNOWN_ID;
+
+    /* The position of the item being played, where the next item played is looked for first */
+    private int mActivePosition = -1;
+
+    /* The position of the item being dragged when the drag started, NO_POSITION if there is no drag */
+    private int mDragFrom = RecyclerView.NO_POSITION;
 
     private QueueFragmentListener mQueueFragmentListener;
 
@@ -63,15 +69,33 @@ public class QueueFragment extends Fragment{
     */
     public interface QueueFragmentListener extends MediaBrowserProvider {
         /**
-         * Allows to know what is the position of the item clicked
+         * Allows to know what is the item clicked
+         * @param queueId
+         *          The queue id of the item clicked
+         */
+        void onQueueItemClicked( long queueId);
+
+        /**
+         * The item has been swiped away and already removed from the view
+         * @param queueId
+         *          The queue id of the item removed
          * @param positionInQueue
-         *          The position of the item clicked. Since the items are shown in the same order as
-         *          they are in the playback queue the position also represents the id of the queue
-         *          item to play
+         *          The position of the item before it was removed
+         * @param title
+         *          The title of the item
          */
-        void onQueueItemClicked( long positionInQueue);
+        void onQueueItemRemoved( long queueId, int positionInQueue, String title);
 
-        void onQueueItemRemoved( long positionInQueue, String title);
+        /**
+         * The item has been dragged to a new position and already moved in the view
+         * @param queueId
+         *          The queue id of the item moved
+         * @param from
+         *          The position of the item before the drag
+         * @param to
+         *          The position of the item after the drag
+         */
+        void onQueueItemMoved( long queueId, int from, int to);
         void onPlayingItemRemoved(String title);
     }
 
@@ -115,7 +139,7 @@ public class QueueFragment extends Fragment{
         recyclerViewAdapter.setOnItemClickListener(new RecyclerViewAdapter.OnItemClickListener() {
             @Override
             public void onItemClick(int position) {
-                mQueueFragmentListener.onQueueItemClicked(position);
+                mQueueFragmentListener.onQueueItemClicked(recyclerViewAdapter.getItem(position).getQueueId());
             }
 
             @Override
@@ -135,27 +159,50 @@ public class QueueFragment extends Fragment{
         return view;
     }
 
-    private final ItemTouchHelper.SimpleCallback itemHelper = new ItemTouchHelper.SimpleCallback(0, ItemTouchHelper.RIGHT|ItemTouchHelper.LEFT) {
+    /* Items are dragged up and down to reorder the queue and swiped left or right to remove them */
+    private final ItemTouchHelper.SimpleCallback itemHelper = new ItemTouchHelper.SimpleCallback(
+            ItemTouchHelper.UP|ItemTouchHelper.DOWN, ItemTouchHelper.RIGHT|ItemTouchHelper.LEFT) {
         @Override
         public boolean onMove (@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder
         viewHolder, @NonNull RecyclerView.ViewHolder target){
-        return false;
-    }
+            int from = viewHolder.getAbsoluteAdapterPosition();
+            int to = target.getAbsoluteAdapterPosition();
+            if (from == RecyclerView.NO_POSITION || to == RecyclerView.NO_POSITION)
+                return false;
+
+            /* Only the view follows the finger, the session is told when the item is dropped */
+            if (mDragFrom == RecyclerView.NO_POSITION)
+                mDragFrom = from;
+            recyclerViewAdapter.moveItem(from, to);
+            recyclerViewAdapter.notifyItemMoved(from, to);
+            return true;
+        }
+
+        @Override
+        public void clearView(@NonNull RecyclerView recyclerView, @NonNull RecyclerView.ViewHolder viewHolder) {
+            super.clearView(recyclerView, viewHolder);
+
+            /* The item has been dropped */
+            int to = viewHolder.getAbsoluteAdapterPosition();
+            if (mDragFrom != RecyclerView.NO_POSITION && to != RecyclerView.NO_POSITION && to != mDragFrom)
+                mQueueFragmentListener.onQueueItemMoved(recyclerViewAdapter.getItem(to).getQueueId(), mDragFrom, to);
+            mDragFrom = RecyclerView.NO_POSITION;
+        }
 
         @Override
         public void onSwiped (@NonNull RecyclerView.ViewHolder viewHolder,int direction){
         if (direction == ItemTouchHelper.RIGHT || direction == ItemTouchHelper.LEFT) {
-            CustomListItem item = recyclerViewAdapter.getItem(viewHolder.getAbsoluteAdapterPosition());
-            String title = item.getTitle();
             int position = viewHolder.getAbsoluteAdapterPosition();
+            CustomListItem item = recyclerViewAdapter.getItem(position);
+            String title = item.getTitle();
 
             /* If the item swiped is not the one being played */
-            if(!MediaControllerCompat.getMediaController(getActivity()).getMetadata().getDescription().getTitle().toString().equalsIgnoreCase(title)) {
+            if(item.getQueueId() != mActiveQueueId) {
 
                 /* Remove the item from the adapter, notify about the change and tell FullPlayerActivity */
                 recyclerViewAdapter.removeItem(position);
                 recyclerViewAdapter.notifyItemRemoved(position);
-                mQueueFragmentListener.onQueueItemRemoved(position, title);
+                mQueueFragmentListener.onQueueItemRemoved(item.getQueueId(), position, title);
             }else {
 
                 /* Tell FullPlayerActivity about the action not being performed */
@@ -194,9 +241,14 @@ public class QueueFragment extends Fragment{
     @SuppressLint("DefaultLocale")
     public void onConnected(){
 
-        /* Get the items in the queue */
-        List<MediaSessionCompat.QueueItem> queueItems =
-                MediaControllerCompat.getMediaController(getActivity()).getQueue();
+        /*
+        Get the items in the queue, from MusicService directly when the activity is bound to it in
+        process so the queue is not parceled, otherwise from the controller
+        */
+        MusicService.LocalBinder localBinder = mQueueFragmentListener.getLocalBinder();
+        List<MediaSessionCompat.QueueItem> queueItems = (localBinder != null)
+                ? localBinder.getQueue()
+                : MediaControllerCompat.getMediaController(getActivity()).getQueue();
 
         /* If the queue has no items show the appropriate layout */
         if(queueItems == null ||queueItems.size() == 0) {
@@ -211,9 +263,14 @@ public class QueueFragment extends Fragment{
 
                 CustomListItem item = new CustomListItem(
                         queueItem.getDescription().getMediaId(),
+                        queueItem.getQueueId(),
                         queueItem.getDescription().getTitle().toString(),
                         Uri.parse(artUri));
-                /* Change the title adding the item position as "1   Song" (3 spaces) */
+
+                /*
+                The title is shown without the position of the item, so an item inserted, removed
+                or moved does not change the text of the other items
+                */
                 recyclerViewAdapter.add(item);
             }
             /* When all the data is loaded notify the adapter about the changes */
@@ -223,23 +280,29 @@ public class QueueFragment extends Fragment{
             mRandomQueueButton.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View v) {
-                    int size = recyclerViewAdapter.getItemCount();
+
+                    /*
+                    The service jumps once to a song of the queue not picked yet by its random
+                    order, the shuffle and the repeat modes are left as they are
+                    */
                     MediaControllerCompat.getMediaController(getActivity())
-                            .getTransportControls().skipToQueueItem( new Random().nextInt(size));
+                            .getTransportControls().sendCustomAction(MusicService.CUSTOM_ACTION_RANDOM_SONG_IN_QUEUE, null);
                 }
             });
 
             /* Load the metadata of the current item being played */
             //MediaMetadataCompat metadata = MediaControllerCompat.getMediaController(getActivity()).getMetadata();
 
-            /* Get the active item position in the queue */
-            previousItem = (int) MediaControllerCompat.getMediaController(getActivity()).getPlaybackState().getActiveQueueItemId();
+            /* Get the active item in the queue */
+            mActiveQueueId = MediaControllerCompat.getMediaController(getActivity()).getPlaybackState().getActiveQueueItemId();
+            int activePosition = Math.max(0, getPositionOfQueueId(mActiveQueueId, -1));
+            mActivePosition = activePosition;
 
             /* Add a small icon telling the item being currently played */
-            recyclerViewAdapter.getItem( previousItem).changeImage(R.drawable.ic_audiotrack);
+            recyclerViewAdapter.getItem( activePosition).changeImage(R.drawable.ic_audiotrack);
 
             /* Update only the view changed */
-            recyclerViewAdapter.notifyItemChanged( previousItem);
+            recyclerViewAdapter.notifyItemChanged( activePosition);
 
             /*
             If the items in the recycler view are more than 5, we scroll the recycler view to the
@@ -249,7 +312,7 @@ public class QueueFragment extends Fragment{
             It is possible to implement a smooth scroll behaviour but is only for aesthetics purposes
             */
             if( recyclerViewAdapter.getItemCount() > 5)
-                mRecyclerView.scrollToPosition(previousItem);
+                mRecyclerView.scrollToPosition(activePosition);
 
             /* Register a callback to know when the song being currently played changes */
             MediaControllerCompat.getMediaController(getActivity()).registerCallback(mControllerCallback);
@@ -263,9 +326,7 @@ public class QueueFragment extends Fragment{
             super.onPlaybackStateChanged(state);
 
             /* Get the active item in the queue */
-            int currentItem = (int) state.getActiveQueueItemId();
-
-            updateRecyclerViewPosition(currentItem);
+            updateActiveItem(state.getActiveQueueItemId());
         }
 
         @Override
@@ -273,38 +334,119 @@ public class QueueFragment extends Fragment{
             super.onMetadataChanged(metadata);
 
             /* Get the active item in the queue */
-            int currentItem = (int) MediaControllerCompat.getMediaController(getActivity()).getPlaybackState().getActiveQueueItemId();
-
-            updateRecyclerViewPosition(currentItem);
+            updateActiveItem(MediaControllerCompat.getMediaController(getActivity()).getPlaybackState().getActiveQueueItemId());
+        }
 
+        /*
+        The session sends every edit of the queue as an event, apply it to the items shown instead
+        of loading the whole queue again. The items shown follow the queue of the session, so the
+        item is looked for at the position in the event. The edits made from this fragment are
+        already applied, they are recognized by the queue id and skipped
+        */
+        @Override
+        public void onSessionEvent(String event, Bundle extras) {
+            super.onSessionEvent(event, extras);
+            if (extras == null)
+                return;
+
+            switch (event) {
+                case MusicService.EVENT_QUEUE_ITEM_INSERTED:
+                    MediaSessionCompat.QueueItem queueItem = extras.getParcelable(MusicService.EXTRA_QUEUE_ITEM);
+                    int position = Math.min(extras.getInt(MusicService.EXTRA_QUEUE_POSITION), recyclerViewAdapter.getItemCount());
+                    if (queueItem != null && !isItemAt(position, queueItem.getQueueId())) {
+                        String artUri = queueItem.getDescription().getExtras().getString(MusicLibrary.ALBUM_ART_URI_ARGS_EXTRA);
+                        recyclerViewAdapter.addItem(position, new CustomListItem(
+                                queueItem.getDescription().getMediaId(),
+                                queueItem.getQueueId(),
+                                queueItem.getDescription().getTitle().toString(),
+                                Uri.parse(artUri)));
+                        recyclerViewAdapter.notifyItemInserted(position);
+                    }
+                    break;
+                case MusicService.EVENT_QUEUE_ITEM_REMOVED:
+                    int removed = extras.getInt(MusicService.EXTRA_QUEUE_POSITION);
+                    if (isItemAt(removed, extras.getLong(MusicService.EXTRA_QUEUE_ID))) {
+                        recyclerViewAdapter.removeItem(removed);
+                        recyclerViewAdapter.notifyItemRemoved(removed);
+                    }
+                    break;
+                case MusicService.EVENT_QUEUE_ITEM_MOVED:
+                    int from = extras.getInt(MusicService.EXTRA_QUEUE_POSITION);
+                    int to = extras.getInt(MusicService.EXTRA_QUEUE_TARGET_POSITION);
+                    if (from != to && isItemAt(from, extras.getLong(MusicService.EXTRA_QUEUE_ID))
+                            && to < recyclerViewAdapter.getItemCount()) {
+                        recyclerViewAdapter.moveItem(from, to);
+                        recyclerViewAdapter.notifyItemMoved(from, to);
+                    }
+                    break;
+            }
         }
     };
 
     /**
      * Updates the recycler view icon {@link R.drawable#ic_audiotrack} showing the icon on the
-     * current active item, if the position passed is the same as {@link QueueFragment#previousItem}
-     * does nothing
-     * @param currentItemPosition
-     *                            The current item in the queue that is in the play state
+     * current active item, if the queue id passed is the same as
+     * {@link QueueFragment#mActiveQueueId} does nothing
+     * @param activeQueueId
+     *                      The queue id of the item in the queue that is in the play state
      */
-    private void updateRecyclerViewPosition( int currentItemPosition){
+    private void updateActiveItem( long activeQueueId){
 
         /* If the current item is different from the previous one*/
-        if (currentItemPosition != previousItem) {
+        if (activeQueueId != mActiveQueueId) {
 
-            /* Remove the icon on the previous item view */
-            recyclerViewAdapter.getItem(previousItem).changeImage(0);
+            /* Remove the icon on the previous item view, if it is still in the queue */
+            int previousPosition = getPositionOfQueueId(mActiveQueueId, mActivePosition);
+            if (previousPosition != -1) {
+                recyclerViewAdapter.getItem(previousPosition).changeImage(0);
+                recyclerViewAdapter.notifyItemChanged(previousPosition);
+            }
 
-            /* Add the icon on the item that being played */
-            recyclerViewAdapter.getItem(currentItemPosition).changeImage(R.drawable.ic_audiotrack);
+            /* Add the icon on the item that being played, usually the one after the previous */
+            int currentPosition = getPositionOfQueueId(activeQueueId, mActivePosition + 1);
+            if (currentPosition != -1) {
+                recyclerViewAdapter.getItem(currentPosition).changeImage(R.drawable.ic_audiotrack);
+                recyclerViewAdapter.notifyItemChanged(currentPosition);
+            }
 
-            /* Notify the adapter to update the views */
-            recyclerViewAdapter.notifyItemChanged(previousItem);
-            recyclerViewAdapter.notifyItemChanged(currentItemPosition);
+            /* Update the active queue id */
+            mActiveQueueId = activeQueueId;
+            mActivePosition = currentPosition;
+        }
+    }
 
-            /* Update the previousItem value*/
-            previousItem = currentItemPosition;
+    /**
+     * Finds an item from its queue id, looking first at the position where it is expected and then
+     * further and further from it, as {@link com.armaggheddon.muzic.QueueBuffer#indexOfQueueId}
+     * does, so the usual cases, the next item or an item moved by one, need no search
+     * @param queueId
+     *          The queue id of an item
+     * @param hint
+     *          The position where the item is expected to be, -1 if unknown
+     * @return
+     *          The position of the item in the RecyclerView, -1 if it is not shown
+     */
+    private int getPositionOfQueueId(long queueId, int hint){
+        int count = recyclerViewAdapter.getItemCount();
+        hint = Math.min(Math.max(hint, 0), count - 1);
+        for (int distance = 0; distance < count; distance++) {
+            if (isItemAt(hint - distance, queueId))
+                return hint - distance;
+            if (distance > 0 && isItemAt(hint + distance, queueId))
+                return hint + distance;
+            if (hint - distance < 0 && hint + distance >= count)
+                break;
         }
+        return -1;
+    }
+
+    /**
+     * @return
+     *          True if the item at the position given has the queue id given
+     */
+    private boolean isItemAt(int position, long queueId){
+        return position >= 0 && position < recyclerViewAdapter.getItemCount()
+                && recyclerViewAdapter.getItem(position).getQueueId() == queueId;
     }
 
     @Override
@@ -156,6 +156,25 @@ class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewAdapter.Recyc
 
     public void removeItem(int position){ mCustomList.remove(position);}
 
+    /**
+     * Adds {@param item} at the given position of {@link RecyclerViewAdapter#mCustomList}
+     * @param position
+     *          The position of the new item
+     * @param item
+     *          The item to be added
+     */
+    public void addItem(int position, CustomListItem item){ mCustomList.add(position, item);}
+
+    /**
+     * Moves an item of {@link RecyclerViewAdapter#mCustomList}, the items between the two
+     * positions shift by one
+     * @param from
+     *          The position of the item to move
+     * @param to
+     *          The position of the item after the move
+     */
+    public void moveItem(int from, int to){ mCustomList.add(to, mCustomList.remove(from));}
+
     @Override
     public int getItemCount() {
         return mCustomList.size();
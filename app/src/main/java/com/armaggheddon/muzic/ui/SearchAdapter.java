@@ -134,6 +134,14 @@ class SearchAdapter extends RecyclerView.Adapter<SearchAdapter.RecyclerViewHolde
         mCustomListFull.add(item);
     }
 
+    /**
+     * Removes all the items from {@link SearchAdapter#mCustomList} and {@link SearchAdapter#mCustomListFull}
+     */
+    public void clear(){
+        mCustomList.clear();
+        mCustomListFull.clear();
+    }
+
     /**
      * Return a {@link CustomSearchItem} given a position
      * @param position
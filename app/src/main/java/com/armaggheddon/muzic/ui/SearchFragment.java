@@ -9,6 +9,7 @@ import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.CompoundButton;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -16,8 +17,11 @@ import androidx.fragment.app.Fragment;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import com.armaggheddon.muzic.MusicService;
 import com.armaggheddon.muzic.R;
 import com.armaggheddon.muzic.library.MusicLibrary;
+import com.google.android.material.chip.Chip;
+import com.google.android.material.chip.ChipGroup;
 import com.google.android.material.textfield.TextInputEditText;
 
 import java.util.ArrayList;
@@ -48,6 +52,16 @@ public class SearchFragment extends Fragment{
     /* Search bar edit text */
     private TextInputEditText searchBar;
 
+    /*
+    The chips of the values of the facets, at most one per facet can be checked. The songs shown
+    are the children of the filter of the checked values, or all the songs if none is checked
+    */
+    private ChipGroup filterChips;
+    private String songsParentId = MusicLibrary.SONGS;
+
+    /* True while the chips of a facet are unchecked because another one was checked */
+    private boolean updatingChips = false;
+
     /* Enum to randomly pick a search suggestion from Album, Artists or Songs */
     private enum HintFrom {
         Album,
@@ -66,10 +80,10 @@ public class SearchFragment extends Fragment{
          * Called when the user clicks on an item in the search view, used for Songs
          * @param mediaId
          *          The mediaId string representing unique id of the item clicked.
-         * @param position
-         *          The absolute position of the item clicked to allow the correct playback.
+         * @param parentId
+         *          The parent of the songs shown, {@value MusicLibrary#SONGS} or a filter
          */
-        void onSongSearchItemClicked(String mediaId, long position);
+        void onSongSearchItemClicked(String mediaId, String parentId);
 
         /**
          * Called when an Album or an Artist is clicked
@@ -134,9 +148,7 @@ public class SearchFragment extends Fragment{
         songAdapter.setOnItemClickListener(new SearchAdapter.OnItemClickListener() {
             @Override
             public void onItemClick(int position) {
-                mFragmentListener.onSongSearchItemClicked(
-                        songAdapter.getItem(position).getId(),
-                        songAdapter.getItem(position).getElementPosition());
+                mFragmentListener.onSongSearchItemClicked(songAdapter.getItem(position).getId(), songsParentId);
             }
         });
 
@@ -144,6 +156,8 @@ public class SearchFragment extends Fragment{
         /* Get a reference to the search edit text */
         searchBar = view.findViewById(R.id.search_input);
 
+        filterChips = view.findViewById(R.id.filter_chips);
+
         /* When the text changes */
         searchBar.addTextChangedListener(new TextWatcher() {
             @Override
@@ -206,11 +220,39 @@ public class SearchFragment extends Fragment{
                 break;
         }
 
-        /* Subscribe to the corresponding media */
-        mFragmentListener.getMediaBrowser().subscribe(MusicLibrary.ALBUMS, mAlbumsSubscriptionCallback);
-        mFragmentListener.getMediaBrowser().subscribe(MusicLibrary.ARTISTS, mArtistsSubscriptionCallback);
-        mFragmentListener.getMediaBrowser().subscribe(MusicLibrary.SONGS, mSongsSubscriptionCallback);
+        /* The filters are built again, starting with all the songs */
+        songsParentId = MusicLibrary.SONGS;
+        filterChips.removeAllViews();
+
+        /* Load the corresponding media */
+        loadChildren(MusicLibrary.ALBUMS, mAlbumsSubscriptionCallback);
+        loadChildren(MusicLibrary.ARTISTS, mArtistsSubscriptionCallback);
+        loadChildren(MusicLibrary.SONGS, mSongsSubscriptionCallback);
+        loadChildren(MusicLibrary.GENRES, mFacetsSubscriptionCallback);
+        loadChildren(MusicLibrary.DECADES, mFacetsSubscriptionCallback);
+        loadChildren(MusicLibrary.FORMATS, mFacetsSubscriptionCallback);
+
+    }
+
+    /**
+     * Loads the children of {@param parentId}. When the activity is bound to MusicService in
+     * process the list is read from it and passed to the callback directly, the unsubscribe made
+     * by the callback then does nothing. Otherwise it subscribes through the MediaBrowser
+     * @param parentId
+     *          The id of the parent to load
+     * @param callback
+     *          The callback that receives the children
+     */
+    private void loadChildren(String parentId, MediaBrowserCompat.SubscriptionCallback callback){
+
+        MusicService.LocalBinder localBinder = mFragmentListener.getLocalBinder();
+        List<MediaBrowserCompat.MediaItem> children =
+                (localBinder != null) ? localBinder.getChildren(parentId) : null;
 
+        if(children != null)
+            callback.onChildrenLoaded(parentId, children);
+        else
+            mFragmentListener.getMediaBrowser().subscribe(parentId, callback);
     }
 
 
@@ -280,7 +322,13 @@ public class SearchFragment extends Fragment{
         public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
             super.onChildrenLoaded(parentId, children);
 
-            if(hintFrom == HintFrom.Song){
+            /* The songs of a filter no longer checked */
+            if(!parentId.equals(songsParentId)){
+                mFragmentListener.getMediaBrowser().unsubscribe(parentId, this);
+                return;
+            }
+
+            if(hintFrom == HintFrom.Song && parentId.equals(MusicLibrary.SONGS) && !children.isEmpty()){
                 searchBar.setHint("Try searching for \"" +
                         (children.get(new Random().nextInt(children.size()))).getDescription().getTitle().toString()
                 + "\"");
@@ -304,14 +352,85 @@ public class SearchFragment extends Fragment{
                         true));
             }
 
-            /* When all the data is loaded notify the adapter about the changes */
-            songAdapter.notifyDataSetChanged();
+            /* When all the data is loaded show the songs that match the text typed */
+            songAdapter.getFilter().filter(searchBar.getText());
 
             /* We can now unsubscribe to receive future updates since we just need to load the data once */
-            mFragmentListener.getMediaBrowser().unsubscribe(MusicLibrary.SONGS, mSongsSubscriptionCallback);
+            mFragmentListener.getMediaBrowser().unsubscribe(parentId, mSongsSubscriptionCallback);
         }
     };
 
+    /**
+     * Adds a chip for every value of a facet, the tag of the chip is the id of the filter of
+     * the value
+     */
+    private final MediaBrowserCompat.SubscriptionCallback mFacetsSubscriptionCallback = new MediaBrowserCompat.SubscriptionCallback() {
+        @Override
+        public void onChildrenLoaded(@NonNull String parentId, @NonNull List<MediaBrowserCompat.MediaItem> children) {
+            super.onChildrenLoaded(parentId, children);
+
+            for (MediaBrowserCompat.MediaItem item : children) {
+                Chip chip = new Chip(filterChips.getContext());
+                chip.setText(item.getDescription().getTitle());
+                chip.setTag(item.getMediaId());
+                chip.setCheckable(true);
+                chip.setOnCheckedChangeListener(mFilterListener);
+                filterChips.addView(chip);
+            }
+
+            mFragmentListener.getMediaBrowser().unsubscribe(parentId, mFacetsSubscriptionCallback);
+        }
+    };
+
+    /**
+     * Keeps at most one checked chip per facet and shows the songs of the filter of the checked
+     * chips
+     */
+    private final CompoundButton.OnCheckedChangeListener mFilterListener = new CompoundButton.OnCheckedChangeListener() {
+        @Override
+        public void onCheckedChanged(CompoundButton buttonView, boolean isChecked) {
+            if(updatingChips)
+                return;
+
+            /* The facet is the letter after "filter_" */
+            int facetIndex = MusicLibrary.FILTER_.length();
+            char facet = ((String) buttonView.getTag()).charAt(facetIndex);
+            StringBuilder terms = new StringBuilder();
+
+            updatingChips = true;
+            for(int i = 0; i < filterChips.getChildCount(); i++){
+                Chip chip = (Chip) filterChips.getChildAt(i);
+                String filterId = (String) chip.getTag();
+                if(isChecked && chip != buttonView && filterId.charAt(facetIndex) == facet)
+                    chip.setChecked(false);
+                if(chip.isChecked()){
+                    if(terms.length() > 0)
+                        terms.append(MusicLibrary.FILTER_SEPARATOR);
+                    terms.append(filterId.substring(facetIndex));
+                }
+            }
+            updatingChips = false;
+
+            showSongs((terms.length() > 0) ? MusicLibrary.FILTER_ + terms : MusicLibrary.SONGS);
+        }
+    };
+
+    /**
+     * Replaces the songs shown with the children of {@param parentId}
+     * @param parentId
+     *          {@value MusicLibrary#SONGS} or the id of a filter
+     */
+    private void showSongs(String parentId){
+        if(parentId.equals(songsParentId))
+            return;
+
+        mFragmentListener.getMediaBrowser().unsubscribe(songsParentId);
+        songsParentId = parentId;
+        songAdapter.clear();
+        songAdapter.notifyDataSetChanged();
+        loadChildren(parentId, mSongsSubscriptionCallback);
+    }
+
     @Override
     public void onAttach(@NonNull Context context) {
         super.onAttach(context);
@@ -345,6 +464,10 @@ public class SearchFragment extends Fragment{
             mediaBrowser.unsubscribe(MusicLibrary.ARTISTS);
             mediaBrowser.unsubscribe(MusicLibrary.ALBUMS);
             mediaBrowser.unsubscribe(MusicLibrary.SONGS);
+            mediaBrowser.unsubscribe(songsParentId);
+            mediaBrowser.unsubscribe(MusicLibrary.GENRES);
+            mediaBrowser.unsubscribe(MusicLibrary.DECADES);
+            mediaBrowser.unsubscribe(MusicLibrary.FORMATS);
         }
     }
 }
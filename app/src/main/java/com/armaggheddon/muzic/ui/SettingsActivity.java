@@ -1,5 +1,6 @@
 package com.armaggheddon.muzic.ui;
 
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.pm.ShortcutInfo;
 import android.content.pm.ShortcutManager;
@@ -10,14 +11,19 @@ import android.os.Bundle;
 import android.view.View;
 
 import androidx.annotation.RequiresApi;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.preference.ListPreference;
 import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
+import androidx.preference.SeekBarPreference;
 import androidx.preference.SwitchPreference;
 
+import com.armaggheddon.muzic.MusicPlayer;
 import com.armaggheddon.muzic.MuzicApplication;
+import com.armaggheddon.muzic.PlaybackLatency;
 import com.armaggheddon.muzic.R;
+import com.armaggheddon.muzic.ReadAhead;
 import com.google.android.material.appbar.MaterialToolbar;
 
 import java.util.Arrays;
@@ -116,6 +122,38 @@ public class SettingsActivity extends AppCompatActivity {
                 });
             }
 
+            /* Keep the crossfade range aligned with the one supported by MusicPlayer */
+            SeekBarPreference crossfadePreference = findPreference(getString(R.string.crossfade_key_shared_prefs));
+            if (crossfadePreference != null)
+                crossfadePreference.setMax(MusicPlayer.MAX_CROSSFADE_SECONDS);
+
+            /* Keep the read-ahead range aligned with the one supported by ReadAhead */
+            SeekBarPreference readAheadPreference = findPreference(getString(R.string.read_ahead_key_shared_prefs));
+            if (readAheadPreference != null)
+                readAheadPreference.setMax(ReadAhead.MAX_READ_AHEAD_PERCENT);
+
+            /* Show the percentiles measured by PlaybackLatency, they are kept until the app is closed */
+            Preference latencyPreference = findPreference(getString(R.string.latency_debug_key_shared_prefs));
+            if (latencyPreference != null) {
+                latencyPreference.setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                    @Override
+                    public boolean onPreferenceClick(Preference preference) {
+                        new AlertDialog.Builder(requireContext())
+                                .setTitle(R.string.latency_debug_title)
+                                .setMessage(PlaybackLatency.getSummary())
+                                .setPositiveButton(android.R.string.ok, null)
+                                .setNeutralButton(R.string.latency_debug_reset_button_text, new DialogInterface.OnClickListener() {
+                                    @Override
+                                    public void onClick(DialogInterface dialog, int which) {
+                                        PlaybackLatency.reset();
+                                    }
+                                })
+                                .show();
+                        return true;
+                    }
+                });
+            }
+
             /* Get the preference for the launcher shortcut */
             SwitchPreference appShortcutsPreference = findPreference(getString(R.string.launcher_shortcut_key_shared_prefs));
             if (appShortcutsPreference != null) {
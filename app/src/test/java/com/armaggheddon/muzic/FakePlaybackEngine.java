@@ -0,0 +1,158 @@
+package com.armaggheddon.muzic;
+
+import android.net.Uri;
+
+/**
+ * {@link PlaybackEngine} that plays nothing, used to test on the JVM the session logic that reacts
+ * to the engine. It records the calls it receives, and the test fires the events that a real
+ * engine sends when a song ends, when it starts the next song or loops the song by itself and
+ * when a song can not be played. The events are delivered on the calling thread
+ */
+
+public class FakePlaybackEngine implements PlaybackEngine {
+
+    private Callback mCallback;
+
+    private Uri mCurrent;
+    private Uri mNext;
+    private boolean mPrepared = false;
+
+    /* True from prepare() until the song ends, fails or is stopped, as the song being heard */
+    private boolean mRunning = false;
+    private boolean mPlaying = false;
+    private boolean mLooping = false;
+    private long mPosition = 0;
+    private float mVolume = DEFAULT_VOLUME;
+
+    /* The number of calls received, read by the tests */
+    int prepareCount = 0;
+    int prepareNextCount = 0;
+    int playCount = 0;
+    int stopCount = 0;
+    int seekCount = 0;
+
+    @Override
+    public void setCallback(Callback callback){
+        mCallback = callback;
+    }
+
+    @Override
+    public void prepare(Uri uriPath, long duration){
+        prepareCount++;
+
+        /* As the real engines, the song being heard is kept and goes on from its position */
+        if(mRunning && String.valueOf(uriPath).equals(String.valueOf(mCurrent)))
+            return;
+        mCurrent = uriPath;
+        mPrepared = true;
+        mRunning = true;
+        mPosition = 0;
+    }
+
+    @Override
+    public void prepareNext(Uri uriPath){
+        prepareNextCount++;
+        mNext = uriPath;
+    }
+
+    @Override
+    public void play(){
+        playCount++;
+        if(mPrepared)
+            mPlaying = true;
+    }
+
+    @Override
+    public void pause(){
+        mPlaying = false;
+    }
+
+    @Override
+    public void stop(){
+        stopCount++;
+        mPlaying = false;
+        mPrepared = false;
+        mRunning = false;
+        mPosition = 0;
+    }
+
+    @Override
+    public void release(){
+        stop();
+        mCallback = null;
+    }
+
+    @Override
+    public void seekTo(long ms){
+        seekCount++;
+        mPosition = ms;
+    }
+
+    @Override
+    public long getPosition(){
+        return mPosition;
+    }
+
+    @Override
+    public boolean isPlaying(){
+        return mPlaying && mRunning;
+    }
+
+    @Override
+    public void setLooping(boolean looping){
+        mLooping = looping;
+    }
+
+    @Override
+    public void setVolume(float volume){
+        mVolume = volume;
+    }
+
+    boolean isLooping(){
+        return mLooping;
+    }
+
+    float getVolume(){
+        return mVolume;
+    }
+
+    /**
+     * Ends the song being played as a real engine does when no next song was started: the
+     * playback stops and {@link Callback#onCompletion()} is called
+     */
+    void finishSong(){
+        mPlaying = false;
+        mRunning = false;
+        mCallback.onCompletion();
+    }
+
+    /**
+     * Starts the song given in {@link FakePlaybackEngine#prepareNext(Uri)}, as at the end of a
+     * crossfade or of a gapless join, and calls {@link Callback#onNextStarted()}
+     */
+    void startNextSong(){
+        mCurrent = mNext;
+        mNext = null;
+        mPosition = 0;
+        mCallback.onNextStarted();
+    }
+
+    /**
+     * Restarts the song being played as a real engine does when looping is enabled, and calls
+     * {@link Callback#onLooped()}
+     */
+    void loopSong(){
+        mPosition = 0;
+        mCallback.onLooped();
+    }
+
+    /**
+     * Fails to play the song being played and calls {@link Callback#onError(String)}
+     */
+    void failSong(){
+        mPlaying = false;
+        mPrepared = false;
+        mRunning = false;
+        mCallback.onError(String.valueOf(mCurrent));
+    }
+}
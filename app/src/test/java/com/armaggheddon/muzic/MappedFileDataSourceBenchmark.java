@@ -0,0 +1,191 @@
+package com.armaggheddon.muzic;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compares {@link MappedFileDataSource#readAt(long, byte[], int, int)} with reading the same file
+ * through a stream, that is what the player does when it is given the Uri of the song: every read
+ * seeks the descriptor and copies the bytes from the kernel. Both sources read the same offsets
+ * and their checksums must match, so the benchmark also checks the data returned by readAt.
+ * The times are printed, they depend on the machine and are not asserted. It runs only with
+ * ./gradlew test -Pmuzic.bench, the data returned by readAt is checked by
+ * {@link MappedFileDataSourceTest}
+ */
+public class MappedFileDataSourceBenchmark {
+
+    /* A song of a few minutes, big enough to be mapped instead of copied */
+    private static final int FILE_SIZE = 16 * 1024 * 1024;
+
+    /* The extractor reads the file in chunks of this size while playing */
+    private static final int SEQUENTIAL_CHUNK = 16 * 1024;
+
+    /* Seeks and the parsing of the headers read small chunks at random offsets */
+    private static final int RANDOM_CHUNK = 4 * 1024;
+    private static final int RANDOM_READS = 50000;
+
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    private static File sFile;
+
+    /**
+     * Reads a file the way the player does when it opens the Uri of a song
+     */
+    private interface Source {
+        int readAt(long position, byte[] buffer, int offset, int size) throws IOException;
+    }
+
+    private static final class StreamSource implements Source {
+        private final RandomAccessFile file;
+
+        StreamSource(File path) throws IOException {
+            file = new RandomAccessFile(path, "r");
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            file.seek(position);
+            return file.read(buffer, offset, size);
+        }
+
+        void close() throws IOException {
+            file.close();
+        }
+    }
+
+    private static final class MappedSource implements Source {
+        private final MappedFileDataSource source;
+
+        MappedSource(MappedFileDataSource source){
+            this.source = source;
+        }
+
+        @Override
+        public int readAt(long position, byte[] buffer, int offset, int size) throws IOException {
+            return source.readAt(position, buffer, offset, size);
+        }
+    }
+
+    @BeforeClass
+    public static void createFile() throws IOException {
+        Assume.assumeTrue(Boolean.getBoolean("muzic.bench"));
+        sFile = File.createTempFile("muzic_song", ".bin");
+        byte[] data = new byte[FILE_SIZE];
+        new Random(1).nextBytes(data);
+        try (FileOutputStream stream = new FileOutputStream(sFile)){
+            stream.write(data);
+        }
+    }
+
+    @AfterClass
+    public static void deleteFile(){
+        if(sFile != null && !sFile.delete())
+            sFile.deleteOnExit();
+    }
+
+    private static MappedFileDataSource openMapped(File file) throws IOException {
+        try (FileInputStream stream = new FileInputStream(file);
+             FileChannel channel = stream.getChannel()){
+            return MappedFileDataSource.open(channel);
+        }
+    }
+
+    private static long readSequential(Source source) throws IOException {
+        byte[] buffer = new byte[SEQUENTIAL_CHUNK];
+        long checksum = 0;
+        long position = 0;
+        int count;
+        while((count = source.readAt(position, buffer, 0, buffer.length)) > 0){
+            checksum = checksum * 31 + buffer[0] + buffer[count - 1];
+            position += count;
+        }
+        assertEquals(FILE_SIZE, position);
+        return checksum;
+    }
+
+    private static long readRandom(Source source) throws IOException {
+        byte[] buffer = new byte[RANDOM_CHUNK];
+        Random random = new Random(2);
+        long checksum = 0;
+        for(int i = 0; i < RANDOM_READS; i++){
+            long position = random.nextInt(FILE_SIZE - RANDOM_CHUNK);
+            int count = source.readAt(position, buffer, 0, buffer.length);
+            assertEquals(RANDOM_CHUNK, count);
+            checksum = checksum * 31 + buffer[0] + buffer[count - 1];
+        }
+        return checksum;
+    }
+
+    /**
+     * Runs the reads a few times to let the JIT compile them, then returns the best time of the
+     * measured runs in nanoseconds
+     */
+    private static long time(Source source, boolean sequential, long expected) throws IOException {
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++){
+            long start = System.nanoTime();
+            long checksum = sequential ? readSequential(source) : readRandom(source);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(expected, checksum);
+            if(i >= WARMUP_RUNS)
+                best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    private static void report(String name, long bytes, long streamNanos, long mappedNanos){
+        double streamRate = bytes / (streamNanos / 1e9) / (1024 * 1024);
+        double mappedRate = bytes / (mappedNanos / 1e9) / (1024 * 1024);
+        System.out.println(String.format(
+                "%s: stream %.1f MB/s (%.2f ms), mapped %.1f MB/s (%.2f ms), %.2fx",
+                name, streamRate, streamNanos / 1e6, mappedRate, mappedNanos / 1e6,
+                (double) streamNanos / mappedNanos));
+    }
+
+    @Test
+    public void sequentialReads() throws IOException {
+        MappedFileDataSource mapped = openMapped(sFile);
+        assertNotNull(mapped);
+        StreamSource stream = new StreamSource(sFile);
+        try {
+            long expected = readSequential(stream);
+            long streamNanos = time(stream, true, expected);
+            long mappedNanos = time(new MappedSource(mapped), true, expected);
+            report("sequential " + SEQUENTIAL_CHUNK + "B", FILE_SIZE, streamNanos, mappedNanos);
+        } finally {
+            stream.close();
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void randomReads() throws IOException {
+        MappedFileDataSource mapped = openMapped(sFile);
+        assertNotNull(mapped);
+        StreamSource stream = new StreamSource(sFile);
+        try {
+            long expected = readRandom(stream);
+            long streamNanos = time(stream, false, expected);
+            long mappedNanos = time(new MappedSource(mapped), false, expected);
+            report("random " + RANDOM_CHUNK + "B", (long) RANDOM_READS * RANDOM_CHUNK,
+                    streamNanos, mappedNanos);
+        } finally {
+            stream.close();
+            mapped.close();
+        }
+    }
+}
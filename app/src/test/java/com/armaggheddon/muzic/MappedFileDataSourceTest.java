@@ -0,0 +1,109 @@
+package com.armaggheddon.muzic;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the bytes returned by {@link MappedFileDataSource#readAt(long, byte[], int, int)}, for a
+ * file small enough to be copied in memory and for a file that is mapped, and the end of the file
+ */
+public class MappedFileDataSourceTest {
+
+    private File mFile;
+
+    @After
+    public void deleteFile(){
+        if(mFile != null && !mFile.delete())
+            mFile.deleteOnExit();
+    }
+
+    private byte[] createFile(int size) throws IOException {
+        mFile = File.createTempFile("muzic_song", ".bin");
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        try (FileOutputStream stream = new FileOutputStream(mFile)){
+            stream.write(data);
+        }
+        return data;
+    }
+
+    private MappedFileDataSource open() throws IOException {
+        try (FileInputStream stream = new FileInputStream(mFile);
+             FileChannel channel = stream.getChannel()){
+            return MappedFileDataSource.open(channel);
+        }
+    }
+
+    /**
+     * Reads chunks at random offsets and compares them with the content of the file
+     */
+    private static void assertReadsMatch(MappedFileDataSource source, byte[] data) throws IOException {
+        Random random = new Random(1);
+        byte[] buffer = new byte[4096];
+        for(int i = 0; i < 1000; i++){
+            int position = random.nextInt(data.length);
+            int offset = random.nextInt(16);
+            int count = source.readAt(position, buffer, offset, buffer.length - offset);
+            assertEquals(Math.min(buffer.length - offset, data.length - position), count);
+            assertArrayEquals(Arrays.copyOfRange(data, position, position + count),
+                    Arrays.copyOfRange(buffer, offset, offset + count));
+        }
+    }
+
+    @Test
+    public void smallFileIsReadCorrectly() throws IOException {
+        byte[] data = createFile(64 * 1024);
+        MappedFileDataSource source = open();
+        assertNotNull(source);
+        assertEquals(data.length, source.getSize());
+        assertReadsMatch(source, data);
+        source.close();
+    }
+
+    @Test
+    public void mappedFileIsReadCorrectly() throws IOException {
+        byte[] data = createFile((int) MappedFileDataSource.SMALL_FILE_SIZE + 4096);
+        MappedFileDataSource source = open();
+        assertNotNull(source);
+        assertEquals(data.length, source.getSize());
+        assertReadsMatch(source, data);
+        source.close();
+    }
+
+    @Test
+    public void readAtStopsAtTheEndOfTheFile() throws IOException {
+        byte[] data = createFile(10000);
+        MappedFileDataSource source = open();
+        byte[] buffer = new byte[4096];
+        assertEquals(100, source.readAt(data.length - 100, buffer, 0, buffer.length));
+        assertEquals(-1, source.readAt(data.length, buffer, 0, buffer.length));
+        source.close();
+    }
+
+    @Test
+    public void emptyFileIsNotOpened() throws IOException {
+        createFile(0);
+        assertNull(open());
+    }
+
+    @Test(expected = IOException.class)
+    public void closedSourceThrows() throws IOException {
+        createFile(1000);
+        MappedFileDataSource source = open();
+        source.close();
+        source.readAt(0, new byte[10], 0, 10);
+    }
+}
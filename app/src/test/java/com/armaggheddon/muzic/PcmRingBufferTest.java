@@ -0,0 +1,219 @@
+package com.armaggheddon.muzic;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the data and the blocking behaviour of the buffer shared by the decode and the output
+ * threads of {@link CodecPlaybackEngine}
+ */
+public class PcmRingBufferTest {
+
+    /* Long enough for a thread to block, short enough to keep the tests fast */
+    private static final long BLOCK_MS = 100;
+    private static final long TIMEOUT_MS = 2000;
+
+    private static byte[] sequence(int start, int length){
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+            data[i] = (byte) (start + i);
+        return data;
+    }
+
+    /**
+     * Reads exactly {@param length} bytes, the buffer returns at most the bytes before the end of
+     * its array in a single read
+     */
+    private static byte[] readFully(PcmRingBuffer ring, int length) throws InterruptedException {
+        byte[] data = new byte[length];
+        int read = 0;
+        while(read < length){
+            int count = ring.read(data, read, length - read);
+            assertTrue(count > 0);
+            read += count;
+        }
+        return data;
+    }
+
+    @Test
+    public void dataWrapsAroundTheEnd() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(10);
+        int written = 0;
+
+        /* Chunks that do not divide the capacity, so the writes and the reads cross the end */
+        for(int i = 0; i < 20; i++){
+            assertTrue(ring.write(sequence(written, 7), 0, 7));
+            assertArrayEquals(sequence(written, 7), readFully(ring, 7));
+            written += 7;
+        }
+        assertEquals(written, ring.getWrittenBytes());
+        assertEquals(written, ring.getReadBytes());
+    }
+
+    @Test
+    public void readStopsAtTheEndOfTheArray() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(8);
+        ring.write(sequence(0, 6), 0, 6);
+        readFully(ring, 6);
+        ring.write(sequence(6, 5), 0, 5);
+
+        /* Only the 2 bytes before the end of the array, then the 3 after the start */
+        byte[] data = new byte[5];
+        assertEquals(2, ring.read(data, 0, 5));
+        assertEquals(3, ring.read(data, 2, 3));
+        assertArrayEquals(sequence(6, 5), data);
+    }
+
+    @Test
+    public void writerBlocksWhileFull() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(4);
+        ring.write(sequence(0, 4), 0, 4);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ring.write(sequence(4, 2), 0, 2);
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertFalse(done.await(BLOCK_MS, TimeUnit.MILLISECONDS));
+
+        /* Reading makes space and wakes the writer up */
+        assertArrayEquals(sequence(0, 2), readFully(ring, 2));
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertArrayEquals(sequence(2, 2), readFully(ring, 2));
+        assertArrayEquals(sequence(4, 2), readFully(ring, 2));
+        writer.join(TIMEOUT_MS);
+    }
+
+    @Test
+    public void readerBlocksWhileEmpty() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(16);
+        final AtomicInteger read = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.set(ring.read(new byte[16], 0, 16));
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reader.start();
+        assertFalse(done.await(BLOCK_MS, TimeUnit.MILLISECONDS));
+
+        ring.write(sequence(0, 3), 0, 3);
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(3, read.get());
+        reader.join(TIMEOUT_MS);
+    }
+
+    @Test
+    public void readerGetsEndOfStreamOnceEmpty() throws InterruptedException {
+        PcmRingBuffer ring = new PcmRingBuffer(16);
+        ring.write(sequence(0, 5), 0, 5);
+        ring.setEndOfStream();
+
+        assertArrayEquals(sequence(0, 5), readFully(ring, 5));
+        assertEquals(-1, ring.read(new byte[4], 0, 4));
+    }
+
+    @Test
+    public void writerLeavesOnClear() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(4);
+        ring.write(sequence(0, 4), 0, 4);
+
+        final AtomicBoolean result = new AtomicBoolean(true);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result.set(ring.write(sequence(4, 8), 0, 8));
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        assertFalse(done.await(BLOCK_MS, TimeUnit.MILLISECONDS));
+
+        /* The writer gives up the rest of its data, nothing it wrote before is kept */
+        ring.clear();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(result.get());
+        assertEquals(ring.getWrittenBytes(), ring.getReadBytes());
+        writer.join(TIMEOUT_MS);
+
+        /* The buffer can be written again after the clear */
+        assertTrue(ring.write(sequence(20, 3), 0, 3));
+        assertArrayEquals(sequence(20, 3), readFully(ring, 3));
+    }
+
+    @Test
+    public void closeWakesReaderAndWriter() throws InterruptedException {
+        final PcmRingBuffer full = new PcmRingBuffer(2);
+        final PcmRingBuffer empty = new PcmRingBuffer(2);
+        full.write(sequence(0, 2), 0, 2);
+
+        final AtomicBoolean written = new AtomicBoolean(true);
+        final AtomicInteger read = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(2);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    written.set(full.write(sequence(2, 2), 0, 2));
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    read.set(empty.read(new byte[2], 0, 2));
+                    done.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        writer.start();
+        reader.start();
+        assertFalse(done.await(BLOCK_MS, TimeUnit.MILLISECONDS));
+
+        full.close();
+        empty.close();
+        assertTrue(done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertFalse(written.get());
+        assertEquals(-1, read.get());
+
+        /* A closed buffer does not give the data it still holds, until it is cleared */
+        assertEquals(-1, full.read(new byte[2], 0, 2));
+        full.clear();
+        assertTrue(full.write(sequence(4, 2), 0, 2));
+        assertArrayEquals(sequence(4, 2), readFully(full, 2));
+    }
+}
@@ -0,0 +1,207 @@
+package com.armaggheddon.muzic;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the file format of {@link PlayLog}, read and written by {@link PlayHistory}: the events
+ * appended, the compacted counters, the old format with the starts only, and a damaged end
+ */
+public class PlayHistoryTest {
+
+    private static byte[] header(){
+        return new PlayHistory().encode();
+    }
+
+    private static byte[] concat(byte[] first, byte[] second){
+        byte[] data = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, data, first.length, second.length);
+        return data;
+    }
+
+    /**
+     * Writes random events of a few songs as they are appended, and applies them to the history
+     */
+    private static byte[] randomEvents(PlayHistory history, Random random, int count){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        long time = 1600000000000L;
+        for(int i = 0; i < count; i++){
+            int event = PlayLog.EVENT_START + random.nextInt(3);
+            long songId = 1 + random.nextInt(50);
+            time += random.nextInt(600000);
+            long position = random.nextInt(300000);
+            history.apply(event, songId, time, position);
+            PlayHistory.writeEvent(output, event, songId, time, position);
+        }
+        return output.toByteArray();
+    }
+
+    private static void assertSameHistory(PlayHistory expected, PlayHistory actual){
+        assertEquals(expected.size(), actual.size());
+        long[] recent = expected.getRecent(0, expected.size());
+        assertArrayEquals(recent, actual.getRecent(0, actual.size()));
+        assertArrayEquals(expected.getMostPlayed(0, expected.size()), actual.getMostPlayed(0, actual.size()));
+        for(long songId : recent){
+            PlayHistory.Counters counters = expected.get(songId);
+            PlayHistory.Counters read = actual.get(songId);
+            assertNotNull(read);
+            assertEquals(counters.plays, read.plays);
+            assertEquals(counters.completions, read.completions);
+            assertEquals(counters.skips, read.skips);
+            assertEquals(counters.listened, read.listened);
+            assertEquals(counters.lastPlayed, read.lastPlayed);
+        }
+    }
+
+    @Test
+    public void eventsRoundTrip(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 7, 1000, 0);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_SKIP, 7, 5000, 4000);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 9, 6000, 0);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_COMPLETE, 9, 200000, 194000);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 7, 210000, 1500);
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(5, history.replay(concat(header(), output.toByteArray())));
+
+        assertArrayEquals(new long[]{7, 9}, history.getRecent(0, 10));
+        assertArrayEquals(new long[]{7, 9}, history.getMostPlayed(0, 10));
+        PlayHistory.Counters song7 = history.get(7);
+        assertEquals(2, song7.plays);
+        assertEquals(0, song7.completions);
+        assertEquals(1, song7.skips);
+        assertEquals(4000, song7.listened);
+        assertEquals(210000, song7.lastPlayed);
+        PlayHistory.Counters song9 = history.get(9);
+        assertEquals(1, song9.plays);
+        assertEquals(1, song9.completions);
+        assertEquals(194000, song9.listened);
+        assertNull(history.get(8));
+    }
+
+    @Test
+    public void randomEventsRoundTrip(){
+        PlayHistory expected = new PlayHistory();
+        byte[] data = concat(header(), randomEvents(expected, new Random(1), 5000));
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(5000, history.replay(data));
+        assertSameHistory(expected, history);
+    }
+
+    @Test
+    public void compactedRoundTrip(){
+        PlayHistory expected = new PlayHistory();
+        randomEvents(expected, new Random(2), 5000);
+        byte[] compacted = expected.encode();
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(expected.size(), history.replay(compacted));
+        assertSameHistory(expected, history);
+
+        /* The counters are written in the order of the list, so the same file comes out */
+        assertArrayEquals(compacted, history.encode());
+    }
+
+    @Test
+    public void eventsAppendedAfterCompaction(){
+        PlayHistory expected = new PlayHistory();
+        Random random = new Random(3);
+        randomEvents(expected, random, 1000);
+        byte[] compacted = expected.encode();
+        int compactedSize = expected.size();
+        byte[] appended = randomEvents(expected, random, 300);
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(compactedSize + 300, history.replay(concat(compacted, appended)));
+        assertSameHistory(expected, history);
+    }
+
+    @Test
+    public void compactionKeepsTheTopSongs(){
+        /* A long tail, a few songs are played much more than the others */
+        PlayHistory expected = new PlayHistory();
+        Random random = new Random(4);
+        long time = 1600000000000L;
+        for(int i = 0; i < 20000; i++){
+            double value = random.nextDouble();
+            time += 1000 + random.nextInt(300000);
+            expected.apply(PlayLog.EVENT_START, 1 + (long) (500 * value * value), time, 0);
+        }
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(expected.size(), history.replay(expected.encode()));
+        long[] top = history.getMostPlayed(0, 10);
+        assertArrayEquals(expected.getMostPlayed(0, 10), top);
+        for(int i = 1; i < top.length; i++)
+            assertEquals(true, history.get(top[i - 1]).plays >= history.get(top[i]).plays);
+    }
+
+    @Test
+    public void emptyLog(){
+        PlayHistory history = new PlayHistory();
+        assertEquals(0, history.replay(header()));
+        assertEquals(0, history.size());
+        assertEquals(0, history.getRecent(0, 10).length);
+    }
+
+    @Test
+    public void oldFormatIsReadAndWrittenAgain(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        output.writeInt(PlayHistory.MAGIC);
+        output.writeVarint(PlayHistory.VERSION_STARTS);
+        long[][] starts = {{3, 100}, {4, 200}, {3, 300}};
+        for(long[] start : starts){
+            output.writeVarint(start[0]);
+            output.writeVarint(start[1]);
+        }
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(-1, history.replay(output.toByteArray()));
+        assertArrayEquals(new long[]{3, 4}, history.getRecent(0, 10));
+        assertEquals(2, history.get(3).plays);
+        assertEquals(300, history.get(3).lastPlayed);
+        assertEquals(1, history.get(4).plays);
+    }
+
+    @Test
+    public void truncatedLastRecordIsDropped(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 1, 1000, 0);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 2, 300000, 0);
+        byte[] data = concat(header(), output.toByteArray());
+
+        /* The last byte of the time of the second start is missing */
+        PlayHistory history = new PlayHistory();
+        assertEquals(-1, history.replay(Arrays.copyOf(data, data.length - 2)));
+        assertArrayEquals(new long[]{1}, history.getRecent(0, 10));
+    }
+
+    @Test
+    public void unknownRecordStopsTheReplay(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 1, 1000, 0);
+        PlayHistory.writeEvent(output, 99, 2, 2000, 0);
+        PlayHistory.writeEvent(output, PlayLog.EVENT_START, 3, 3000, 0);
+
+        PlayHistory history = new PlayHistory();
+        assertEquals(-1, history.replay(concat(header(), output.toByteArray())));
+        assertArrayEquals(new long[]{1}, history.getRecent(0, 10));
+    }
+
+    @Test
+    public void otherFileIsNotRead(){
+        PlayHistory history = new PlayHistory();
+        assertEquals(-1, history.replay(new byte[0]));
+        assertEquals(-1, history.replay(new byte[]{1, 2, 3, 4, 5, 6}));
+        assertEquals(0, history.size());
+    }
+}
@@ -0,0 +1,103 @@
+package com.armaggheddon.muzic;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a log of a million events, what {@link PlayLog} reads when the app starts if the file
+ * was never compacted, and compares it with replaying the same history compacted into the
+ * counters of every song. The plays follow a long tail, a few songs are played much more than
+ * the others. Both must list the songs in the same order.
+ * The times are printed, they depend on the machine and are not asserted. It runs only with
+ * ./gradlew test -Pmuzic.bench, the format is checked by {@link PlayHistoryTest}
+ */
+public class PlayLogBenchmark {
+
+    private static final int EVENTS = 1000000;
+    private static final int SONGS = 20000;
+
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 3;
+
+    private static byte[] sLog;
+    private static byte[] sCompacted;
+    private static PlayHistory sExpected;
+
+    @BeforeClass
+    public static void createLog(){
+        Assume.assumeTrue(Boolean.getBoolean("muzic.bench"));
+        Random random = new Random(1);
+        sExpected = new PlayHistory();
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(EVENTS * 12);
+        byte[] header = new PlayHistory().encode();
+        output.write(header, 0, header.length);
+
+        /* Every play is a start followed by a complete or a skip */
+        long time = 1600000000000L;
+        for(int i = 0; i < EVENTS; i += 2){
+            double value = random.nextDouble();
+            long songId = 1 + (long) (SONGS * value * value);
+            time += 1000 + random.nextInt(300000);
+            long duration = 120000 + random.nextInt(240000);
+            boolean skipped = random.nextInt(4) == 0;
+            long position = skipped ? random.nextInt((int) duration) : duration;
+            int end = skipped ? PlayLog.EVENT_SKIP : PlayLog.EVENT_COMPLETE;
+
+            sExpected.apply(PlayLog.EVENT_START, songId, time, 0);
+            PlayHistory.writeEvent(output, PlayLog.EVENT_START, songId, time, 0);
+            sExpected.apply(end, songId, time + position, position);
+            PlayHistory.writeEvent(output, end, songId, time + position, position);
+        }
+        sLog = output.toByteArray();
+        sCompacted = sExpected.encode();
+    }
+
+    private static PlayHistory replay(byte[] data, int records){
+        PlayHistory history = new PlayHistory();
+        assertEquals(records, history.replay(data));
+        return history;
+    }
+
+    /**
+     * Replays the data a few times to let the JIT compile the code, then returns the best time of
+     * the measured runs in nanoseconds
+     */
+    private static long time(byte[] data, int records){
+        long best = Long.MAX_VALUE;
+        for(int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++){
+            long start = System.nanoTime();
+            PlayHistory history = replay(data, records);
+            long elapsed = System.nanoTime() - start;
+            assertEquals(sExpected.size(), history.size());
+            if(i >= WARMUP_RUNS)
+                best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    @Test
+    public void replayOfEventsAndCompactedLog(){
+        PlayHistory events = replay(sLog, EVENTS);
+        PlayHistory compacted = replay(sCompacted, sExpected.size());
+        long[] mostPlayed = sExpected.getMostPlayed(0, sExpected.size());
+        assertArrayEquals(mostPlayed, events.getMostPlayed(0, events.size()));
+        assertArrayEquals(mostPlayed, compacted.getMostPlayed(0, compacted.size()));
+        assertArrayEquals(sExpected.getRecent(0, 100), compacted.getRecent(0, 100));
+        assertArrayEquals(sCompacted, compacted.encode());
+
+        long eventsNanos = time(sLog, EVENTS);
+        long compactedNanos = time(sCompacted, sExpected.size());
+        System.out.println(String.format(
+                "%d events of %d songs: log %.1f MB replayed in %.1f ms (%.0f ns/event), "
+                        + "compacted %.2f MB replayed in %.1f ms",
+                EVENTS, sExpected.size(), sLog.length / (1024.0 * 1024), eventsNanos / 1e6,
+                (double) eventsNanos / EVENTS, sCompacted.length / (1024.0 * 1024),
+                compactedNanos / 1e6));
+    }
+}
@@ -0,0 +1,194 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the gap buffer of {@link QueueBuffer} against an {@link ArrayList} doing the same edits,
+ * and the queue ids it gives to the items
+ */
+public class QueueBufferTest {
+
+    private static final int RANDOM_OPERATIONS = 200000;
+
+    private static MediaSessionCompat.QueueItem item(String mediaId){
+        MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                .setMediaId(mediaId)
+                .build();
+
+        /* The id given here is ignored by the buffer */
+        return new MediaSessionCompat.QueueItem(description, 12345);
+    }
+
+    private static void assertSameItems(List<MediaSessionCompat.QueueItem> expected, QueueBuffer queue){
+        assertEquals(expected.size(), queue.size());
+        for(int i = 0; i < expected.size(); i++){
+            assertEquals(expected.get(i).getQueueId(), queue.get(i).getQueueId());
+            assertEquals(expected.get(i).getDescription().getMediaId(), queue.get(i).getDescription().getMediaId());
+        }
+    }
+
+    @Test
+    public void addedItemsGetNewIds(){
+        QueueBuffer queue = new QueueBuffer();
+        queue.add(item("a"));
+        queue.add(item("b"));
+        queue.add(0, item("c"));
+
+        assertEquals("c", queue.get(0).getDescription().getMediaId());
+        assertEquals(2, queue.get(0).getQueueId());
+        assertEquals(0, queue.get(1).getQueueId());
+        assertEquals(1, queue.get(2).getQueueId());
+    }
+
+    @Test
+    public void idsAreNotReusedAfterClear(){
+        QueueBuffer queue = new QueueBuffer();
+        queue.add(item("a"));
+        long oldId = queue.get(0).getQueueId();
+        queue.clear();
+        queue.add(item("a"));
+
+        assertTrue(queue.get(0).getQueueId() > oldId);
+        assertEquals(-1, queue.indexOfQueueId(oldId, 0));
+    }
+
+    @Test
+    public void moveKeepsQueueId(){
+        QueueBuffer queue = new QueueBuffer();
+        for(int i = 0; i < 5; i++)
+            queue.add(item("song_" + i));
+        long id = queue.get(1).getQueueId();
+
+        queue.move(1, 4);
+        assertEquals(id, queue.get(4).getQueueId());
+        assertEquals("song_2", queue.get(1).getDescription().getMediaId());
+        assertEquals(4, queue.indexOfQueueId(id, 1));
+    }
+
+    @Test
+    public void setGivesNewId(){
+        QueueBuffer queue = new QueueBuffer();
+        queue.add(item("a"));
+        long id = queue.get(0).getQueueId();
+        queue.set(0, item("b"));
+
+        assertTrue(queue.get(0).getQueueId() != id);
+        assertEquals(-1, queue.indexOfQueueId(id, 0));
+    }
+
+    @Test
+    public void indexOfUsesHintOnlyWhenRight(){
+        QueueBuffer queue = new QueueBuffer();
+        for(int i = 0; i < 40; i++)
+            queue.add(item("song_" + i));
+        long id = queue.get(30).getQueueId();
+
+        assertEquals(30, queue.indexOfQueueId(id, 30));
+        assertEquals(30, queue.indexOfQueueId(id, 3));
+        assertEquals(30, queue.indexOfQueueId(id, -1));
+        assertEquals(30, queue.indexOfQueueId(id, 1000));
+    }
+
+    @Test
+    public void outOfRangePositionsThrow(){
+        QueueBuffer queue = new QueueBuffer();
+        queue.add(item("a"));
+        try {
+            queue.get(1);
+            fail();
+        } catch (IndexOutOfBoundsException expected){
+        }
+        try {
+            queue.add(3, item("b"));
+            fail();
+        } catch (IndexOutOfBoundsException expected){
+        }
+        try {
+            queue.move(0, 1);
+            fail();
+        } catch (IndexOutOfBoundsException expected){
+        }
+    }
+
+    /**
+     * Runs random edits on the buffer and on an ArrayList of the same items. The ids given by the
+     * buffer must be new at every add, unique within the queue, and must follow their item
+     */
+    @Test
+    public void randomOperationsMatchArrayList(){
+        Random random = new Random(11);
+        QueueBuffer queue = new QueueBuffer();
+        List<MediaSessionCompat.QueueItem> expected = new ArrayList<>();
+        Set<Long> removedIds = new HashSet<>();
+        long lastId = -1;
+        int counter = 0;
+
+        for(int i = 0; i < RANDOM_OPERATIONS; i++){
+            int size = expected.size();
+            int operation = random.nextInt(100);
+
+            /* More adds than removes so the queue grows and the buffer has to grow too */
+            if(operation < 40 || size == 0){
+                int position = (random.nextBoolean() && size > 0) ? random.nextInt(size + 1) : size;
+                queue.add(position, item("song_" + counter++));
+                MediaSessionCompat.QueueItem added = queue.get(position);
+                assertTrue(added.getQueueId() > lastId);
+                lastId = added.getQueueId();
+                expected.add(position, added);
+            }
+            else if(operation < 70){
+                int position = random.nextInt(size);
+                MediaSessionCompat.QueueItem removed = queue.remove(position);
+                assertEquals(expected.remove(position).getQueueId(), removed.getQueueId());
+                removedIds.add(removed.getQueueId());
+            }
+            else if(operation < 85){
+                int from = random.nextInt(size);
+                int to = random.nextInt(size);
+                queue.move(from, to);
+                expected.add(to, expected.remove(from));
+            }
+            else if(operation < 90){
+                int position = random.nextInt(size);
+                MediaSessionCompat.QueueItem previous = queue.set(position, item("song_" + counter++));
+                assertEquals(expected.get(position).getQueueId(), previous.getQueueId());
+                removedIds.add(previous.getQueueId());
+                lastId = queue.get(position).getQueueId();
+                expected.set(position, queue.get(position));
+            }
+            else if(operation < 99){
+                int position = random.nextInt(size);
+                long id = expected.get(position).getQueueId();
+                int hint = random.nextBoolean() ? position : random.nextInt(size);
+                assertEquals(position, queue.indexOfQueueId(id, hint));
+            }
+            else if(!removedIds.isEmpty()){
+                long id = removedIds.iterator().next();
+                assertEquals(-1, queue.indexOfQueueId(id, random.nextInt(size)));
+            }
+
+            assertEquals(expected.size(), queue.size());
+            if(i % 1000 == 0)
+                assertSameItems(expected, queue);
+        }
+        assertSameItems(expected, queue);
+
+        /* No id is shared by two items */
+        Set<Long> ids = new HashSet<>();
+        for(MediaSessionCompat.QueueItem item : queue)
+            assertTrue(ids.add(item.getQueueId()));
+    }
+}
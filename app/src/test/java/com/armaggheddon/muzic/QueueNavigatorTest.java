@@ -0,0 +1,248 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the session follows the events of the engine: a song that ends, a song started by
+ * the engine itself and a song that can not be played
+ */
+public class QueueNavigatorTest {
+
+    /**
+     * Does what MusicService does with the moves of the navigator, without the Android classes
+     */
+    private static final class RecordingHost implements QueueNavigator.Host {
+        final SessionState state;
+        final FakePlaybackEngine engine;
+        final List<Integer> played = new ArrayList<>();
+        int completed = 0;
+        int ended = 0;
+
+        RecordingHost(SessionState state, FakePlaybackEngine engine){
+            this.state = state;
+            this.engine = engine;
+        }
+
+        @Override
+        public void onSongCompleted(){
+            completed++;
+        }
+
+        @Override
+        public void onPlayQueuePosition(){
+            played.add(state.getQueuePosition());
+            engine.prepare(null, 0);
+            engine.play();
+            if(state.getNextQueuePosition() != ShuffleOrder.INDEX_UNSET)
+                engine.prepareNext(null);
+        }
+
+        @Override
+        public void onQueueEnded(){
+            engine.pause();
+            engine.stop();
+            ended++;
+        }
+    }
+
+    private SessionState mState;
+    private FakePlaybackEngine mEngine;
+    private RecordingHost mHost;
+    private QueueNavigator mNavigator;
+
+    @Before
+    public void setUp(){
+        mState = new SessionState();
+        mEngine = new FakePlaybackEngine();
+        mHost = new RecordingHost(mState, mEngine);
+        mNavigator = new QueueNavigator(mState, mEngine, mHost);
+        mEngine.setCallback(mNavigator);
+    }
+
+    private void setQueue(int size, int position){
+        for(int i = 0; i < size; i++){
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId("song_" + i)
+                    .build();
+            mState.getQueue().add(new MediaSessionCompat.QueueItem(description, i));
+        }
+        mState.setQueuePosition(position);
+        mEngine.prepare(null, 0);
+        mEngine.play();
+    }
+
+    @Test
+    public void completionPlaysNextItem(){
+        setQueue(3, 0);
+        mEngine.finishSong();
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(1, mHost.completed);
+        assertEquals(1, mHost.played.size());
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void completionOfLastItemEndsQueue(){
+        setQueue(3, 2);
+        mEngine.finishSong();
+
+        assertEquals(2, mState.getQueuePosition());
+        assertEquals(1, mHost.completed);
+        assertEquals(1, mHost.ended);
+        assertTrue(mHost.played.isEmpty());
+        assertFalse(mEngine.isPlaying());
+        assertEquals(1, mEngine.stopCount);
+    }
+
+    @Test
+    public void completionOfLastItemWithRepeatAllRestartsQueue(){
+        setQueue(3, 2);
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ALL);
+        mEngine.finishSong();
+
+        assertEquals(0, mState.getQueuePosition());
+        assertEquals(0, mHost.ended);
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void completionOfSingleItemWithRepeatRewindsIt(){
+        setQueue(1, 0);
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ALL);
+        mEngine.finishSong();
+
+        assertEquals(0, mState.getQueuePosition());
+        assertEquals(1, mEngine.seekCount);
+        assertEquals(0, mEngine.getPosition());
+        assertEquals(1, mHost.played.size());
+    }
+
+    @Test
+    public void completionFollowsShuffledOrder(){
+        setQueue(10, 4);
+        ShuffleOrder order = new ShuffleOrder(10, 4, new Random(7));
+        mState.setShuffleOrder(order);
+
+        int expected = order.getNext(4);
+        mEngine.finishSong();
+        assertEquals(expected, mState.getQueuePosition());
+
+        /* Every item is played once before the order ends */
+        for(int i = 0; i < 8; i++)
+            mEngine.finishSong();
+        assertEquals(9, mHost.played.size());
+        assertEquals(0, mHost.ended);
+        mEngine.finishSong();
+        assertEquals(1, mHost.ended);
+    }
+
+    @Test
+    public void completionOfSongQueuedTwicePlaysItAgain(){
+        /* The host prepares the same Uri for every item, so the two items are the same song */
+        setQueue(2, 0);
+        mEngine.seekTo(5000);
+        mEngine.finishSong();
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(1, mHost.played.size());
+        assertEquals(0, mEngine.getPosition());
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void nextStartedByEngineMovesSession(){
+        setQueue(3, 0);
+        mEngine.prepareNext(null);
+        mEngine.startNextSong();
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(1, mHost.completed);
+        assertEquals(0, mEngine.seekCount);
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void nextStartedOnLastItemDoesNotStop(){
+        setQueue(2, 1);
+        mEngine.startNextSong();
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(0, mHost.ended);
+        assertEquals(0, mEngine.stopCount);
+    }
+
+    @Test
+    public void loopCompletesAndPlaysSameItemAgain(){
+        setQueue(3, 1);
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ONE);
+        mEngine.setLooping(true);
+        mEngine.loopSong();
+        mEngine.loopSong();
+
+        /* Every loop is a play of its own, the engine already restarted the song */
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(2, mHost.completed);
+        assertEquals(2, mHost.played.size());
+        assertEquals(1, (int) mHost.played.get(1));
+        assertEquals(0, mEngine.seekCount);
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void skipWithRepeatOneMovesToNextItem(){
+        setQueue(3, 2);
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ONE);
+        mNavigator.skipToNext(false);
+
+        /* A skip follows the queue as with repeat all */
+        assertEquals(0, mState.getQueuePosition());
+        assertEquals(0, mHost.completed);
+    }
+
+    @Test
+    public void errorSkipsWithoutCompleting(){
+        setQueue(3, 0);
+        mEngine.failSong();
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(0, mHost.completed);
+        assertTrue(mEngine.isPlaying());
+    }
+
+    @Test
+    public void errorOnEveryItemEndsQueue(){
+        setQueue(3, 0);
+        mEngine.failSong();
+        mEngine.failSong();
+        mEngine.failSong();
+
+        assertEquals(2, mState.getQueuePosition());
+        assertEquals(0, mHost.completed);
+        assertEquals(1, mHost.ended);
+        assertFalse(mEngine.isPlaying());
+    }
+
+    @Test
+    public void skipOnLastItemKeepsPlaying(){
+        setQueue(2, 1);
+        mNavigator.skipToNext(false);
+
+        assertEquals(1, mState.getQueuePosition());
+        assertEquals(0, mHost.ended);
+        assertTrue(mEngine.isPlaying());
+    }
+}
@@ -0,0 +1,152 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks the file format of {@link QueueStore}: the varints, the zig-zag deltas of the song ids,
+ * and that a damaged or truncated file is rejected instead of restoring a wrong queue
+ */
+public class QueueStoreTest {
+
+    private static List<MediaSessionCompat.QueueItem> queue(long... songIds){
+        List<MediaSessionCompat.QueueItem> queue = new ArrayList<>();
+        for(int i = 0; i < songIds.length; i++){
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId("song_" + songIds[i])
+                    .build();
+            queue.add(new MediaSessionCompat.QueueItem(description, i));
+        }
+        return queue;
+    }
+
+    @Test
+    public void zigZagRoundTrip(){
+        long[] values = {0, 1, -1, 63, -64, 64, Integer.MAX_VALUE, Integer.MIN_VALUE,
+                Long.MAX_VALUE, Long.MIN_VALUE};
+        for(long value : values)
+            assertEquals(value, QueueStore.unZigZag(QueueStore.zigZag(value)));
+
+        /* Small values of both signs take small unsigned values, so one byte as a varint */
+        assertEquals(0, QueueStore.zigZag(0));
+        assertEquals(1, QueueStore.zigZag(-1));
+        assertEquals(2, QueueStore.zigZag(1));
+        assertEquals(127, QueueStore.zigZag(-64));
+    }
+
+    @Test
+    public void varintRoundTrip(){
+        Random random = new Random(1);
+        long[] values = new long[1000];
+        for(int i = 0; i < values.length; i++)
+            values[i] = random.nextLong() >>> random.nextInt(64);
+        values[0] = 0;
+        values[1] = Long.MAX_VALUE;
+        values[2] = -1;
+
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        for(long value : values)
+            output.writeVarint(value);
+        output.writeInt(0xcafebabe);
+
+        byte[] data = output.toByteArray();
+        QueueStore.VarintInput input = new QueueStore.VarintInput(data, data.length);
+        for(long value : values)
+            assertEquals(value, input.readVarint());
+        assertEquals(0xcafebabe, input.readInt());
+        assertEquals(false, input.hasRemaining());
+        assertEquals(true, input.isValid());
+    }
+
+    @Test
+    public void varintSizes(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        output.writeVarint(127);
+        assertEquals(1, output.size());
+        output.writeVarint(128);
+        assertEquals(3, output.size());
+        output.writeVarint(-1);
+        assertEquals(13, output.size());
+    }
+
+    @Test
+    public void queueRoundTrip(){
+        long[] songIds = {500, 501, 502, 12, 90000, 3, 3, 0};
+        byte[] data = QueueStore.encode(queue(songIds), 4, 123456);
+        QueueStore.Snapshot snapshot = QueueStore.decode(data);
+
+        assertNotNull(snapshot);
+        assertArrayEquals(songIds, snapshot.songIds);
+        assertEquals(4, snapshot.queuePosition);
+        assertEquals(123456, snapshot.playbackPosition);
+    }
+
+    @Test
+    public void consecutiveSongsTakeAboutOneByteEach(){
+        long[] songIds = new long[10000];
+        for(int i = 0; i < songIds.length; i++)
+            songIds[i] = 1000000 + i;
+        byte[] data = QueueStore.encode(queue(songIds), 0, 0);
+
+        assertEquals(true, data.length < songIds.length + 32);
+        assertArrayEquals(songIds, QueueStore.decode(data).songIds);
+    }
+
+    @Test
+    public void emptyQueueRoundTrip(){
+        QueueStore.Snapshot snapshot = QueueStore.decode(QueueStore.encode(queue(), 0, 0));
+        assertNotNull(snapshot);
+        assertEquals(0, snapshot.songIds.length);
+    }
+
+    @Test
+    public void invalidMediaIdIsSavedAsZero(){
+        List<MediaSessionCompat.QueueItem> queue = queue(7);
+        queue.add(new MediaSessionCompat.QueueItem(
+                new MediaDescriptionCompat.Builder().setMediaId("album_3").build(), 9));
+        assertArrayEquals(new long[]{7, 0}, QueueStore.decode(QueueStore.encode(queue, 0, 0)).songIds);
+    }
+
+    @Test
+    public void badCrcIsRejected(){
+        byte[] data = QueueStore.encode(queue(1, 2, 3, 4), 1, 1000);
+
+        /* Every single bit flipped, in the content or in the CRC itself, must be detected */
+        for(int i = 0; i < data.length * 8; i++){
+            byte[] damaged = data.clone();
+            damaged[i / 8] ^= (byte) (1 << (i % 8));
+            assertNull("bit " + i + " flipped", QueueStore.decode(damaged));
+        }
+    }
+
+    @Test
+    public void truncatedFileIsRejected(){
+        byte[] data = QueueStore.encode(queue(10, 20, 30, 40, 50), 2, 5000);
+        for(int length = 0; length < data.length; length++)
+            assertNull("length " + length, QueueStore.decode(Arrays.copyOf(data, length)));
+        assertNotNull(QueueStore.decode(data));
+    }
+
+    @Test
+    public void truncatedVarintIsNotValid(){
+        QueueStore.VarintOutput output = new QueueStore.VarintOutput(16);
+        output.writeVarint(1L << 40);
+        byte[] data = output.toByteArray();
+
+        QueueStore.VarintInput input = new QueueStore.VarintInput(data, data.length - 1);
+        assertEquals(0, input.readVarint());
+        assertEquals(false, input.isValid());
+    }
+}
@@ -0,0 +1,146 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks which playback states {@link SessionPublisher} drops as equal to the one already
+ * published, each state published is a binder transaction to every controller
+ */
+public class SessionPublisherTest {
+
+    private static final long ACTIONS = PlaybackStateCompat.ACTION_PLAY
+            | PlaybackStateCompat.ACTION_PAUSE
+            | PlaybackStateCompat.ACTION_SKIP_TO_NEXT;
+
+    private static PlaybackStateCompat state(int state, long position, long updateTime, long queueId){
+        return new PlaybackStateCompat.Builder()
+                .setActions(ACTIONS)
+                .setActiveQueueItemId(queueId)
+                .setState(state, position, 1.0f, updateTime)
+                .build();
+    }
+
+    @Test
+    public void playingStateBuiltLaterIsTheSame(){
+        PlaybackStateCompat published = state(PlaybackStateCompat.STATE_PLAYING, 1000, 50000, 1);
+
+        /* Five seconds later the engine is five seconds ahead, minus the time to read it */
+        assertTrue(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PLAYING, 5990, 55000, 1), published));
+        assertTrue(SessionPublisher.isSameState(
+                published, state(PlaybackStateCompat.STATE_PLAYING, 5990, 55000, 1)));
+    }
+
+    @Test
+    public void playingStateAfterSeekIsDifferent(){
+        PlaybackStateCompat published = state(PlaybackStateCompat.STATE_PLAYING, 1000, 50000, 1);
+        assertFalse(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PLAYING, 1000, 55000, 1), published));
+        assertFalse(SessionPublisher.isSameState(state(PlaybackStateCompat.STATE_PLAYING,
+                6000 + SessionPublisher.POSITION_TOLERANCE_MS, 55000, 1), published));
+    }
+
+    @Test
+    public void pausedStateComparesPositionOnly(){
+        PlaybackStateCompat published = state(PlaybackStateCompat.STATE_PAUSED, 1000, 50000, 1);
+
+        /* A paused position does not move, the update time does not matter */
+        assertTrue(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PAUSED, 1000, 90000, 1), published));
+        assertFalse(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PAUSED, 1010, 50000, 1), published));
+    }
+
+    @Test
+    public void otherFieldsAreCompared(){
+        PlaybackStateCompat published = state(PlaybackStateCompat.STATE_PLAYING, 1000, 50000, 1);
+        assertFalse(SessionPublisher.isSameState(published, null));
+        assertFalse(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PAUSED, 1000, 50000, 1), published));
+        assertFalse(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PLAYING, 1000, 50000, 2), published));
+        assertFalse(SessionPublisher.isSameState(new PlaybackStateCompat.Builder()
+                .setActions(PlaybackStateCompat.ACTION_PLAY)
+                .setActiveQueueItemId(1)
+                .setState(PlaybackStateCompat.STATE_PLAYING, 1000, 1.0f, 50000)
+                .build(), published));
+        assertFalse(SessionPublisher.isSameState(new PlaybackStateCompat.Builder()
+                .setActions(ACTIONS)
+                .setActiveQueueItemId(1)
+                .setState(PlaybackStateCompat.STATE_PLAYING, 1000, 2.0f, 50000)
+                .build(), published));
+    }
+
+    @Test
+    public void unknownPositionIsComparedExactly(){
+        PlaybackStateCompat published = state(PlaybackStateCompat.STATE_PLAYING,
+                PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN, 50000, 1);
+        assertTrue(SessionPublisher.isSameState(state(PlaybackStateCompat.STATE_PLAYING,
+                PlaybackStateCompat.PLAYBACK_POSITION_UNKNOWN, 55000, 1), published));
+        assertFalse(SessionPublisher.isSameState(
+                state(PlaybackStateCompat.STATE_PLAYING, 4000, 55000, 1), published));
+    }
+
+    /**
+     * Replays the states the session sets for a sequence of controller commands spaced more than
+     * the coalescing window, as play sent by a headset or a car that connects while the playback
+     * is already going, and counts the ones published. A state dropped is not kept as published,
+     * so the lag of the engine position can not add up over many dropped states
+     */
+    @Test
+    public void repeatedCommandsArePublishedOnce(){
+        Random random = new Random(3);
+        long clock = 10000;
+        long position = 0;
+        long queueId = 1;
+        boolean playing = false;
+
+        PlaybackStateCompat published = null;
+        int requests = 0;
+        int publishes = 0;
+        for(int i = 0; i < 1000; i++){
+            long elapsed = 500 + random.nextInt(30000);
+            clock += elapsed;
+            if(playing)
+                position += elapsed;
+
+            int command = random.nextInt(10);
+            if(command < 4){
+
+                /* Play, the state is set again even if the playback was already going */
+                playing = true;
+            }
+            else if(command < 7){
+                playing = false;
+            }
+            else if(command < 8){
+                position = random.nextInt(200000);
+            }
+            else {
+                queueId++;
+                position = 0;
+            }
+
+            /* The position read from the engine lags the clock by a few milliseconds */
+            long read = playing ? Math.max(0, position - random.nextInt(20)) : position;
+            PlaybackStateCompat state = state(playing ? PlaybackStateCompat.STATE_PLAYING
+                    : PlaybackStateCompat.STATE_PAUSED, read, clock, queueId);
+            requests++;
+            if(!SessionPublisher.isSameState(state, published)){
+                publishes++;
+                published = state;
+            }
+        }
+        System.out.println("Playback states requested " + requests + ", published " + publishes);
+        assertEquals(1000, requests);
+        assertTrue(publishes < requests);
+    }
+}
@@ -0,0 +1,113 @@
+package com.armaggheddon.muzic;
+
+import android.support.v4.media.MediaDescriptionCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how {@link SessionState} picks the next, the previous and a random item of the queue
+ */
+public class SessionStateTest {
+
+    private SessionState mState;
+
+    @Before
+    public void setUp(){
+        mState = new SessionState();
+    }
+
+    private void setQueue(int size, int position){
+        for(int i = 0; i < size; i++){
+            MediaDescriptionCompat description = new MediaDescriptionCompat.Builder()
+                    .setMediaId("song_" + i)
+                    .build();
+            mState.getQueue().add(new MediaSessionCompat.QueueItem(description, i));
+        }
+        mState.setQueuePosition(position);
+    }
+
+    @Test
+    public void nextAfterLastDependsOnRepeatMode(){
+        setQueue(3, 2);
+        assertEquals(ShuffleOrder.INDEX_UNSET, mState.getNextQueuePosition());
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ALL);
+        assertEquals(0, mState.getNextQueuePosition());
+
+        /* A skip with repeat one moves on as with repeat all, the engine loops the song by itself */
+        mState.setRepeatMode(PlaybackStateCompat.REPEAT_MODE_ONE);
+        assertEquals(0, mState.getNextQueuePosition());
+    }
+
+    @Test
+    public void previousOfFirstIsUnset(){
+        setQueue(3, 0);
+        assertEquals(ShuffleOrder.INDEX_UNSET, mState.getPreviousQueuePosition());
+        mState.setQueuePosition(2);
+        assertEquals(1, mState.getPreviousQueuePosition());
+    }
+
+    @Test
+    public void randomPickDoesNotEnableShuffle(){
+        setQueue(10, 3);
+        int position = mState.getRandomQueuePosition(new Random(1));
+        assertTrue(position >= 0 && position < 10);
+        assertNotEquals(3, position);
+        assertNull(mState.getShuffleOrder());
+        assertEquals(4, mState.getNextQueuePosition());
+    }
+
+    @Test
+    public void randomPickDoesNotRepeatUntilAllPicked(){
+        setQueue(20, 0);
+        Random random = new Random(2);
+        Set<Integer> picked = new HashSet<>();
+        picked.add(0);
+        for(int i = 0; i < 19; i++){
+            int position = mState.getRandomQueuePosition(random);
+            assertTrue("position " + position + " picked twice", picked.add(position));
+            mState.setQueuePosition(position);
+        }
+        assertEquals(20, picked.size());
+
+        /* A new round starts, still never the current item */
+        int current = mState.getQueuePosition();
+        assertNotEquals(current, mState.getRandomQueuePosition(random));
+    }
+
+    @Test
+    public void randomPickNeedsTwoItems(){
+        assertEquals(ShuffleOrder.INDEX_UNSET, mState.getRandomQueuePosition(new Random(3)));
+        setQueue(1, 0);
+        assertEquals(ShuffleOrder.INDEX_UNSET, mState.getRandomQueuePosition(new Random(3)));
+    }
+
+    @Test
+    public void randomPickFollowsQueueSize(){
+        setQueue(5, 0);
+        Random random = new Random(4);
+        mState.getRandomQueuePosition(random);
+
+        /* The queue grows, the items added can be picked too */
+        setQueue(5, 0);
+        Set<Integer> picked = new HashSet<>();
+        for(int i = 0; i < 9; i++){
+            int position = mState.getRandomQueuePosition(random);
+            assertTrue(position >= 0 && position < 10);
+            picked.add(position);
+            mState.setQueuePosition(position);
+        }
+        assertEquals(9, picked.size());
+    }
+}
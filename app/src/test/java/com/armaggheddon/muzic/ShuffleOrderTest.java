@@ -0,0 +1,173 @@
+package com.armaggheddon.muzic;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link ShuffleOrder} stays a permutation of the queue positions, with next and
+ * previous one the inverse of the other, while the queue is edited
+ */
+public class ShuffleOrderTest {
+
+    /**
+     * Walks the order from its first item and checks that every position of the queue is visited
+     * exactly once, and that going back from each item returns to the one before it
+     * @return
+     *          The queue positions in the order in which they are played
+     */
+    private static List<Integer> checkPermutation(ShuffleOrder order, int size){
+        assertEquals(size, order.getSize());
+        List<Integer> steps = new ArrayList<>();
+        if(size == 0){
+            assertEquals(ShuffleOrder.INDEX_UNSET, order.getFirst());
+            return steps;
+        }
+
+        boolean[] seen = new boolean[size];
+        int previous = ShuffleOrder.INDEX_UNSET;
+        int position = order.getFirst();
+        while(position != ShuffleOrder.INDEX_UNSET){
+            assertTrue(position >= 0 && position < size);
+            assertTrue("position " + position + " played twice", !seen[position]);
+            seen[position] = true;
+            assertEquals(previous, order.getPrevious(position));
+            steps.add(position);
+            previous = position;
+            position = order.getNext(position);
+        }
+        assertEquals(size, steps.size());
+        return steps;
+    }
+
+    @Test
+    public void newOrderStartsFromFirstItem(){
+        Random random = new Random(1);
+        for(int size = 1; size < 50; size++){
+            int first = random.nextInt(size);
+            ShuffleOrder order = new ShuffleOrder(size, first, random);
+            assertEquals(first, order.getFirst());
+            checkPermutation(order, size);
+        }
+    }
+
+    @Test
+    public void emptyOrderHasNoItems(){
+        ShuffleOrder order = new ShuffleOrder(0, 0, new Random(1));
+        checkPermutation(order, 0);
+        assertEquals(ShuffleOrder.INDEX_UNSET, order.getNext(0));
+        assertEquals(ShuffleOrder.INDEX_UNSET, order.getPrevious(0));
+    }
+
+    @Test
+    public void outOfRangePositionsHaveNoNeighbours(){
+        ShuffleOrder order = new ShuffleOrder(5, 2, new Random(1));
+        assertEquals(ShuffleOrder.INDEX_UNSET, order.getNext(-1));
+        assertEquals(ShuffleOrder.INDEX_UNSET, order.getNext(5));
+        assertEquals(ShuffleOrder.INDEX_UNSET, order.getPrevious(5));
+    }
+
+    @Test
+    public void everyPermutationOfSmallQueueIsBuilt(){
+
+        /* The 3! orders of the items after the first one must all come out */
+        Random random = new Random(2);
+        int[] counts = new int[6];
+        for(int i = 0; i < 6000; i++){
+            List<Integer> steps = checkPermutation(new ShuffleOrder(4, 0, random), 4);
+            int index = (steps.get(1) - 1) * 2 + ((steps.get(2) < steps.get(3)) ? 0 : 1);
+            counts[index]++;
+        }
+        for(int count : counts)
+            assertTrue("permutation built " + count + " times", count > 800 && count < 1200);
+    }
+
+    @Test
+    public void removeKeepsOrderOfOtherItems(){
+        ShuffleOrder order = new ShuffleOrder(10, 3, new Random(3));
+        List<Integer> before = checkPermutation(order, 10);
+
+        order.remove(6);
+        List<Integer> expected = new ArrayList<>();
+        for(int position : before)
+            if(position != 6)
+                expected.add(position > 6 ? position - 1 : position);
+        assertEquals(expected, checkPermutation(order, 9));
+    }
+
+    @Test
+    public void insertedItemsArePlayedAfterCurrent(){
+        ShuffleOrder order = new ShuffleOrder(10, 0, new Random(4));
+        List<Integer> steps = checkPermutation(order, 10);
+        int current = steps.get(4);
+
+        /* Three items added at the start of the queue, every other position moves forward */
+        order.insert(0, 3, current);
+        List<Integer> after = checkPermutation(order, 13);
+        int currentStep = after.indexOf(current + 3);
+        assertEquals(4, currentStep);
+        for(int position = 0; position < 3; position++)
+            assertTrue(after.indexOf(position) > currentStep);
+    }
+
+    @Test
+    public void insertNextIsPlayedRightAfterCurrent(){
+        ShuffleOrder order = new ShuffleOrder(10, 0, new Random(5));
+        int current = checkPermutation(order, 10).get(2);
+
+        order.insertNext(current + 1, current);
+        assertEquals(current + 1, order.getNext(current));
+        checkPermutation(order, 11);
+    }
+
+    @Test
+    public void moveKeepsPlayingOrder(){
+        ShuffleOrder order = new ShuffleOrder(8, 5, new Random(6));
+        List<Integer> before = checkPermutation(order, 8);
+
+        order.move(1, 6);
+        List<Integer> after = checkPermutation(order, 8);
+        for(int step = 0; step < 8; step++){
+            int position = before.get(step);
+            int moved = (position == 1) ? 6 : (position > 1 && position <= 6) ? position - 1 : position;
+            assertEquals(moved, (int) after.get(step));
+        }
+    }
+
+    @Test
+    public void randomEditsKeepPermutationAndInverse(){
+        Random random = new Random(7);
+        int size = 20;
+        ShuffleOrder order = new ShuffleOrder(size, 0, random);
+        for(int i = 0; i < 5000; i++){
+            int current = (size > 0) ? random.nextInt(size) : 0;
+            switch(random.nextInt(4)){
+                case 0:
+                    if(size > 0){
+                        order.remove(random.nextInt(size));
+                        size--;
+                    }
+                    break;
+                case 1:
+                    int count = 1 + random.nextInt(3);
+                    order.insert(random.nextInt(size + 1), count, current);
+                    size += count;
+                    break;
+                case 2:
+                    order.insertNext(random.nextInt(size + 1), current);
+                    size++;
+                    break;
+                case 3:
+                    if(size > 0)
+                        order.move(random.nextInt(size), random.nextInt(size));
+                    break;
+            }
+            checkPermutation(order, size);
+        }
+    }
+}
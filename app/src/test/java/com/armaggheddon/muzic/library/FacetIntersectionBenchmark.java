@@ -0,0 +1,152 @@
+package com.armaggheddon.muzic.library;
+
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the filters of several facets, intersected with {@link PositionSet#and(PositionSet[])},
+ * with scanning the values of every song, on a library of synthetic songs. The genres follow a
+ * long tail, a few of them have most of the songs, as the decades and the formats do, so the
+ * sets are a mix of arrays and bitmaps. Both ways must find the same songs.
+ * The times are printed, they depend on the machine and are not asserted. It runs only with
+ * ./gradlew test -Pmuzic.bench, the results of the filters are checked by {@link FacetTest}
+ */
+public class FacetIntersectionBenchmark {
+
+    private static final int SONGS = 100000;
+    private static final int GENRES = 400;
+    private static final String[] DECADES = {"1950s", "1960s", "1970s", "1980s", "1990s", "2000s", "2010s", "2020s"};
+    private static final String[] FORMATS = {"audio/mpeg", "audio/flac", "audio/mp4", "audio/ogg", "audio/x-wav"};
+
+    private static final int FILTERS = 500;
+    private static final int WARMUP_RUNS = 3;
+    private static final int MEASURED_RUNS = 5;
+
+    private static String[][] sValues;
+    private static Facet[] sFacets;
+
+    /* The filters as the index of a value for every facet, -1 for the facets not used */
+    private static int[][] sFilters;
+
+    /**
+     * An index from 0 to {@param count} excluded, the lower ones much more likely
+     */
+    private static int longTail(Random random, int count) {
+        double value = random.nextDouble();
+        return Math.min(count - 1, (int) (count * value * value * value));
+    }
+
+    @BeforeClass
+    public static void createLibrary() {
+        Assume.assumeTrue(Boolean.getBoolean("muzic.bench"));
+        Random random = new Random(1);
+        String[] genres = new String[SONGS];
+        String[] decades = new String[SONGS];
+        String[] formats = new String[SONGS];
+        for (int i = 0; i < SONGS; i++) {
+
+            /* Like in a real library some songs have no genre or no year */
+            if (random.nextInt(10) != 0)
+                genres[i] = "genre " + longTail(random, GENRES);
+            if (random.nextInt(20) != 0)
+                decades[i] = DECADES[DECADES.length - 1 - longTail(random, DECADES.length)];
+            formats[i] = FORMATS[longTail(random, FORMATS.length)];
+        }
+        sValues = new String[][]{genres, decades, formats};
+        sFacets = new Facet[]{Facet.build(genres), Facet.build(decades), Facet.build(formats)};
+
+        /* Two or three facets for every filter, as the chips of the search screen give */
+        sFilters = new int[FILTERS][];
+        for (int i = 0; i < FILTERS; i++) {
+            int[] filter = {-1, -1, -1};
+            int skipped = random.nextInt(4);
+            for (int facet = 0; facet < filter.length; facet++) {
+                if (facet != skipped)
+                    filter[facet] = random.nextInt(sFacets[facet].size());
+            }
+            sFilters[i] = filter;
+        }
+    }
+
+    /**
+     * @return The sum of the sizes of the results and of their first positions, to compare the
+     * two ways and to keep the work from being removed
+     */
+    private static long intersectSets() {
+        long checksum = 0;
+        for (int[] filter : sFilters) {
+            int count = 0;
+            for (int index : filter) {
+                if (index >= 0)
+                    count++;
+            }
+            PositionSet[] sets = new PositionSet[count];
+            count = 0;
+            for (int facet = 0; facet < filter.length; facet++) {
+                if (filter[facet] >= 0)
+                    sets[count++] = sFacets[facet].getSet(filter[facet]);
+            }
+            PositionSet result = PositionSet.and(sets);
+            checksum = checksum * 31 + result.size() + result.first();
+        }
+        return checksum;
+    }
+
+    private static long scanSongs() {
+        long checksum = 0;
+        for (int[] filter : sFilters) {
+            String[] wanted = new String[filter.length];
+            for (int facet = 0; facet < filter.length; facet++) {
+                if (filter[facet] >= 0)
+                    wanted[facet] = sFacets[facet].getValue(filter[facet]);
+            }
+            int size = 0;
+            int first = -1;
+            for (int position = 0; position < SONGS; position++) {
+                boolean match = true;
+                for (int facet = 0; facet < wanted.length && match; facet++)
+                    match = wanted[facet] == null || wanted[facet].equals(sValues[facet][position]);
+                if (match) {
+                    if (size == 0)
+                        first = position;
+                    size++;
+                }
+            }
+            checksum = checksum * 31 + size + first;
+        }
+        return checksum;
+    }
+
+    /**
+     * Runs the filters a few times to let the JIT compile them, then returns the best time of the
+     * measured runs in nanoseconds
+     */
+    private static long time(boolean sets, long expected) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < WARMUP_RUNS + MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            long checksum = sets ? intersectSets() : scanSongs();
+            long elapsed = System.nanoTime() - start;
+            assertEquals(expected, checksum);
+            if (i >= WARMUP_RUNS)
+                best = Math.min(best, elapsed);
+        }
+        return best;
+    }
+
+    @Test
+    public void filtersOfSeveralFacets() {
+        long expected = scanSongs();
+        long scanNanos = time(false, expected);
+        long setNanos = time(true, expected);
+        System.out.println(String.format(
+                "%d filters on %d songs: scan %.2f ms (%.1f us/filter), sets %.2f ms (%.1f us/filter), %.1fx",
+                FILTERS, SONGS, scanNanos / 1e6, scanNanos / 1e3 / FILTERS,
+                setNanos / 1e6, setNanos / 1e3 / FILTERS, (double) scanNanos / setNanos));
+    }
+}
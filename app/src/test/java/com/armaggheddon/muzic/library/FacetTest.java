@@ -0,0 +1,81 @@
+package com.armaggheddon.muzic.library;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link Facet} finds a value by name whatever its index, since the filters name the
+ * value and the indexes change when the library is loaded again, and that the filters of several
+ * facets find the same songs as a scan of their values
+ */
+public class FacetTest {
+
+    @Test
+    public void valuesAreSortedAndGrouped() {
+        Facet facet = Facet.build(new String[]{"Rock", null, "jazz", "Rock", "Blues"});
+        assertEquals(3, facet.size());
+        assertEquals("Blues", facet.getValue(0));
+        assertEquals("jazz", facet.getValue(1));
+        assertEquals("Rock", facet.getValue(2));
+        assertArrayEquals(new int[]{0, 3}, facet.getSet(2).toArray());
+    }
+
+    @Test
+    public void valueIsFoundAfterTheIndexesChange() {
+        Facet before = Facet.build(new String[]{"Pop", "Rock"});
+        Facet after = Facet.build(new String[]{"Pop", "Rock", "Ambient"});
+        assertEquals(1, before.indexOf("Rock"));
+        assertEquals(2, after.indexOf("Rock"));
+        assertEquals("Rock", after.getValue(after.indexOf("Rock")));
+        assertArrayEquals(new int[]{1}, after.getSet(after.indexOf("Rock")).toArray());
+    }
+
+    @Test
+    public void filtersMatchScanOfTheValues() {
+        Random random = new Random(1);
+        int songs = 5000;
+        String[][] values = new String[3][songs];
+        for (int i = 0; i < songs; i++) {
+
+            /* A few values with most of the songs, so the sets are both arrays and bitmaps */
+            double value = random.nextDouble();
+            values[0][i] = (random.nextInt(10) != 0) ? "genre " + (int) (40 * value * value * value) : null;
+            values[1][i] = (random.nextInt(20) != 0) ? (1950 + 10 * random.nextInt(8)) + "s" : null;
+            values[2][i] = (random.nextInt(3) != 0) ? "MP3" : "FLAC";
+        }
+        Facet[] facets = {Facet.build(values[0]), Facet.build(values[1]), Facet.build(values[2])};
+
+        for (int filter = 0; filter < 200; filter++) {
+            int[] indexes = new int[facets.length];
+            PositionSet[] sets = new PositionSet[facets.length];
+            for (int facet = 0; facet < facets.length; facet++) {
+                indexes[facet] = random.nextInt(facets[facet].size());
+                sets[facet] = facets[facet].getSet(indexes[facet]);
+            }
+
+            int[] expected = new int[songs];
+            int count = 0;
+            for (int position = 0; position < songs; position++) {
+                boolean match = true;
+                for (int facet = 0; facet < facets.length && match; facet++)
+                    match = facets[facet].getValue(indexes[facet]).equals(values[facet][position]);
+                if (match)
+                    expected[count++] = position;
+            }
+            assertArrayEquals(Arrays.copyOf(expected, count), PositionSet.and(sets).toArray());
+        }
+    }
+
+    @Test
+    public void missingValueIsNotFound() {
+        Facet facet = Facet.build(new String[]{"1990s", "2000s"});
+        assertEquals(-1, facet.indexOf("1980s"));
+        assertEquals(-1, facet.indexOf("1990S"));
+        assertEquals(-1, facet.indexOf(""));
+    }
+}
@@ -0,0 +1,180 @@
+package com.armaggheddon.muzic.library;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the intersections of {@link PositionSet} in every pair of forms, array and bitmap,
+ * against the same sets kept as arrays of booleans, and the indexes given by indexOf
+ */
+public class PositionSetTest {
+
+    private static final int UNIVERSE = 10000;
+
+    /* Below UNIVERSE / 32 positions the set is an array, above it a bitmap */
+    private static final int SPARSE = 100;
+    private static final int DENSE = 3000;
+
+    private static boolean[] randomMembers(Random random, int count, int universe) {
+        boolean[] members = new boolean[universe];
+        int added = 0;
+        while (added < count) {
+            int position = random.nextInt(universe);
+            if (!members[position]) {
+                members[position] = true;
+                added++;
+            }
+        }
+        return members;
+    }
+
+    private static PositionSet setOf(boolean[] members) {
+        int[] positions = new int[members.length];
+        int size = 0;
+        for (int position = 0; position < members.length; position++) {
+            if (members[position])
+                positions[size++] = position;
+        }
+        return PositionSet.of(positions, size, members.length);
+    }
+
+    private static int[] positionsOf(boolean[] members) {
+        return setOf(members).toArray();
+    }
+
+    private static boolean[] and(boolean[] a, boolean[] b) {
+        boolean[] result = new boolean[a.length];
+        for (int i = 0; i < a.length; i++)
+            result[i] = a[i] && b[i];
+        return result;
+    }
+
+    /**
+     * Checks every operation of the set against its members
+     */
+    private static void assertSameSet(boolean[] expected, PositionSet set) {
+        int[] positions = new int[expected.length];
+        int size = 0;
+        for (int position = 0; position < expected.length; position++) {
+            if (expected[position]) {
+                assertEquals(size, set.indexOf(position));
+                positions[size++] = position;
+            } else {
+                assertEquals(-1, set.indexOf(position));
+            }
+            assertEquals(expected[position], set.contains(position));
+        }
+        assertEquals(size, set.size());
+        assertEquals((size > 0) ? positions[0] : -1, set.first());
+        int[] array = set.toArray();
+        assertEquals(size, array.length);
+        for (int i = 0; i < size; i++)
+            assertEquals(positions[i], array[i]);
+    }
+
+    private static void checkAnd(long seed, int sizeA, int sizeB) {
+        Random random = new Random(seed);
+        boolean[] a = randomMembers(random, sizeA, UNIVERSE);
+        boolean[] b = randomMembers(random, sizeB, UNIVERSE);
+        boolean[] expected = and(a, b);
+
+        assertSameSet(expected, setOf(a).and(setOf(b)));
+        assertSameSet(expected, setOf(b).and(setOf(a)));
+    }
+
+    @Test
+    public void arrayAndArrayMerged() {
+        checkAnd(1, SPARSE, SPARSE + 50);
+    }
+
+    @Test
+    public void arrayAndArraySearched() {
+
+        /* The small array is searched in the big one when it is 16 times smaller */
+        checkAnd(2, 5, 300);
+        checkAnd(3, 1, 300);
+    }
+
+    @Test
+    public void arrayAndBitmap() {
+        checkAnd(4, SPARSE, DENSE);
+        checkAnd(5, 1, UNIVERSE);
+    }
+
+    @Test
+    public void bitmapAndBitmap() {
+        checkAnd(6, DENSE, DENSE);
+        checkAnd(7, UNIVERSE / 2, UNIVERSE / 2);
+        checkAnd(8, UNIVERSE, DENSE);
+    }
+
+    @Test
+    public void bitmapAndBitmapWithSparseResult() {
+
+        /* Two dense sets that share few positions, the result is stored as an array */
+        boolean[] a = new boolean[UNIVERSE];
+        boolean[] b = new boolean[UNIVERSE];
+        for (int position = 0; position < UNIVERSE; position++) {
+            a[position] = position % 2 == 0 || position % 1000 == 1;
+            b[position] = position % 2 == 1;
+        }
+        PositionSet result = setOf(a).and(setOf(b));
+        assertSameSet(and(a, b), result);
+        assertEquals(UNIVERSE / 1000, result.size());
+    }
+
+    @Test
+    public void andOfEmptySets() {
+        boolean[] empty = new boolean[UNIVERSE];
+        boolean[] dense = randomMembers(new Random(9), DENSE, UNIVERSE);
+        assertSameSet(empty, setOf(empty).and(setOf(dense)));
+        assertSameSet(empty, setOf(dense).and(setOf(empty)));
+        assertSameSet(empty, setOf(empty).and(setOf(empty)));
+    }
+
+    @Test
+    public void andOfManySetsStartsFromSmallest() {
+        Random random = new Random(10);
+        boolean[] a = randomMembers(random, DENSE, UNIVERSE);
+        boolean[] b = randomMembers(random, UNIVERSE / 2, UNIVERSE);
+        boolean[] c = randomMembers(random, SPARSE * 2, UNIVERSE);
+
+        PositionSet[] sets = {setOf(a), setOf(b), setOf(c)};
+        assertSameSet(and(and(a, b), c), PositionSet.and(sets));
+        assertEquals(SPARSE * 2, sets[0].size());
+    }
+
+    @Test
+    public void indexOfBitmapCountsPreviousWords() {
+
+        /* Positions at the edges of the 64 bit words */
+        boolean[] members = new boolean[UNIVERSE];
+        for (int position = 0; position < UNIVERSE; position++)
+            members[position] = position % 64 == 0 || position % 64 == 63 || position % 3 == 0;
+        PositionSet set = setOf(members);
+        assertSameSet(members, set);
+        assertEquals(-1, set.indexOf(-1));
+        assertEquals(-1, set.indexOf(UNIVERSE));
+    }
+
+    @Test
+    public void toArrayReturnsACopy() {
+        boolean[] members = randomMembers(new Random(11), SPARSE, UNIVERSE);
+        PositionSet set = setOf(members);
+        int[] array = set.toArray();
+        array[0] = -5;
+        assertArrayEquals(positionsOf(members), set.toArray());
+    }
+
+    @Test
+    public void universeNotMultipleOfWordSize() {
+        boolean[] members = randomMembers(new Random(12), 50, 101);
+        members[100] = true;
+        assertSameSet(members, setOf(members));
+        assertSameSet(members, setOf(members).and(setOf(members)));
+    }
+}